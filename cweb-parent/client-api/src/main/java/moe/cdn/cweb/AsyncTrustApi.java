@@ -0,0 +1,31 @@
+package moe.cdn.cweb;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import moe.cdn.cweb.SecurityProtos.Hash;
+import moe.cdn.cweb.TorrentTrustProtos.User;
+import moe.cdn.cweb.TorrentTrustProtos.Vote;
+
+/**
+ * Non-blocking counterpart of {@link TrustApi}. The lookups for all voters on
+ * an object are issued at once and combined when they complete, so no thread
+ * is held while waiting on the network.
+ */
+public interface AsyncTrustApi {
+
+    /**
+     * Computes how much {@code user} should trust the claim {@code assertion}
+     * about an object, based on the votes cast on it.
+     *
+     * @param user        the user asking
+     * @param assertion   the assertion being evaluated
+     * @param objectHash  hash of the object
+     * @param trustMetric trust metric used to weigh voters
+     * @return future of the trust score; fails with {@link CwebApiException}
+     *         if a vote on the object is invalid
+     */
+    ListenableFuture<Double> trustForObject(User user,
+            Vote.Assertion assertion,
+            Hash objectHash,
+            TrustApi.TrustMetric trustMetric);
+}
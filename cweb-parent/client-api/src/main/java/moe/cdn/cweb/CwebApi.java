@@ -1,8 +1,11 @@
 package moe.cdn.cweb;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import moe.cdn.cweb.SecurityProtos.Hash;
+import moe.cdn.cweb.SecurityProtos.Key;
 import moe.cdn.cweb.TorrentTrustProtos.User;
 import moe.cdn.cweb.TorrentTrustProtos.Vote;
 
@@ -22,6 +25,24 @@ public interface CwebApi {
      */
     List<Vote> getVotesForUser(User user) throws CwebApiException;
 
+    /**
+     * Gets the number of entries in a user's voting history without fetching
+     * the votes themselves
+     *
+     * @param user
+     * @return
+     */
+    int getVoteHistorySize(User user) throws CwebApiException;
+
+    /**
+     * Gets a digest of a user's voting history that changes whenever votes are
+     * added to it, without fetching the votes themselves
+     *
+     * @param user
+     * @return
+     */
+    Hash getVoteHistoryVersion(User user) throws CwebApiException;
+
     /**
      * Gets the users in a user's local trust neighborhood
      *
@@ -30,6 +51,28 @@ public interface CwebApi {
      */
     List<User> getTrustedUsersForUser(User user) throws CwebApiException;
 
+    /**
+     * Gets the local trust neighborhoods of several users at once. The lookups
+     * are issued concurrently, so a whole frontier of the trust graph costs
+     * about one round trip instead of one per user.
+     *
+     * @param users users to look up (duplicates are looked up once)
+     * @return map from each user to the users in its local trust neighborhood
+     */
+    Map<User, List<User>> getTrustedUsersForUsers(Collection<User> users)
+            throws CwebApiException;
+
+    /**
+     * Gets the current records of several users at once, without looking up
+     * their trust neighborhoods. This is how changes to users already in a
+     * trust graph are found.
+     *
+     * @param publicKeys public keys of the users
+     * @return map from each key to the current record of its user; users that
+     * are not found are left out
+     */
+    Map<Key, User> getUsers(Collection<Key> publicKeys) throws CwebApiException;
+
     /**
      * Gets all votes for an object
      *
@@ -6,6 +6,9 @@ import moe.cdn.cweb.TorrentTrustProtos.User;
  * @author eyeung
  */
 public interface TrustGenerator {
+    int DEFAULT_EIGENTRUST_ITERATIONS = 50;
+    double DEFAULT_EIGENTRUST_EPSILON = 1e-6;
+
     /**
      * Calculates the correlation between users based on their votes. Formula
      * can be found in Credence paper. Ignores users who vote all bad or all
@@ -61,8 +64,34 @@ public interface TrustGenerator {
      */
     double trustCoefficientNumSteps(User src, User tgt, int numHops);
 
-    //TODO: include parameter for number of iterations
-    double trustCoefficientCentrality(User src, User tgt);
+    /**
+     * Computes the EigenTrust value of a target user, using the source user as
+     * the only pre-trusted peer, with the default iteration limit and
+     * convergence threshold.
+     *
+     * @param src the source user
+     * @param tgt the target user
+     * @return global trust of {@code tgt}; 0 if it is not in {@code src}'s
+     * network
+     */
+    default double trustCoefficientCentrality(User src, User tgt) {
+        return trustCoefficientCentrality(src, tgt, DEFAULT_EIGENTRUST_ITERATIONS,
+                DEFAULT_EIGENTRUST_EPSILON);
+    }
+
+    /**
+     * Computes the EigenTrust value of a target user, using the source user as
+     * the only pre-trusted peer.
+     *
+     * @param src           the source user
+     * @param tgt           the target user
+     * @param maxIterations maximum number of power iterations
+     * @param epsilon       stop iterating once the L1 change between two
+     *                      iterations falls below this value
+     * @return global trust of {@code tgt}; 0 if it is not in {@code src}'s
+     * network
+     */
+    double trustCoefficientCentrality(User src, User tgt, int maxIterations, double epsilon);
 
 
 }
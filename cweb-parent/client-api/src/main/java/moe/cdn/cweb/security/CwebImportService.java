@@ -2,6 +2,8 @@ package moe.cdn.cweb.security;
 
 import java.security.InvalidKeyException;
 import java.security.SignatureException;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.Future;
 
 import com.google.common.util.concurrent.Futures;
@@ -25,6 +27,19 @@ public interface CwebImportService extends SignatureImportService {
      */
     ListenableFuture<Boolean> updateVote(Vote vote) throws SignatureException, InvalidKeyException;
 
+    /**
+     * Adds several {@link Vote}s and signs them with the current key. The
+     * history of each owner is updated once for all of their votes.
+     *
+     * @param votes the votes
+     * @return future of whether the import of each vote succeeded, in the
+     * iteration order of {@code votes}
+     * @throws SignatureException
+     * @throws InvalidKeyException
+     */
+    ListenableFuture<List<Boolean>> updateVotes(Collection<Vote> votes)
+            throws SignatureException, InvalidKeyException;
+
     /**
      * Imports a {@link User} and signs it with the current key. The existing
      * record is updated if it exists.
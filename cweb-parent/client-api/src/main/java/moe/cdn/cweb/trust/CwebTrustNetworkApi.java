@@ -1,6 +1,7 @@
 package moe.cdn.cweb.trust;
 
 import java.util.Collection;
+import java.util.Map;
 import java.util.Optional;
 
 import com.google.common.util.concurrent.ListenableFuture;
@@ -41,6 +42,15 @@ public interface CwebTrustNetworkApi {
      */
     ListenableFuture<Collection<User>> getLocalTrustNetwork(User user);
 
+    /**
+     * Fetches the current records of several users at once. Users that do not
+     * exist are left out.
+     *
+     * @param publicKeys public keys of the users
+     * @return future of map from public key to the user's current record
+     */
+    ListenableFuture<Map<Key, User>> getUsers(Collection<Key> publicKeys);
+
     /**
      * Adds a user to the current user's trust network. If the user does not
      * exist, the result will be false.
@@ -3,6 +3,8 @@ package moe.cdn.cweb.vote;
 import java.security.InvalidKeyException;
 import java.security.SignatureException;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Future;
 
 import com.google.common.util.concurrent.ListenableFuture;
@@ -32,6 +34,19 @@ public interface CwebVoteApi {
      */
     ListenableFuture<Collection<Vote>> getVoteHistory(User user);
 
+    /**
+     * Gets the votes that a user has cast on each of several objects. Each
+     * vote is looked up directly by object and owner, so the cost does not
+     * depend on how many other users voted on the objects. Objects on which
+     * the user has no vote are absent from the result.
+     *
+     * @param user
+     * @param objects
+     * @return future of a map from object hash to the user's vote on it, in
+     * the iteration order of {@code objects}
+     */
+    ListenableFuture<Map<Hash, Vote>> getUserVotes(User user, Collection<Hash> objects);
+
     /**
      * Gets the size of a user's vote history. This is faster than getting full
      * history but may be greater than the actual number of votes a user has
@@ -42,6 +57,18 @@ public interface CwebVoteApi {
      */
     ListenableFuture<Integer> getVoteHistorySize(User user);
 
+    /**
+     * Gets a digest of the head of a user's vote history. This takes a single
+     * lookup and changes whenever objects are added to the history, so it can
+     * tell whether anything computed from the history is out of date. A vote
+     * recast on an object already in the history does not change it.
+     *
+     * @param user
+     * @return future of the digest, which is the same for all users without a
+     * history
+     */
+    ListenableFuture<Hash> getVoteHistoryVersion(User user);
+
     /**
      * Cast a vote for a certain object.
      *
@@ -50,4 +77,15 @@ public interface CwebVoteApi {
      * successfully cast
      */
     Future<Boolean> castVote(Vote vote) throws SignatureException, InvalidKeyException;
+
+    /**
+     * Cast several votes at once. The history of each voter is updated once
+     * for all of their votes.
+     *
+     * @param votes
+     * @return future of whether each vote was successfully cast, in the
+     * iteration order of {@code votes}
+     */
+    ListenableFuture<List<Boolean>> castVotes(Collection<Vote> votes)
+            throws SignatureException, InvalidKeyException;
 }
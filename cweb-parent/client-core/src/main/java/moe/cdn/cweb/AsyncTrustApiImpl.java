@@ -0,0 +1,154 @@
+package moe.cdn.cweb;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import javax.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+import moe.cdn.cweb.SecurityProtos.Hash;
+import moe.cdn.cweb.TorrentTrustProtos.SignedUser;
+import moe.cdn.cweb.TorrentTrustProtos.User;
+import moe.cdn.cweb.TorrentTrustProtos.Vote;
+import moe.cdn.cweb.annotations.TrustComputation;
+import moe.cdn.cweb.dht.security.KeyLookupService;
+import moe.cdn.cweb.security.utils.Representations;
+import moe.cdn.cweb.vote.CwebVoteApi;
+
+/**
+ * Computes the same score as {@link TrustApiImpl}, but fans out the owner
+ * lookup, vote history fetch and trust computation for every voter at once
+ * and sums the per-voter scores when they are all done.
+ */
+class AsyncTrustApiImpl implements AsyncTrustApi {
+    private static final Logger logger = LogManager.getLogger();
+
+    private final CwebVoteApi voteApi;
+    private final KeyLookupService keyLookupService;
+    private final TrustGenerator trustGenerator;
+    private final CorrelationCache correlationCache;
+    private final ListeningExecutorService executor;
+
+    @Inject
+    public AsyncTrustApiImpl(CwebVoteApi voteApi, KeyLookupService keyLookupService,
+            TrustGenerator trustGenerator, CorrelationCache correlationCache,
+            @TrustComputation ListeningExecutorService executor) {
+        this.voteApi = checkNotNull(voteApi);
+        this.keyLookupService = checkNotNull(keyLookupService);
+        this.trustGenerator = checkNotNull(trustGenerator);
+        this.correlationCache = checkNotNull(correlationCache);
+        this.executor = checkNotNull(executor);
+    }
+
+    @Override
+    public ListenableFuture<Double> trustForObject(User user,
+            Vote.Assertion assertion,
+            Hash objectHash,
+            TrustApi.TrustMetric trustMetric) {
+        // If the votes cannot be fetched there is nothing to go on
+        ListenableFuture<Collection<Vote>> votesOnObject = Futures.catching(
+                voteApi.getAllVotes(objectHash), Exception.class,
+                (Function<Exception, Collection<Vote>>) e -> {
+                    logger.warn("Failed to get votes on {}", Representations.asString(objectHash),
+                            e);
+                    return Collections.emptyList();
+                });
+        // The user's history is only fetched if a correlation is not cached
+        ListenableFuture<Hash> userVersion = voteApi.getVoteHistoryVersion(user);
+        Supplier<ListenableFuture<Collection<Vote>>> userHistory =
+                Suppliers.memoize(() -> voteApi.getVoteHistory(user));
+        return Futures.transform(votesOnObject,
+                (AsyncFunction<Collection<Vote>, Double>) votes -> {
+                    List<ListenableFuture<Double>> scores = new ArrayList<>(votes.size());
+                    for (Vote vote : votes) {
+                        scores.add(scoreVote(user, userVersion, userHistory, vote, assertion,
+                                trustMetric));
+                    }
+                    return Futures.transform(Futures.allAsList(scores),
+                            (Function<List<Double>, Double>) s -> s.stream()
+                                    .mapToDouble(Double::doubleValue).sum());
+                });
+    }
+
+    /**
+     * Gets the correlation between two users, fetching their vote histories
+     * and computing it again only if either history changed since it was
+     * cached.
+     */
+    private ListenableFuture<Double> correlation(User user,
+            ListenableFuture<Hash> userVersion,
+            Supplier<ListenableFuture<Collection<Vote>>> userHistory,
+            User votingUser) {
+        return Futures.transform(
+                Futures.allAsList(userVersion, voteApi.getVoteHistoryVersion(votingUser)),
+                (AsyncFunction<List<Hash>, Double>) v -> {
+                    CorrelationCache.UserPair key =
+                            CorrelationCache.key(user, v.get(0), votingUser, v.get(1));
+                    Double cached = correlationCache.getIfPresent(key);
+                    if (cached != null) {
+                        return Futures.immediateFuture(cached);
+                    }
+                    return Futures.transform(
+                            Futures.allAsList(userHistory.get(),
+                                    voteApi.getVoteHistory(votingUser)),
+                            (Function<List<Collection<Vote>>, Double>) h -> {
+                                double correlation = TrustGeneratorImpl
+                                        .correlationCoefficient(h.get(0), h.get(1));
+                                correlationCache.put(key, correlation);
+                                return correlation;
+                            });
+                });
+    }
+
+    /**
+     * Computes the contribution of a single vote: the correlation between the
+     * user and the voter, times the trust in the voter, times whether the vote
+     * agrees with the assertion.
+     */
+    private ListenableFuture<Double> scoreVote(User user,
+            ListenableFuture<Hash> userVersion,
+            Supplier<ListenableFuture<Collection<Vote>>> userHistory,
+            Vote vote,
+            Vote.Assertion assertion,
+            TrustApi.TrustMetric trustMetric) {
+        if (vote.getAssertionList().isEmpty()) {
+            return Futures.immediateFailedFuture(
+                    new CwebApiException("No available assertions for a vote cast on object!"));
+        }
+        double agreement =
+                vote.getAssertion(0).getRatingValue() == assertion.getRatingValue() ? 1.0 : -1.0;
+        return Futures.transform(keyLookupService.findOwner(vote.getOwnerPublicKey()),
+                (AsyncFunction<Optional<SignedUser>, Double>) someVotingUser -> {
+                    if (!someVotingUser.isPresent()) {
+                        throw new CwebApiException("Found invalid user vote on object.");
+                    }
+                    User votingUser = someVotingUser.get().getUser();
+                    if (votingUser.getPublicKey().equals(user.getPublicKey())) {
+                        return Futures.immediateFuture(0.0);
+                    }
+                    // Start the trust computation while the correlation is worked out
+                    ListenableFuture<Double> trustScore = executor.submit(
+                            () -> trustGenerator.trustCoefficient(user, votingUser, trustMetric));
+                    ListenableFuture<Double> userCorrelation =
+                            correlation(user, userVersion, userHistory, votingUser);
+                    return Futures.transform(Futures.allAsList(userCorrelation, trustScore),
+                            (Function<List<Double>, Double>) c -> c.get(0) * c.get(1)
+                                    * agreement);
+                });
+    }
+}
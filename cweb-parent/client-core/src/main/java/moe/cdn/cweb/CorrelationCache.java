@@ -0,0 +1,103 @@
+package moe.cdn.cweb;
+
+import java.util.Objects;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import moe.cdn.cweb.SecurityProtos.Hash;
+import moe.cdn.cweb.SecurityProtos.Key;
+import moe.cdn.cweb.TorrentTrustProtos.User;
+
+/**
+ * Size-bounded LRU cache of vote correlations between pairs of users. Entries
+ * are keyed by both users' public keys together with the version of their vote
+ * histories that the correlation was computed from, which is read from the
+ * head of each history. Adding votes to either history changes its version,
+ * so an entry stops being hit as soon as either history changes, and neither
+ * history has to be fetched to find out. Correlation is symmetric, and so is
+ * the key.
+ */
+@Singleton
+class CorrelationCache {
+    static final long DEFAULT_MAXIMUM_SIZE = 100000;
+
+    private final Cache<UserPair, Double> cache;
+
+    @Inject
+    public CorrelationCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    CorrelationCache(long maximumSize) {
+        cache = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    }
+
+    /**
+     * Creates the cache key for a pair of users.
+     *
+     * @param a        first user
+     * @param aVersion version of the first user's vote history
+     * @param b        second user
+     * @param bVersion version of the second user's vote history
+     */
+    static UserPair key(User a, Hash aVersion, User b, Hash bVersion) {
+        return new UserPair(a.getPublicKey(), aVersion, b.getPublicKey(), bVersion);
+    }
+
+    /**
+     * @return the cached correlation or null if there is none
+     */
+    Double getIfPresent(UserPair key) {
+        return cache.getIfPresent(key);
+    }
+
+    void put(UserPair key, double correlation) {
+        cache.put(key, correlation);
+    }
+
+    long size() {
+        return cache.size();
+    }
+
+    /**
+     * Unordered pair of users, each with the version of their vote history.
+     */
+    static final class UserPair {
+        private final Key aKey;
+        private final Hash aVersion;
+        private final Key bKey;
+        private final Hash bVersion;
+
+        private UserPair(Key aKey, Hash aVersion, Key bKey, Hash bVersion) {
+            this.aKey = aKey;
+            this.aVersion = aVersion;
+            this.bKey = bKey;
+            this.bVersion = bVersion;
+        }
+
+        @Override
+        public int hashCode() {
+            // Must not depend on the order of the two users
+            return Objects.hash(aKey, aVersion) + Objects.hash(bKey, bVersion);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof UserPair)) {
+                return false;
+            }
+            UserPair other = (UserPair) obj;
+            return (aKey.equals(other.aKey) && aVersion.equals(other.aVersion)
+                    && bKey.equals(other.bKey) && bVersion.equals(other.bVersion))
+                    || (aKey.equals(other.bKey) && aVersion.equals(other.bVersion)
+                            && bKey.equals(other.aKey) && bVersion.equals(other.aVersion));
+        }
+    }
+}
@@ -1,11 +1,16 @@
 package moe.cdn.cweb;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import moe.cdn.cweb.SecurityProtos.Hash;
+import moe.cdn.cweb.SecurityProtos.Key;
 import moe.cdn.cweb.TorrentTrustProtos.User;
 import moe.cdn.cweb.TorrentTrustProtos.Vote;
+import moe.cdn.cweb.security.utils.HashUtils;
 
 /**
  * @author eyeung
@@ -31,6 +36,17 @@ class CwebApiFakeImpl implements CwebApi {
         return userVotes.get(user);
     }
 
+    @Override
+    public int getVoteHistorySize(User user) {
+        List<Vote> votes = getVotesForUser(user);
+        return votes == null ? 0 : votes.size();
+    }
+
+    @Override
+    public Hash getVoteHistoryVersion(User user) {
+        return HashUtils.hashOf(String.valueOf(getVotesForUser(user)));
+    }
+
     @Override
     public List<User> getTrustedUsersForUser(User user) {
         if (user == null) {
@@ -39,6 +55,27 @@ class CwebApiFakeImpl implements CwebApi {
         return trustedGraph.get(user);
     }
 
+    @Override
+    public Map<User, List<User>> getTrustedUsersForUsers(Collection<User> users) {
+        Map<User, List<User>> trusted = new HashMap<>();
+        for (User user : users) {
+            List<User> neighbors = getTrustedUsersForUser(user);
+            trusted.put(user, neighbors == null ? Collections.emptyList() : neighbors);
+        }
+        return trusted;
+    }
+
+    @Override
+    public Map<Key, User> getUsers(Collection<Key> publicKeys) {
+        Map<Key, User> users = new HashMap<>();
+        for (User user : trustedGraph.keySet()) {
+            if (publicKeys.contains(user.getPublicKey())) {
+                users.put(user.getPublicKey(), user);
+            }
+        }
+        return users;
+    }
+
     @Override
     public List<Vote> getVotes(Hash objectHash) {
         if (objectHash == null) {
@@ -1,18 +1,34 @@
 package moe.cdn.cweb;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Inject;
 
 import moe.cdn.cweb.SecurityProtos.Hash;
+import moe.cdn.cweb.SecurityProtos.Key;
 import moe.cdn.cweb.TorrentTrustProtos.User;
 import moe.cdn.cweb.TorrentTrustProtos.Vote;
+import moe.cdn.cweb.security.utils.Representations;
 import moe.cdn.cweb.trust.CwebTrustNetworkApi;
 import moe.cdn.cweb.vote.CwebVoteApi;
 
 class CwebApiImpl implements CwebApi {
+    private static final Logger logger = LogManager.getLogger();
 
     private final CwebTrustNetworkApi trustNetworkService;
     private final CwebVoteApi voteService;
@@ -32,6 +48,24 @@ class CwebApiImpl implements CwebApi {
         }
     }
 
+    @Override
+    public int getVoteHistorySize(User user) throws CwebApiException {
+        try {
+            return voteService.getVoteHistorySize(user).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new CwebApiException(e);
+        }
+    }
+
+    @Override
+    public Hash getVoteHistoryVersion(User user) throws CwebApiException {
+        try {
+            return voteService.getVoteHistoryVersion(user).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new CwebApiException(e);
+        }
+    }
+
     @Override
     public List<User> getTrustedUsersForUser(User user) throws CwebApiException {
         try {
@@ -42,6 +76,45 @@ class CwebApiImpl implements CwebApi {
         }
     }
 
+    @Override
+    public Map<User, List<User>> getTrustedUsersForUsers(Collection<User> users)
+            throws CwebApiException {
+        // Dedupe before sending anything so each user costs at most one lookup
+        Set<User> distinctUsers = new LinkedHashSet<>(users);
+        List<ListenableFuture<Collection<User>>> lookups = new ArrayList<>(distinctUsers.size());
+        for (User user : distinctUsers) {
+            lookups.add(trustNetworkService.getLocalTrustNetwork(user));
+        }
+        List<Collection<User>> results;
+        try {
+            results = Futures.successfulAsList(lookups).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new CwebApiException(e);
+        }
+        Map<User, List<User>> trusted = new HashMap<>();
+        Iterator<Collection<User>> resultIterator = results.iterator();
+        for (User user : distinctUsers) {
+            Collection<User> neighbors = resultIterator.next();
+            if (neighbors == null) {
+                logger.warn("Failed to fetch local trust network for {}",
+                        Representations.asString(user));
+                trusted.put(user, Collections.emptyList());
+            } else {
+                trusted.put(user, new ArrayList<>(neighbors));
+            }
+        }
+        return trusted;
+    }
+
+    @Override
+    public Map<Key, User> getUsers(Collection<Key> publicKeys) throws CwebApiException {
+        try {
+            return trustNetworkService.getUsers(publicKeys).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new CwebApiException(e);
+        }
+    }
+
     @Override
     public List<Vote> getVotes(Hash objectHash) throws CwebApiException {
         try {
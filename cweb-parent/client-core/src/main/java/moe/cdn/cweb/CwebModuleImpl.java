@@ -1,5 +1,17 @@
 package moe.cdn.cweb;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Singleton;
+
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Provides;
+
+import moe.cdn.cweb.annotations.TrustComputation;
 import moe.cdn.cweb.dht.PeerEnvironment;
 import moe.cdn.cweb.security.SecurityModule;
 import moe.cdn.cweb.spi.CwebModule;
@@ -7,6 +19,9 @@ import moe.cdn.cweb.trust.TrustNetworkModule;
 import moe.cdn.cweb.vote.VoteModule;
 
 public class CwebModuleImpl extends CwebModule {
+    private static final int TRUST_COMPUTATION_THREADS =
+            Runtime.getRuntime().availableProcessors() * 2;
+    private static final int TRUST_COMPUTATION_QUEUE_CAPACITY = 1024;
 
     @Override
     protected void configure() {
@@ -19,6 +34,24 @@ public class CwebModuleImpl extends CwebModule {
         bind(CwebApi.class).to(CwebApiImpl.class);
         bind(TrustGenerator.class).to(TrustGeneratorImpl.class);
         bind(TrustApi.class).to(TrustApiImpl.class);
+        bind(AsyncTrustApi.class).to(AsyncTrustApiImpl.class);
+        bind(EigenTrustService.class).in(Singleton.class);
+    }
+
+    /**
+     * Runs trust computations on their own bounded pool. They block on DHT
+     * lookups, so running them on a shared pool could starve the threads
+     * those lookups complete on. Once the queue is full, new computations are
+     * rejected and fail instead of piling up.
+     */
+    @Provides
+    @TrustComputation
+    @Singleton
+    static ListeningExecutorService provideTrustComputationExecutor() {
+        return MoreExecutors.listeningDecorator(new ThreadPoolExecutor(
+                TRUST_COMPUTATION_THREADS, TRUST_COMPUTATION_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(TRUST_COMPUTATION_QUEUE_CAPACITY),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("trust-%d").build()));
     }
 
 }
@@ -0,0 +1,144 @@
+package moe.cdn.cweb;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * EigenTrust power iteration over a trust graph in compressed sparse row form.
+ * Each user's local trust is spread evenly over the users it trusts; users
+ * that trust nobody hand their trust back to the pre-trusted users. Every
+ * sweep computes
+ *
+ * <pre>
+ * t' = (1 - damping) * C^T t + damping * p
+ * </pre>
+ *
+ * until the L1 distance between two iterates drops below epsilon. All state
+ * is kept in primitive arrays; large graphs are swept in parallel on the
+ * common fork/join pool.
+ */
+final class EigenTrust {
+    /**
+     * Graphs with at least this many users are swept in parallel by
+     * {@link #forSnapshot(TrustGraphSnapshot)}.
+     */
+    static final int PARALLEL_THRESHOLD = 1 << 14;
+    static final double DEFAULT_DAMPING = 0.15;
+
+    private final int size;
+    private final int[] outDegree;
+    private final int[] inOffsets;
+    private final int[] inSources;
+    private final boolean parallel;
+
+    /**
+     * @param size       number of users
+     * @param rowOffsets CSR row offsets of the trust edges
+     * @param edges      CSR edge targets
+     * @param parallel   whether to use a fork/join sweep
+     */
+    EigenTrust(int size, int[] rowOffsets, int[] edges, boolean parallel) {
+        checkArgument(rowOffsets.length == size + 1, "Expected %s row offsets", size + 1);
+        this.size = size;
+        this.parallel = parallel;
+        this.outDegree = new int[size];
+        // Transpose the graph so each sweep can pull from incoming edges, which
+        // lets every user be updated independently of the others
+        this.inOffsets = new int[size + 1];
+        this.inSources = new int[rowOffsets[size]];
+        for (int u = 0; u < size; u++) {
+            outDegree[u] = rowOffsets[u + 1] - rowOffsets[u];
+            for (int e = rowOffsets[u]; e < rowOffsets[u + 1]; e++) {
+                inOffsets[edges[e] + 1]++;
+            }
+        }
+        for (int v = 0; v < size; v++) {
+            inOffsets[v + 1] += inOffsets[v];
+        }
+        int[] fill = Arrays.copyOf(inOffsets, size);
+        for (int u = 0; u < size; u++) {
+            for (int e = rowOffsets[u]; e < rowOffsets[u + 1]; e++) {
+                inSources[fill[edges[e]]++] = u;
+            }
+        }
+    }
+
+    static EigenTrust forSnapshot(TrustGraphSnapshot graph) {
+        return new EigenTrust(graph.size(), graph.rowOffsets(), graph.edges(),
+                graph.size() >= PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * Creates a pre-trust vector that places all pre-trust on one user.
+     */
+    static double[] preTrustFor(int size, int user) {
+        double[] preTrust = new double[size];
+        preTrust[user] = 1.0;
+        return preTrust;
+    }
+
+    /**
+     * Runs the power iteration.
+     *
+     * @param preTrust      pre-trust distribution; must sum to 1
+     * @param damping       weight given to the pre-trust vector on each sweep
+     * @param maxIterations maximum number of sweeps
+     * @param epsilon       stop once the L1 distance between two iterates is
+     *                      below this
+     * @return global trust values, summing to 1
+     */
+    double[] compute(double[] preTrust, double damping, int maxIterations, double epsilon) {
+        checkArgument(preTrust.length == size, "Expected a pre-trust vector of size %s", size);
+        checkArgument(damping >= 0 && damping <= 1, "Damping must be in [0, 1]");
+        checkArgument(maxIterations >= 0, "Number of iterations must be nonnegative");
+        double[] trust = Arrays.copyOf(preTrust, size);
+        double[] next = new double[size];
+        for (int i = 0; i < maxIterations; i++) {
+            double dangling = 0;
+            for (int u = 0; u < size; u++) {
+                if (outDegree[u] == 0) {
+                    dangling += trust[u];
+                }
+            }
+            double delta = sweep(trust, next, preTrust, damping, dangling);
+            double[] swap = trust;
+            trust = next;
+            next = swap;
+            if (delta < epsilon) {
+                break;
+            }
+        }
+        return trust;
+    }
+
+    private double sweep(double[] trust, double[] next, double[] preTrust, double damping,
+            double dangling) {
+        if (parallel) {
+            return IntStream.range(0, size).parallel()
+                    .mapToDouble(v -> update(v, trust, next, preTrust, damping, dangling))
+                    .sum();
+        }
+        double delta = 0;
+        for (int v = 0; v < size; v++) {
+            delta += update(v, trust, next, preTrust, damping, dangling);
+        }
+        return delta;
+    }
+
+    /**
+     * Computes the next trust value of user {@code v} and returns how far it
+     * moved.
+     */
+    private double update(int v, double[] trust, double[] next, double[] preTrust,
+            double damping, double dangling) {
+        double incoming = dangling * preTrust[v];
+        for (int e = inOffsets[v]; e < inOffsets[v + 1]; e++) {
+            int u = inSources[e];
+            incoming += trust[u] / outDegree[u];
+        }
+        next[v] = (1 - damping) * incoming + damping * preTrust[v];
+        return Math.abs(next[v] - trust[v]);
+    }
+}
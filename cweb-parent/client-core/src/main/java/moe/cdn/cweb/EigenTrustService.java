@@ -0,0 +1,158 @@
+package moe.cdn.cweb;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import moe.cdn.cweb.TorrentTrustProtos.User;
+import moe.cdn.cweb.security.utils.Representations;
+import moe.cdn.cweb.trust.CwebTrustNetworkApi;
+
+/**
+ * Periodically computes EigenTrust for the whole network reachable from the
+ * current identity and publishes the result as an immutable score table, so
+ * that rating an object does not have to rerun the power iteration for every
+ * voter.
+ * <p>
+ * The schedule starts the first time scores are requested. Until the first
+ * computation finishes, {@link #getScores()} returns an empty table and
+ * callers fall back to computing trust themselves.
+ */
+@Singleton
+public class EigenTrustService {
+    private static final Logger logger = LogManager.getLogger();
+    private static final long RECOMPUTE_PERIOD_SECONDS = 60;
+
+    private final CwebApi api;
+    private final CwebTrustNetworkApi trustNetworkApi;
+    private final ListeningScheduledExecutorService executor;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile ScoreTable scores = ScoreTable.EMPTY;
+
+    @Inject
+    public EigenTrustService(CwebApi api, CwebTrustNetworkApi trustNetworkApi) {
+        this.api = checkNotNull(api);
+        this.trustNetworkApi = checkNotNull(trustNetworkApi);
+        this.executor = MoreExecutors.listeningDecorator(Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("eigentrust-%d")
+                        .build()));
+    }
+
+    /**
+     * Gets the latest score table, starting the periodic computation if it is
+     * not running yet.
+     */
+    ScoreTable getScores() {
+        if (started.compareAndSet(false, true)) {
+            executor.scheduleWithFixedDelay(this::computeQuietly, 0, RECOMPUTE_PERIOD_SECONDS,
+                    TimeUnit.SECONDS);
+        }
+        return scores;
+    }
+
+    /**
+     * @return time in milliseconds since the epoch at which the current scores
+     *         were computed, or 0 if nothing has been computed yet
+     */
+    public long getLastComputedMillis() {
+        return scores.getComputedMillis();
+    }
+
+    /**
+     * Forces a recomputation outside of the regular schedule.
+     *
+     * @return future of the time at which the new scores were computed; fails
+     *         if the computation failed
+     */
+    public ListenableFuture<Long> recompute() {
+        return executor.submit(() -> {
+            compute();
+            return scores.getComputedMillis();
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void computeQuietly() {
+        try {
+            compute();
+        } catch (CwebApiException | ExecutionException | InterruptedException e) {
+            logger.warn("Failed to compute EigenTrust scores", e);
+        }
+    }
+
+    private void compute() throws CwebApiException, ExecutionException, InterruptedException {
+        Optional<User> identity = trustNetworkApi.getUserIdentity().get();
+        if (!identity.isPresent()) {
+            logger.debug("Current identity is not registered; skipping EigenTrust computation");
+            return;
+        }
+        User root = identity.get();
+        ScoreTable previous = scores;
+        TrustGraphSnapshot graph = previous.graph != null
+                && previous.graph.idOf(root) == TrustGraphSnapshot.ROOT
+                        ? previous.graph.refresh(api, root)
+                        : TrustGraphSnapshot.build(api, root);
+        double[] trust = EigenTrust.forSnapshot(graph).compute(
+                EigenTrust.preTrustFor(graph.size(), TrustGraphSnapshot.ROOT),
+                EigenTrust.DEFAULT_DAMPING, TrustGenerator.DEFAULT_EIGENTRUST_ITERATIONS,
+                TrustGenerator.DEFAULT_EIGENTRUST_EPSILON);
+        scores = new ScoreTable(graph, trust, System.currentTimeMillis());
+        logger.debug("Computed EigenTrust scores for {} users from {}", graph.size(),
+                Representations.asString(root));
+    }
+
+    /**
+     * Immutable table of EigenTrust scores computed from one user's point of
+     * view with the default parameters.
+     */
+    static final class ScoreTable {
+        static final ScoreTable EMPTY = new ScoreTable(null, new double[0], 0);
+
+        private final TrustGraphSnapshot graph;
+        private final double[] trust;
+        private final long computedMillis;
+
+        private ScoreTable(TrustGraphSnapshot graph, double[] trust, long computedMillis) {
+            this.graph = graph;
+            this.trust = trust;
+            this.computedMillis = computedMillis;
+        }
+
+        /**
+         * Looks up the score of {@code tgt} as seen by {@code src}.
+         *
+         * @return the score, or empty if this table was not computed for
+         *         {@code src}
+         */
+        OptionalDouble scoreOf(User src, User tgt) {
+            if (graph == null || graph.idOf(src) != TrustGraphSnapshot.ROOT) {
+                return OptionalDouble.empty();
+            }
+            int id = graph.idOf(tgt);
+            return OptionalDouble.of(id < 0 ? 0.0 : trust[id]);
+        }
+
+        long getComputedMillis() {
+            return computedMillis;
+        }
+    }
+}
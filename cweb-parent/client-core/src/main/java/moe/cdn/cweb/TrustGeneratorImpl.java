@@ -1,16 +1,20 @@
 package moe.cdn.cweb;
 
-import java.util.ArrayDeque;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.Set;
-
+import java.util.OptionalDouble;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.inject.Inject;
 
+import moe.cdn.cweb.SecurityProtos.Key;
 import moe.cdn.cweb.TorrentTrustProtos.User;
 import moe.cdn.cweb.TorrentTrustProtos.Vote;
 
@@ -20,14 +24,34 @@ import moe.cdn.cweb.TorrentTrustProtos.Vote;
 
 class TrustGeneratorImpl implements TrustGenerator {
 
+    private static final long SNAPSHOT_MAX_AGE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    static final long MAXIMUM_SNAPSHOTS = 64;
+
     private final CwebApi api;
+    private final EigenTrustService eigenTrustService;
+    private final CorrelationCache correlationCache;
+    private final Cache<Key, SnapshotEntry> snapshots =
+            CacheBuilder.newBuilder().maximumSize(MAXIMUM_SNAPSHOTS).build();
 
-    @Inject
     public TrustGeneratorImpl(CwebApi api) {
+        this(api, null, new CorrelationCache());
+    }
+
+    /**
+     * @param api               api used to build trust graphs
+     * @param eigenTrustService source of precomputed EigenTrust scores, or
+     *                          null to always compute them on demand
+     * @param correlationCache  cache of correlations between users
+     */
+    @Inject
+    public TrustGeneratorImpl(CwebApi api, EigenTrustService eigenTrustService,
+            CorrelationCache correlationCache) {
         this.api = api;
+        this.eigenTrustService = eigenTrustService;
+        this.correlationCache = correlationCache;
     }
 
-    private double transform(double value) {
+    private static double transform(double value) {
         if (value == 0) {
             return -1;
         }
@@ -36,14 +60,33 @@ class TrustGeneratorImpl implements TrustGenerator {
 
     @Override
     public double correlationCoefficient(User a, User b) throws CwebApiException {
-        // build the vectors
-        Map<SecurityProtos.Hash, Vote> voteVectorA = new HashMap<>();
+        // Only fetch the votes again if either history changed since last time
+        CorrelationCache.UserPair key = CorrelationCache.key(a, api.getVoteHistoryVersion(a), b,
+                api.getVoteHistoryVersion(b));
+        Double cached = correlationCache.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
         List<Vote> aVotes = api.getVotesForUser(a);
         List<Vote> bVotes = api.getVotesForUser(b);
         if (aVotes == null || bVotes == null) {
             return 1.0;
         }
+        double correlation = correlationCoefficient(aVotes, bVotes);
+        correlationCache.put(key, correlation);
+        return correlation;
+    }
 
+    /**
+     * Computes the correlation between two users from their vote histories.
+     *
+     * @param aVotes votes cast by the first user
+     * @param bVotes votes cast by the second user
+     * @return a double representing the amount of correlation between them
+     */
+    static double correlationCoefficient(Collection<Vote> aVotes, Collection<Vote> bVotes) {
+        // build the vectors
+        Map<SecurityProtos.Hash, Vote> voteVectorA = new HashMap<>();
         double score = 0;
         for (Vote v : aVotes) {
             voteVectorA.put(v.getContentHash(), v);
@@ -74,131 +117,110 @@ class TrustGeneratorImpl implements TrustGenerator {
         }
     }
 
-    // first iteration: Trust only users connected to A.
-    @Override
-    public double trustCoefficientDirect(User a, User b) {
-        Set<User> trustedUsers;
-        try {
-            trustedUsers = new HashSet<>(api.getTrustedUsersForUser(a));
-            return trustedUsers.contains(b) ? 1 : 0;
-        } catch (CwebApiException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-            return 0;
-        }
-    }
-
-    // second iteration: Trust any user in A's connected component
-    // this should probably be cached
-    @Override
-    public double trustCoefficientNetwork(User a, User b) {
-        Set<User> reachable = bfs(a, b);
-        return (reachable.contains(b)) ? 1.0 : 0.0;
-    }
-
-
     /**
-     *
-     * @param a
-     * @param b
-     * @return the set of users reachable from a bfs from a
+     * Gets the trust graph as seen from {@code a}, building it the first time
+     * and refreshing it once it is older than {@link #SNAPSHOT_MAX_AGE_MILLIS}.
+     * All trust metrics run against this snapshot rather than the DHT.
+     * <p>
+     * The DHT is never queried while holding a lock on the cache. Callers
+     * asking for a snapshot that is being built wait for it; one caller
+     * refreshes a stale snapshot while the others keep using it.
      */
-    private Set<User> bfs(User a, User b) {
-        Queue<User> q = new ArrayDeque<>();
-        HashSet<User> seen = new HashSet<>();
-        q.offer(a);
-        while (!q.isEmpty()) {
-            User u = q.poll();
-            if (seen.contains(u)) {
-                continue;
+    TrustGraphSnapshot snapshotFor(User a) {
+        SnapshotEntry created = new SnapshotEntry();
+        SnapshotEntry entry = snapshots.asMap().putIfAbsent(a.getPublicKey(), created);
+        if (entry == null) {
+            TrustGraphSnapshot snapshot;
+            try {
+                snapshot = build(a);
+            } catch (RuntimeException e) {
+                snapshots.asMap().remove(a.getPublicKey(), created);
+                created.built.setException(e);
+                throw e;
             }
-            seen.add(u);
+            created.current = snapshot;
+            created.built.set(snapshot);
+            return snapshot;
+        }
+        Futures.getUnchecked(entry.built);
+        TrustGraphSnapshot snapshot = entry.current;
+        if (System.currentTimeMillis() - snapshot.getCreatedMillis() > SNAPSHOT_MAX_AGE_MILLIS
+                && entry.refreshing.compareAndSet(false, true)) {
             try {
-                for (User n : api.getTrustedUsersForUser(u)) {
-                    q.offer(n);
-                }
+                snapshot = snapshot.refresh(api, a);
+                entry.current = snapshot;
             } catch (CwebApiException e) {
-                // TODO Auto-generated catch block
                 e.printStackTrace();
+            } finally {
+                entry.refreshing.set(false);
             }
         }
+        return snapshot;
+    }
 
-        return seen;
+    private TrustGraphSnapshot build(User a) {
+        try {
+            return TrustGraphSnapshot.build(api, a);
+        } catch (CwebApiException e) {
+            e.printStackTrace();
+            return TrustGraphSnapshot.of(a);
+        }
+    }
+
+    // first iteration: Trust only users connected to A.
+    @Override
+    public double trustCoefficientDirect(User a, User b) {
+        TrustGraphSnapshot graph = snapshotFor(a);
+        int tgt = graph.idOf(b);
+        return tgt >= 0 && graph.hasEdge(TrustGraphSnapshot.ROOT, tgt) ? 1 : 0;
+    }
+
+    // second iteration: Trust any user in A's connected component
+    @Override
+    public double trustCoefficientNetwork(User a, User b) {
+        return snapshotFor(a).idOf(b) >= 0 ? 1.0 : 0.0;
     }
 
     // third iteration: Measure trust on number of steps
     @Override
     public double trustCoefficientNumSteps(User a, User b, int num_steps) {
-        Queue<User> q = new LinkedList<>();
-        HashSet<User> seen = new HashSet<>();
-        q.offer(a);
-        q.offer(null);
-        int level = 0;
-        while (!q.isEmpty()) {
-            User u = q.poll();
-            if (u == null) {
-                level += 1;
-                if (level > num_steps || q.isEmpty()) {
-                    return 0;
-                }
-                q.offer(null);
-                continue;
-            }
-            if (seen.contains(u)) {
-                continue;
-            }
-            seen.add(u);
-            if (u == b) {
-                return 1.0;
-            }
-            try {
-                for (User n : api.getTrustedUsersForUser(u)) {
-                    q.offer(n);
-                }
-            } catch (CwebApiException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
+        TrustGraphSnapshot graph = snapshotFor(a);
+        int tgt = graph.idOf(b);
+        if (tgt < 0) {
+            return 0;
         }
-        return 0;
+        return graph.hopsBetween(TrustGraphSnapshot.ROOT, tgt, num_steps) >= 0 ? 1.0 : 0;
     }
 
     @Override
-    public double trustCoefficientCentrality(User src, User tgt) {
-        //arbitrarily say run 17 iterations of eigenvector centrality
-        Set<User> reachable = bfs(src, tgt);
-        Map<User, Double> v = new HashMap<User, Double>();
-        Map<User, Double> v_t = new HashMap<User, Double>();
-
-        if (!reachable.contains(tgt)) {
+    public double trustCoefficientCentrality(User src, User tgt, int maxIterations,
+            double epsilon) {
+        if (eigenTrustService != null && maxIterations == DEFAULT_EIGENTRUST_ITERATIONS
+                && epsilon == DEFAULT_EIGENTRUST_EPSILON) {
+            OptionalDouble score = eigenTrustService.getScores().scoreOf(src, tgt);
+            if (score.isPresent()) {
+                return score.getAsDouble();
+            }
+        }
+        TrustGraphSnapshot graph = snapshotFor(src);
+        int target = graph.idOf(tgt);
+        if (target < 0) {
             return 0.0;
         }
+        double[] trust = EigenTrust.forSnapshot(graph).compute(
+                EigenTrust.preTrustFor(graph.size(), TrustGraphSnapshot.ROOT),
+                EigenTrust.DEFAULT_DAMPING, maxIterations, epsilon);
+        return trust[target];
+    }
 
-        for (User u : reachable) {
-            v.put(u, 1.0 / reachable.size());
-            v_t.put(u, 0.0);
-        }
-        
-        for (int i = 0; i < 17 ; i++) {
-            for (User u : reachable) {
-                try {
-                    List<User> trusted = api.getTrustedUsersForUser(u);
-                    for (User neighbor : trusted) {
-                        double new_value = v_t.get(neighbor) +
-                                v.get(u) / api.getTrustedUsersForUser(neighbor).size();
-                        v_t.put(neighbor, new_value);
-                    }
-                } catch (CwebApiException e) {
-                    e.printStackTrace();
-                }
-            }
-            v = v_t;
-            v_t = new HashMap<User, Double>();
-            for (User u : reachable) {
-                v_t.put(u, 0.0);
-            }
-        }
-        return v.get(tgt);
+    /**
+     * The snapshot of one user's trust graph, and the build of its first
+     * version.
+     */
+    private static final class SnapshotEntry {
+        final SettableFuture<TrustGraphSnapshot> built = SettableFuture.create();
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        volatile TrustGraphSnapshot current;
     }
 
 }
@@ -0,0 +1,277 @@
+package moe.cdn.cweb;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import moe.cdn.cweb.SecurityProtos.Key;
+import moe.cdn.cweb.TorrentTrustProtos.User;
+
+/**
+ * Immutable, materialized view of the trust graph reachable from one user.
+ * Users are identified by their public key and numbered with dense int ids in
+ * BFS order (the root is always id 0); edges are stored in compressed sparse
+ * row form so that trust metrics can run over plain arrays instead of going
+ * back to the DHT.
+ */
+final class TrustGraphSnapshot {
+    static final int ROOT = 0;
+
+    private final User[] users;
+    private final Map<Key, Integer> ids;
+    private final int[] rowOffsets;
+    private final int[] edges;
+    private final long createdMillis;
+
+    private TrustGraphSnapshot(User[] users, Map<Key, Integer> ids, int[] rowOffsets,
+            int[] edges, long createdMillis) {
+        this.users = users;
+        this.ids = ids;
+        this.rowOffsets = rowOffsets;
+        this.edges = edges;
+        this.createdMillis = createdMillis;
+    }
+
+    /**
+     * Builds a snapshot of everything reachable from {@code root}. The graph is
+     * expanded one frontier at a time, one batched lookup per level.
+     *
+     * @param api  api used to fetch local trust networks
+     * @param root user whose view of the trust graph is materialized
+     * @return the snapshot
+     */
+    static TrustGraphSnapshot build(CwebApi api, User root) throws CwebApiException {
+        Map<Key, User> records = new HashMap<>();
+        Map<Key, List<Key>> adjacency = new HashMap<>();
+        records.put(root.getPublicKey(), root);
+        expand(api, Collections.singletonList(root), records, adjacency);
+        return fromAdjacency(root, records, adjacency);
+    }
+
+    /**
+     * Creates a snapshot containing only {@code root} and no edges.
+     */
+    static TrustGraphSnapshot of(User root) {
+        Map<Key, Integer> ids = Collections.singletonMap(root.getPublicKey(), ROOT);
+        return new TrustGraphSnapshot(new User[] {root}, ids, new int[] {0, 0}, new int[0],
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Brings this snapshot up to date. The current records of all known users
+     * are fetched in a single batch, without their trust neighborhoods. Only
+     * users whose record changed, and users that become reachable through
+     * them, are expanded again; everyone else keeps their edges. The arrays
+     * are rebuilt only if something actually changed.
+     *
+     * @param api  api used to fetch user records and local trust networks
+     * @param root the current record of the root user
+     * @return a fresh snapshot, sharing the arrays of this one if nothing
+     *         changed
+     */
+    TrustGraphSnapshot refresh(CwebApi api, User root) throws CwebApiException {
+        checkNotNull(root);
+        List<Key> members = new ArrayList<>(users.length);
+        for (int id = 0; id < users.length; id++) {
+            if (id != ROOT) {
+                members.add(users[id].getPublicKey());
+            }
+        }
+        Map<Key, User> records = new HashMap<>(api.getUsers(members));
+        records.put(root.getPublicKey(), root);
+
+        Map<Key, List<Key>> adjacency = new HashMap<>();
+        List<User> stale = new ArrayList<>();
+        boolean changed = false;
+        for (int id = 0; id < users.length; id++) {
+            User current = records.get(users[id].getPublicKey());
+            if (current == null) {
+                // The user no longer exists
+                changed = true;
+            } else if (current.equals(users[id])) {
+                adjacency.put(current.getPublicKey(), keysOf(id));
+            } else {
+                stale.add(current);
+            }
+        }
+        if (!changed && stale.isEmpty()) {
+            return new TrustGraphSnapshot(users, ids, rowOffsets, edges,
+                    System.currentTimeMillis());
+        }
+        expand(api, stale, records, adjacency);
+        return fromAdjacency(root, records, adjacency);
+    }
+
+    private static void expand(CwebApi api,
+            Collection<User> start,
+            Map<Key, User> records,
+            Map<Key, List<Key>> adjacency) throws CwebApiException {
+        List<User> frontier = new ArrayList<>(start);
+        while (!frontier.isEmpty()) {
+            Map<User, List<User>> trusted = api.getTrustedUsersForUsers(frontier);
+            List<User> nextFrontier = new ArrayList<>();
+            for (User u : frontier) {
+                List<User> neighbors = trusted.getOrDefault(u, Collections.emptyList());
+                adjacency.put(u.getPublicKey(), keysOf(neighbors));
+                for (User n : neighbors) {
+                    if (records.putIfAbsent(n.getPublicKey(), n) == null) {
+                        nextFrontier.add(n);
+                    }
+                }
+            }
+            frontier = nextFrontier;
+        }
+    }
+
+    private static TrustGraphSnapshot fromAdjacency(User root,
+            Map<Key, User> records,
+            Map<Key, List<Key>> adjacency) {
+        // Number users in BFS order from the root; this also drops users that
+        // are no longer reachable after a refresh.
+        Map<Key, Integer> ids = new LinkedHashMap<>();
+        List<User> users = new ArrayList<>();
+        ids.put(root.getPublicKey(), ROOT);
+        users.add(root);
+        for (int next = 0; next < users.size(); next++) {
+            for (Key neighbor : adjacency.getOrDefault(users.get(next).getPublicKey(),
+                    Collections.emptyList())) {
+                // Edges kept from before a refresh may point at users that no
+                // longer exist
+                if (!ids.containsKey(neighbor) && records.containsKey(neighbor)) {
+                    ids.put(neighbor, users.size());
+                    users.add(records.get(neighbor));
+                }
+            }
+        }
+
+        int[] rowOffsets = new int[users.size() + 1];
+        int[] edges = new int[adjacency.values().stream().mapToInt(List::size).sum()];
+        int edgeCount = 0;
+        for (int id = 0; id < users.size(); id++) {
+            rowOffsets[id] = edgeCount;
+            for (Key neighbor : adjacency.getOrDefault(users.get(id).getPublicKey(),
+                    Collections.emptyList())) {
+                if (ids.containsKey(neighbor)) {
+                    edges[edgeCount++] = ids.get(neighbor);
+                }
+            }
+        }
+        rowOffsets[users.size()] = edgeCount;
+        return new TrustGraphSnapshot(users.toArray(new User[users.size()]),
+                Collections.unmodifiableMap(ids), rowOffsets, Arrays.copyOf(edges, edgeCount),
+                System.currentTimeMillis());
+    }
+
+    private static List<Key> keysOf(List<User> users) {
+        return users.stream().map(User::getPublicKey).collect(Collectors.toList());
+    }
+
+    private List<Key> keysOf(int id) {
+        List<Key> keys = new ArrayList<>(outDegree(id));
+        for (int e = rowOffsets[id]; e < rowOffsets[id + 1]; e++) {
+            keys.add(users[edges[e]].getPublicKey());
+        }
+        return keys;
+    }
+
+    /**
+     * @return number of users in the snapshot
+     */
+    int size() {
+        return users.length;
+    }
+
+    /**
+     * @return id of the user or -1 if the user is not reachable from the root
+     */
+    int idOf(User user) {
+        Integer id = ids.get(user.getPublicKey());
+        return id == null ? -1 : id;
+    }
+
+    User user(int id) {
+        return users[id];
+    }
+
+    int outDegree(int id) {
+        return rowOffsets[id + 1] - rowOffsets[id];
+    }
+
+    /**
+     * Row offsets of the CSR edge array: the users trusted by {@code id} are
+     * {@code edges()[rowOffsets()[id]]} up to (excluding)
+     * {@code edges()[rowOffsets()[id + 1]]}. Callers must not modify the
+     * returned array.
+     */
+    int[] rowOffsets() {
+        return rowOffsets;
+    }
+
+    /**
+     * CSR edge targets. Callers must not modify the returned array.
+     */
+    int[] edges() {
+        return edges;
+    }
+
+    boolean hasEdge(int from, int to) {
+        for (int e = rowOffsets[from]; e < rowOffsets[from + 1]; e++) {
+            if (edges[e] == to) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the length of the shortest path between two users.
+     *
+     * @param src     source id
+     * @param tgt     target id
+     * @param maxHops maximum number of hops to explore, or negative for no
+     *                limit
+     * @return number of hops from {@code src} to {@code tgt} or -1 if it cannot
+     *         be reached within {@code maxHops}
+     */
+    int hopsBetween(int src, int tgt, int maxHops) {
+        if (src == tgt) {
+            return 0;
+        }
+        int[] distance = new int[users.length];
+        Arrays.fill(distance, -1);
+        int[] queue = new int[users.length];
+        int head = 0;
+        int tail = 0;
+        distance[src] = 0;
+        queue[tail++] = src;
+        while (head < tail) {
+            int u = queue[head++];
+            if (maxHops >= 0 && distance[u] >= maxHops) {
+                continue;
+            }
+            for (int e = rowOffsets[u]; e < rowOffsets[u + 1]; e++) {
+                int v = edges[e];
+                if (distance[v] < 0) {
+                    distance[v] = distance[u] + 1;
+                    if (v == tgt) {
+                        return distance[v];
+                    }
+                    queue[tail++] = v;
+                }
+            }
+        }
+        return -1;
+    }
+
+    long getCreatedMillis() {
+        return createdMillis;
+    }
+}
@@ -0,0 +1,130 @@
+package moe.cdn.cweb.security;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Runs writes one at a time per key and different keys in parallel. Items
+ * submitted for a key while a write for it is running wait, and are then
+ * written together in one batch, in the order they were submitted.
+ *
+ * @param <K> key that writes are ordered by
+ * @param <T> item written
+ */
+class CoalescingWriteQueue<K, T> {
+
+    /**
+     * Writes a batch of items for a key.
+     */
+    interface BatchWriter<K, T> {
+        /**
+         * @return future of whether the batch was written
+         */
+        ListenableFuture<Boolean> write(K key, List<T> items) throws Exception;
+    }
+
+    private final BatchWriter<K, T> writer;
+    private final Map<K, Pending<T>> pending = new ConcurrentHashMap<>();
+
+    CoalescingWriteQueue(BatchWriter<K, T> writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Queues an item to be written.
+     *
+     * @return future of whether the batch the item was written in succeeded
+     */
+    ListenableFuture<Boolean> submit(K key, T item) {
+        return submitAll(key, Collections.singletonList(item));
+    }
+
+    /**
+     * Queues items to be written in the same batch.
+     *
+     * @return future of whether the batch the items were written in succeeded
+     */
+    ListenableFuture<Boolean> submitAll(K key, Collection<T> items) {
+        SettableFuture<Boolean> result = SettableFuture.create();
+        boolean[] start = new boolean[1];
+        pending.compute(key, (k, queue) -> {
+            if (queue == null) {
+                // Nothing is running for the key, so this starts a write
+                queue = new Pending<>();
+                start[0] = true;
+            }
+            queue.items.addAll(items);
+            queue.results.add(result);
+            return queue;
+        });
+        if (start[0]) {
+            writeNext(key);
+        }
+        return result;
+    }
+
+    /**
+     * @return number of keys that have a write running
+     */
+    int activeKeys() {
+        return pending.size();
+    }
+
+    private void writeNext(K key) {
+        Pending<T> batch = new Pending<>();
+        // The queue stays in the map while its batch is written, so that
+        // items submitted meanwhile wait for it
+        pending.computeIfPresent(key, (k, queue) -> {
+            batch.items.addAll(queue.items);
+            batch.results.addAll(queue.results);
+            queue.items.clear();
+            queue.results.clear();
+            return queue;
+        });
+        ListenableFuture<Boolean> written;
+        try {
+            written = writer.write(key, batch.items);
+        } catch (Exception e) {
+            written = Futures.immediateFailedFuture(e);
+        }
+        Futures.addCallback(written, new FutureCallback<Boolean>() {
+            @Override
+            public void onSuccess(Boolean result) {
+                batch.results.forEach(future -> future.set(result));
+                finish(key);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                batch.results.forEach(future -> future.setException(t));
+                finish(key);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void finish(K key) {
+        boolean[] more = new boolean[1];
+        pending.computeIfPresent(key, (k, queue) -> {
+            more[0] = !queue.results.isEmpty();
+            return more[0] ? queue : null;
+        });
+        if (more[0]) {
+            writeNext(key);
+        }
+    }
+
+    private static final class Pending<T> {
+        final List<T> items = new ArrayList<>();
+        final List<SettableFuture<Boolean>> results = new ArrayList<>();
+    }
+}
@@ -4,6 +4,18 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.security.InvalidKeyException;
 import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -12,9 +24,12 @@ import com.google.common.base.Function;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.inject.Inject;
 import com.google.protobuf.Message;
 
+import moe.cdn.cweb.SecurityProtos.Hash;
 import moe.cdn.cweb.SecurityProtos.Key;
 import moe.cdn.cweb.SecurityProtos.KeyPair;
 import moe.cdn.cweb.SecurityProtos.Signature;
@@ -34,11 +49,13 @@ import moe.cdn.cweb.security.utils.SignatureUtils;
 
 public class CwebImportServiceImpl implements CwebImportService {
     private static final Logger logger = LogManager.getLogger();
+    static final int MAX_VOTE_PUTS_IN_FLIGHT = 16;
 
     private final KeyEnvironment keyEnvironment;
     private final CwebMultiMap<SignedUser> userMap;
     private final CwebMultiMap<SignedVote> voteMap;
     private final CwebMultiMap<SignedVoteHistory> voteHistoryMap;
+    private final CoalescingWriteQueue<Key, Hash> historyWrites;
 
     @Inject
     public CwebImportServiceImpl(KeyEnvironment keyEnvironment,
@@ -50,19 +67,37 @@ public class CwebImportServiceImpl implements CwebImportService {
         this.userMap = checkNotNull(userMap);
         this.voteMap = checkNotNull(voteMap);
         this.voteHistoryMap = checkNotNull(voteHistoryMap);
+        this.historyWrites = new CoalescingWriteQueue<>(this::appendToHistory);
     }
 
     /**
-     * Ensures that a {@link VoteHistory} can be obtained
+     * Ensures that the head of a {@link VoteHistory} can be obtained
      *
      * @param userPublicKey
      * @return
      */
     private ListenableFuture<VoteHistory> ensureVoteHistory(Key userPublicKey) {
         return Futures.transform(voteHistoryMap.get(userPublicKey.getHash()),
-                (Function<SignedVoteHistory, VoteHistory>) history -> history == null
-                        ? VoteHistory.newBuilder().setOwnerPublicKey(userPublicKey).build()
-                        : history.getHistory());
+                (Function<SignedVoteHistory, VoteHistory>) history -> {
+                    VoteHistory head = ownHistory(history, userPublicKey);
+                    return head == null
+                            ? VoteHistory.newBuilder().setOwnerPublicKey(userPublicKey).build()
+                            : head;
+                });
+    }
+
+    /**
+     * Peers can return anything under the keys of a history, so a history or
+     * segment is only used if it is signed by the user it belongs to.
+     *
+     * @return the history, or null if there is none or it is not the owner's
+     */
+    private static VoteHistory ownHistory(SignedVoteHistory history, Key owner) {
+        if (history == null || !history.getHistory().getOwnerPublicKey().equals(owner)
+                || !history.getSignature().getPublicKey().equals(owner)) {
+            return null;
+        }
+        return history.getHistory();
     }
 
     @Override
@@ -72,7 +107,8 @@ public class CwebImportServiceImpl implements CwebImportService {
     }
 
     /**
-     * Produces a signature using the user's keypair
+     * Produces a signature using the user's keypair, with the signer that the
+     * environment keeps for it
      *
      * @param message
      * @return
@@ -80,29 +116,16 @@ public class CwebImportServiceImpl implements CwebImportService {
      * @throws InvalidKeyException
      */
     private Signature sign(Message message) throws InvalidKeyException, SignatureException {
-        return sign(keyEnvironment.getKeyPair(), message.toByteArray());
+        return keyEnvironment.getSigner().sign(message);
     }
 
     @Override
-    public synchronized ListenableFuture<Boolean> updateVote(Vote vote)
+    public ListenableFuture<Boolean> updateVote(Vote vote)
             throws SignatureException, InvalidKeyException {
-        // Get existing vote history and add content hash if necessary
-        ListenableFuture<VoteHistory> amendedHistory =
-                Futures.transform(ensureVoteHistory(vote.getOwnerPublicKey()),
-                        (Function<VoteHistory, VoteHistory>) history -> {
-                            // FIXME: should correctly update a vote on a
-                            // duplicate property
-                            if (history.getContentHashList().contains(vote.getContentHash())) {
-                                return history;
-                            } else {
-                                return history.toBuilder().addContentHash(vote.getContentHash())
-                                        .build();
-                            }
-                        });
-        // Write the history
-        ListenableFuture<Boolean> voteHistoryFuture = Futures.transform(amendedHistory,
-                (AsyncFunction<VoteHistory, Boolean>) voteHistory -> importSignature(voteHistory,
-                        sign(voteHistory)));
+        // Votes of the same owner that arrive while their history is being
+        // written are added to it in one write; other owners go in parallel
+        ListenableFuture<Boolean> voteHistoryFuture =
+                historyWrites.submit(vote.getOwnerPublicKey(), vote.getContentHash());
         return Futures
                 .transform(voteHistoryFuture,
                         (AsyncFunction<Boolean, Boolean>) success -> success
@@ -110,6 +133,252 @@ public class CwebImportServiceImpl implements CwebImportService {
                                 : Futures.immediateFuture(false));
     }
 
+    @Override
+    public ListenableFuture<List<Boolean>> updateVotes(Collection<Vote> votes)
+            throws SignatureException, InvalidKeyException {
+        List<Vote> voteList = new ArrayList<>(votes);
+        List<Signature> signatures;
+        try {
+            signatures = voteList.parallelStream().map(vote -> {
+                try {
+                    return sign(vote);
+                } catch (InvalidKeyException | SignatureException e) {
+                    throw new CompletionException(e);
+                }
+            }).collect(Collectors.toList());
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SignatureException) {
+                throw (SignatureException) e.getCause();
+            }
+            throw (InvalidKeyException) e.getCause();
+        }
+        // One history write per owner for all of their votes
+        Map<Key, List<Hash>> hashesByOwner = new LinkedHashMap<>();
+        for (Vote vote : voteList) {
+            hashesByOwner.computeIfAbsent(vote.getOwnerPublicKey(), owner -> new ArrayList<>())
+                    .add(vote.getContentHash());
+        }
+        List<Key> owners = new ArrayList<>(hashesByOwner.keySet());
+        List<ListenableFuture<Boolean>> histories = new ArrayList<>();
+        for (Key owner : owners) {
+            histories.add(historyWrites.submitAll(owner, hashesByOwner.get(owner)));
+        }
+        return Futures.transform(Futures.successfulAsList(histories),
+                (AsyncFunction<List<Boolean>, List<Boolean>>) written -> {
+                    Set<Key> recorded = new HashSet<>();
+                    for (int i = 0; i < owners.size(); i++) {
+                        if (Boolean.TRUE.equals(written.get(i))) {
+                            recorded.add(owners.get(i));
+                        }
+                    }
+                    List<Supplier<ListenableFuture<Boolean>>> puts = new ArrayList<>();
+                    for (int i = 0; i < voteList.size(); i++) {
+                        Vote vote = voteList.get(i);
+                        Signature signature = signatures.get(i);
+                        // Votes whose history was not written are not put
+                        puts.add(recorded.contains(vote.getOwnerPublicKey())
+                                ? () -> importSignature(vote, signature)
+                                : () -> Futures.immediateFuture(false));
+                    }
+                    return Futures.allAsList(startBounded(puts));
+                });
+    }
+
+    /**
+     * Starts writes with at most {@link #MAX_VOTE_PUTS_IN_FLIGHT} of them
+     * unfinished at a time, each when one before it finishes.
+     *
+     * @return futures of the writes, in order
+     */
+    static List<ListenableFuture<Boolean>> startBounded(
+            List<Supplier<ListenableFuture<Boolean>>> writes) {
+        List<ListenableFuture<Boolean>> results = new ArrayList<>();
+        List<SettableFuture<Boolean>> settable = new ArrayList<>();
+        for (int i = 0; i < writes.size(); i++) {
+            SettableFuture<Boolean> result = SettableFuture.create();
+            settable.add(result);
+            results.add(result);
+        }
+        AtomicInteger next = new AtomicInteger();
+        Runnable startNext = new Runnable() {
+            @Override
+            public void run() {
+                // Writes that are already done, such as ones that were never
+                // sent, free their slot straight away. Looping over them
+                // rather than listening keeps the stack from growing.
+                int i;
+                while ((i = next.getAndIncrement()) < writes.size()) {
+                    ListenableFuture<Boolean> write = writes.get(i).get();
+                    settable.get(i).setFuture(write);
+                    if (!write.isDone()) {
+                        write.addListener(this, MoreExecutors.directExecutor());
+                        return;
+                    }
+                }
+            }
+        };
+        for (int i = 0; i < Math.min(MAX_VOTE_PUTS_IN_FLIGHT, writes.size()); i++) {
+            startNext.run();
+        }
+        return results;
+    }
+
+    /**
+     * Adds content hashes to the history of a user, skipping the objects the
+     * user has voted on before. Those are found by looking up the user's vote
+     * on each object, so only the head and the last segment of the history
+     * are read and rewritten, however long it is.
+     */
+    private ListenableFuture<Boolean> appendToHistory(Key owner, List<Hash> contentHashes) {
+        ListenableFuture<List<Hash>> notVoted = notVotedOn(owner, contentHashes);
+        return Futures.transform(ensureVoteHistory(owner),
+                (AsyncFunction<VoteHistory, Boolean>) head -> {
+                    if (head.getContentHashCount() > 0) {
+                        return migrateAndAppend(head, contentHashes);
+                    }
+                    ListenableFuture<VoteHistory> tail = loadTail(head);
+                    return Futures.transform(notVoted,
+                            (AsyncFunction<List<Hash>, Boolean>) added -> Futures.transform(tail,
+                                    (AsyncFunction<VoteHistory, Boolean>) last -> append(head,
+                                            last, added, false)));
+                });
+    }
+
+    /**
+     * Gets the content hashes of the objects a user has no vote on yet, each
+     * once, in order. Votes are written after the history, so a vote found
+     * here means the object is in the history already. Objects whose vote
+     * cannot be looked up are kept; readers drop them if they are in the
+     * history twice.
+     */
+    private ListenableFuture<List<Hash>> notVotedOn(Key owner, List<Hash> contentHashes) {
+        List<Hash> distinct = new ArrayList<>(new LinkedHashSet<>(contentHashes));
+        List<ListenableFuture<SignedVote>> votes = new ArrayList<>(distinct.size());
+        for (Hash contentHash : distinct) {
+            votes.add(voteMap.get(contentHash, owner.getHash()));
+        }
+        return Futures.transform(Futures.successfulAsList(votes),
+                (Function<List<SignedVote>, List<Hash>>) found -> {
+                    List<Hash> notVoted = new ArrayList<>();
+                    for (int i = 0; i < distinct.size(); i++) {
+                        SignedVote vote = found.get(i);
+                        if (vote == null || !vote.getVote().getOwnerPublicKey().equals(owner)
+                                || !vote.getSignature().getPublicKey().equals(owner)) {
+                            notVoted.add(distinct.get(i));
+                        }
+                    }
+                    return notVoted;
+                });
+    }
+
+    /**
+     * @return the content hashes not recorded yet, each once, in order
+     */
+    private static List<Hash> notIn(List<Hash> contentHashes, Set<Hash> recorded) {
+        Set<Hash> added = new LinkedHashSet<>(contentHashes);
+        added.removeAll(recorded);
+        return new ArrayList<>(added);
+    }
+
+    /**
+     * Gets the last segment of a history, or a new first segment if it has
+     * none.
+     */
+    private ListenableFuture<VoteHistory> loadTail(VoteHistory head) {
+        if (head.getSegmentCount() == 0) {
+            return Futures.immediateFuture(segment(head.getOwnerPublicKey(), 0));
+        }
+        int last = head.getSegmentCount() - 1;
+        return Futures.transform(
+                voteHistoryMap.get(CwebMisc.voteHistorySegmentKey(head.getOwnerPublicKey(), last)),
+                (Function<SignedVoteHistory, VoteHistory>) tail -> {
+                    VoteHistory segment = ownHistory(tail, head.getOwnerPublicKey());
+                    return segment == null || segment.getSegment() != last
+                            ? segment(head.getOwnerPublicKey(), last)
+                            : segment;
+                });
+    }
+
+    /**
+     * Adds content hashes to the last segment of a history, starting new
+     * segments as it fills up, and writes the segments and then the head.
+     *
+     * @param writeTail whether to write the tail even if nothing is added
+     */
+    private ListenableFuture<Boolean> append(VoteHistory head, VoteHistory tail,
+                                             List<Hash> contentHashes, boolean writeTail)
+            throws SignatureException, InvalidKeyException {
+        List<VoteHistory> segments = new ArrayList<>();
+        VoteHistory.Builder current = tail.toBuilder();
+        boolean changed = writeTail;
+        int added = 0;
+        for (Hash contentHash : contentHashes) {
+            // FIXME: should correctly update a vote on a duplicate property.
+            // Callers drop the objects voted on before; readers also drop
+            // any that slip through a vote that could not be looked up.
+            if (current.getContentHashList().contains(contentHash)) {
+                continue;
+            }
+            if (current.getContentHashCount() >= CwebMisc.VOTE_HISTORY_SEGMENT_SIZE) {
+                if (changed) {
+                    segments.add(current.build());
+                }
+                current = segment(head.getOwnerPublicKey(), current.getSegment() + 1)
+                        .toBuilder();
+            }
+            current.addContentHash(contentHash);
+            changed = true;
+            added++;
+        }
+        if (!changed) {
+            return Futures.immediateFuture(true);
+        }
+        segments.add(current.build());
+        VoteHistory newHead = head.toBuilder().setSegmentCount(current.getSegment() + 1)
+                .setSegmentedSize(head.getSegmentedSize() + added).build();
+        List<ListenableFuture<Boolean>> writes = new ArrayList<>();
+        for (VoteHistory segment : segments) {
+            writes.add(importSegment(segment, sign(segment)));
+        }
+        return Futures.transform(Futures.allAsList(writes),
+                (AsyncFunction<List<Boolean>, Boolean>) written -> written.contains(false)
+                        ? Futures.immediateFuture(false)
+                        : importSignature(newHead, sign(newHead)));
+    }
+
+    /**
+     * Splits a history written before segments existed into segments, writes
+     * all but the last one, and appends to the last one.
+     */
+    private ListenableFuture<Boolean> migrateAndAppend(VoteHistory legacy,
+                                                       List<Hash> contentHashes)
+            throws SignatureException, InvalidKeyException {
+        List<Hash> hashes = new ArrayList<>(new LinkedHashSet<>(legacy.getContentHashList()));
+        int size = CwebMisc.VOTE_HISTORY_SEGMENT_SIZE;
+        int segments = (hashes.size() + size - 1) / size;
+        List<ListenableFuture<Boolean>> writes = new ArrayList<>();
+        for (int i = 0; i < segments - 1; i++) {
+            VoteHistory full = segment(legacy.getOwnerPublicKey(), i).toBuilder()
+                    .addAllContentHash(hashes.subList(i * size, (i + 1) * size)).build();
+            writes.add(importSegment(full, sign(full)));
+        }
+        int tailStart = (segments - 1) * size;
+        VoteHistory tail = segment(legacy.getOwnerPublicKey(), segments - 1).toBuilder()
+                .addAllContentHash(hashes.subList(tailStart, hashes.size())).build();
+        VoteHistory head = legacy.toBuilder().clearContentHash().setSegmentCount(segments)
+                .setSegmentedSize(hashes.size()).build();
+        // The tail and head replace the old history even if nothing is added
+        return Futures.transform(Futures.allAsList(writes),
+                (AsyncFunction<List<Boolean>, Boolean>) written -> written.contains(false)
+                        ? Futures.immediateFuture(false)
+                        : append(head, tail, notIn(contentHashes, new HashSet<>(hashes)), true));
+    }
+
+    private static VoteHistory segment(Key ownerPublicKey, int segment) {
+        return VoteHistory.newBuilder().setOwnerPublicKey(ownerPublicKey).setSegment(segment)
+                .build();
+    }
+
     @Override
     public ListenableFuture<Boolean> importUser(User user)
             throws SignatureException, InvalidKeyException {
@@ -122,7 +391,10 @@ public class CwebImportServiceImpl implements CwebImportService {
                 SignedVote.newBuilder().setSignature(signature).setVote(vote).build();
         logger.info("Importing vote {} (signature: {})", Representations.asString(vote),
                 Representations.asString(signature));
-        return voteMap.add(signedVote.getVote().getContentHash(), signedVote);
+        // Indexed by owner under the object so that a single user's vote can
+        // be fetched without reading every vote on the object
+        return voteMap.put(signedVote.getVote().getContentHash(),
+                signedVote.getVote().getOwnerPublicKey().getHash(), signedVote);
     }
 
     @Override
@@ -142,4 +414,17 @@ public class CwebImportServiceImpl implements CwebImportService {
                 Representations.asString(signature));
         return voteHistoryMap.put(voteHistory.getOwnerPublicKey().getHash(), signedVoteHistory);
     }
+
+    /**
+     * Imports a segment of a {@link VoteHistory} under the key derived for it
+     */
+    private ListenableFuture<Boolean> importSegment(VoteHistory segment, Signature signature) {
+        SignedVoteHistory signedSegment = SignedVoteHistory.newBuilder().setSignature(signature)
+                .setHistory(segment).build();
+        logger.info("Logging history segment {} of {} (signature: {})", segment.getSegment(),
+                Representations.asString(segment), Representations.asString(signature));
+        return voteHistoryMap.put(
+                CwebMisc.voteHistorySegmentKey(segment.getOwnerPublicKey(), segment.getSegment()),
+                signedSegment);
+    }
 }
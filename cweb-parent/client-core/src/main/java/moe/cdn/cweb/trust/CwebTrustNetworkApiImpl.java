@@ -4,10 +4,11 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.security.InvalidKeyException;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
@@ -58,22 +59,36 @@ class CwebTrustNetworkApiImpl implements CwebTrustNetworkApi, CwebIdentityApi {
     @Override
     public ListenableFuture<Collection<User>> getLocalTrustNetwork(User user) {
         logger.debug("Getting local trust network for {}", Representations.asString(user));
-        LinkedList<ListenableFuture<Optional<User>>> maybeUsers = new LinkedList<>();
+        List<Key> trustedKeys = new ArrayList<>();
         for (TrustAssertion t : user.getTrustedList()) {
             if (!t.hasPublicKey() || !t.getTrustAssertion().equals(Trust.TRUSTED)) {
                 logger.debug("Dropping {} ({}) from trust list. ", t.getPublicKey(), t.getTrustAssertion());
                 continue;
             }
-            maybeUsers.add(Futures.transform(keyLookupService.findOwner(t.getPublicKey()),
-                    (Function<Optional<SignedUser>, Optional<User>>) maybeOwner -> maybeOwner.map(
-                            o -> signatureValidationService.validateUser(o) ? o.getUser() : null)));
+            trustedKeys.add(t.getPublicKey());
         }
-        return Futures.transform(Futures.successfulAsList(maybeUsers),
-                (Function<List<Optional<User>>, Collection<User>>) result -> result.stream()
-                        .filter(Objects::nonNull).filter(Optional::isPresent).map(Optional::get)
+        return Futures.transform(keyLookupService.findOwners(trustedKeys),
+                (Function<Map<Key, Optional<SignedUser>>, Collection<User>>) owners -> owners
+                        .values().stream().filter(Optional::isPresent).map(Optional::get)
+                        .filter(signatureValidationService::validateUser).map(SignedUser::getUser)
                         .collect(Collectors.toList()));
     }
 
+    @Override
+    public ListenableFuture<Map<Key, User>> getUsers(Collection<Key> publicKeys) {
+        return Futures.transform(keyLookupService.findOwners(publicKeys),
+                (Function<Map<Key, Optional<SignedUser>>, Map<Key, User>>) owners -> {
+                    Map<Key, User> users = new LinkedHashMap<>();
+                    owners.forEach((key, owner) -> {
+                        if (owner.isPresent()
+                                && signatureValidationService.validateUser(owner.get())) {
+                            users.put(key, owner.get().getUser());
+                        }
+                    });
+                    return users;
+                });
+    }
+
     @Override
     public ListenableFuture<Boolean> addUserAsTrusted(Key publicKey) {
         // TODO: We allow users to trust/ (make claims on trust) for users/keys
@@ -4,32 +4,48 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.security.InvalidKeyException;
 import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 import com.google.common.base.Function;
 import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Inject;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
 
 import moe.cdn.cweb.SecurityProtos.Hash;
+import moe.cdn.cweb.SecurityProtos.Key;
 import moe.cdn.cweb.TorrentTrustProtos.SignedVote;
 import moe.cdn.cweb.TorrentTrustProtos.SignedVoteHistory;
 import moe.cdn.cweb.TorrentTrustProtos.User;
 import moe.cdn.cweb.TorrentTrustProtos.Vote;
+import moe.cdn.cweb.TorrentTrustProtos.VoteHistory;
 import moe.cdn.cweb.dht.CwebMultiMap;
 import moe.cdn.cweb.dht.annotations.VoteDomain;
 import moe.cdn.cweb.dht.annotations.VoteHistoryDomain;
 import moe.cdn.cweb.dht.security.CwebSignatureValidationService;
 import moe.cdn.cweb.security.CwebImportService;
+import moe.cdn.cweb.security.CwebMisc;
+import moe.cdn.cweb.security.utils.HashUtils;
+import moe.cdn.cweb.security.utils.SignedMessage;
 
 class CwebVoteApiImpl implements CwebVoteApi {
+    private static final Logger logger = LogManager.getLogger();
 
     private final CwebSignatureValidationService signatureValidationService;
     private final CwebImportService importService;
@@ -49,10 +65,17 @@ class CwebVoteApiImpl implements CwebVoteApi {
 
     @Override
     public ListenableFuture<Collection<Vote>> getAllVotes(Hash objectHash) {
-        return Futures.transform(voteMap.all(objectHash),
-                (Function<Collection<SignedVote>, List<Vote>>) signedVotes -> signedVotes.stream()
-                        .filter(signatureValidationService::validateVote).map(SignedVote::getVote)
-                        .collect(Collectors.toList()));
+        // Signatures are checked over the bytes the votes were received as
+        return Futures.transform(voteMap.allEncoded(objectHash),
+                (Function<Collection<ByteString>, List<Vote>>) encodedVotes -> {
+                    List<SignedMessage<Vote>> signedVotes = parseVotes(encodedVotes);
+                    BitSet valid = signatureValidationService.validateAllReceived(signedVotes);
+                    List<Vote> votes = new ArrayList<>(valid.cardinality());
+                    for (int i = valid.nextSetBit(0); i >= 0; i = valid.nextSetBit(i + 1)) {
+                        votes.add(signedVotes.get(i).getMessage());
+                    }
+                    return votes;
+                });
     }
 
     /**
@@ -63,45 +86,167 @@ class CwebVoteApiImpl implements CwebVoteApi {
      * @return Future of vote, {@code null} if none exist
      */
     public ListenableFuture<Vote> getUserVote(Hash objectHash, User user) {
-        return Futures.transform(getAllVotes(objectHash),
-                (Function<Collection<Vote>, Vote>) votes -> {
+        return Futures.transform(voteMap.getEncoded(objectHash, user.getPublicKey().getHash()),
+                (AsyncFunction<ByteString, Vote>) encodedVote -> {
+                    SignedMessage<Vote> signedVote =
+                            encodedVote == null ? null : parseVote(encodedVote);
+                    // Anyone can write under the index, so the vote found
+                    // there must still belong to the user
+                    if (signedVote != null
+                            && signedVote.getMessage().getOwnerPublicKey()
+                                    .equals(user.getPublicKey())
+                            && signatureValidationService.validateVote(signedVote)) {
+                        return Futures.immediateFuture(signedVote.getMessage());
+                    }
+                    // Votes imported before the index existed are only found
+                    // by looking at every vote on the object
+                    return scanUserVote(objectHash, user);
+                });
+    }
+
+    private ListenableFuture<Vote> scanUserVote(Hash objectHash, User user) {
+        // Only the votes carrying the user's key are decoded and validated
+        return Futures.transform(voteMap.allEncodedContaining(objectHash, user.getPublicKey()),
+                (Function<Collection<ByteString>, Vote>) encodedVotes -> {
                     Collection<Vote> filteredVotes =
-                            votes.stream()
-                                    .filter(vote -> vote.getOwnerPublicKey()
-                                            .equals(user.getPublicKey()))
+                            parseVotes(encodedVotes).stream()
+                                    .filter(signedVote -> signedVote.getMessage()
+                                            .getOwnerPublicKey().equals(user.getPublicKey()))
+                                    .filter(signatureValidationService::validateVote)
+                                    .map(SignedMessage::getMessage)
                             .collect(Collectors.toList());
                     return filteredVotes.isEmpty() ? null : Iterables.getOnlyElement(filteredVotes);
                 });
     }
 
+    /**
+     * Parses votes as they were received, so that their signatures are
+     * checked over those bytes. Votes that cannot be parsed are skipped.
+     */
+    private static List<SignedMessage<Vote>> parseVotes(Collection<ByteString> encodedVotes) {
+        List<SignedMessage<Vote>> signedVotes = new ArrayList<>(encodedVotes.size());
+        for (ByteString encodedVote : encodedVotes) {
+            SignedMessage<Vote> signedVote = parseVote(encodedVote);
+            if (signedVote != null) {
+                signedVotes.add(signedVote);
+            }
+        }
+        return signedVotes;
+    }
+
+    private static SignedMessage<Vote> parseVote(ByteString encodedVote) {
+        try {
+            return SignedMessage.parseFrom(encodedVote, Vote.PARSER);
+        } catch (InvalidProtocolBufferException e) {
+            logger.debug("Skipping vote that cannot be decoded: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public ListenableFuture<Map<Hash, Vote>> getUserVotes(User user, Collection<Hash> objects) {
+        List<Hash> objectList = objects.stream().distinct().collect(Collectors.toList());
+        return Futures.transform(
+                Futures.successfulAsList(objectList.stream().map(hash -> getUserVote(hash, user))
+                        .collect(Collectors.toList())),
+                (Function<List<Vote>, Map<Hash, Vote>>) votes -> {
+                    Map<Hash, Vote> votesByObject = new LinkedHashMap<>();
+                    for (int i = 0; i < objectList.size(); i++) {
+                        if (votes.get(i) != null) {
+                            votesByObject.put(objectList.get(i), votes.get(i));
+                        }
+                    }
+                    return votesByObject;
+                });
+    }
+
     @Override
     public ListenableFuture<Collection<Vote>> getVoteHistory(User user) {
-        return Futures
-                .transform(voteHistoryMap.get(user.getPublicKey().getHash()),
-                        (AsyncFunction<SignedVoteHistory, List<Vote>>) history -> history == null
-                                ? Futures.immediateFuture(Collections.emptyList())
-                                : Futures
-                                        .transform(
-                                                Futures.successfulAsList(
-                                                        history.getHistory().getContentHashList()
-                                                                .stream()
-                                                                .map(hash -> getUserVote(hash,
-                                                                        user))
-                                                        .collect(Collectors.toList())),
-                                        (Function<List<Vote>, List<Vote>>) votes -> votes.stream()
-                                                .filter(Objects::nonNull)
-                                                .collect(Collectors.toList())));
+        return Futures.transform(getVoteHistoryHashes(user),
+                (AsyncFunction<List<Hash>, Collection<Vote>>) hashes -> hashes.isEmpty()
+                        ? Futures.immediateFuture(Collections.emptyList())
+                        : Futures.transform(getUserVotes(user, hashes),
+                                (Function<Map<Hash, Vote>, Collection<Vote>>) votes -> new ArrayList<>(
+                                        votes.values())));
+    }
+
+    /**
+     * Gets the content hashes in the history of a user, fetching its
+     * segments in parallel.
+     */
+    private ListenableFuture<List<Hash>> getVoteHistoryHashes(User user) {
+        Key owner = user.getPublicKey();
+        return Futures.transform(voteHistoryMap.get(owner.getHash()),
+                (AsyncFunction<SignedVoteHistory, List<Hash>>) signedHead -> {
+                    VoteHistory head = ownHistory(signedHead, owner);
+                    if (head == null) {
+                        return Futures.immediateFuture(Collections.emptyList());
+                    }
+                    List<ListenableFuture<SignedVoteHistory>> segments = new ArrayList<>();
+                    for (int i = 0; i < head.getSegmentCount(); i++) {
+                        segments.add(voteHistoryMap.get(CwebMisc.voteHistorySegmentKey(owner, i)));
+                    }
+                    // A missing segment loses its votes rather than the whole
+                    // history
+                    return Futures.transform(Futures.successfulAsList(segments),
+                            (Function<List<SignedVoteHistory>, List<Hash>>) found -> {
+                                // Writers skip objects already voted on, but
+                                // not when the vote could not be looked up
+                                Set<Hash> hashes = new LinkedHashSet<>(head.getContentHashList());
+                                for (int i = 0; i < found.size(); i++) {
+                                    VoteHistory segment = ownHistory(found.get(i), owner);
+                                    if (segment != null && segment.getSegment() == i) {
+                                        hashes.addAll(segment.getContentHashList());
+                                    }
+                                }
+                                return new ArrayList<>(hashes);
+                            });
+                });
     }
 
     @Override
     public ListenableFuture<Integer> getVoteHistorySize(User user) {
         return Futures.transform(voteHistoryMap.get(user.getPublicKey().getHash()),
-                (Function<SignedVoteHistory, Integer>) history -> history == null ? 0
-                        : history.getHistory().getContentHashCount());
+                (Function<SignedVoteHistory, Integer>) signedHistory -> {
+                    VoteHistory history = ownHistory(signedHistory, user.getPublicKey());
+                    return history == null ? 0
+                            : history.getContentHashCount() + history.getSegmentedSize();
+                });
+    }
+
+    @Override
+    public ListenableFuture<Hash> getVoteHistoryVersion(User user) {
+        // The head holds the number of segments and of votes in them
+        return Futures.transform(voteHistoryMap.get(user.getPublicKey().getHash()),
+                (Function<SignedVoteHistory, Hash>) signedHistory -> {
+                    VoteHistory history = ownHistory(signedHistory, user.getPublicKey());
+                    return HashUtils.hashOf(
+                            history == null ? ByteString.EMPTY : history.toByteString());
+                });
+    }
+
+    /**
+     * Like a vote under the index, a history or segment found under a user's
+     * keys is only used if it names that user and is signed by them.
+     *
+     * @return the history, or null if there is none or it is not the owner's
+     */
+    private static VoteHistory ownHistory(SignedVoteHistory history, Key owner) {
+        if (history == null || !history.getHistory().getOwnerPublicKey().equals(owner)
+                || !history.getSignature().getPublicKey().equals(owner)) {
+            return null;
+        }
+        return history.getHistory();
     }
 
     @Override
     public Future<Boolean> castVote(Vote vote) throws SignatureException, InvalidKeyException {
         return importService.updateVote(vote);
     }
+
+    @Override
+    public ListenableFuture<List<Boolean>> castVotes(Collection<Vote> votes)
+            throws SignatureException, InvalidKeyException {
+        return importService.updateVotes(votes);
+    }
 }
@@ -0,0 +1,195 @@
+package moe.cdn.cweb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import moe.cdn.cweb.SecurityProtos.Hash;
+import moe.cdn.cweb.TorrentTrustProtos.SignedUser;
+import moe.cdn.cweb.TorrentTrustProtos.User;
+import moe.cdn.cweb.TorrentTrustProtos.Vote;
+import moe.cdn.cweb.TorrentTrustProtos.Vote.Assertion.Rating;
+import moe.cdn.cweb.dht.security.KeyLookupService;
+import moe.cdn.cweb.dht.security.KeyLookupServiceException;
+import moe.cdn.cweb.security.utils.HashUtils;
+import moe.cdn.cweb.security.utils.KeyUtils;
+import moe.cdn.cweb.vote.CwebVoteApi;
+
+public class AsyncTrustApiImplTest {
+    private static final TrustApi.TrustMetric METRIC = TrustApi.TrustMetric.ONLY_FRIENDS;
+    private static final User USER = user("user");
+    private static final User VOTER_1 = user("voter 1");
+    private static final User VOTER_2 = user("voter 2");
+    private static final User VOTER_3 = user("voter 3");
+    private static final Hash OBJECT = HashUtils.hashOf("object");
+    private static final Hash OTHER_1 = HashUtils.hashOf("other 1");
+    private static final Hash OTHER_2 = HashUtils.hashOf("other 2");
+    private static final Vote.Assertion GOOD = assertion(Rating.GOOD);
+
+    @Mock
+    private CwebVoteApi voteApi;
+    @Mock
+    private KeyLookupService keyLookupService;
+    @Mock
+    private TrustGenerator trustGenerator;
+
+    private AsyncTrustApiImpl trustApi;
+
+    private static User user(String handle) {
+        return User.newBuilder().setPublicKey(KeyUtils.generateKeyPair().getPublicKey())
+                .setHandle(handle).build();
+    }
+
+    private static Vote.Assertion assertion(Rating rating) {
+        return Vote.Assertion.newBuilder().setRating(rating).build();
+    }
+
+    private static Vote vote(User owner, Hash object, Rating rating) {
+        return Vote.newBuilder().setOwnerPublicKey(owner.getPublicKey()).setContentHash(object)
+                .addAssertion(assertion(rating)).build();
+    }
+
+    private void registered(User user) {
+        SignedUser signedUser = SignedUser.newBuilder().setUser(user).build();
+        when(keyLookupService.findOwner(user.getPublicKey()))
+                .thenReturn(Futures.immediateFuture(Optional.of(signedUser)));
+    }
+
+    private void votesOnObject(Vote... votes) {
+        when(voteApi.getAllVotes(OBJECT))
+                .thenReturn(Futures.immediateFuture(Arrays.asList(votes)));
+    }
+
+    private void history(User user, Vote... votes) {
+        when(voteApi.getVoteHistory(user))
+                .thenReturn(Futures.immediateFuture(Arrays.asList(votes)));
+        when(voteApi.getVoteHistoryVersion(user))
+                .thenReturn(Futures.immediateFuture(HashUtils.hashOf(Arrays.toString(votes))));
+    }
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        trustApi = new AsyncTrustApiImpl(voteApi, keyLookupService, trustGenerator,
+                new CorrelationCache(), MoreExecutors.newDirectExecutorService());
+        registered(USER);
+        registered(VOTER_1);
+        registered(VOTER_2);
+        registered(VOTER_3);
+        history(USER, vote(USER, OTHER_1, Rating.GOOD), vote(USER, OTHER_2, Rating.GOOD));
+        // Agrees with the user on both objects: correlation 2
+        history(VOTER_1, vote(VOTER_1, OTHER_1, Rating.GOOD), vote(VOTER_1, OTHER_2, Rating.GOOD));
+        // Disagrees with the user on one object: correlation -1
+        history(VOTER_2, vote(VOTER_2, OTHER_1, Rating.BAD));
+        history(VOTER_3);
+        when(trustGenerator.trustCoefficient(USER, VOTER_1, METRIC)).thenReturn(0.5);
+        when(trustGenerator.trustCoefficient(USER, VOTER_2, METRIC)).thenReturn(0.25);
+        when(trustGenerator.trustCoefficient(USER, VOTER_3, METRIC)).thenReturn(1.0);
+    }
+
+    @Test
+    public void testScoresOfAllVotersAreSummed() throws Exception {
+        votesOnObject(vote(VOTER_1, OBJECT, Rating.GOOD), vote(VOTER_2, OBJECT, Rating.BAD));
+        // 2 * 0.5 * 1 + (-1) * 0.25 * (-1)
+        assertEquals(1.25, trustApi.trustForObject(USER, GOOD, OBJECT, METRIC).get(), 1e-9);
+    }
+
+    @Test
+    public void testOwnVoteScoresNothing() throws Exception {
+        votesOnObject(vote(USER, OBJECT, Rating.GOOD), vote(VOTER_1, OBJECT, Rating.GOOD));
+        assertEquals(1.0, trustApi.trustForObject(USER, GOOD, OBJECT, METRIC).get(), 1e-9);
+    }
+
+    @Test
+    public void testVoterWithoutHistoryScoresNothing() throws Exception {
+        votesOnObject(vote(VOTER_1, OBJECT, Rating.GOOD), vote(VOTER_3, OBJECT, Rating.GOOD));
+        assertEquals(1.0, trustApi.trustForObject(USER, GOOD, OBJECT, METRIC).get(), 1e-9);
+    }
+
+    @Test
+    public void testCachedCorrelationDoesNotFetchHistories() throws Exception {
+        votesOnObject(vote(VOTER_1, OBJECT, Rating.GOOD), vote(VOTER_2, OBJECT, Rating.BAD));
+        trustApi.trustForObject(USER, GOOD, OBJECT, METRIC).get();
+        assertEquals(1.25, trustApi.trustForObject(USER, GOOD, OBJECT, METRIC).get(), 1e-9);
+        verify(voteApi).getVoteHistory(USER);
+        verify(voteApi).getVoteHistory(VOTER_1);
+        verify(voteApi).getVoteHistory(VOTER_2);
+    }
+
+    @Test
+    public void testChangedHistoryIsFetchedAgain() throws Exception {
+        votesOnObject(vote(VOTER_1, OBJECT, Rating.GOOD));
+        assertEquals(1.0, trustApi.trustForObject(USER, GOOD, OBJECT, METRIC).get(), 1e-9);
+        // No longer agrees with the user on the second object: correlation 0
+        history(VOTER_1, vote(VOTER_1, OTHER_1, Rating.GOOD), vote(VOTER_1, OTHER_2, Rating.BAD));
+        assertEquals(0.0, trustApi.trustForObject(USER, GOOD, OBJECT, METRIC).get(), 1e-9);
+    }
+
+    @Test
+    public void testNoVotesScoresNothing() throws Exception {
+        votesOnObject();
+        assertEquals(0.0, trustApi.trustForObject(USER, GOOD, OBJECT, METRIC).get(), 1e-9);
+    }
+
+    @Test
+    public void testFailedVoteFetchScoresNothing() throws Exception {
+        when(voteApi.getAllVotes(OBJECT)).thenReturn(
+                Futures.<Collection<Vote>>immediateFailedFuture(new IllegalStateException()));
+        assertEquals(0.0, trustApi.trustForObject(USER, GOOD, OBJECT, METRIC).get(), 1e-9);
+    }
+
+    @Test
+    public void testUnregisteredVoterFails() throws Exception {
+        User unregistered = user("unregistered");
+        when(keyLookupService.findOwner(unregistered.getPublicKey()))
+                .thenReturn(Futures.immediateFuture(Optional.empty()));
+        votesOnObject(vote(VOTER_1, OBJECT, Rating.GOOD), vote(unregistered, OBJECT, Rating.GOOD));
+        try {
+            trustApi.trustForObject(USER, GOOD, OBJECT, METRIC).get();
+            fail("Scored a vote without an owner");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CwebApiException);
+        }
+    }
+
+    @Test
+    public void testFailedOwnerLookupFails() throws Exception {
+        KeyLookupServiceException failure = new KeyLookupServiceException("Multiple owners");
+        when(keyLookupService.findOwner(VOTER_2.getPublicKey()))
+                .thenReturn(Futures.immediateFailedFuture(failure));
+        votesOnObject(vote(VOTER_1, OBJECT, Rating.GOOD), vote(VOTER_2, OBJECT, Rating.BAD));
+        try {
+            trustApi.trustForObject(USER, GOOD, OBJECT, METRIC).get();
+            fail("Scored a vote whose owner could not be looked up");
+        } catch (ExecutionException e) {
+            assertEquals(failure, e.getCause());
+        }
+    }
+
+    @Test
+    public void testVoteWithoutAssertionsFails() throws Exception {
+        votesOnObject(Vote.newBuilder().setOwnerPublicKey(VOTER_1.getPublicKey())
+                .setContentHash(OBJECT).build());
+        try {
+            trustApi.trustForObject(USER, GOOD, OBJECT, METRIC).get();
+            fail("Scored a vote without assertions");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CwebApiException);
+        }
+    }
+}
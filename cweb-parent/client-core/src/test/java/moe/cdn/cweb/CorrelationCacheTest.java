@@ -0,0 +1,55 @@
+package moe.cdn.cweb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+import moe.cdn.cweb.SecurityProtos.Hash;
+import moe.cdn.cweb.SecurityProtos.Key;
+import moe.cdn.cweb.TorrentTrustProtos.User;
+import moe.cdn.cweb.security.utils.HashUtils;
+
+public class CorrelationCacheTest {
+
+    private static final User a = user("a");
+    private static final User b = user("b");
+    private static final User c = user("c");
+
+    private static final Hash aVersion = HashUtils.hashOf("a version");
+    private static final Hash bVersion = HashUtils.hashOf("b version");
+
+    private static User user(String id) {
+        return User.newBuilder().setPublicKey(Key.newBuilder()
+                .setHash(Hash.newBuilder().setHashValue(ByteString.copyFromUtf8(id)))).build();
+    }
+
+    @Test
+    public void testKeyIsSymmetric() {
+        CorrelationCache cache = new CorrelationCache();
+        cache.put(CorrelationCache.key(a, aVersion, b, bVersion), 2.0);
+        assertEquals(2.0, cache.getIfPresent(CorrelationCache.key(b, bVersion, a, aVersion)), 0);
+        assertNull(cache.getIfPresent(CorrelationCache.key(b, aVersion, a, bVersion)));
+    }
+
+    @Test
+    public void testChangedHistoryMisses() {
+        CorrelationCache cache = new CorrelationCache();
+        cache.put(CorrelationCache.key(a, aVersion, b, bVersion), 2.0);
+        Hash changed = HashUtils.hashOf("a changed");
+        assertNull(cache.getIfPresent(CorrelationCache.key(a, changed, b, bVersion)));
+        assertNull(cache.getIfPresent(CorrelationCache.key(a, aVersion, b, changed)));
+        assertNull(cache.getIfPresent(CorrelationCache.key(a, aVersion, c, bVersion)));
+    }
+
+    @Test
+    public void testSizeIsBounded() {
+        CorrelationCache cache = new CorrelationCache(2);
+        cache.put(CorrelationCache.key(a, aVersion, b, bVersion), 1.0);
+        cache.put(CorrelationCache.key(a, aVersion, c, bVersion), 1.0);
+        cache.put(CorrelationCache.key(b, aVersion, c, bVersion), 1.0);
+        assertEquals(2, cache.size());
+    }
+}
@@ -0,0 +1,91 @@
+package moe.cdn.cweb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.protobuf.ByteString;
+
+import moe.cdn.cweb.SecurityProtos.Hash;
+import moe.cdn.cweb.SecurityProtos.Key;
+import moe.cdn.cweb.TorrentTrustProtos.User;
+import moe.cdn.cweb.trust.CwebTrustNetworkApi;
+
+public class EigenTrustServiceTest {
+
+    private static final User a = user("a");
+    private static final User b = user("b");
+    private static final User c = user("c");
+    private static final User d = user("d");
+
+    @Mock
+    private CwebTrustNetworkApi trustNetworkApi;
+
+    private EigenTrustService eigenTrustService;
+    private TrustGenerator trustGenerator;
+
+    private static User user(String id) {
+        return User.newBuilder().setPublicKey(Key.newBuilder()
+                .setHash(Hash.newBuilder().setHashValue(ByteString.copyFromUtf8(id)))).build();
+    }
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        Map<User, List<User>> userGraph = new HashMap<>();
+        userGraph.put(a, Collections.singletonList(b));
+        userGraph.put(b, Arrays.asList(a, c));
+        userGraph.put(c, Collections.emptyList());
+        userGraph.put(d, Collections.emptyList());
+        CwebApi api = new CwebApiFakeImpl(new HashMap<>(), userGraph, new HashMap<>());
+        when(trustNetworkApi.getUserIdentity()).thenReturn(Futures.immediateFuture(Optional.of(a)));
+
+        eigenTrustService = new EigenTrustService(api, trustNetworkApi);
+        trustGenerator = new TrustGeneratorImpl(api, eigenTrustService, new CorrelationCache());
+    }
+
+    @After
+    public void tearDown() {
+        eigenTrustService.shutdown();
+    }
+
+    @Test
+    public void testRecompute() throws Exception {
+        assertEquals(0, eigenTrustService.getLastComputedMillis());
+        long computedMillis = eigenTrustService.recompute().get();
+        assertTrue(computedMillis > 0);
+        assertEquals(computedMillis, eigenTrustService.getLastComputedMillis());
+        assertTrue(eigenTrustService.getScores().scoreOf(a, b).isPresent());
+        assertEquals(0.0, eigenTrustService.getScores().scoreOf(a, d).getAsDouble(), 1e-12);
+        assertFalse("scores are only for the current identity",
+                eigenTrustService.getScores().scoreOf(b, a).isPresent());
+    }
+
+    @Test
+    public void testCentralityUsesPrecomputedScores() throws Exception {
+        double onDemand = new TrustGeneratorImpl(
+                new CwebApiFakeImpl(new HashMap<>(), Collections.emptyMap(), new HashMap<>()))
+                .trustCoefficientCentrality(a, b);
+        assertEquals("nothing is reachable without the graph", 0.0, onDemand, 1e-12);
+
+        eigenTrustService.recompute().get();
+        assertEquals(eigenTrustService.getScores().scoreOf(a, b).getAsDouble(),
+                trustGenerator.trustCoefficientCentrality(a, b), 1e-12);
+        assertTrue(trustGenerator.trustCoefficientCentrality(a, b) > 0);
+    }
+}
@@ -0,0 +1,53 @@
+package moe.cdn.cweb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class EigenTrustTest {
+
+    // 0 -> 1, 1 -> {0, 2}, 2 -> {}, 3 -> {2}
+    private static final int[] ROW_OFFSETS = {0, 1, 3, 3, 4};
+    private static final int[] EDGES = {1, 0, 2, 2};
+
+    @Test
+    public void testNoIterationsReturnsPreTrust() {
+        EigenTrust eigenTrust = new EigenTrust(4, ROW_OFFSETS, EDGES, false);
+        double[] preTrust = EigenTrust.preTrustFor(4, 0);
+        assertArrayEquals(preTrust, eigenTrust.compute(preTrust, 0.15, 0, 1e-9), 1e-12);
+    }
+
+    @Test
+    public void testTrustIsDistribution() {
+        EigenTrust eigenTrust = new EigenTrust(4, ROW_OFFSETS, EDGES, false);
+        double[] trust = eigenTrust.compute(EigenTrust.preTrustFor(4, 0), 0.15, 1000, 1e-12);
+        assertEquals(1.0, Arrays.stream(trust).sum(), 1e-9);
+        assertEquals("unreachable user gets no trust", 0.0, trust[3], 1e-12);
+        assertTrue(trust[1] > trust[2]);
+    }
+
+    @Test
+    public void testStopsOnceConverged() {
+        EigenTrust eigenTrust = new EigenTrust(4, ROW_OFFSETS, EDGES, false);
+        double[] preTrust = EigenTrust.preTrustFor(4, 0);
+        double[] converged = eigenTrust.compute(preTrust, 0.15, 1000, 1e-12);
+        assertArrayEquals(converged, eigenTrust.compute(preTrust, 0.15, 5000, 1e-12), 1e-12);
+        // stationary point: t1 = 0.85 * t0 and t2 = 0.85 * t1 / 2
+        assertEquals(0.85 * converged[0], converged[1], 1e-9);
+        assertEquals(0.85 * converged[1] / 2, converged[2], 1e-9);
+    }
+
+    @Test
+    public void testParallelMatchesSequential() {
+        double[] preTrust = EigenTrust.preTrustFor(4, 0);
+        double[] sequential =
+                new EigenTrust(4, ROW_OFFSETS, EDGES, false).compute(preTrust, 0.15, 100, 1e-12);
+        double[] parallel =
+                new EigenTrust(4, ROW_OFFSETS, EDGES, true).compute(preTrust, 0.15, 100, 1e-12);
+        assertArrayEquals(sequential, parallel, 1e-9);
+    }
+}
@@ -0,0 +1,116 @@
+package moe.cdn.cweb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+import moe.cdn.cweb.SecurityProtos.Hash;
+import moe.cdn.cweb.SecurityProtos.Hash.HashAlgorithm;
+import moe.cdn.cweb.SecurityProtos.Key;
+import moe.cdn.cweb.SecurityProtos.Key.KeyType;
+import moe.cdn.cweb.TorrentTrustProtos.User;
+
+public class TrustGraphSnapshotTest {
+
+    private static final User a = User.newBuilder().setPublicKey(generateFakePublicKey("a")).build();
+    private static final User b = User.newBuilder().setPublicKey(generateFakePublicKey("b")).build();
+    private static final User c = User.newBuilder().setPublicKey(generateFakePublicKey("c")).build();
+    private static final User d = User.newBuilder().setPublicKey(generateFakePublicKey("d")).build();
+
+    private Map<User, List<User>> userGraph;
+    private CwebApi api;
+
+    private static Key generateFakePublicKey(String id) {
+        return Key.newBuilder().setType(KeyType.PUBLIC)
+                .setHash(Hash.newBuilder().setAlgorithm(HashAlgorithm.SHA_256)
+                        .setHashValue(ByteString.copyFromUtf8(id)).build())
+                .setRaw(ByteString.copyFromUtf8(id)).build();
+    }
+
+    @Before
+    public void setUp() {
+        userGraph = new HashMap<>();
+        userGraph.put(a, Collections.singletonList(b));
+        userGraph.put(b, Arrays.asList(a, c));
+        userGraph.put(c, Collections.emptyList());
+        userGraph.put(d, Collections.emptyList());
+        api = new CwebApiFakeImpl(new HashMap<>(), userGraph, new HashMap<>());
+    }
+
+    @Test
+    public void testBuild() throws Exception {
+        TrustGraphSnapshot graph = TrustGraphSnapshot.build(api, a);
+        assertEquals(3, graph.size());
+        assertEquals(TrustGraphSnapshot.ROOT, graph.idOf(a));
+        assertEquals(-1, graph.idOf(d));
+        assertTrue(graph.hasEdge(graph.idOf(a), graph.idOf(b)));
+        assertFalse(graph.hasEdge(graph.idOf(a), graph.idOf(c)));
+        assertEquals(2, graph.outDegree(graph.idOf(b)));
+        assertEquals(2, graph.hopsBetween(graph.idOf(a), graph.idOf(c), -1));
+        assertEquals(-1, graph.hopsBetween(graph.idOf(a), graph.idOf(c), 1));
+        assertEquals(-1, graph.hopsBetween(graph.idOf(c), graph.idOf(a), -1));
+    }
+
+    @Test
+    public void testRefreshUnchanged() throws Exception {
+        TrustGraphSnapshot graph = TrustGraphSnapshot.build(api, a);
+        TrustGraphSnapshot refreshed = graph.refresh(api, a);
+        assertSame(graph.rowOffsets(), refreshed.rowOffsets());
+        assertSame(graph.edges(), refreshed.edges());
+    }
+
+    @Test
+    public void testRefreshPicksUpNewEdges() throws Exception {
+        TrustGraphSnapshot graph = TrustGraphSnapshot.build(api, a);
+        // A user's edges only change along with their record
+        User newC = c.toBuilder().setHandle("c trusts d").build();
+        userGraph.remove(c);
+        userGraph.put(newC, Collections.singletonList(d));
+        TrustGraphSnapshot refreshed = graph.refresh(api, a);
+        assertEquals(4, refreshed.size());
+        assertEquals(3, refreshed.hopsBetween(TrustGraphSnapshot.ROOT, refreshed.idOf(d), -1));
+    }
+
+    @Test
+    public void testRefreshDropsUnreachableUsers() throws Exception {
+        TrustGraphSnapshot graph = TrustGraphSnapshot.build(api, a);
+        User newB = b.toBuilder().setHandle("b no longer trusts c").build();
+        userGraph.remove(b);
+        userGraph.put(newB, Collections.singletonList(a));
+        TrustGraphSnapshot refreshed = graph.refresh(api, a);
+        assertEquals(2, refreshed.size());
+        assertEquals(-1, refreshed.idOf(c));
+    }
+
+    @Test
+    public void testRefreshExpandsOnlyChangedUsers() throws Exception {
+        TrustGraphSnapshot graph = TrustGraphSnapshot.build(api, a);
+        User newC = c.toBuilder().setHandle("c trusts d").build();
+        userGraph.remove(c);
+        userGraph.put(newC, Collections.singletonList(d));
+        List<User> expanded = new ArrayList<>();
+        CwebApi countingApi = new CwebApiFakeImpl(new HashMap<>(), userGraph, new HashMap<>()) {
+            @Override
+            public Map<User, List<User>> getTrustedUsersForUsers(Collection<User> users) {
+                expanded.addAll(users);
+                return super.getTrustedUsersForUsers(users);
+            }
+        };
+        graph.refresh(countingApi, a);
+        assertEquals(Arrays.asList(newC, d), expanded);
+    }
+}
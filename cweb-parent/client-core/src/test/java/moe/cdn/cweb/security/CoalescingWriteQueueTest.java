@@ -0,0 +1,87 @@
+package moe.cdn.cweb.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class CoalescingWriteQueueTest {
+
+    private List<String> writes;
+    private List<SettableFuture<Boolean>> results;
+    private CoalescingWriteQueue<String, Integer> queue;
+
+    @Before
+    public void setUp() {
+        writes = new ArrayList<>();
+        results = new ArrayList<>();
+        queue = new CoalescingWriteQueue<>((key, items) -> {
+            writes.add(key + items);
+            SettableFuture<Boolean> result = SettableFuture.create();
+            results.add(result);
+            return result;
+        });
+    }
+
+    @Test
+    public void testItemsQueuedDuringWriteAreCoalesced() throws Exception {
+        ListenableFuture<Boolean> first = queue.submit("a", 1);
+        ListenableFuture<Boolean> second = queue.submit("a", 2);
+        ListenableFuture<Boolean> third = queue.submit("a", 3);
+        assertEquals(Collections.singletonList("a[1]"), writes);
+
+        results.get(0).set(true);
+        assertTrue(first.get());
+        assertFalse(second.isDone());
+        assertEquals(Arrays.asList("a[1]", "a[2, 3]"), writes);
+
+        results.get(1).set(false);
+        assertFalse(second.get());
+        assertFalse(third.get());
+        assertEquals(0, queue.activeKeys());
+    }
+
+    @Test
+    public void testSubmitAllWritesItemsTogether() throws Exception {
+        ListenableFuture<Boolean> batch = queue.submitAll("a", Arrays.asList(1, 2));
+        assertEquals(Collections.singletonList("a[1, 2]"), writes);
+        results.get(0).set(true);
+        assertTrue(batch.get());
+        assertEquals(0, queue.activeKeys());
+    }
+
+    @Test
+    public void testKeysAreWrittenInParallel() {
+        queue.submit("a", 1);
+        queue.submit("b", 2);
+        assertEquals(Arrays.asList("a[1]", "b[2]"), writes);
+        assertEquals(2, queue.activeKeys());
+    }
+
+    @Test
+    public void testFailureFailsBatchAndMovesOn() throws Exception {
+        ListenableFuture<Boolean> first = queue.submit("a", 1);
+        ListenableFuture<Boolean> second = queue.submit("a", 2);
+        results.get(0).setException(new IllegalStateException("Put failed"));
+        try {
+            first.get();
+            fail("Expected the write to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        results.get(1).set(true);
+        assertTrue(second.get());
+    }
+}
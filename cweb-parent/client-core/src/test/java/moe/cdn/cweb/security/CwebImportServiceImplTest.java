@@ -1,15 +1,27 @@
 package moe.cdn.cweb.security;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.Message;
 
 import moe.cdn.cweb.SecurityProtos.Hash;
@@ -26,6 +38,7 @@ import moe.cdn.cweb.dht.CwebMultiMap;
 import moe.cdn.cweb.dht.KeyEnvironment;
 import moe.cdn.cweb.security.utils.HashUtils;
 import moe.cdn.cweb.security.utils.KeyUtils;
+import moe.cdn.cweb.security.utils.MessageSigner;
 import moe.cdn.cweb.security.utils.SignatureUtils;
 
 public class CwebImportServiceImplTest {
@@ -45,8 +58,14 @@ public class CwebImportServiceImplTest {
 
     private static final VoteHistory VOTE_HISTORY_1 = VoteHistory.newBuilder()
             .setOwnerPublicKey(USER_1.getPublicKey()).addContentHash(CONTENT_HASH).build();
-    private static final Signature VOTE_HISTORY_1_SIGNATURE =
-            SignatureUtils.signMessageUnchecked(KEY_PAIR, VOTE_HISTORY_1);
+    private static final VoteHistory SEGMENT_0 = VoteHistory.newBuilder()
+            .setOwnerPublicKey(USER_1.getPublicKey()).addContentHash(CONTENT_HASH).build();
+    private static final Hash SEGMENT_0_KEY =
+            CwebMisc.voteHistorySegmentKey(USER_1.getPublicKey(), 0);
+    private static final VoteHistory HEAD_1 = VoteHistory.newBuilder()
+            .setOwnerPublicKey(USER_1.getPublicKey()).setSegmentCount(1).setSegmentedSize(1)
+            .build();
+    private static final Hash CONTENT_HASH_2 = HashUtils.hashOf("Goodbye World");
 
     @Mock
     private CwebMultiMap<SignedUser> userMap;
@@ -65,6 +84,9 @@ public class CwebImportServiceImplTest {
         cwebImportServiceImpl =
                 new CwebImportServiceImpl(keyEnvironment, userMap, voteMap, voteHistoryMap);
         when(keyEnvironment.getKeyPair()).thenReturn(KEY_PAIR);
+        when(keyEnvironment.getSigner()).thenReturn(MessageSigner.forKeyPair(KEY_PAIR));
+        when(voteMap.get(any(Hash.class), any(Hash.class)))
+                .thenReturn(Futures.immediateFuture(null));
     }
 
     @Test
@@ -79,58 +101,184 @@ public class CwebImportServiceImplTest {
     public void testImportVoteHistoryNewSuccess() throws Exception {
         when(voteHistoryMap.get(USER_1.getPublicKey().getHash()))
                 .thenReturn(Futures.immediateFuture(null));
-        when(voteHistoryMap.put(USER_1.getPublicKey().getHash(),
-                SignedVoteHistory.newBuilder().setHistory(VOTE_HISTORY_1)
-                        .setSignature(VOTE_HISTORY_1_SIGNATURE).build()))
+        stubHistoryPuts(true, true);
+        stubVotePut();
+        assertTrue(cwebImportServiceImpl.updateVote(VOTE_1).get());
+        verify(voteHistoryMap).put(SEGMENT_0_KEY, signed(SEGMENT_0));
+        verify(voteHistoryMap).put(USER_1.getPublicKey().getHash(), signed(HEAD_1));
+    }
+
+    @Test
+    public void testImportVoteHistoryExistingSuccess() throws Exception {
+        when(voteHistoryMap.get(USER_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(signed(HEAD_1)));
+        when(voteHistoryMap.get(SEGMENT_0_KEY))
+                .thenReturn(Futures.immediateFuture(signed(SEGMENT_0)));
+        stubVotePut();
+        assertTrue(cwebImportServiceImpl.updateVote(VOTE_1).get());
+        // Already in the history, so nothing is rewritten
+        verify(voteHistoryMap, never()).put(any(Hash.class), any(SignedVoteHistory.class));
+    }
+
+    @Test
+    public void testImportVoteHistoryAppendsToTail() throws Exception {
+        Vote vote = VOTE_1.toBuilder().setContentHash(CONTENT_HASH_2).build();
+        VoteHistory segment = SEGMENT_0.toBuilder().addContentHash(CONTENT_HASH_2).build();
+        VoteHistory head = HEAD_1.toBuilder().setSegmentedSize(2).build();
+        when(voteHistoryMap.get(USER_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(signed(HEAD_1)));
+        when(voteHistoryMap.get(SEGMENT_0_KEY))
+                .thenReturn(Futures.immediateFuture(signed(SEGMENT_0)));
+        when(voteHistoryMap.put(SEGMENT_0_KEY, signed(segment)))
                 .thenReturn(Futures.immediateFuture(true));
-        when(voteMap.add(CONTENT_HASH,
-                SignedVote.newBuilder().setSignature(VOTE_1_SIGNATURE).setVote(VOTE_1).build()))
+        when(voteHistoryMap.put(USER_1.getPublicKey().getHash(), signed(head)))
+                .thenReturn(Futures.immediateFuture(true));
+        when(voteMap.put(CONTENT_HASH_2, KEY_PAIR.getPublicKey().getHash(),
+                SignedVote.newBuilder().setSignature(SignatureUtils.signMessageUnchecked(KEY_PAIR,
+                        vote)).setVote(vote).build()))
                 .thenReturn(Futures.immediateFuture(true));
+        assertTrue(cwebImportServiceImpl.updateVote(vote).get());
+    }
+
+    @Test
+    public void testImportVoteHistoryStartsSegmentWhenTailFull() throws Exception {
+        VoteHistory.Builder fullSegment = SEGMENT_0.toBuilder().clearContentHash();
+        for (int i = 0; i < CwebMisc.VOTE_HISTORY_SEGMENT_SIZE; i++) {
+            fullSegment.addContentHash(HashUtils.hashOf("Object " + i));
+        }
+        VoteHistory fullHead = HEAD_1.toBuilder()
+                .setSegmentedSize(CwebMisc.VOTE_HISTORY_SEGMENT_SIZE).build();
+        VoteHistory segment1 = SEGMENT_0.toBuilder().setSegment(1).build();
+        Hash segment1Key = CwebMisc.voteHistorySegmentKey(USER_1.getPublicKey(), 1);
+        when(voteHistoryMap.get(USER_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(signed(fullHead)));
+        when(voteHistoryMap.get(SEGMENT_0_KEY))
+                .thenReturn(Futures.immediateFuture(signed(fullSegment.build())));
+        when(voteHistoryMap.put(segment1Key, signed(segment1)))
+                .thenReturn(Futures.immediateFuture(true));
+        when(voteHistoryMap.put(USER_1.getPublicKey().getHash(),
+                signed(fullHead.toBuilder().setSegmentCount(2)
+                        .setSegmentedSize(CwebMisc.VOTE_HISTORY_SEGMENT_SIZE + 1).build())))
+                .thenReturn(Futures.immediateFuture(true));
+        stubVotePut();
         assertTrue(cwebImportServiceImpl.updateVote(VOTE_1).get());
+        verify(voteHistoryMap, never()).put(eq(SEGMENT_0_KEY), any(SignedVoteHistory.class));
     }
 
     @Test
-    public void testImportVoteHistoryExistingSuccess() throws Exception {
-        SignedVoteHistory signedVoteHistory = SignedVoteHistory.newBuilder()
-                .setHistory(VOTE_HISTORY_1).setSignature(VOTE_HISTORY_1_SIGNATURE).build();
+    public void testImportVoteHistoryRevoteInEarlierSegment() throws Exception {
+        VoteHistory tail = SEGMENT_0.toBuilder().setSegment(1).setContentHash(0, CONTENT_HASH_2)
+                .build();
+        VoteHistory head = HEAD_1.toBuilder().setSegmentCount(2).setSegmentedSize(2).build();
         when(voteHistoryMap.get(USER_1.getPublicKey().getHash()))
-                .thenReturn(Futures.immediateFuture(signedVoteHistory));
-        when(voteHistoryMap.put(USER_1.getPublicKey().getHash(), signedVoteHistory))
+                .thenReturn(Futures.immediateFuture(signed(head)));
+        when(voteHistoryMap.get(CwebMisc.voteHistorySegmentKey(USER_1.getPublicKey(), 1)))
+                .thenReturn(Futures.immediateFuture(signed(tail)));
+        when(voteMap.get(CONTENT_HASH, KEY_PAIR.getPublicKey().getHash())).thenReturn(
+                Futures.immediateFuture(SignedVote.newBuilder().setSignature(VOTE_1_SIGNATURE)
+                        .setVote(VOTE_1).build()));
+        stubVotePut();
+        assertTrue(cwebImportServiceImpl.updateVote(VOTE_1).get());
+        // Voted on before, so neither the tail nor the size grows, and the
+        // first segment is never read
+        verify(voteHistoryMap, never()).get(SEGMENT_0_KEY);
+        verify(voteHistoryMap, never()).put(any(Hash.class), any(SignedVoteHistory.class));
+    }
+
+    @Test
+    public void testImportVoteHistoryIgnoresTailOfAnotherSigner() throws Exception {
+        KeyPair otherKeyPair = KeyUtils.generateKeyPair();
+        VoteHistory forged = SEGMENT_0.toBuilder().setContentHash(0, CONTENT_HASH_2).build();
+        when(voteHistoryMap.get(USER_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(signed(HEAD_1)));
+        when(voteHistoryMap.get(SEGMENT_0_KEY)).thenReturn(Futures.immediateFuture(
+                SignedVoteHistory.newBuilder().setHistory(forged)
+                        .setSignature(SignatureUtils.signMessageUnchecked(otherKeyPair, forged))
+                        .build()));
+        when(voteHistoryMap.put(SEGMENT_0_KEY, signed(SEGMENT_0)))
                 .thenReturn(Futures.immediateFuture(true));
-        when(voteMap.add(CONTENT_HASH,
-                SignedVote.newBuilder().setSignature(VOTE_1_SIGNATURE).setVote(VOTE_1).build()))
+        when(voteHistoryMap.put(USER_1.getPublicKey().getHash(),
+                signed(HEAD_1.toBuilder().setSegmentedSize(2).build())))
                 .thenReturn(Futures.immediateFuture(true));
+        stubVotePut();
+        assertTrue(cwebImportServiceImpl.updateVote(VOTE_1).get());
+        verify(voteHistoryMap).put(SEGMENT_0_KEY, signed(SEGMENT_0));
+    }
+
+    @Test
+    public void testImportVoteHistoryMigratesLegacy() throws Exception {
+        when(voteHistoryMap.get(USER_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(signed(VOTE_HISTORY_1)));
+        stubHistoryPuts(true, true);
+        stubVotePut();
         assertTrue(cwebImportServiceImpl.updateVote(VOTE_1).get());
+        verify(voteHistoryMap).put(SEGMENT_0_KEY, signed(SEGMENT_0));
+        verify(voteHistoryMap).put(USER_1.getPublicKey().getHash(), signed(HEAD_1));
     }
 
     @Test
     public void testImportVoteHistoryExistingFail() throws Exception {
-        SignedVoteHistory signedVoteHistory = SignedVoteHistory.newBuilder()
-                .setHistory(VOTE_HISTORY_1).setSignature(VOTE_HISTORY_1_SIGNATURE).build();
         when(voteHistoryMap.get(USER_1.getPublicKey().getHash()))
-                .thenReturn(Futures.immediateFuture(signedVoteHistory));
-        when(voteHistoryMap.put(USER_1.getPublicKey().getHash(), signedVoteHistory))
-                .thenReturn(Futures.immediateFuture(false));
-        when(voteMap.add(CONTENT_HASH,
-                SignedVote.newBuilder().setSignature(VOTE_1_SIGNATURE).setVote(VOTE_1).build()))
-                .thenReturn(Futures.immediateFuture(true));
+                .thenReturn(Futures.immediateFuture(signed(VOTE_HISTORY_1)));
+        stubHistoryPuts(false, true);
+        stubVotePut();
         assertFalse(cwebImportServiceImpl.updateVote(VOTE_1).get());
+        verify(voteMap, never()).put(any(Hash.class), any(Hash.class), any(SignedVote.class));
     }
 
     @Test
     public void testImportVoteHistoryNewFail() throws Exception {
-        SignedVoteHistory signedVoteHistory = SignedVoteHistory.newBuilder()
-                .setHistory(VOTE_HISTORY_1).setSignature(VOTE_HISTORY_1_SIGNATURE).build();
         when(voteHistoryMap.get(USER_1.getPublicKey().getHash()))
                 .thenReturn(Futures.immediateFuture(null));
-        when(voteHistoryMap.put(USER_1.getPublicKey().getHash(), signedVoteHistory))
-                .thenReturn(Futures.immediateFuture(false));
-        when(voteMap.add(CONTENT_HASH,
-                SignedVote.newBuilder().setSignature(VOTE_1_SIGNATURE).setVote(VOTE_1).build()))
-                .thenReturn(Futures.immediateFuture(true));
+        stubHistoryPuts(true, false);
+        stubVotePut();
         assertFalse(cwebImportServiceImpl.updateVote(VOTE_1).get());
     }
 
+    @Test
+    public void testUpdateVotesWritesHistoryOnce() throws Exception {
+        Vote vote2 = VOTE_1.toBuilder().setContentHash(CONTENT_HASH_2).build();
+        SignedVote signedVote2 = SignedVote.newBuilder()
+                .setSignature(SignatureUtils.signMessageUnchecked(KEY_PAIR, vote2)).setVote(vote2)
+                .build();
+        VoteHistory segment = SEGMENT_0.toBuilder().addContentHash(CONTENT_HASH_2).build();
+        VoteHistory head = HEAD_1.toBuilder().setSegmentedSize(2).build();
+        when(voteHistoryMap.get(USER_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(null));
+        when(voteHistoryMap.put(SEGMENT_0_KEY, signed(segment)))
+                .thenReturn(Futures.immediateFuture(true));
+        when(voteHistoryMap.put(USER_1.getPublicKey().getHash(), signed(head)))
+                .thenReturn(Futures.immediateFuture(true));
+        stubVotePut();
+        when(voteMap.put(CONTENT_HASH_2, KEY_PAIR.getPublicKey().getHash(), signedVote2))
+                .thenReturn(Futures.immediateFuture(false));
+        assertEquals(Arrays.asList(true, false),
+                cwebImportServiceImpl.updateVotes(Arrays.asList(VOTE_1, vote2)).get());
+        verify(voteHistoryMap).put(any(Hash.class), eq(signed(segment)));
+        verify(voteHistoryMap).put(any(Hash.class), eq(signed(head)));
+    }
+
+    @Test
+    public void testUpdateVotesSkipsVotesWithoutHistory() throws Exception {
+        when(voteHistoryMap.get(USER_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(null));
+        stubHistoryPuts(false, true);
+        assertEquals(Collections.singletonList(false),
+                cwebImportServiceImpl.updateVotes(Collections.singletonList(VOTE_1)).get());
+        verify(voteMap, never()).put(any(Hash.class), any(Hash.class), any(SignedVote.class));
+    }
+
+    @Test
+    public void testStartBoundedDoesNotRecurseOnFinishedWrites() throws Exception {
+        List<Supplier<ListenableFuture<Boolean>>> writes = new ArrayList<>();
+        for (int i = 0; i < 200000; i++) {
+            writes.add(() -> Futures.immediateFuture(false));
+        }
+        List<ListenableFuture<Boolean>> results = CwebImportServiceImpl.startBounded(writes);
+        assertEquals(writes.size(), results.size());
+        assertTrue(results.stream().allMatch(ListenableFuture::isDone));
+    }
+
     @Test
     public void testImportSignatureUser() throws Exception {
         when(userMap
@@ -145,7 +293,7 @@ public class CwebImportServiceImplTest {
     public void testImportSignatureVote() throws Exception {
         when(voteHistoryMap.get(USER_1.getPublicKey().getHash()))
                 .thenReturn(Futures.immediateFuture(null));
-        when(voteMap.add(CONTENT_HASH,
+        when(voteMap.put(CONTENT_HASH, KEY_PAIR.getPublicKey().getHash(),
                 SignedVote.newBuilder().setSignature(VOTE_1_SIGNATURE).setVote(VOTE_1).build()))
                 .thenReturn(Futures.immediateFuture(true));
         assertTrue(cwebImportServiceImpl.importSignature(VOTE_1, VOTE_1_SIGNATURE).get());
@@ -166,4 +314,21 @@ public class CwebImportServiceImplTest {
         assertFalse(cwebImportServiceImpl.importSignature(USER_1, USER_1_SIGNATURE).get());
     }
 
+    private void stubHistoryPuts(boolean segmentWritten, boolean headWritten) {
+        when(voteHistoryMap.put(SEGMENT_0_KEY, signed(SEGMENT_0)))
+                .thenReturn(Futures.immediateFuture(segmentWritten));
+        when(voteHistoryMap.put(USER_1.getPublicKey().getHash(), signed(HEAD_1)))
+                .thenReturn(Futures.immediateFuture(headWritten));
+    }
+
+    private void stubVotePut() {
+        when(voteMap.put(CONTENT_HASH, KEY_PAIR.getPublicKey().getHash(),
+                SignedVote.newBuilder().setSignature(VOTE_1_SIGNATURE).setVote(VOTE_1).build()))
+                .thenReturn(Futures.immediateFuture(true));
+    }
+
+    private static SignedVoteHistory signed(VoteHistory history) {
+        return SignedVoteHistory.newBuilder().setHistory(history)
+                .setSignature(SignatureUtils.signMessageUnchecked(KEY_PAIR, history)).build();
+    }
 }
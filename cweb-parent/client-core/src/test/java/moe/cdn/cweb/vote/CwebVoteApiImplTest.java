@@ -0,0 +1,312 @@
+package moe.cdn.cweb.vote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+
+import moe.cdn.cweb.SecurityProtos.Hash;
+import moe.cdn.cweb.SecurityProtos.KeyPair;
+import moe.cdn.cweb.TorrentTrustProtos.SignedVote;
+import moe.cdn.cweb.TorrentTrustProtos.SignedVoteHistory;
+import moe.cdn.cweb.TorrentTrustProtos.User;
+import moe.cdn.cweb.TorrentTrustProtos.Vote;
+import moe.cdn.cweb.TorrentTrustProtos.VoteHistory;
+import moe.cdn.cweb.dht.CwebMultiMap;
+import moe.cdn.cweb.dht.security.CwebSignatureValidationService;
+import moe.cdn.cweb.security.CwebImportService;
+import moe.cdn.cweb.security.CwebMisc;
+import moe.cdn.cweb.security.utils.HashUtils;
+import moe.cdn.cweb.security.utils.KeyUtils;
+import moe.cdn.cweb.security.utils.SignatureUtils;
+import moe.cdn.cweb.security.utils.SignedMessage;
+
+public class CwebVoteApiImplTest {
+    private static final KeyPair KEY_PAIR_1 = KeyUtils.generateKeyPair();
+    private static final KeyPair KEY_PAIR_2 = KeyUtils.generateKeyPair();
+    private static final User USER_1 = User.newBuilder().setPublicKey(KEY_PAIR_1.getPublicKey())
+            .setHandle("User 1").build();
+    private static final Hash OBJECT_1 = HashUtils.hashOf("Hello World");
+    private static final Hash OBJECT_2 = HashUtils.hashOf("Goodbye World");
+
+    @Mock
+    private CwebSignatureValidationService signatureValidationService;
+    @Mock
+    private CwebImportService importService;
+    @Mock
+    private CwebMultiMap<SignedVote> voteMap;
+    @Mock
+    private CwebMultiMap<SignedVoteHistory> voteHistoryMap;
+
+    private CwebVoteApiImpl voteApi;
+
+    private static SignedVote signedVote(KeyPair keyPair, Hash object) {
+        Vote vote = Vote.newBuilder().setOwnerPublicKey(keyPair.getPublicKey())
+                .setContentHash(object).build();
+        return SignedVote.newBuilder().setVote(vote)
+                .setSignature(SignatureUtils.signMessageUnchecked(keyPair, vote)).build();
+    }
+
+    private static SignedVoteHistory signedHistory(KeyPair keyPair, VoteHistory history) {
+        return SignedVoteHistory.newBuilder().setHistory(history)
+                .setSignature(SignatureUtils.signMessageUnchecked(keyPair, history)).build();
+    }
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        voteApi = new CwebVoteApiImpl(signatureValidationService, importService, voteMap,
+                voteHistoryMap);
+        when(signatureValidationService
+                .validateVote(ArgumentMatchers.<SignedMessage<Vote>>any())).thenReturn(true);
+        when(signatureValidationService.validateAll(anyCollection())).thenAnswer(invocation -> {
+            BitSet valid = new BitSet();
+            valid.set(0, ((Collection<?>) invocation.getArguments()[0]).size());
+            return valid;
+        });
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testGetAllVotesVerifiesReceivedBytes() throws Exception {
+        SignedVote ownVote = signedVote(KEY_PAIR_1, OBJECT_1);
+        // Carries a signature made over another vote
+        SignedVote forgedVote = signedVote(KEY_PAIR_2, OBJECT_1).toBuilder()
+                .setSignature(ownVote.getSignature()).build();
+        when(voteMap.allEncoded(OBJECT_1)).thenReturn(Futures.immediateFuture(Arrays.asList(
+                forgedVote.toByteString(), ByteString.copyFrom(new byte[] {-1, -1, -1}),
+                ownVote.toByteString())));
+        when(signatureValidationService.validateAllReceived(anyCollection()))
+                .thenAnswer(invocation -> {
+                    BitSet valid = new BitSet();
+                    int i = 0;
+                    for (SignedMessage<Vote> signedVote
+                            : (Collection<SignedMessage<Vote>>) invocation.getArguments()[0]) {
+                        valid.set(i++, SignatureUtils.validateMessage(signedVote.getSignature(),
+                                signedVote.getMessageBytes().toByteArray()));
+                    }
+                    return valid;
+                });
+        assertEquals(Collections.singletonList(ownVote.getVote()),
+                voteApi.getAllVotes(OBJECT_1).get());
+        verify(voteMap, never()).all(any(Hash.class));
+    }
+
+    @Test
+    public void testGetUserVoteIndexed() throws Exception {
+        SignedVote signedVote = signedVote(KEY_PAIR_1, OBJECT_1);
+        when(voteMap.getEncoded(OBJECT_1, KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(signedVote.toByteString()));
+        assertEquals(signedVote.getVote(), voteApi.getUserVote(OBJECT_1, USER_1).get());
+        verify(voteMap, never()).allEncodedContaining(any(Hash.class), any(Message.class));
+        verify(voteMap, never()).get(any(Hash.class), any(Hash.class));
+    }
+
+    @Test
+    public void testGetUserVoteVerifiesReceivedBytes() throws Exception {
+        SignedVote ownVote = signedVote(KEY_PAIR_1, OBJECT_1);
+        when(voteMap.getEncoded(OBJECT_1, KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(ownVote.toByteString()));
+        assertEquals(ownVote.getVote(), voteApi.getUserVote(OBJECT_1, USER_1).get());
+        verify(signatureValidationService).validateVote(
+                ArgumentMatchers.<SignedMessage<Vote>>argThat(signedVote -> signedVote
+                        .getMessageBytes().equals(ownVote.getVote().toByteString())));
+        verify(signatureValidationService, never()).validateVote(any(SignedVote.class));
+    }
+
+    @Test
+    public void testGetUserVoteForeignOwnerFallsBack() throws Exception {
+        SignedVote ownVote = signedVote(KEY_PAIR_1, OBJECT_1);
+        SignedVote otherVote = signedVote(KEY_PAIR_2, OBJECT_1);
+        when(voteMap.getEncoded(OBJECT_1, KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(otherVote.toByteString()));
+        // The bytes of the key may match other votes too
+        when(voteMap.allEncodedContaining(OBJECT_1, KEY_PAIR_1.getPublicKey()))
+                .thenReturn(Futures.immediateFuture(
+                        Arrays.asList(otherVote.toByteString(), ownVote.toByteString())));
+        assertEquals(ownVote.getVote(), voteApi.getUserVote(OBJECT_1, USER_1).get());
+    }
+
+    @Test
+    public void testGetUserVoteScanChecksSignature() throws Exception {
+        SignedVote ownVote = signedVote(KEY_PAIR_1, OBJECT_1);
+        when(voteMap.getEncoded(OBJECT_1, KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(null));
+        when(voteMap.allEncodedContaining(OBJECT_1, KEY_PAIR_1.getPublicKey()))
+                .thenReturn(Futures.immediateFuture(
+                        Collections.singletonList(ownVote.toByteString())));
+        when(signatureValidationService.validateVote(ArgumentMatchers.<SignedMessage<Vote>>any()))
+                .thenReturn(false);
+        assertNull(voteApi.getUserVote(OBJECT_1, USER_1).get());
+    }
+
+    @Test
+    public void testGetUserVotesOmitsMissing() throws Exception {
+        SignedVote signedVote = signedVote(KEY_PAIR_1, OBJECT_1);
+        when(voteMap.getEncoded(OBJECT_1, KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(signedVote.toByteString()));
+        when(voteMap.getEncoded(OBJECT_2, KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(null));
+        when(voteMap.allEncodedContaining(OBJECT_2, KEY_PAIR_1.getPublicKey()))
+                .thenReturn(Futures.immediateFuture(Collections.emptyList()));
+        Map<Hash, Vote> votes =
+                voteApi.getUserVotes(USER_1, Arrays.asList(OBJECT_1, OBJECT_2)).get();
+        assertEquals(Collections.singletonMap(OBJECT_1, signedVote.getVote()), votes);
+    }
+
+    @Test
+    public void testGetVoteHistory() throws Exception {
+        SignedVote vote1 = signedVote(KEY_PAIR_1, OBJECT_1);
+        SignedVote vote2 = signedVote(KEY_PAIR_1, OBJECT_2);
+        VoteHistory history = VoteHistory.newBuilder().setOwnerPublicKey(USER_1.getPublicKey())
+                .addContentHash(OBJECT_2).addContentHash(OBJECT_1).build();
+        when(voteHistoryMap.get(KEY_PAIR_1.getPublicKey().getHash())).thenReturn(
+                Futures.immediateFuture(SignedVoteHistory.newBuilder().setHistory(history)
+                        .setSignature(SignatureUtils.signMessageUnchecked(KEY_PAIR_1, history))
+                        .build()));
+        when(voteMap.getEncoded(OBJECT_1, KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(vote1.toByteString()));
+        when(voteMap.getEncoded(OBJECT_2, KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(vote2.toByteString()));
+        assertEquals(Arrays.asList(vote2.getVote(), vote1.getVote()),
+                voteApi.getVoteHistory(USER_1).get());
+        verify(voteMap, never()).allEncodedContaining(any(Hash.class), any(Message.class));
+    }
+
+    @Test
+    public void testGetVoteHistorySegmented() throws Exception {
+        SignedVote vote1 = signedVote(KEY_PAIR_1, OBJECT_1);
+        SignedVote vote2 = signedVote(KEY_PAIR_1, OBJECT_2);
+        VoteHistory head = VoteHistory.newBuilder().setOwnerPublicKey(USER_1.getPublicKey())
+                .setSegmentCount(3).setSegmentedSize(3).build();
+        VoteHistory segment0 = VoteHistory.newBuilder().setOwnerPublicKey(USER_1.getPublicKey())
+                .addContentHash(OBJECT_2).build();
+        VoteHistory segment1 = segment0.toBuilder().setSegment(1).setContentHash(0, OBJECT_1)
+                .build();
+        // Written by someone else under the key of the last segment
+        VoteHistory forged = VoteHistory.newBuilder().setOwnerPublicKey(KEY_PAIR_2.getPublicKey())
+                .setSegment(2).addContentHash(HashUtils.hashOf("Forged")).build();
+        when(voteHistoryMap.get(KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(signedHistory(KEY_PAIR_1, head)));
+        when(voteHistoryMap.get(CwebMisc.voteHistorySegmentKey(USER_1.getPublicKey(), 0)))
+                .thenReturn(Futures.immediateFuture(signedHistory(KEY_PAIR_1, segment0)));
+        when(voteHistoryMap.get(CwebMisc.voteHistorySegmentKey(USER_1.getPublicKey(), 1)))
+                .thenReturn(Futures.immediateFuture(signedHistory(KEY_PAIR_1, segment1)));
+        when(voteHistoryMap.get(CwebMisc.voteHistorySegmentKey(USER_1.getPublicKey(), 2)))
+                .thenReturn(Futures.immediateFuture(signedHistory(KEY_PAIR_2, forged)));
+        when(voteMap.getEncoded(OBJECT_1, KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(vote1.toByteString()));
+        when(voteMap.getEncoded(OBJECT_2, KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(vote2.toByteString()));
+        assertEquals(Arrays.asList(vote2.getVote(), vote1.getVote()),
+                voteApi.getVoteHistory(USER_1).get());
+        assertEquals(3, (int) voteApi.getVoteHistorySize(USER_1).get());
+    }
+
+    @Test
+    public void testGetVoteHistoryDropsRevoteInLaterSegment() throws Exception {
+        SignedVote vote1 = signedVote(KEY_PAIR_1, OBJECT_1);
+        SignedVote vote2 = signedVote(KEY_PAIR_1, OBJECT_2);
+        VoteHistory head = VoteHistory.newBuilder().setOwnerPublicKey(USER_1.getPublicKey())
+                .setSegmentCount(2).setSegmentedSize(3).build();
+        VoteHistory segment0 = VoteHistory.newBuilder().setOwnerPublicKey(USER_1.getPublicKey())
+                .addContentHash(OBJECT_1).build();
+        // Written while the earlier vote could not be looked up
+        VoteHistory segment1 = segment0.toBuilder().setSegment(1).setContentHash(0, OBJECT_2)
+                .addContentHash(OBJECT_1).build();
+        when(voteHistoryMap.get(KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(signedHistory(KEY_PAIR_1, head)));
+        when(voteHistoryMap.get(CwebMisc.voteHistorySegmentKey(USER_1.getPublicKey(), 0)))
+                .thenReturn(Futures.immediateFuture(signedHistory(KEY_PAIR_1, segment0)));
+        when(voteHistoryMap.get(CwebMisc.voteHistorySegmentKey(USER_1.getPublicKey(), 1)))
+                .thenReturn(Futures.immediateFuture(signedHistory(KEY_PAIR_1, segment1)));
+        when(voteMap.getEncoded(OBJECT_1, KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(vote1.toByteString()));
+        when(voteMap.getEncoded(OBJECT_2, KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(vote2.toByteString()));
+        assertEquals(Arrays.asList(vote1.getVote(), vote2.getVote()),
+                voteApi.getVoteHistory(USER_1).get());
+    }
+
+    @Test
+    public void testGetVoteHistoryDropsSegmentSignedByAnotherUser() throws Exception {
+        SignedVote vote1 = signedVote(KEY_PAIR_1, OBJECT_1);
+        VoteHistory head = VoteHistory.newBuilder().setOwnerPublicKey(USER_1.getPublicKey())
+                .setSegmentCount(2).setSegmentedSize(2).build();
+        VoteHistory segment0 = VoteHistory.newBuilder().setOwnerPublicKey(USER_1.getPublicKey())
+                .addContentHash(OBJECT_1).build();
+        // Names the user as its owner, but is signed by someone else
+        VoteHistory forged = segment0.toBuilder().setSegment(1).setContentHash(0, OBJECT_2)
+                .build();
+        when(voteHistoryMap.get(KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(signedHistory(KEY_PAIR_1, head)));
+        when(voteHistoryMap.get(CwebMisc.voteHistorySegmentKey(USER_1.getPublicKey(), 0)))
+                .thenReturn(Futures.immediateFuture(signedHistory(KEY_PAIR_1, segment0)));
+        when(voteHistoryMap.get(CwebMisc.voteHistorySegmentKey(USER_1.getPublicKey(), 1)))
+                .thenReturn(Futures.immediateFuture(signedHistory(KEY_PAIR_2, forged)));
+        when(voteMap.getEncoded(OBJECT_1, KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(vote1.toByteString()));
+        assertEquals(Arrays.asList(vote1.getVote()), voteApi.getVoteHistory(USER_1).get());
+        verify(voteMap, never()).getEncoded(OBJECT_2, KEY_PAIR_1.getPublicKey().getHash());
+    }
+
+    @Test
+    public void testGetVoteHistoryIgnoresHeadSignedByAnotherUser() throws Exception {
+        VoteHistory head = VoteHistory.newBuilder().setOwnerPublicKey(USER_1.getPublicKey())
+                .setSegmentCount(1).setSegmentedSize(1).build();
+        when(voteHistoryMap.get(KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(signedHistory(KEY_PAIR_2, head)));
+        assertTrue(voteApi.getVoteHistory(USER_1).get().isEmpty());
+        assertEquals(0, (int) voteApi.getVoteHistorySize(USER_1).get());
+    }
+
+    @Test
+    public void testGetVoteHistoryNone() throws Exception {
+        when(voteHistoryMap.get(KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(null));
+        assertTrue(voteApi.getVoteHistory(USER_1).get().isEmpty());
+    }
+
+    @Test
+    public void testGetVoteHistoryVersionChangesWithHead() throws Exception {
+        VoteHistory head = VoteHistory.newBuilder().setOwnerPublicKey(USER_1.getPublicKey())
+                .setSegmentCount(1).setSegmentedSize(1).build();
+        when(voteHistoryMap.get(KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(null));
+        Hash none = voteApi.getVoteHistoryVersion(USER_1).get();
+        when(voteHistoryMap.get(KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(signedHistory(KEY_PAIR_1, head)));
+        Hash first = voteApi.getVoteHistoryVersion(USER_1).get();
+        assertEquals(first, voteApi.getVoteHistoryVersion(USER_1).get());
+        when(voteHistoryMap.get(KEY_PAIR_1.getPublicKey().getHash()))
+                .thenReturn(Futures.immediateFuture(signedHistory(KEY_PAIR_1,
+                        head.toBuilder().setSegmentedSize(2).build())));
+        Hash second = voteApi.getVoteHistoryVersion(USER_1).get();
+        assertNotEquals(none, first);
+        assertNotEquals(first, second);
+        // Only the head is read
+        verify(voteHistoryMap, never())
+                .get(CwebMisc.voteHistorySegmentKey(USER_1.getPublicKey(), 0));
+    }
+}
@@ -3,8 +3,11 @@ package moe.cdn.cweb.security;
 import java.util.function.BiPredicate;
 import java.util.function.Function;
 
+import com.google.protobuf.ByteString;
+
 import moe.cdn.cweb.SecurityProtos;
 import moe.cdn.cweb.TorrentTrustProtos;
+import moe.cdn.cweb.security.utils.HashUtils;
 
 /**
  * Misc constants used for Cweb
@@ -22,8 +25,29 @@ public final class CwebMisc {
             (hash, signedVote) -> signedVote.getVote().getContentHash().equals(hash);
     public static final BiPredicate<SecurityProtos.Hash, TorrentTrustProtos.SignedVoteHistory>
             HASH_SIGNED_VOTE_HISTORY_BI_PREDICATE =
-            (hash, signedVoteHistory) -> signedVoteHistory.getHistory().getOwnerPublicKey()
-                    .getHash().equals(hash);
+            (hash, signedVoteHistory) -> {
+                TorrentTrustProtos.VoteHistory history = signedVoteHistory.getHistory();
+                return history.getOwnerPublicKey().getHash().equals(hash) || hash.equals(
+                        voteHistorySegmentKey(history.getOwnerPublicKey(), history.getSegment()));
+            };
+
+    /**
+     * Maximum number of content hashes in a segment of a vote history
+     */
+    public static final int VOTE_HISTORY_SEGMENT_SIZE = 256;
+
+    /**
+     * Derives the key that a segment of a vote history is stored under.
+     *
+     * @param ownerPublicKey key of the owner of the history
+     * @param segment        position of the segment in the history
+     * @return key of the segment
+     */
+    public static SecurityProtos.Hash voteHistorySegmentKey(SecurityProtos.Key ownerPublicKey,
+                                                            int segment) {
+        return HashUtils.hashOf(ownerPublicKey.getHash().toByteString()
+                .concat(ByteString.copyFromUtf8("/segment/" + segment)));
+    }
 
     /**
      * This class should not be instantiated
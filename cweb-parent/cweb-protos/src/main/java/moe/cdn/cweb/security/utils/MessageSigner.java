@@ -0,0 +1,109 @@
+package moe.cdn.cweb.security.utils;
+
+import java.security.InvalidKeyException;
+import java.security.PrivateKey;
+import java.security.SignatureException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+
+import moe.cdn.cweb.SecurityProtos.Key;
+import moe.cdn.cweb.SecurityProtos.KeyPair;
+import moe.cdn.cweb.SecurityProtos.Signature;
+import moe.cdn.cweb.SecurityProtos.Signature.SignatureAlgorithm;
+
+/**
+ * Signs messages with one key pair. Produces the same signatures as
+ * {@link SignatureUtils#signMessage(KeyPair, byte[])}, but decodes the private
+ * key once, and keeps the {@link java.security.Signature} instances it has
+ * initialized for signing to reuse them, since a signature object goes back to
+ * its initialized state after it signs. Concurrent signs each take their own
+ * instance, so they do not wait on each other.
+ */
+public final class MessageSigner {
+    static final int DEFAULT_MAXIMUM_POOLED = Runtime.getRuntime().availableProcessors() * 2;
+
+    private final Key publicKey;
+    private final PrivateKey privateKey;
+    private final int maximumPooled;
+    private final Queue<java.security.Signature> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    MessageSigner(Key publicKey, PrivateKey privateKey, int maximumPooled) {
+        this.publicKey = publicKey;
+        this.privateKey = privateKey;
+        this.maximumPooled = maximumPooled;
+    }
+
+    /**
+     * Creates a signer for a key pair.
+     *
+     * @param keyPair key pair to sign with
+     * @return the signer
+     * @throws IllegalArgumentException if the keypair does not contain a
+     *                                  private key, or it cannot be decoded
+     */
+    public static MessageSigner forKeyPair(KeyPair keyPair) {
+        if (!keyPair.hasPrivateKey()) {
+            throw new IllegalArgumentException("Keypair must contain private key");
+        }
+        PrivateKey privateKey = KeyUtils.importPrivateKey(keyPair.getPrivateKey());
+        Key publicKey = keyPair.hasPublicKey() ? keyPair.getPublicKey()
+                                               : KeyUtils.fromKey(KeyUtils.toPublicKey(privateKey));
+        return new MessageSigner(publicKey, privateKey, DEFAULT_MAXIMUM_POOLED);
+    }
+
+    /**
+     * @return the public key that the signatures are made with
+     */
+    public Key getPublicKey() {
+        return publicKey;
+    }
+
+    /**
+     * Signs a byte array message
+     *
+     * @param message message to be signed
+     * @return signature proto containing signature for message
+     */
+    public Signature sign(byte[] message) throws InvalidKeyException, SignatureException {
+        java.security.Signature signer = pool.poll();
+        if (signer == null) {
+            signer = SignatureUtils.getDefaultSignatureAlgorithm();
+            signer.initSign(privateKey);
+        } else {
+            pooled.decrementAndGet();
+        }
+        signer.update(message);
+        // An instance that failed to sign is in an unknown state and is not
+        // returned to the pool
+        byte[] signature = signer.sign();
+        if (pooled.incrementAndGet() <= maximumPooled) {
+            pool.offer(signer);
+        } else {
+            pooled.decrementAndGet();
+        }
+        return Signature.newBuilder().setAlgorithm(SignatureAlgorithm.SHA_256_WITH_RSA)
+                .setPublicKey(publicKey).setSignature(ByteString.copyFrom(signature)).build();
+    }
+
+    /**
+     * Signs a {@link Message}
+     *
+     * @param message protocol buffer based message to sign
+     * @return signature object
+     */
+    public Signature sign(Message message) throws InvalidKeyException, SignatureException {
+        return sign(message.toByteArray());
+    }
+
+    /**
+     * @return number of initialized signature instances waiting to be reused
+     */
+    int pooled() {
+        return pooled.get();
+    }
+}
@@ -1,8 +1,10 @@
 package moe.cdn.cweb.security.utils;
 
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.security.SignatureException;
 
 import org.apache.logging.log4j.Level;
@@ -29,7 +31,7 @@ public final class SignatureUtils {
     private SignatureUtils() {
     }
 
-    private static java.security.Signature getDefaultSignatureAlgorithm() {
+    static java.security.Signature getDefaultSignatureAlgorithm() {
         try {
             return java.security.Signature.getInstance("SHA256withRSA");
         } catch (NoSuchAlgorithmException e) {
@@ -62,10 +64,47 @@ public final class SignatureUtils {
             logger.debug("Unsupported signature algorithm: {}", signature.getAlgorithm());
             return false;
         }
+        return validateMessage(signature, KeyUtils.importPublicKey(signature.getPublicKey()),
+                message);
+    }
+
+    /**
+     * Validates a byte array against a signature using an already imported
+     * public key. The public key in the signature proto is not looked at;
+     * callers are responsible for making sure that {@code publicKey} is the
+     * key it describes.
+     *
+     * @param signature signature proto
+     * @param publicKey the imported public key of the signature
+     * @param message   message byte array to verify
+     * @return boolean indicator of verification success
+     */
+    public static boolean validateMessage(Signature signature, PublicKey publicKey,
+            byte[] message) {
+        return validateMessage(signature, publicKey, ByteBuffer.wrap(message));
+    }
+
+    /**
+     * Validates the remaining bytes of a buffer against a signature using an
+     * already imported public key, without copying them. The position of
+     * {@code message} is not changed.
+     *
+     * @param signature signature proto
+     * @param publicKey the imported public key of the signature
+     * @param message   buffer of the message to verify
+     * @return boolean indicator of verification success
+     * @see #validateMessage(Signature, PublicKey, byte[])
+     */
+    public static boolean validateMessage(Signature signature, PublicKey publicKey,
+            ByteBuffer message) {
+        if (!isDefaultSignatureAlgorithm(signature)) {
+            logger.debug("Unsupported signature algorithm: {}", signature.getAlgorithm());
+            return false;
+        }
         try {
             java.security.Signature verifier = getDefaultSignatureAlgorithm();
-            verifier.initVerify(KeyUtils.importPublicKey(signature.getPublicKey()));
-            verifier.update(message);
+            verifier.initVerify(publicKey);
+            verifier.update(message.duplicate());
             return verifier.verify(signature.getSignature().toByteArray());
         } catch (InvalidKeyException e) {
             logger.catching(Level.DEBUG, e);
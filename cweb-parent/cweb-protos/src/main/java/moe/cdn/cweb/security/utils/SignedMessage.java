@@ -0,0 +1,110 @@
+package moe.cdn.cweb.security.utils;
+
+import java.io.IOException;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+import com.google.protobuf.WireFormat;
+
+import moe.cdn.cweb.SecurityProtos.Signature;
+
+/**
+ * A signed record as it was received: the signed message, the exact bytes it
+ * was encoded as, and its signature. Signed records ({@code SignedUser},
+ * {@code SignedVote} and {@code SignedVoteHistory}) all keep the signed
+ * message in field 1 and the signature in field 2.
+ * <p>
+ * The bytes of the message are a view of the buffer it was parsed from, not
+ * a copy. Verifying the signature over them checks what the signer actually
+ * sent, instead of encoding the parsed message again and relying on the
+ * encoding coming out the same.
+ *
+ * @param <T> type of the signed message
+ */
+public final class SignedMessage<T extends Message> {
+    static final int MESSAGE_FIELD_NUMBER = 1;
+    static final int SIGNATURE_FIELD_NUMBER = 2;
+
+    private final T message;
+    private final ByteString messageBytes;
+    private final Signature signature;
+
+    private SignedMessage(T message, ByteString messageBytes, Signature signature) {
+        this.message = message;
+        this.messageBytes = messageBytes;
+        this.signature = signature;
+    }
+
+    /**
+     * Parses an encoded signed record.
+     *
+     * @param signed the encoded record
+     * @param parser parser of the signed message
+     * @return the record
+     * @throws InvalidProtocolBufferException if the record cannot be parsed,
+     *                                        or has more than one message or
+     *                                        signature
+     */
+    public static <T extends Message> SignedMessage<T> parseFrom(ByteString signed,
+            Parser<T> parser) throws InvalidProtocolBufferException {
+        ByteString messageBytes = null;
+        Signature signature = null;
+        CodedInputStream input = signed.newCodedInput();
+        try {
+            int tag;
+            while ((tag = input.readTag()) != 0) {
+                int fieldNumber = WireFormat.getTagFieldNumber(tag);
+                boolean lengthDelimited =
+                        WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED;
+                if (fieldNumber == MESSAGE_FIELD_NUMBER && lengthDelimited) {
+                    // A message split over several fields would be merged
+                    // when parsed, and has no single encoding to verify
+                    if (messageBytes != null) {
+                        throw new InvalidProtocolBufferException("Repeated signed message");
+                    }
+                    int length = input.readRawVarint32();
+                    int start = input.getTotalBytesRead();
+                    input.skipRawBytes(length);
+                    messageBytes = signed.substring(start, start + length);
+                } else if (fieldNumber == SIGNATURE_FIELD_NUMBER && lengthDelimited) {
+                    if (signature != null) {
+                        throw new InvalidProtocolBufferException("Repeated signature");
+                    }
+                    signature = Signature.parseFrom(input.readBytes());
+                } else if (!input.skipField(tag)) {
+                    break;
+                }
+            }
+        } catch (InvalidProtocolBufferException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new InvalidProtocolBufferException(e.getMessage());
+        }
+        if (messageBytes == null) {
+            messageBytes = ByteString.EMPTY;
+        }
+        return new SignedMessage<>(parser.parseFrom(messageBytes), messageBytes,
+                signature == null ? Signature.getDefaultInstance() : signature);
+    }
+
+    /**
+     * @return the signed message
+     */
+    public T getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the bytes the signed message was received as
+     */
+    public ByteString getMessageBytes() {
+        return messageBytes;
+    }
+
+    public Signature getSignature() {
+        return signature;
+    }
+}
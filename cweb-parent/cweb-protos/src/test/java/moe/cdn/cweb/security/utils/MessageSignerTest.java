@@ -0,0 +1,40 @@
+package moe.cdn.cweb.security.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import moe.cdn.cweb.SecurityProtos.KeyPair;
+import moe.cdn.cweb.SecurityProtos.Signature;
+
+public class MessageSignerTest {
+    private static final KeyPair KEY_PAIR = KeyUtils.generateKeyPair();
+    private static final byte[] MESSAGE = "Hello World!".getBytes();
+
+    @Test
+    public void testSignsLikeSignatureUtils() throws Exception {
+        MessageSigner signer = MessageSigner.forKeyPair(KEY_PAIR);
+        Signature signature = signer.sign(MESSAGE);
+        assertEquals(SignatureUtils.signMessage(KEY_PAIR, MESSAGE), signature);
+        assertTrue(SignatureUtils.validateMessage(signature, MESSAGE));
+        // Signing again reuses the pooled instance from its initialized state
+        assertEquals(signature, signer.sign(MESSAGE));
+    }
+
+    @Test
+    public void testPoolIsBounded() throws Exception {
+        MessageSigner signer = new MessageSigner(KEY_PAIR.getPublicKey(),
+                KeyUtils.importPrivateKey(KEY_PAIR.getPrivateKey()), 1);
+        assertEquals(0, signer.pooled());
+        signer.sign(MESSAGE);
+        signer.sign(MESSAGE);
+        assertEquals(1, signer.pooled());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRequiresPrivateKey() {
+        MessageSigner.forKeyPair(
+                KeyPair.newBuilder().setPublicKey(KEY_PAIR.getPublicKey()).build());
+    }
+}
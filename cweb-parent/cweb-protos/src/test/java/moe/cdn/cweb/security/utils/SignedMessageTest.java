@@ -0,0 +1,68 @@
+package moe.cdn.cweb.security.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import moe.cdn.cweb.SecurityProtos.Hash;
+import moe.cdn.cweb.SecurityProtos.KeyPair;
+import moe.cdn.cweb.SecurityProtos.Signature;
+import moe.cdn.cweb.TorrentTrustProtos.SignedVote;
+import moe.cdn.cweb.TorrentTrustProtos.Vote;
+
+public class SignedMessageTest {
+    private static final KeyPair KEY_PAIR = KeyUtils.generateKeyPair();
+    private static final Hash CONTENT_HASH = HashUtils.hashOf("Hello World");
+
+    @Test
+    public void testKeepsReceivedBytes() throws Exception {
+        Vote vote = Vote.newBuilder().setContentHash(CONTENT_HASH)
+                .setOwnerPublicKey(KEY_PAIR.getPublicKey()).build();
+        Signature signature = SignatureUtils.signMessage(KEY_PAIR, vote);
+        SignedMessage<Vote> signedVote = SignedMessage.parseFrom(
+                SignedVote.newBuilder().setVote(vote).setSignature(signature).build()
+                        .toByteString(), Vote.PARSER);
+        assertEquals(vote, signedVote.getMessage());
+        assertEquals(vote.toByteString(), signedVote.getMessageBytes());
+        assertEquals(signature, signedVote.getSignature());
+    }
+
+    @Test
+    public void testVerifiesEncodingAsSent() throws Exception {
+        // Fields out of order are valid, but encode differently once parsed
+        ByteString voteBytes = encode(2, KEY_PAIR.getPublicKey().toByteString(), 1,
+                CONTENT_HASH.toByteString());
+        Signature signature = SignatureUtils.signMessage(KEY_PAIR, voteBytes.toByteArray());
+        SignedMessage<Vote> signedVote =
+                SignedMessage.parseFrom(encode(1, voteBytes, 2, signature.toByteString()),
+                        Vote.PARSER);
+        assertEquals(voteBytes, signedVote.getMessageBytes());
+        assertNotEquals(voteBytes, signedVote.getMessage().toByteString());
+        assertTrue(SignatureUtils.validateMessage(signature,
+                signedVote.getMessageBytes().toByteArray()));
+        assertFalse(SignatureUtils.validateMessage(signature, signedVote.getMessage()));
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void testRejectsRepeatedMessage() throws Exception {
+        SignedMessage.parseFrom(encode(1, CONTENT_HASH.toByteString(), 1,
+                CONTENT_HASH.toByteString()), Hash.PARSER);
+    }
+
+    private static ByteString encode(int firstField, ByteString first, int secondField,
+            ByteString second) throws Exception {
+        ByteString.Output output = ByteString.newOutput();
+        CodedOutputStream coded = CodedOutputStream.newInstance(output);
+        coded.writeBytes(firstField, first);
+        coded.writeBytes(secondField, second);
+        coded.flush();
+        return output.toByteString();
+    }
+}
@@ -1,6 +1,7 @@
 package moe.cdn.cweb.dht;
 
 import java.util.Collection;
+import java.util.Map;
 
 import com.google.common.util.concurrent.ListenableFuture;
 
@@ -28,6 +29,24 @@ public interface AsyncMultiMap<K, V> {
      */
     ListenableFuture<Collection<V>> all(K key);
 
+    /**
+     * Returns all values to which each of several keys is mapped.
+     *
+     * @param keys the keys
+     * @return a future for the values of each key, in the order of
+     * {@code keys}; keys that could not be looked up are left out
+     */
+    ListenableFuture<Map<K, Collection<V>>> allOf(Collection<K> keys);
+
+    /**
+     * Returns the value stored under the specified key and subkey.
+     *
+     * @param key    the key
+     * @param subKey the subkey identifying one value in the bucket
+     * @return a future for the value, which is null if there is none
+     */
+    ListenableFuture<V> get(K key, K subKey);
+
     /**
      * Returns true if the specified key exists in the map
      *
@@ -55,4 +74,16 @@ public interface AsyncMultiMap<K, V> {
      * added
      */
     ListenableFuture<Boolean> add(K key, V value);
+
+    /**
+     * Sets the value under the specified subkey of the bucket at the
+     * specified key. Other values in the bucket are left as they are.
+     *
+     * @param key    the key
+     * @param subKey the subkey identifying one value in the bucket
+     * @param value  the value
+     * @return a future containing {@code true} if the value is successfully
+     * set
+     */
+    ListenableFuture<Boolean> put(K key, K subKey, V value);
 }
@@ -3,6 +3,7 @@ package moe.cdn.cweb.dht;
 import java.util.Collection;
 
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Message;
 
 import moe.cdn.cweb.SecurityProtos.Hash;
@@ -18,7 +19,64 @@ public interface CwebMultiMap<V extends Message> extends AsyncMultiMap<Hash, V>
 
     ListenableFuture<Collection<V>> all(CwebId key);
 
+    ListenableFuture<V> get(CwebId key, CwebId subKey);
+
     ListenableFuture<Boolean> put(CwebId key, V value);
 
     ListenableFuture<Boolean> add(CwebId key, V value);
+
+    ListenableFuture<Boolean> put(CwebId key, CwebId subKey, V value);
+
+    /**
+     * Returns the values to which the specified key is mapped that embed a
+     * message. This is matched on the encoded values, before they are
+     * decoded, and may include values that only contain the same bytes, so
+     * callers check the values they get.
+     *
+     * @param key      the key
+     * @param embedded the message, such as the public key of an owner
+     * @return a future for the matching values
+     */
+    ListenableFuture<Collection<V>> allContaining(Hash key, Message embedded);
+
+    /**
+     * Returns the values to which the specified key is mapped as the bytes
+     * they were received as, without decoding them. Signed values are
+     * verified over these, rather than over an encoding of the decoded value.
+     *
+     * @param key the key
+     * @return a future for the encoded values
+     */
+    ListenableFuture<Collection<ByteString>> allEncoded(Hash key);
+
+    /**
+     * Returns the value to which the specified key and subkey are mapped as
+     * the bytes it was received as, without decoding it.
+     *
+     * @param key    the key
+     * @param subKey the subkey
+     * @return a future for the encoded value, or null if there is none
+     */
+    ListenableFuture<ByteString> getEncoded(Hash key, Hash subKey);
+
+    /**
+     * Returns the values to which the specified key is mapped that embed a
+     * message, as the bytes they were received as. As with
+     * {@link #allContaining(Hash, Message)}, callers check the values they
+     * get.
+     *
+     * @param key      the key
+     * @param embedded the message, such as the public key of an owner
+     * @return a future for the matching encoded values
+     */
+    ListenableFuture<Collection<ByteString>> allEncodedContaining(Hash key, Message embedded);
+
+    /**
+     * Returns the number of values to which the specified key is mapped,
+     * without decoding them.
+     *
+     * @param key the key
+     * @return a future for the number of values
+     */
+    ListenableFuture<Integer> count(Hash key);
 }
@@ -1,8 +1,11 @@
 package moe.cdn.cweb.dht;
 
 import java.util.Collection;
+import java.util.Map;
 
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
 
 import moe.cdn.cweb.security.CwebId;
 
@@ -45,6 +48,77 @@ public interface DhtNode<T> {
      */
     ListenableFuture<Collection<T>> getAll(CwebId key);
 
+    /**
+     * Retrieves all values for each of several keys.
+     *
+     * @param keys the keys
+     * @return a future for all values to which each key is mapped, in the
+     * order of {@code keys}
+     * @implSpec Implementations bound the number of lookups in flight at once.
+     * Keys whose lookup fails are left out of the result.
+     */
+    ListenableFuture<Map<CwebId, Collection<T>>> getAll(Collection<CwebId> keys);
+
+    /**
+     * Retrieves the values for the specified key that embed a message, such
+     * as the values carrying a certain public key.
+     *
+     * @param key      the key
+     * @param embedded the message
+     * @return a future for the values to which the specified key is mapped
+     * and whose encoding contains that of {@code embedded}
+     * @implSpec Values are matched on their encoding before they are decoded,
+     * so that the others are never decoded. The match is on bytes only, and
+     * callers should check the values they get.
+     */
+    ListenableFuture<Collection<T>> getAllContaining(CwebId key, Message embedded);
+
+    /**
+     * Retrieves all values for the specified key as the bytes they were
+     * received as, such as for verifying signatures over them.
+     *
+     * @param key the key
+     * @return a future for the encodings of all values to which the specified
+     * key is mapped
+     * @implSpec The values are not decoded.
+     */
+    ListenableFuture<Collection<ByteString>> getAllEncoded(CwebId key);
+
+    /**
+     * Retrieves one value associated with a key and a subkey as the bytes it
+     * was received as.
+     *
+     * @param key    the key
+     * @param subKey the subkey
+     * @return a future for the encoding of the value to which the specified
+     * key-subkey is mapped, or null if there is none
+     * @implSpec The value is not decoded.
+     */
+    ListenableFuture<ByteString> getOneEncoded(CwebId key, CwebId subKey);
+
+    /**
+     * Retrieves the values for the specified key that embed a message as the
+     * bytes they were received as.
+     *
+     * @param key      the key
+     * @param embedded the message
+     * @return a future for the encodings of the values to which the specified
+     * key is mapped and that contain that of {@code embedded}
+     * @implSpec As with {@link #getAllContaining(CwebId, Message)}, the match
+     * is on bytes only. The values are not decoded.
+     */
+    ListenableFuture<Collection<ByteString>> getAllEncodedContaining(CwebId key,
+                                                                     Message embedded);
+
+    /**
+     * Counts the values for the specified key.
+     *
+     * @param key the key
+     * @return a future for the number of values to which the key is mapped
+     * @implSpec The values are not decoded.
+     */
+    ListenableFuture<Integer> count(CwebId key);
+
     /**
      * Adds the specified value into the bucket at the specified key.
      *
@@ -64,4 +138,18 @@ public interface DhtNode<T> {
      * set to the mapping
      */
     ListenableFuture<Boolean> put(CwebId key, T t);
+
+    /**
+     * Sets the value stored under a key and a subkey, leaving the other values
+     * under the key untouched.
+     *
+     * @param key    the key
+     * @param subKey the subkey
+     * @param t      the value
+     * @return a future containing {@code true} if the value is successfully
+     * stored
+     * @implSpec As with {@link #getOne(CwebId, CwebId)}, the {@code subKey} is
+     * the key for the value stored on the node responsible for {@code key}.
+     */
+    ListenableFuture<Boolean> put(CwebId key, CwebId subKey, T t);
 }
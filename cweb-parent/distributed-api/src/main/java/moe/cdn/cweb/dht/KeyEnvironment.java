@@ -3,6 +3,7 @@ package moe.cdn.cweb.dht;
 import java.util.NoSuchElementException;
 
 import moe.cdn.cweb.SecurityProtos.KeyPair;
+import moe.cdn.cweb.security.utils.MessageSigner;
 
 public interface KeyEnvironment extends Iterable<KeyPair> {
     /**
@@ -12,4 +13,16 @@ public interface KeyEnvironment extends Iterable<KeyPair> {
      * @throws NoSuchElementException if no key pair is default
      */
     KeyPair getKeyPair();
+
+    /**
+     * Returns a signer for the current {@link KeyPair}. This creates a new
+     * signer every time; environments should override it to keep one per
+     * identity, so that its private key is decoded once.
+     *
+     * @return signer of the key pair being used
+     * @throws NoSuchElementException if no key pair is default
+     */
+    default MessageSigner getSigner() {
+        return MessageSigner.forKeyPair(getKeyPair());
+    }
 }
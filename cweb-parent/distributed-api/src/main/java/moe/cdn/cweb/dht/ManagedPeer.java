@@ -15,6 +15,8 @@ public interface ManagedPeer extends Shutdownable {
      * disables replication.
      *
      * @param replicationFactor non-negative integer value
+     * @return a future that completes once the data stored on this peer is
+     * replicated that many times
      * @throws IllegalArgumentException if the replicationFactor is negative
      */
     ListenableFuture<Void> setReplication(int replicationFactor);
@@ -1,8 +1,17 @@
 package moe.cdn.cweb.dht.security;
 
+import java.util.BitSet;
+import java.util.Collection;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
 import moe.cdn.cweb.TorrentTrustProtos.SignedUser;
 import moe.cdn.cweb.TorrentTrustProtos.SignedVote;
 import moe.cdn.cweb.TorrentTrustProtos.SignedVoteHistory;
+import moe.cdn.cweb.TorrentTrustProtos.User;
+import moe.cdn.cweb.TorrentTrustProtos.Vote;
+import moe.cdn.cweb.TorrentTrustProtos.VoteHistory;
+import moe.cdn.cweb.security.utils.SignedMessage;
 
 public interface CwebSignatureValidationService extends SignatureValidationService {
 
@@ -14,6 +23,52 @@ public interface CwebSignatureValidationService extends SignatureValidationServi
      */
     boolean validateVote(SignedVote signedVote);
 
+    /**
+     * Validates a signed vote against the bytes it was received as
+     *
+     * @param signedVote
+     * @return indicator boolean of whether the vote is authentic
+     */
+    boolean validateVote(SignedMessage<Vote> signedVote);
+
+    /**
+     * Validates a batch of signed votes, spreading the work over several
+     * threads when the batch is large enough
+     *
+     * @param signedVotes
+     * @return bitmap in which bit {@code i} is set if and only if the
+     * {@code i}th vote in iteration order is authentic
+     */
+    BitSet validateAll(Collection<SignedVote> signedVotes);
+
+    /**
+     * Validates a batch of signed votes against the bytes they were received
+     * as, spreading the work over several threads when the batch is large
+     * enough
+     *
+     * @param signedVotes
+     * @return bitmap in which bit {@code i} is set if and only if the
+     * {@code i}th vote in iteration order is authentic
+     */
+    BitSet validateAllReceived(Collection<SignedMessage<Vote>> signedVotes);
+
+    /**
+     * Validates a signed vote without blocking on a lookup of its owner
+     *
+     * @param signedVote
+     * @return future of whether the vote is authentic
+     */
+    ListenableFuture<Boolean> validateVoteAsync(SignedVote signedVote);
+
+    /**
+     * Validates a signed vote against the bytes it was received as without
+     * blocking on a lookup of its owner
+     *
+     * @param signedVote
+     * @return future of whether the vote is authentic
+     */
+    ListenableFuture<Boolean> validateVoteAsync(SignedMessage<Vote> signedVote);
+
     /**
      * Validates a signed user to make sure it's authentic
      *
@@ -22,6 +77,14 @@ public interface CwebSignatureValidationService extends SignatureValidationServi
      */
     boolean validateUser(SignedUser signedUser);
 
+    /**
+     * Validates a signed user against the bytes it was received as
+     *
+     * @param signedUser
+     * @return indicator boolean of whether the user is authentic
+     */
+    boolean validateUser(SignedMessage<User> signedUser);
+
 
     /**
      * Validates a signed vote history to make sure it's authentic
@@ -30,4 +93,31 @@ public interface CwebSignatureValidationService extends SignatureValidationServi
      * @return indicator boolean of whether the vote history object is authentic
      */
     boolean validateVoteHistory(SignedVoteHistory signedVoteHistory);
+
+    /**
+     * Validates a signed vote history against the bytes it was received as
+     *
+     * @param signedVoteHistory
+     * @return indicator boolean of whether the vote history object is authentic
+     */
+    boolean validateVoteHistory(SignedMessage<VoteHistory> signedVoteHistory);
+
+    /**
+     * Validates a signed vote history without blocking on a lookup of its
+     * owner
+     *
+     * @param signedVoteHistory
+     * @return future of whether the vote history object is authentic
+     */
+    ListenableFuture<Boolean> validateVoteHistoryAsync(SignedVoteHistory signedVoteHistory);
+
+    /**
+     * Validates a signed vote history against the bytes it was received as
+     * without blocking on a lookup of its owner
+     *
+     * @param signedVoteHistory
+     * @return future of whether the vote history object is authentic
+     */
+    ListenableFuture<Boolean> validateVoteHistoryAsync(
+            SignedMessage<VoteHistory> signedVoteHistory);
 }
@@ -1,7 +1,14 @@
 package moe.cdn.cweb.dht.security;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import moe.cdn.cweb.SecurityProtos.Hash;
@@ -19,6 +26,39 @@ public interface KeyLookupService {
      */
     ListenableFuture<Optional<SignedUser>> findOwner(Key publicKey);
 
+    /**
+     * Finds the owners of several keys at once. By default each key is looked
+     * up on its own with {@link #findOwner(Key)}.
+     *
+     * @param publicKeys
+     * @return future producing either a user record or nothing for each key,
+     * in the order of {@code publicKeys}. Keys that could not be looked up, or
+     * that have multiple users, are left out.
+     */
+    default ListenableFuture<Map<Key, Optional<SignedUser>>> findOwners(
+            Collection<Key> publicKeys) {
+        List<Key> keys = new ArrayList<>(publicKeys);
+        List<ListenableFuture<Optional<SignedUser>>> owners = new ArrayList<>(keys.size());
+        for (Key key : keys) {
+            try {
+                owners.add(findOwner(key));
+            } catch (KeyLookupServiceException e) {
+                owners.add(Futures.immediateFailedFuture(e));
+            }
+        }
+        // Failed lookups come back as null
+        return Futures.transform(Futures.successfulAsList(owners),
+                (Function<List<Optional<SignedUser>>, Map<Key, Optional<SignedUser>>>) found -> {
+                    Map<Key, Optional<SignedUser>> byKey = new LinkedHashMap<>();
+                    for (int i = 0; i < keys.size(); i++) {
+                        if (found.get(i) != null) {
+                            byKey.put(keys.get(i), found.get(i));
+                        }
+                    }
+                    return byKey;
+                });
+    }
+
     /**
      * Finds all keys that hash to the provided hash
      *
@@ -1,7 +1,10 @@
 package moe.cdn.cweb.dht.security;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Message;
 
+import moe.cdn.cweb.SecurityProtos.Key;
 import moe.cdn.cweb.SecurityProtos.Signature;
 import moe.cdn.cweb.TorrentTrustProtos;
 
@@ -39,6 +42,19 @@ public interface SignatureValidationService {
      */
     boolean validateSelfSigned(Signature signature, TorrentTrustProtos.User user, byte[] data);
 
+    /**
+     * Affirms that the signature is owned by the user and that the signature
+     * signs the data, without copying the data.
+     *
+     * @param signature the signature protobuf
+     * @param user      the user that owns the signature
+     * @param data      the data to validate, such as the bytes a signed
+     *                  message was received as
+     * @return {@code true} if the message is signed by the signature
+     */
+    boolean validateSelfSigned(Signature signature, TorrentTrustProtos.User user,
+            ByteString data);
+
     /**
      * Validates that the signature's public key exists in the trust network,
      * the signature is owned by the user, and that the signature signs the
@@ -50,4 +66,62 @@ public interface SignatureValidationService {
      */
     boolean validateAndCheckSignatureKeyInNetwork(Signature signature, byte[] data);
 
+    /**
+     * Version of {@link #validateAndCheckSignatureKeyInNetwork(Signature, byte[])}
+     * that does not copy the data.
+     *
+     * @param signature the signature protobuf
+     * @param data      the data to validate, such as the bytes a signed
+     *                  message was received as
+     * @return {@code true} if the message is signed by the signature
+     */
+    boolean validateAndCheckSignatureKeyInNetwork(Signature signature, ByteString data);
+
+    /**
+     * Asynchronous version of
+     * {@link #validateAndCheckSignatureKeyInNetwork(Signature, byte[])}. If
+     * the owner of the signature's public key is already known locally, the
+     * returned future is already done; otherwise it completes once the owner
+     * has been looked up in the network.
+     *
+     * @param signature the signature protobuf
+     * @param data      the data to validate
+     * @return future of {@code true} if the message is signed by the signature
+     */
+    ListenableFuture<Boolean> validateAndCheckSignatureKeyInNetworkAsync(Signature signature,
+            byte[] data);
+
+    /**
+     * Asynchronous version of
+     * {@link #validateAndCheckSignatureKeyInNetwork(Signature, ByteString)}.
+     *
+     * @param signature the signature protobuf
+     * @param data      the data to validate
+     * @return future of {@code true} if the message is signed by the signature
+     * @see #validateAndCheckSignatureKeyInNetworkAsync(Signature, byte[])
+     */
+    ListenableFuture<Boolean> validateAndCheckSignatureKeyInNetworkAsync(Signature signature,
+            ByteString data);
+
+    /**
+     * Asynchronous version of
+     * {@link #validateAndCheckSignatureKeyInNetwork(Signature, Message)}.
+     *
+     * @param signature the signature protobuf
+     * @param message   the protobuf to validate
+     * @return future of {@code true} if the message is signed by the signature
+     * @see #validateAndCheckSignatureKeyInNetworkAsync(Signature, byte[])
+     */
+    ListenableFuture<Boolean> validateAndCheckSignatureKeyInNetworkAsync(Signature signature,
+            Message message);
+
+    /**
+     * Checks whether the owner of a public key is known locally, that is,
+     * whether validating a signature made with it can be done without a
+     * network lookup.
+     *
+     * @param publicKey the public key
+     * @return {@code true} if the owner of the key is known
+     */
+    boolean isOwnerKnown(Key publicKey);
 }
@@ -0,0 +1,334 @@
+package moe.cdn.cweb.dht;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+
+import moe.cdn.cweb.SecurityProtos.Hash;
+import moe.cdn.cweb.security.CwebId;
+
+/**
+ * {@link CwebMultiMap} that remembers what it reads from another one for a
+ * while, so that lookups repeated by the UI do not each go through the
+ * network.
+ * <p>
+ * The results of {@code get}, {@code getEncoded}, {@code all} and
+ * {@code allEncoded} are kept for
+ * a fixed time after they are requested, for a bounded number of keys. A
+ * lookup of a key that is already in flight shares the request that is
+ * running. Failed lookups, and lookups that find nothing, are not kept, so
+ * a record is seen as soon as it is written. Batches read the keys that are
+ * not cached in one batch of the delegate, and cache what it finds for each
+ * key. Puts and adds made through this map invalidate the key they write to,
+ * in this map and in the maps registered with {@link #invalidatesAlso}, both
+ * when they start and when they finish, so a lookup that races with the write
+ * does not keep the old value. Writes made by other peers are seen once the
+ * cached result expires.
+ */
+class CachingCwebMultiMap<V extends Message> implements CwebMultiMap<V> {
+    static final long DEFAULT_MAXIMUM_SIZE = 1 << 12;
+
+    private final CwebMultiMap<V> delegate;
+    private final Function<Hash, CwebId> keyReducer;
+    private final Cache<ValueKey, ListenableFuture<V>> values;
+    private final Cache<ValueKey, ListenableFuture<ByteString>> encodedValues;
+    private final Cache<CwebId, ListenableFuture<Collection<V>>> buckets;
+    private final Cache<CwebId, ListenableFuture<Collection<ByteString>>> encodedBuckets;
+    private final List<CachingCwebMultiMap<V>> alsoInvalidated = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param delegate    map to read through to
+     * @param keyReducer  reduces hashes to keys the same way the delegate does
+     * @param ttl         how long to keep a result
+     * @param unit        unit of {@code ttl}
+     * @param maximumSize maximum number of results of each kind to keep
+     */
+    CachingCwebMultiMap(CwebMultiMap<V> delegate, Function<Hash, CwebId> keyReducer, long ttl,
+                        TimeUnit unit, long maximumSize) {
+        this.delegate = delegate;
+        this.keyReducer = keyReducer;
+        this.values = CacheBuilder.newBuilder().expireAfterWrite(ttl, unit)
+                .maximumSize(maximumSize).recordStats().build();
+        this.encodedValues = CacheBuilder.newBuilder().expireAfterWrite(ttl, unit)
+                .maximumSize(maximumSize).recordStats().build();
+        this.buckets = CacheBuilder.newBuilder().expireAfterWrite(ttl, unit)
+                .maximumSize(maximumSize).recordStats().build();
+        this.encodedBuckets = CacheBuilder.newBuilder().expireAfterWrite(ttl, unit)
+                .maximumSize(maximumSize).recordStats().build();
+    }
+
+    @Override
+    public ListenableFuture<V> get(Hash key) {
+        return get(keyReducer.apply(key));
+    }
+
+    @Override
+    public ListenableFuture<V> get(CwebId key) {
+        return cached(values, new ValueKey(key, null), () -> delegate.get(key));
+    }
+
+    @Override
+    public ListenableFuture<V> get(Hash key, Hash subKey) {
+        return get(keyReducer.apply(key), keyReducer.apply(subKey));
+    }
+
+    @Override
+    public ListenableFuture<V> get(CwebId key, CwebId subKey) {
+        return cached(values, new ValueKey(key, subKey), () -> delegate.get(key, subKey));
+    }
+
+    @Override
+    public ListenableFuture<Collection<V>> all(Hash key) {
+        return all(keyReducer.apply(key));
+    }
+
+    @Override
+    public ListenableFuture<Collection<V>> all(CwebId key) {
+        return cached(buckets, key, () -> delegate.all(key));
+    }
+
+    @Override
+    public ListenableFuture<Map<Hash, Collection<V>>> allOf(Collection<Hash> keys) {
+        List<Hash> order = new ArrayList<>(new LinkedHashSet<>(keys));
+        Map<Hash, ListenableFuture<Collection<V>>> lookups = new HashMap<>();
+        List<Hash> missing = new ArrayList<>();
+        for (Hash key : order) {
+            ListenableFuture<Collection<V>> cachedBucket =
+                    buckets.getIfPresent(keyReducer.apply(key));
+            if (cachedBucket != null) {
+                lookups.put(key, cachedBucket);
+            } else {
+                missing.add(key);
+            }
+        }
+        if (!missing.isEmpty()) {
+            ListenableFuture<Map<Hash, Collection<V>>> batch = delegate.allOf(missing);
+            for (Hash key : missing) {
+                // A key left out of the batch fails, so that it is not cached
+                ListenableFuture<Collection<V>> bucket = Futures.transform(batch,
+                        (Map<Hash, Collection<V>> found) -> {
+                            if (!found.containsKey(key)) {
+                                throw new IllegalStateException("Lookup in batch failed");
+                            }
+                            return found.get(key);
+                        });
+                lookups.put(key, cached(buckets, keyReducer.apply(key), () -> bucket));
+            }
+        }
+        return Futures.transform(Futures.successfulAsList(
+                order.stream().map(lookups::get).collect(Collectors.toList())),
+                (List<Collection<V>> found) -> {
+                    Map<Hash, Collection<V>> result = new LinkedHashMap<>();
+                    for (int i = 0; i < order.size(); i++) {
+                        if (found.get(i) != null) {
+                            result.put(order.get(i), found.get(i));
+                        }
+                    }
+                    return result;
+                });
+    }
+
+    @Override
+    public ListenableFuture<Collection<V>> allContaining(Hash key, Message embedded) {
+        // Filtered reads are not cached, since each filter would need its own
+        // entry
+        return delegate.allContaining(key, embedded);
+    }
+
+    @Override
+    public ListenableFuture<Collection<ByteString>> allEncoded(Hash key) {
+        return cached(encodedBuckets, keyReducer.apply(key), () -> delegate.allEncoded(key));
+    }
+
+    @Override
+    public ListenableFuture<ByteString> getEncoded(Hash key, Hash subKey) {
+        CwebId id = keyReducer.apply(key);
+        CwebId subId = keyReducer.apply(subKey);
+        return cached(encodedValues, new ValueKey(id, subId),
+                () -> delegate.getEncoded(key, subKey));
+    }
+
+    @Override
+    public ListenableFuture<Collection<ByteString>> allEncodedContaining(Hash key,
+                                                                        Message embedded) {
+        return delegate.allEncodedContaining(key, embedded);
+    }
+
+    @Override
+    public ListenableFuture<Integer> count(Hash key) {
+        ListenableFuture<Collection<V>> cachedBucket = buckets.getIfPresent(keyReducer.apply(key));
+        if (cachedBucket != null) {
+            return Futures.transform(cachedBucket, Collection::size);
+        }
+        return delegate.count(key);
+    }
+
+    @Override
+    public ListenableFuture<Boolean> containsKey(Hash key) {
+        return Futures.transform(get(key), Objects::nonNull);
+    }
+
+    @Override
+    public ListenableFuture<Boolean> put(Hash key, V value) {
+        return put(keyReducer.apply(key), value);
+    }
+
+    @Override
+    public ListenableFuture<Boolean> put(CwebId key, V value) {
+        return invalidating(key, () -> delegate.put(key, value));
+    }
+
+    @Override
+    public ListenableFuture<Boolean> put(Hash key, Hash subKey, V value) {
+        return put(keyReducer.apply(key), keyReducer.apply(subKey), value);
+    }
+
+    @Override
+    public ListenableFuture<Boolean> put(CwebId key, CwebId subKey, V value) {
+        return invalidating(key, () -> delegate.put(key, subKey, value));
+    }
+
+    @Override
+    public ListenableFuture<Boolean> add(Hash key, V value) {
+        return add(keyReducer.apply(key), value);
+    }
+
+    @Override
+    public ListenableFuture<Boolean> add(CwebId key, V value) {
+        return invalidating(key, () -> delegate.add(key, value));
+    }
+
+    /**
+     * Makes writes through this map also invalidate another map that reads
+     * the same records, such as one reading them through a different peer.
+     */
+    void invalidatesAlso(CachingCwebMultiMap<V> other) {
+        alsoInvalidated.add(other);
+    }
+
+    /**
+     * Forgets everything cached under a key, including values under its
+     * subkeys.
+     */
+    void invalidate(CwebId key) {
+        values.asMap().keySet().removeIf(valueKey -> valueKey.key.equals(key));
+        encodedValues.asMap().keySet().removeIf(valueKey -> valueKey.key.equals(key));
+        buckets.invalidate(key);
+        encodedBuckets.invalidate(key);
+    }
+
+    CacheStats valueStats() {
+        return values.stats();
+    }
+
+    CacheStats bucketStats() {
+        return buckets.stats();
+    }
+
+    CacheStats encodedBucketStats() {
+        return encodedBuckets.stats();
+    }
+
+    private ListenableFuture<Boolean> invalidating(CwebId key,
+                                                   Supplier<ListenableFuture<Boolean>> write) {
+        invalidateEverywhere(key);
+        ListenableFuture<Boolean> result = write.get();
+        result.addListener(() -> invalidateEverywhere(key), MoreExecutors.directExecutor());
+        return result;
+    }
+
+    private void invalidateEverywhere(CwebId key) {
+        invalidate(key);
+        for (CachingCwebMultiMap<V> other : alsoInvalidated) {
+            other.invalidate(key);
+        }
+    }
+
+    private static <K, T> ListenableFuture<T> cached(Cache<K, ListenableFuture<T>> cache, K key,
+                                                     Supplier<ListenableFuture<T>> lookup) {
+        ListenableFuture<T> future;
+        try {
+            future = cache.get(key, () -> {
+                ListenableFuture<T> loaded = lookup.get();
+                loaded.addListener(() -> {
+                    if (!isFound(loaded)) {
+                        cache.asMap().remove(key, loaded);
+                    }
+                }, MoreExecutors.directExecutor());
+                return loaded;
+            });
+        } catch (ExecutionException e) {
+            return Futures.immediateFailedFuture(e.getCause());
+        }
+        // A lookup that finished straight away did so before it was cached
+        if (future.isDone() && !isFound(future)) {
+            cache.asMap().remove(key, future);
+        }
+        return future;
+    }
+
+    /**
+     * @param future a future that is done
+     * @return whether the lookup succeeded and found a value or a non-empty
+     * bucket
+     */
+    private static boolean isFound(ListenableFuture<?> future) {
+        if (future.isCancelled()) {
+            return false;
+        }
+        Object found;
+        try {
+            found = Futures.getDone(future);
+        } catch (ExecutionException e) {
+            return false;
+        }
+        return found != null && !(found instanceof Collection && ((Collection<?>) found).isEmpty());
+    }
+
+    /**
+     * A key, and the subkey of a single value in its bucket or null.
+     */
+    private static final class ValueKey {
+        private final CwebId key;
+        private final CwebId subKey;
+
+        ValueKey(CwebId key, CwebId subKey) {
+            this.key = key;
+            this.subKey = subKey;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ValueKey)) {
+                return false;
+            }
+            ValueKey other = (ValueKey) obj;
+            return key.equals(other.key) && Objects.equals(subKey, other.subKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * key.hashCode() + Objects.hashCode(subKey);
+        }
+    }
+}
@@ -1,16 +1,26 @@
 package moe.cdn.cweb.dht;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
 
 import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Message;
 import com.google.protobuf.Parser;
 
 import moe.cdn.cweb.dht.internal.CwebGetResults;
 import moe.cdn.cweb.dht.internal.CwebNode;
 import moe.cdn.cweb.dht.internal.CwebPutResults;
+import moe.cdn.cweb.dht.internal.DecodingExecutor;
 import moe.cdn.cweb.dht.internal.ManagedPeerDhtPeer;
 import moe.cdn.cweb.security.CwebId;
 import net.tomp2p.peers.Number160;
@@ -20,12 +30,19 @@ import net.tomp2p.peers.Number160;
  */
 class CwebDhtNodeFactory implements DhtNodeFactory {
 
+    private final DecodingExecutor decodingExecutor;
+
+    @Inject
+    public CwebDhtNodeFactory(DecodingExecutor decodingExecutor) {
+        this.decodingExecutor = checkNotNull(decodingExecutor);
+    }
+
     @Override
     public <T extends Message> ManagedDhtNode<T> create(ManagedPeerDhtPeer self,
                                                         String domainKey,
                                                         Parser<T> messageParser) {
-        return new AsCwebManagedDhtNode<>(
-                new CwebNode<>(self, Number160.createHash(domainKey), messageParser));
+        return new AsCwebManagedDhtNode<>(new CwebNode<>(self, Number160.createHash(domainKey),
+                messageParser, decodingExecutor, CwebNode.DEFAULT_MAX_BATCH_IN_FLIGHT));
     }
 
     private static class AsCwebManagedDhtNode<T extends Message> implements ManagedDhtNode<T> {
@@ -57,6 +74,51 @@ class CwebDhtNodeFactory implements DhtNodeFactory {
                             CwebGetResults::all);
         }
 
+        @Override
+        public ListenableFuture<Map<CwebId, Collection<T>>> getAll(Collection<CwebId> keys) {
+            return Futures.transform(cwebNode.all(keys),
+                    (Function<Map<CwebId, CwebGetResults<T>>, Map<CwebId, Collection<T>>>)
+                            results -> new LinkedHashMap<>(
+                                    Maps.transformValues(results, CwebGetResults::all)));
+        }
+
+        @Override
+        public ListenableFuture<Collection<T>> getAllContaining(CwebId key, Message embedded) {
+            ByteString fragment = embedded.toByteString();
+            return Futures.transform(cwebNode.all(key),
+                    (Function<CwebGetResults<T>, Collection<T>>)
+                            results -> results.containing(fragment).all());
+        }
+
+        @Override
+        public ListenableFuture<Collection<ByteString>> getAllEncoded(CwebId key) {
+            return Futures.transform(cwebNode.all(key),
+                    (Function<CwebGetResults<T>, Collection<ByteString>>)
+                            CwebGetResults::encoded);
+        }
+
+        @Override
+        public ListenableFuture<ByteString> getOneEncoded(CwebId key, CwebId subKey) {
+            return Futures.transform(cwebNode.get(key, subKey),
+                    (Function<CwebGetResults<T>, ByteString>)
+                            results -> Iterables.getFirst(results.encoded(), null));
+        }
+
+        @Override
+        public ListenableFuture<Collection<ByteString>> getAllEncodedContaining(CwebId key,
+                                                                            Message embedded) {
+            ByteString fragment = embedded.toByteString();
+            return Futures.transform(cwebNode.all(key),
+                    (Function<CwebGetResults<T>, Collection<ByteString>>)
+                            results -> results.containing(fragment).encoded());
+        }
+
+        @Override
+        public ListenableFuture<Integer> count(CwebId key) {
+            return Futures.transform(cwebNode.all(key),
+                    (Function<CwebGetResults<T>, Integer>) CwebGetResults::size);
+        }
+
         @Override
         public ListenableFuture<Boolean> add(CwebId key, T t) {
             return Futures.transform(cwebNode.add(key, t), CwebPutResults::ok);
@@ -67,6 +129,11 @@ class CwebDhtNodeFactory implements DhtNodeFactory {
             return Futures.transform(cwebNode.put(key, t), CwebPutResults::ok);
         }
 
+        @Override
+        public ListenableFuture<Boolean> put(CwebId key, CwebId subKey, T t) {
+            return Futures.transform(cwebNode.put(key, subKey, t), CwebPutResults::ok);
+        }
+
         @Override
         public ListenableFuture<Void> shutdown() {
             return cwebNode.shutdown();
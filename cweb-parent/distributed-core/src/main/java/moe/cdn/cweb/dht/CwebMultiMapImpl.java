@@ -1,14 +1,18 @@
 package moe.cdn.cweb.dht;
 
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
 import java.util.function.BiPredicate;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import javax.inject.Inject;
 
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Message;
 
 import moe.cdn.cweb.SecurityProtos.Hash;
@@ -39,6 +43,16 @@ class CwebMultiMapImpl<V extends Message> implements CwebMultiMap<V> {
         return collection.getOne(key);
     }
 
+    @Override
+    public ListenableFuture<V> get(Hash key, Hash subKey) {
+        return get(keyReducer.apply(key), keyReducer.apply(subKey));
+    }
+
+    @Override
+    public ListenableFuture<V> get(CwebId key, CwebId subKey) {
+        return collection.getOne(key, subKey);
+    }
+
     @Override
     public ListenableFuture<Collection<V>> all(CwebId key) {
         return collection.getAll(key);
@@ -49,6 +63,51 @@ class CwebMultiMapImpl<V extends Message> implements CwebMultiMap<V> {
         return collection.getAll(keyReducer.apply(key));
     }
 
+    @Override
+    public ListenableFuture<Map<Hash, Collection<V>>> allOf(Collection<Hash> keys) {
+        Map<Hash, CwebId> ids = new LinkedHashMap<>();
+        for (Hash key : keys) {
+            ids.put(key, keyReducer.apply(key));
+        }
+        return Futures.transform(
+                collection.getAll(ids.values().stream().distinct().collect(Collectors.toList())),
+                (Map<CwebId, Collection<V>> values) -> {
+                    Map<Hash, Collection<V>> result = new LinkedHashMap<>();
+                    ids.forEach((key, id) -> {
+                        if (values.containsKey(id)) {
+                            result.put(key, values.get(id));
+                        }
+                    });
+                    return result;
+                });
+    }
+
+    @Override
+    public ListenableFuture<Collection<V>> allContaining(Hash key, Message embedded) {
+        return collection.getAllContaining(keyReducer.apply(key), embedded);
+    }
+
+    @Override
+    public ListenableFuture<Collection<ByteString>> allEncoded(Hash key) {
+        return collection.getAllEncoded(keyReducer.apply(key));
+    }
+
+    @Override
+    public ListenableFuture<ByteString> getEncoded(Hash key, Hash subKey) {
+        return collection.getOneEncoded(keyReducer.apply(key), keyReducer.apply(subKey));
+    }
+
+    @Override
+    public ListenableFuture<Collection<ByteString>> allEncodedContaining(Hash key,
+                                                                        Message embedded) {
+        return collection.getAllEncodedContaining(keyReducer.apply(key), embedded);
+    }
+
+    @Override
+    public ListenableFuture<Integer> count(Hash key) {
+        return collection.count(keyReducer.apply(key));
+    }
+
     @Override
     public ListenableFuture<Boolean> containsKey(Hash key) {
         return Futures.transform(get(key), Objects::nonNull);
@@ -64,6 +123,16 @@ class CwebMultiMapImpl<V extends Message> implements CwebMultiMap<V> {
         return collection.put(key, value);
     }
 
+    @Override
+    public ListenableFuture<Boolean> put(Hash key, Hash subKey, V value) {
+        return put(keyReducer.apply(key), keyReducer.apply(subKey), value);
+    }
+
+    @Override
+    public ListenableFuture<Boolean> put(CwebId key, CwebId subKey, V value) {
+        return collection.put(key, subKey, value);
+    }
+
     @Override
     public ListenableFuture<Boolean> add(Hash key, V value) {
         return collection.add(keyReducer.apply(key), value);
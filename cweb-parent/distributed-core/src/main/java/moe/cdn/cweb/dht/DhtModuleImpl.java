@@ -2,6 +2,7 @@ package moe.cdn.cweb.dht;
 
 import java.io.IOException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiPredicate;
 import java.util.function.Function;
 
@@ -15,11 +16,13 @@ import org.apache.logging.log4j.Logger;
 import com.google.inject.Key;
 import com.google.inject.Provides;
 import com.google.inject.TypeLiteral;
+import com.google.protobuf.Message;
 
 import moe.cdn.cweb.SecurityProtos.Hash;
 import moe.cdn.cweb.TorrentTrustProtos.SignedUser;
 import moe.cdn.cweb.TorrentTrustProtos.SignedVote;
 import moe.cdn.cweb.TorrentTrustProtos.SignedVoteHistory;
+import moe.cdn.cweb.dht.internal.DecodingExecutor;
 import moe.cdn.cweb.dht.internal.ManagedPeerDhtPeer;
 import moe.cdn.cweb.dht.security.DhtSecurityModule;
 import moe.cdn.cweb.dht.spi.DhtModule;
@@ -30,7 +33,22 @@ import moe.cdn.cweb.security.CwebMisc;
 import net.tomp2p.peers.Number160;
 
 public class DhtModuleImpl extends DhtModule {
+    /**
+     * How DHT responses are decoded: {@code BOUNDED} (the default) or
+     * {@code VIRTUAL}. See {@link DecodingExecutor.Mode}.
+     */
+    public static final String DECODING_MODE_PROPERTY = "moe.cdn.cweb.dht.decoding.mode";
+    public static final String DECODING_THREADS_PROPERTY = "moe.cdn.cweb.dht.decoding.threads";
+    public static final String DECODING_QUEUE_CAPACITY_PROPERTY =
+            "moe.cdn.cweb.dht.decoding.queueCapacity";
+    private static final int DEFAULT_DECODING_QUEUE_CAPACITY = 1024;
+
     private static final Logger logger = LogManager.getLogger();
+    // How long lookups are cached in each domain: users change rarely, while
+    // votes and vote histories change whenever someone votes
+    private static final long USER_CACHE_TTL_SECONDS = 300;
+    private static final long VOTE_CACHE_TTL_SECONDS = 30;
+    private static final long VOTE_HISTORY_CACHE_TTL_SECONDS = 30;
 
     @Provides
     @Singleton
@@ -91,10 +109,18 @@ public class DhtModuleImpl extends DhtModule {
     @Provides
     @Singleton
     @UserDomain
-    static CwebMultiMap<SignedUser> provideHashSignedUserCwebMap(
+    static CachingCwebMultiMap<SignedUser> provideCachingSignedUserCwebMap(
             CwebMapFactory<SignedUser> cwebMapFactory, ManagedDhtNode<SignedUser> dhtNodeUser) {
-        return cwebMapFactory.create(dhtNodeUser, CwebMisc.CWEB_ID_REDUCER,
-                CwebMisc.HASH_SIGNED_USER_BI_PREDICATE);
+        return cached(cwebMapFactory.create(dhtNodeUser, CwebMisc.CWEB_ID_REDUCER,
+                CwebMisc.HASH_SIGNED_USER_BI_PREDICATE), USER_CACHE_TTL_SECONDS);
+    }
+
+    @Provides
+    @Singleton
+    @UserDomain
+    static CwebMultiMap<SignedUser> provideHashSignedUserCwebMap(
+            @UserDomain CachingCwebMultiMap<SignedUser> userMap) {
+        return userMap;
     }
 
     @Provides
@@ -102,8 +128,8 @@ public class DhtModuleImpl extends DhtModule {
     @VoteDomain
     static CwebMultiMap<SignedVote> provideHashSignedVoteCwebMap(
             CwebMapFactory<SignedVote> cwebMapFactory, ManagedDhtNode<SignedVote> dhtNodeVote) {
-        return cwebMapFactory.create(dhtNodeVote, CwebMisc.CWEB_ID_REDUCER,
-                CwebMisc.HASH_SIGNED_VOTE_BI_PREDICATE);
+        return cached(cwebMapFactory.create(dhtNodeVote, CwebMisc.CWEB_ID_REDUCER,
+                CwebMisc.HASH_SIGNED_VOTE_BI_PREDICATE), VOTE_CACHE_TTL_SECONDS);
     }
 
     @Provides
@@ -112,8 +138,8 @@ public class DhtModuleImpl extends DhtModule {
     static CwebMultiMap<SignedVoteHistory> provideHashSignedVoteHistoryCwebMap(
             CwebMapFactory<SignedVoteHistory> cwebMapFactory,
             ManagedDhtNode<SignedVoteHistory> dhtNodeVote) {
-        return cwebMapFactory.create(dhtNodeVote, CwebMisc.CWEB_ID_REDUCER,
-                CwebMisc.HASH_SIGNED_VOTE_HISTORY_BI_PREDICATE);
+        return cached(cwebMapFactory.create(dhtNodeVote, CwebMisc.CWEB_ID_REDUCER,
+                CwebMisc.HASH_SIGNED_VOTE_HISTORY_BI_PREDICATE), VOTE_HISTORY_CACHE_TTL_SECONDS);
     }
 
     @Provides
@@ -121,9 +147,35 @@ public class DhtModuleImpl extends DhtModule {
     @KeyLookup
     static CwebMultiMap<SignedUser> provideKeyLookupCwebMap(
             CwebMapFactory<SignedUser> cwebMapFactory,
-            @KeyLookup ManagedDhtNode<SignedUser> dhtNodeUser) {
-        return cwebMapFactory.create(dhtNodeUser, CwebMisc.CWEB_ID_REDUCER,
-                CwebMisc.HASH_SIGNED_USER_BI_PREDICATE);
+            @KeyLookup ManagedDhtNode<SignedUser> dhtNodeUser,
+            @UserDomain CachingCwebMultiMap<SignedUser> userMap) {
+        CachingCwebMultiMap<SignedUser> keyLookupMap = cached(cwebMapFactory.create(dhtNodeUser,
+                CwebMisc.CWEB_ID_REDUCER, CwebMisc.HASH_SIGNED_USER_BI_PREDICATE),
+                USER_CACHE_TTL_SECONDS);
+        // Owners are looked up through the other peer, so users imported
+        // here must not stay cached there as they were
+        userMap.invalidatesAlso(keyLookupMap);
+        return keyLookupMap;
+    }
+
+    private static <V extends Message> CachingCwebMultiMap<V> cached(CwebMultiMap<V> map,
+                                                                     long ttlSeconds) {
+        return new CachingCwebMultiMap<>(map, CwebMisc.CWEB_ID_REDUCER, ttlSeconds,
+                TimeUnit.SECONDS, CachingCwebMultiMap.DEFAULT_MAXIMUM_SIZE);
+    }
+
+    @Provides
+    @Singleton
+    static DecodingExecutor provideDecodingExecutor() {
+        DecodingExecutor executor = DecodingExecutor.create(
+                DecodingExecutor.Mode.valueOf(System.getProperty(DECODING_MODE_PROPERTY,
+                        DecodingExecutor.Mode.BOUNDED.name())),
+                Integer.getInteger(DECODING_THREADS_PROPERTY,
+                        Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger(DECODING_QUEUE_CAPACITY_PROPERTY,
+                        DEFAULT_DECODING_QUEUE_CAPACITY));
+        logger.debug("Decoding DHT responses in {} mode", executor.getMode());
+        return executor;
     }
 
     @Provides
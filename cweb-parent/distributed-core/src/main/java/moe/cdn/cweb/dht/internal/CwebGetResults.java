@@ -1,14 +1,54 @@
 package moe.cdn.cweb.dht.internal;
 
 import java.util.Collection;
+import java.util.stream.Stream;
 
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Message;
 
 /**
+ * Values found by a lookup. Values are kept as the bytes they were received
+ * as, and are only decoded when they are asked for; values that cannot be
+ * decoded are skipped.
+ *
  * @author davix
  */
 public interface CwebGetResults<T extends Message> {
+    /**
+     * Decodes all values.
+     */
     Collection<T> all();
 
     T one();
+
+    /**
+     * @return number of values, counted without decoding them
+     */
+    int size();
+
+    /**
+     * @return the values, each decoded as the stream reaches it
+     */
+    Stream<T> stream();
+
+    /**
+     * @return the values as the bytes they were received as, without
+     * decoding them, including ones that cannot be decoded
+     */
+    Collection<ByteString> encoded();
+
+    /**
+     * Narrows the results to the values whose encoding contains some bytes,
+     * without decoding any of them. This is meant for finding the values that
+     * embed a message, such as the votes carrying an owner's public key or an
+     * object's hash, by the encoding of that message.
+     * <p>
+     * This is a filter on the bytes only: it keeps values that contain them
+     * in any other field, and misses values from writers that encode the
+     * embedded message differently. Callers check the values they decode.
+     *
+     * @param fragment the bytes
+     * @return a view of the matching values
+     */
+    CwebGetResults<T> containing(ByteString fragment);
 }
@@ -1,19 +1,22 @@
 package moe.cdn.cweb.dht.internal;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.google.protobuf.Parser;
+import com.google.protobuf.UnsafeByteOperations;
 
 import moe.cdn.cweb.dht.internal.tomp2pcompat.GetResponse;
 import moe.cdn.cweb.dht.internal.tomp2pcompat.GetResponseWrapper;
-import net.tomp2p.peers.Number640;
 import net.tomp2p.storage.Data;
 
 /**
@@ -24,37 +27,82 @@ public class CwebGetResultsImpl<T extends Message> extends GetResponseWrapper
     Logger logger = LogManager.getLogger();
 
     private Parser<T> messageParser;
+    // Null if every value is included
+    private final Predicate<byte[]> filter;
 
     CwebGetResultsImpl(Parser<T> messageParser, GetResponse getResponse) {
+        this(messageParser, getResponse, null);
+    }
+
+    private CwebGetResultsImpl(Parser<T> messageParser, GetResponse getResponse,
+                               Predicate<byte[]> filter) {
         super(getResponse);
         this.messageParser = messageParser;
+        this.filter = filter;
     }
 
     @Override
     public Collection<T> all() {
-        Map<Number640, Data> dataMap = dataMap();
-        Collection<T> result = new ArrayList<>(dataMap.size());
-        for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
-            try {
-                result.add(messageParser.parseFrom(entry.getValue().toBytes()));
-            } catch (InvalidProtocolBufferException e) {
-                logger.warn(new InvalidProtocolBufferMessage(e));
-            }
-        }
-        return result;
+        return stream().collect(Collectors.toList());
     }
 
     @Override
     public T one() {
-        Data data = data();
-        if (data == null) {
-            return null;
+        if (filter == null) {
+            Data data = data();
+            return data == null ? null : decode(data.toBytes());
         }
+        return stream().findFirst().orElse(null);
+    }
+
+    @Override
+    public int size() {
+        return filter == null ? dataMap().size() : (int) values().count();
+    }
+
+    @Override
+    public Stream<T> stream() {
+        return values().map(this::decode).filter(Objects::nonNull);
+    }
+
+    @Override
+    public Collection<ByteString> encoded() {
+        // The arrays are copies that nothing else holds on to
+        return values().map(UnsafeByteOperations::unsafeWrap).collect(Collectors.toList());
+    }
+
+    @Override
+    public CwebGetResults<T> containing(ByteString fragment) {
+        byte[] needle = fragment.toByteArray();
+        Predicate<byte[]> contains = bytes -> indexOf(bytes, needle) >= 0;
+        return new CwebGetResultsImpl<>(messageParser, this,
+                filter == null ? contains : filter.and(contains));
+    }
+
+    private Stream<byte[]> values() {
+        Stream<byte[]> values = dataMap().values().stream().map(Data::toBytes);
+        return filter == null ? values : values.filter(filter);
+    }
+
+    private T decode(byte[] bytes) {
         try {
-            return messageParser.parseFrom(data.toBytes());
+            return messageParser.parseFrom(bytes);
         } catch (InvalidProtocolBufferException e) {
             logger.warn(new InvalidProtocolBufferMessage(e));
             return null;
         }
     }
+
+    static int indexOf(byte[] haystack, byte[] needle) {
+        outer:
+        for (int i = 0; i <= haystack.length - needle.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (haystack[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
 }
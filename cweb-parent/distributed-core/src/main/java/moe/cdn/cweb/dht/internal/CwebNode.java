@@ -1,12 +1,28 @@
 package moe.cdn.cweb.dht.internal;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.Message;
 import com.google.protobuf.Parser;
 
@@ -21,65 +37,196 @@ import net.tomp2p.dht.FutureGet;
 import net.tomp2p.dht.FuturePut;
 import net.tomp2p.dht.PeerDHT;
 import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.storage.Data;
 
 /**
  * Entry point for DHT operations. This is a wrapper around a {@link PeerDHT}.
+ * <p>
+ * Concurrent lookups of the same location and content key share a single
+ * tomp2p request: a lookup that arrives while an identical one is in flight
+ * gets the same results once it finishes. Cancelling the future of one caller
+ * does not cancel the request for the others.
+ * <p>
+ * Batches of lookups keep a bounded number of requests in flight, and
+ * interleave the keys by the peer responsible for them so that the requests
+ * in flight are spread over the network.
  *
  * @author davix
  */
 public class CwebNode<T extends Message> implements Shutdownable {
-    // the use of the executor is a tomp2p workaround
-    private static final Executor EXECUTOR = ForkJoinPool.commonPool();
+    public static final int DEFAULT_MAX_BATCH_IN_FLIGHT = 16;
     private final ManagedPeerDhtPeer self;
     private final Number160 domainKey;
     private final Parser<T> messageParser;
+    // Responses are decoded off the tomp2p threads that complete them; see
+    // DecodingExecutor
+    private final Executor executor;
+    private final int maxBatchInFlight;
+    private final ConcurrentMap<LookupKey, ListenableFuture<CwebGetResults<T>>> inFlight =
+            new ConcurrentHashMap<>();
+    private final AtomicLong lookupsStarted = new AtomicLong();
+    private final AtomicLong lookupsCoalesced = new AtomicLong();
 
     // See http://lists.tomp2p.net/pipermail/users/2013-July/000266.html for an
     // explanation of
     // terms "location key", "domain key", and "content key".
 
     public CwebNode(ManagedPeerDhtPeer self, Number160 domainKey, Parser<T> messageParser) {
+        this(self, domainKey, messageParser, DEFAULT_MAX_BATCH_IN_FLIGHT);
+    }
+
+    public CwebNode(ManagedPeerDhtPeer self, Number160 domainKey, Parser<T> messageParser,
+                    int maxBatchInFlight) {
+        this(self, domainKey, messageParser, ForkJoinPool.commonPool(), maxBatchInFlight);
+    }
+
+    /**
+     * @param executor         executor to decode responses on
+     * @param maxBatchInFlight maximum number of requests that one batch of
+     *                         lookups keeps in flight
+     */
+    public CwebNode(ManagedPeerDhtPeer self, Number160 domainKey, Parser<T> messageParser,
+                    Executor executor, int maxBatchInFlight) {
+        if (maxBatchInFlight < 1) {
+            throw new IllegalArgumentException("maxBatchInFlight must be positive");
+        }
         this.self = self;
         this.domainKey = domainKey;
         this.messageParser = messageParser;
+        this.executor = executor;
+        this.maxBatchInFlight = maxBatchInFlight;
     }
 
     public ListenableFuture<CwebGetResults<T>> all(CwebId key) {
-        FutureGetWrapper f = new FutureGetWrapper(startAllData(Number160s.fromCwebId(key)));
-        return Futures.transform(f,
-                (Function<GetResponse, CwebGetResultsImpl<T>>) r -> new CwebGetResultsImpl<T>(
-                        messageParser, r),
-                EXECUTOR);
+        Number160 locationKey = Number160s.fromCwebId(key);
+        return coalesce(new LookupKey(locationKey, null), () -> startAllData(locationKey));
+    }
+
+    /**
+     * Looks up everything under each of several keys. A new request is only
+     * started once one of the batch finishes, so at most a fixed number are in
+     * flight at a time. tomp2p routes each location key separately, so there
+     * is one request per key; the keys are taken in turn from the peers
+     * closest to them, so that a batch does not queue up on one peer.
+     *
+     * @param keys the keys
+     * @return a future for the results of each key, in the order of
+     * {@code keys}; keys whose lookup failed are left out
+     */
+    public ListenableFuture<Map<CwebId, CwebGetResults<T>>> all(Collection<CwebId> keys) {
+        List<CwebId> distinctKeys = new ArrayList<>(new LinkedHashSet<>(keys));
+        return new BatchLookup(distinctKeys, interleaveByClosestPeer(distinctKeys)).start();
+    }
+
+    private List<CwebId> interleaveByClosestPeer(List<CwebId> keys) {
+        Map<PeerAddress, List<CwebId>> groups = new LinkedHashMap<>();
+        for (CwebId key : keys) {
+            groups.computeIfAbsent(closestPeer(Number160s.fromCwebId(key)),
+                    peer -> new ArrayList<>()).add(key);
+        }
+        List<Iterator<CwebId>> byPeer = new ArrayList<>();
+        groups.values().forEach(group -> byPeer.add(group.iterator()));
+        List<CwebId> interleaved = new ArrayList<>(keys.size());
+        while (!byPeer.isEmpty()) {
+            for (Iterator<Iterator<CwebId>> it = byPeer.iterator(); it.hasNext(); ) {
+                Iterator<CwebId> group = it.next();
+                interleaved.add(group.next());
+                if (!group.hasNext()) {
+                    it.remove();
+                }
+            }
+        }
+        return interleaved;
+    }
+
+    /**
+     * Finds the peer that a lookup of a location key is expected to end at,
+     * from the peers this node knows of.
+     *
+     * @return the closest known peer, or this node if it knows of none
+     */
+    protected PeerAddress closestPeer(Number160 locationKey) {
+        NavigableSet<PeerAddress> closePeers =
+                self.getUnmanaged().peer().peerBean().peerMap().closePeers(locationKey, 1);
+        return closePeers.isEmpty() ? self.getRawAddress() : closePeers.first();
     }
 
     public ListenableFuture<CwebGetResults<T>> get(CwebId key) {
-        FutureGetWrapper f = new FutureGetWrapper(startGetData(Number160s.fromCwebId(key)));
-        return Futures.transform(f,
-                (Function<GetResponse, CwebGetResultsImpl<T>>) r -> new CwebGetResultsImpl<T>(
-                        messageParser, r),
-                EXECUTOR);
+        Number160 locationKey = Number160s.fromCwebId(key);
+        return coalesce(new LookupKey(locationKey, Number160.ZERO),
+                () -> startGetData(locationKey));
     }
 
     public ListenableFuture<CwebGetResults<T>> get(CwebId key, CwebId subKey) {
-        FutureGetWrapper f = new FutureGetWrapper(
-                startGetData(Number160s.fromCwebId(key), Number160s.fromCwebId(subKey)));
-        return Futures.transform(f,
-                (Function<GetResponse, CwebGetResultsImpl<T>>) r -> new CwebGetResultsImpl<T>(
-                        messageParser, r),
-                EXECUTOR);
+        Number160 locationKey = Number160s.fromCwebId(key);
+        Number160 contentKey = Number160s.fromCwebId(subKey);
+        return coalesce(new LookupKey(locationKey, contentKey),
+                () -> startGetData(locationKey, contentKey));
+    }
+
+    /**
+     * Joins the lookup in flight for a key, or starts one.
+     */
+    private ListenableFuture<CwebGetResults<T>> coalesce(LookupKey key,
+                                                         Supplier<FutureGet> start) {
+        boolean[] started = new boolean[1];
+        ListenableFuture<CwebGetResults<T>> future = inFlight.computeIfAbsent(key, k -> {
+            started[0] = true;
+            FutureGetWrapper f = new FutureGetWrapper(start.get());
+            return Futures.transform(f,
+                    (Function<GetResponse, CwebGetResults<T>>) r -> new CwebGetResultsImpl<T>(
+                            messageParser, r),
+                    executor);
+        });
+        if (started[0]) {
+            lookupsStarted.incrementAndGet();
+            future.addListener(() -> inFlight.remove(key, future), MoreExecutors.directExecutor());
+        } else {
+            lookupsCoalesced.incrementAndGet();
+        }
+        return Futures.nonCancellationPropagating(future);
+    }
+
+    /**
+     * @return number of lookups that started a tomp2p request
+     */
+    public long getLookupsStarted() {
+        return lookupsStarted.get();
+    }
+
+    /**
+     * @return number of lookups that joined a request already in flight
+     */
+    public long getLookupsCoalesced() {
+        return lookupsCoalesced.get();
     }
 
     public ListenableFuture<CwebPutResults> add(CwebId key, T t) {
         FuturePutWrapper f = new FuturePutWrapper(startAddData(Number160s.fromCwebId(key), t));
-        return Futures.transform(f,
-                (Function<PutResponse, CwebPutResultsImpl>) CwebPutResultsImpl::new, EXECUTOR);
+        return putResults(f);
     }
 
     public ListenableFuture<CwebPutResults> put(CwebId key, T t) {
         FuturePutWrapper f = new FuturePutWrapper(startPutData(Number160s.fromCwebId(key), t));
+        return putResults(f);
+    }
+
+    public ListenableFuture<CwebPutResults> put(CwebId key, CwebId subKey, T t) {
+        FuturePutWrapper f = new FuturePutWrapper(
+                startPutData(Number160s.fromCwebId(key), Number160s.fromCwebId(subKey), t));
+        return putResults(f);
+    }
+
+    /**
+     * Wraps the response of a put. Nothing is decoded, so this is not run on
+     * the decoding executor, which would report a put that was already made
+     * as failed when its queue is full.
+     */
+    private static ListenableFuture<CwebPutResults> putResults(FuturePutWrapper f) {
         return Futures.transform(f,
-                (Function<PutResponse, CwebPutResultsImpl>) CwebPutResultsImpl::new, EXECUTOR);
+                (Function<PutResponse, CwebPutResults>) CwebPutResultsImpl::new,
+                MoreExecutors.directExecutor());
     }
 
     /**
@@ -132,8 +279,134 @@ public class CwebNode<T extends Message> implements Shutdownable {
                 .data(new Data(t.toByteArray())).start();
     }
 
+    /**
+     * Starts a computation to put new data under a specified content key.
+     *
+     * @param t the data
+     * @return a {@link FuturePut} computation
+     */
+    protected FuturePut startPutData(Number160 locationKey, Number160 contentKey, T t) {
+        return self.getUnmanaged().put(locationKey).domainKey(domainKey)
+                .data(contentKey, new Data(t.toByteArray())).start();
+    }
+
     @Override
     public ListenableFuture<Void> shutdown() {
         return self.shutdown();
     }
+
+    /**
+     * A batch of lookups in progress, which starts the lookup of another key
+     * each time one finishes.
+     */
+    private final class BatchLookup {
+        private final List<CwebId> keys;
+        private final Iterator<CwebId> pending;
+        private final Map<CwebId, CwebGetResults<T>> results = new ConcurrentHashMap<>();
+        private final SettableFuture<Map<CwebId, CwebGetResults<T>>> result =
+                SettableFuture.create();
+        private int inFlight;
+        private boolean starting;
+
+        /**
+         * @param keys       the keys, in the order of the results
+         * @param issueOrder the keys, in the order to look them up
+         */
+        BatchLookup(List<CwebId> keys, List<CwebId> issueOrder) {
+            this.keys = keys;
+            this.pending = issueOrder.iterator();
+        }
+
+        ListenableFuture<Map<CwebId, CwebGetResults<T>>> start() {
+            startLookups(false);
+            return result;
+        }
+
+        /**
+         * Starts lookups until the batch has as many in flight as it may. A
+         * lookup that finishes while lookups are being started leaves
+         * starting the next one to the loop already running, so lookups that
+         * are done as soon as they start, such as immediate failures, do not
+         * add to the stack.
+         *
+         * @param finished whether this is called because a lookup finished
+         */
+        private void startLookups(boolean finished) {
+            synchronized (this) {
+                if (finished) {
+                    inFlight--;
+                }
+                if (starting) {
+                    return;
+                }
+                starting = true;
+            }
+            while (true) {
+                CwebId key;
+                synchronized (this) {
+                    // Stop once the caller cancels the batch
+                    if (result.isDone() || inFlight >= maxBatchInFlight) {
+                        starting = false;
+                        return;
+                    }
+                    if (!pending.hasNext()) {
+                        starting = false;
+                        if (inFlight == 0) {
+                            Map<CwebId, CwebGetResults<T>> ordered = new LinkedHashMap<>();
+                            for (CwebId k : keys) {
+                                if (results.containsKey(k)) {
+                                    ordered.put(k, results.get(k));
+                                }
+                            }
+                            result.set(ordered);
+                        }
+                        return;
+                    }
+                    key = pending.next();
+                    inFlight++;
+                }
+                Futures.addCallback(all(key), new FutureCallback<CwebGetResults<T>>() {
+                    @Override
+                    public void onSuccess(CwebGetResults<T> getResults) {
+                        results.put(key, getResults);
+                        startLookups(true);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        startLookups(true);
+                    }
+                }, MoreExecutors.directExecutor());
+            }
+        }
+    }
+
+    /**
+     * Location key and content key of a lookup; the content key is null for
+     * a lookup of everything under the location key.
+     */
+    private static final class LookupKey {
+        private final Number160 locationKey;
+        private final Number160 contentKey;
+
+        LookupKey(Number160 locationKey, Number160 contentKey) {
+            this.locationKey = locationKey;
+            this.contentKey = contentKey;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof LookupKey)) {
+                return false;
+            }
+            LookupKey other = (LookupKey) obj;
+            return locationKey.equals(other.locationKey)
+                    && Objects.equals(contentKey, other.contentKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * locationKey.hashCode() + Objects.hashCode(contentKey);
+        }
+    }
 }
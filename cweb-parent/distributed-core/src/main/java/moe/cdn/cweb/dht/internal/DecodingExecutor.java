@@ -0,0 +1,191 @@
+package moe.cdn.cweb.dht.internal;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Executor that {@link CwebNode} decodes DHT responses on. tomp2p completes
+ * its futures on its own network threads, which must not run anything that
+ * could block on another DHT request, so the decoding and everything chained
+ * after it is moved off them.
+ * <p>
+ * Tasks run either on a fixed number of threads behind a bounded queue, or on
+ * a new virtual thread each where the JDK has them. When the queue is full,
+ * tasks are rejected rather than run on the network thread that submitted
+ * them or on a shared pool. A future transformed on this executor then fails
+ * with the {@link RejectedExecutionException}, so lookups are shed under load
+ * instead of piling up.
+ */
+public final class DecodingExecutor implements Executor {
+    private static final Logger logger = LogManager.getLogger();
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * How tasks are run.
+     */
+    public enum Mode {
+        /**
+         * On a fixed number of threads behind a bounded queue.
+         */
+        BOUNDED,
+        /**
+         * On a new virtual thread each. Falls back to {@link #BOUNDED} on JDKs
+         * without virtual threads.
+         */
+        VIRTUAL
+    }
+
+    private final ExecutorService delegate;
+    private final Mode mode;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    private DecodingExecutor(ExecutorService delegate, Mode mode) {
+        this.delegate = delegate;
+        this.mode = mode;
+    }
+
+    /**
+     * @param threads       number of threads
+     * @param queueCapacity number of tasks that can wait for a thread before
+     *                      further tasks are rejected
+     */
+    public static DecodingExecutor bounded(int threads, int queueCapacity) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("dht-decoding-%d")
+                        .build(),
+                new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return new DecodingExecutor(pool, Mode.BOUNDED);
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread per task, or a bounded
+     * one if the JDK does not support virtual threads.
+     *
+     * @param threads       number of threads to fall back to
+     * @param queueCapacity queue capacity to fall back to
+     */
+    public static DecodingExecutor virtualThreadPerTask(int threads, int queueCapacity) {
+        try {
+            // Looked up reflectively so that this still builds for Java 8
+            ExecutorService virtual = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            return new DecodingExecutor(virtual, Mode.VIRTUAL);
+        } catch (NoSuchMethodException | IllegalAccessException
+                | InvocationTargetException e) {
+            logger.warn("Virtual threads are not available, decoding on {} threads", threads);
+            return bounded(threads, queueCapacity);
+        }
+    }
+
+    public static DecodingExecutor create(Mode mode, int threads, int queueCapacity) {
+        return mode == Mode.VIRTUAL ? virtualThreadPerTask(threads, queueCapacity)
+                : bounded(threads, queueCapacity);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        long submitted = System.nanoTime();
+        queued.incrementAndGet();
+        Runnable task = () -> {
+            queued.decrementAndGet();
+            active.incrementAndGet();
+            try {
+                command.run();
+            } finally {
+                active.decrementAndGet();
+                long latency = System.nanoTime() - submitted;
+                completed.increment();
+                totalLatencyNanos.add(latency);
+                maxLatencyNanos.accumulateAndGet(latency, Math::max);
+            }
+        };
+        try {
+            delegate.execute(task);
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return how tasks are actually run, which is {@link Mode#BOUNDED} if
+     * virtual threads were asked for but are not available
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return number of tasks waiting to start
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * @return number of tasks running
+     */
+    public int getActiveThreads() {
+        return active.get();
+    }
+
+    /**
+     * @return number of tasks that were rejected because the queue was full
+     */
+    public long getRejectedTasks() {
+        return rejected.get();
+    }
+
+    /**
+     * @return number of tasks finished
+     */
+    public long getCompletedTasks() {
+        return completed.sum();
+    }
+
+    /**
+     * @return mean time from submitting a task to finishing it, in
+     * nanoseconds, or 0 if none has finished
+     */
+    public long getMeanTaskLatencyNanos() {
+        long count = completed.sum();
+        return count == 0 ? 0 : totalLatencyNanos.sum() / count;
+    }
+
+    /**
+     * @return longest time from submitting a task to finishing it, in
+     * nanoseconds
+     */
+    public long getMaxTaskLatencyNanos() {
+        return maxLatencyNanos.get();
+    }
+
+    /**
+     * Stops accepting tasks; tasks submitted afterwards are rejected.
+     */
+    public void shutdown() {
+        delegate.shutdown();
+    }
+}
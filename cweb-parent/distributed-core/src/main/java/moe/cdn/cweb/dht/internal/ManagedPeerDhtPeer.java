@@ -5,6 +5,7 @@ import java.net.InetSocketAddress;
 import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
@@ -43,11 +44,13 @@ public class ManagedPeerDhtPeer implements ManagedPeer {
     private final PeerDHT peerDht;
     private final DhtPeerAddress address;
     private Optional<IndirectReplication> replication;
+    private Optional<ReplicationManager> replicationManager;
 
     public ManagedPeerDhtPeer(PeerDHT peerDht) {
         this.peerDht = peerDht;
         this.address = dhtPeerAddressFromPeerAddress(peerDht.peerAddress());
         this.replication = Optional.empty();
+        this.replicationManager = Optional.empty();
     }
 
     /**
@@ -104,29 +107,49 @@ public class ManagedPeerDhtPeer implements ManagedPeer {
         return peerDht;
     }
 
+    /**
+     * Sets the replication factor. The returned future completes once every
+     * key stored on this peer is held by that many peers, or by every peer
+     * known if there are fewer, and fails if that takes longer than
+     * {@link ReplicationManager#DEFAULT_CONVERGENCE_TIMEOUT_SECONDS}.
+     */
     @Override
-    public ListenableFuture<Void> setReplication(int replicationFactor) {
-        // FIXME Make this wait for replication to successfully set
+    public synchronized ListenableFuture<Void> setReplication(int replicationFactor) {
         if (replicationFactor < 0) {
             throw new IllegalArgumentException("replicationFactor must be non-negative.");
         }
         if (replication.isPresent()) {
             if (replication.get().replicationFactor().replicationFactor() == replicationFactor) {
-                return Futures.immediateFuture(null);
+                return replicationManager.get().awaitConvergence();
             }
             replication.get().shutdown();
+            replicationManager.get().shutdown();
         }
         if (replicationFactor > 0) {
             replication = Optional
                     .of(new IndirectReplication(peerDht).replicationFactor(replicationFactor));
             replication.get().start();
-            return Futures.immediateFuture(null);
+            replicationManager =
+                    Optional.of(ReplicationManager.forPeer(peerDht, replicationFactor));
+            ListenableFuture<Void> converged = replicationManager.get().awaitConvergence();
+            replicationManager.get().start(ReplicationManager.DEFAULT_INTERVAL_SECONDS,
+                    TimeUnit.SECONDS);
+            return converged;
         } else {
             replication = Optional.empty();
+            replicationManager = Optional.empty();
             return Futures.immediateFuture(null);
         }
     }
 
+    /**
+     * @return the manager tracking replicas of the keys stored on this peer,
+     * if replication is enabled
+     */
+    public synchronized Optional<ReplicationManager> getReplicationManager() {
+        return replicationManager;
+    }
+
     /**
      * Bootstraps from raw {@link PeerAddress} instead
      *
@@ -208,6 +231,9 @@ public class ManagedPeerDhtPeer implements ManagedPeer {
 
     @Override
     public ListenableFuture<Void> shutdown() {
+        synchronized (this) {
+            replicationManager.ifPresent(ReplicationManager::shutdown);
+        }
         return new BaseFutureAsListenableFuture<Void, BaseFuture>(peerDht.shutdown()) {
             @Override
             protected Void toValueAfterGet() {
@@ -0,0 +1,398 @@
+package moe.cdn.cweb.dht.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import moe.cdn.cweb.dht.internal.tomp2pcompat.BaseFutureAsListenableFuture;
+import net.tomp2p.dht.FutureDigest;
+import net.tomp2p.dht.FuturePut;
+import net.tomp2p.dht.PeerDHT;
+import net.tomp2p.p2p.RequestP2PConfiguration;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.rpc.DigestResult;
+import net.tomp2p.storage.Data;
+
+/**
+ * Tracks how many peers hold each key stored on this peer, and puts the keys
+ * that have too few replicas back into the network. A key here is a location
+ * and domain pair, since cweb stores its records under several domains of the
+ * same location.
+ * <p>
+ * tomp2p's {@code IndirectReplication} moves data when responsibilities
+ * change, but does not say when it is done. This checks the outcome instead:
+ * each round it asks the peers closest to each stored key for a digest of what
+ * they hold under it, which costs hashes rather than data, and counts the
+ * peers that have the key. Keys with fewer replicas than the target are put
+ * again. Digests and puts are throttled so that a round after heavy churn
+ * does not saturate the link.
+ * <p>
+ * The target is capped at the number of peers known plus this one, so that a
+ * small network can converge. {@link #awaitConvergence()} completes after the
+ * first round that finds every key at the target, or fails once its timeout
+ * passes. The backlog and lag report how far behind replication is.
+ */
+public class ReplicationManager {
+    private static final Logger logger = LogManager.getLogger();
+
+    public static final long DEFAULT_INTERVAL_SECONDS = 60;
+    public static final double DEFAULT_BYTES_PER_SECOND = 1 << 20;
+    public static final double DEFAULT_PROBES_PER_SECOND = 50;
+    public static final long DEFAULT_CONVERGENCE_TIMEOUT_SECONDS = 600;
+    private static final long REQUEST_TIMEOUT_SECONDS = 30;
+    // As in tomp2p's default request configuration
+    private static final int DIGEST_MAX_FAILURES = 5;
+    private static final int DIGEST_PARALLEL_DIFF = 3;
+
+    /**
+     * Network operations the manager needs, so that it can be driven without
+     * a network.
+     */
+    interface Transport {
+        /**
+         * @return the location and domain keys stored on this peer
+         */
+        Collection<Number320> localKeys();
+
+        /**
+         * @return number of other peers this peer knows of
+         */
+        int knownPeers();
+
+        /**
+         * @param wanted number of other peers that should hold the key; at
+         *               least that many of the closest peers are asked
+         * @return a future for the number of other peers that hold the key
+         */
+        ListenableFuture<Integer> countReplicas(Number320 key, int wanted);
+
+        /**
+         * @return number of bytes that {@link #replicate(Number320)} sends
+         */
+        long bytesToReplicate(Number320 key);
+
+        /**
+         * Puts what this peer stores under a key into the network again.
+         *
+         * @return a future for whether the put succeeded
+         */
+        ListenableFuture<Boolean> replicate(Number320 key);
+    }
+
+    private final Transport transport;
+    private final int replicationFactor;
+    private final RateLimiter probeLimiter;
+    private final RateLimiter bandwidthLimiter;
+    private final Map<Number320, KeyState> keys = new ConcurrentHashMap<>();
+    private final List<SettableFuture<Void>> convergenceWaiters = new ArrayList<>();
+    private final AtomicLong bytesReplicated = new AtomicLong();
+    private final AtomicLong rounds = new AtomicLong();
+    private final ScheduledExecutorService scheduler;
+    private final ScheduledExecutorService timeouts;
+    private boolean started;
+
+    /**
+     * @param replicationFactor number of peers that should hold each key,
+     *                          including this one
+     * @param bytesPerSecond    bandwidth to spend on putting keys again
+     * @param probesPerSecond   digest requests to send per second
+     */
+    ReplicationManager(Transport transport, int replicationFactor, double bytesPerSecond,
+                       double probesPerSecond) {
+        if (replicationFactor < 1) {
+            throw new IllegalArgumentException("replicationFactor must be positive.");
+        }
+        this.transport = transport;
+        this.replicationFactor = replicationFactor;
+        this.probeLimiter = RateLimiter.create(probesPerSecond);
+        this.bandwidthLimiter = RateLimiter.create(bytesPerSecond);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("replication-%d").build());
+        // A round can take much longer than a timeout, so waiters are timed
+        // out on their own thread
+        this.timeouts = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("replication-timeout-%d").build());
+    }
+
+    /**
+     * Creates a manager for the data stored on a peer.
+     */
+    public static ReplicationManager forPeer(PeerDHT peerDht, int replicationFactor) {
+        return new ReplicationManager(new PeerDhtTransport(peerDht), replicationFactor,
+                DEFAULT_BYTES_PER_SECOND, DEFAULT_PROBES_PER_SECOND);
+    }
+
+    /**
+     * Starts running rounds in the background, the first one straight away.
+     */
+    public synchronized void start(long interval, TimeUnit unit) {
+        if (started) {
+            throw new IllegalStateException("Already started");
+        }
+        started = true;
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                runRound();
+            } catch (RuntimeException e) {
+                logger.error("Replication round failed", e);
+            }
+        }, 0, interval, unit);
+    }
+
+    public synchronized void shutdown() {
+        scheduler.shutdownNow();
+        timeouts.shutdownNow();
+        takeConvergenceWaiters().forEach(waiter -> waiter.cancel(false));
+    }
+
+    /**
+     * Waits for convergence for at most
+     * {@link #DEFAULT_CONVERGENCE_TIMEOUT_SECONDS}.
+     *
+     * @see #awaitConvergence(long, TimeUnit)
+     */
+    public ListenableFuture<Void> awaitConvergence() {
+        return awaitConvergence(DEFAULT_CONVERGENCE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return a future that completes once a round finds every stored key
+     * held by the target number of peers, or fails with a
+     * {@link TimeoutException} if none does within the timeout
+     */
+    public synchronized ListenableFuture<Void> awaitConvergence(long timeout, TimeUnit unit) {
+        if (timeouts.isShutdown()) {
+            return Futures.immediateCancelledFuture();
+        }
+        SettableFuture<Void> waiter = SettableFuture.create();
+        synchronized (convergenceWaiters) {
+            convergenceWaiters.add(waiter);
+        }
+        ScheduledFuture<?> expiry = timeouts.schedule(() -> {
+            waiter.setException(new TimeoutException(
+                    "Replication did not converge within " + timeout + " " + unit));
+        }, timeout, unit);
+        waiter.addListener(() -> {
+            expiry.cancel(false);
+            synchronized (convergenceWaiters) {
+                convergenceWaiters.remove(waiter);
+            }
+        }, MoreExecutors.directExecutor());
+        return waiter;
+    }
+
+    private List<SettableFuture<Void>> takeConvergenceWaiters() {
+        synchronized (convergenceWaiters) {
+            List<SettableFuture<Void>> waiters = new ArrayList<>(convergenceWaiters);
+            convergenceWaiters.clear();
+            return waiters;
+        }
+    }
+
+    /**
+     * Checks every stored key once, and puts the ones with too few replicas
+     * again.
+     */
+    void runRound() {
+        Set<Number320> stored = transport.localKeys().stream().collect(Collectors.toSet());
+        keys.keySet().retainAll(stored);
+        int target = effectiveTarget();
+        for (Number320 key : stored) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            KeyState state = keys.computeIfAbsent(key, k -> new KeyState());
+            probeLimiter.acquire();
+            Integer others = await(transport.countReplicas(key, target - 1), key);
+            if (others == null) {
+                continue;
+            }
+            state.observed(others + 1, target);
+            if (state.replicas < target) {
+                long bytes = transport.bytesToReplicate(key);
+                bandwidthLimiter.acquire((int) Math.max(1, Math.min(bytes, Integer.MAX_VALUE)));
+                if (Boolean.TRUE.equals(await(transport.replicate(key), key))) {
+                    bytesReplicated.addAndGet(bytes);
+                }
+            }
+        }
+        rounds.incrementAndGet();
+        int backlog = getBacklog();
+        logger.debug("Replication round done: {} keys, {} below {} replicas", stored.size(),
+                backlog, target);
+        if (backlog == 0) {
+            takeConvergenceWaiters().forEach(waiter -> waiter.set(null));
+        }
+    }
+
+    private int effectiveTarget() {
+        return Math.min(replicationFactor, transport.knownPeers() + 1);
+    }
+
+    private static <V> V await(ListenableFuture<V> future, Number320 key) {
+        try {
+            return future.get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException | RuntimeException e) {
+            logger.debug("Replication request for {} failed: {}", key, e);
+        }
+        return null;
+    }
+
+    public int getReplicationFactor() {
+        return replicationFactor;
+    }
+
+    /**
+     * @return number of replicas of a key found by the last round that
+     * checked it, including this peer, or 0 if it has not been checked
+     */
+    public int getReplicaCount(Number320 key) {
+        KeyState state = keys.get(key);
+        return state == null ? 0 : state.replicas;
+    }
+
+    /**
+     * @return number of stored keys that the last round found with too few
+     * replicas, or has not checked yet
+     */
+    public int getBacklog() {
+        int target = effectiveTarget();
+        return (int) keys.values().stream().filter(state -> state.replicas < target).count();
+    }
+
+    /**
+     * @return how long the key that has been under-replicated longest has
+     * been so, in milliseconds, or 0 if none is
+     */
+    public long getReplicationLagMillis() {
+        int target = effectiveTarget();
+        OptionalLong oldest = keys.values().stream().filter(state -> state.replicas < target)
+                .mapToLong(state -> state.underReplicatedSince).min();
+        return oldest.isPresent() ? System.currentTimeMillis() - oldest.getAsLong() : 0;
+    }
+
+    /**
+     * @return number of bytes put into the network again
+     */
+    public long getBytesReplicated() {
+        return bytesReplicated.get();
+    }
+
+    /**
+     * @return number of rounds finished
+     */
+    public long getRounds() {
+        return rounds.get();
+    }
+
+    private static final class KeyState {
+        volatile int replicas;
+        volatile long underReplicatedSince = System.currentTimeMillis();
+
+        void observed(int replicas, int target) {
+            if (replicas >= target) {
+                underReplicatedSince = Long.MAX_VALUE;
+            } else if (underReplicatedSince == Long.MAX_VALUE) {
+                underReplicatedSince = System.currentTimeMillis();
+            }
+            this.replicas = replicas;
+        }
+    }
+
+    private static class PeerDhtTransport implements Transport {
+        private final PeerDHT peerDht;
+
+        PeerDhtTransport(PeerDHT peerDht) {
+            this.peerDht = peerDht;
+        }
+
+        @Override
+        public Collection<Number320> localKeys() {
+            return peerDht.storageLayer().get().keySet().stream()
+                    .map(key -> new Number320(key.locationKey(), key.domainKey())).distinct()
+                    .collect(Collectors.toList());
+        }
+
+        @Override
+        public int knownPeers() {
+            return peerDht.peer().peerBean().peerMap().size();
+        }
+
+        @Override
+        public ListenableFuture<Integer> countReplicas(Number320 key, int wanted) {
+            // By default only a few of the closest peers are asked, which
+            // could never find a higher target met
+            RequestP2PConfiguration requests = new RequestP2PConfiguration(Math.max(1, wanted),
+                    DIGEST_MAX_FAILURES, DIGEST_PARALLEL_DIFF);
+            return new BaseFutureAsListenableFuture<Integer, FutureDigest>(peerDht
+                    .digest(key.locationKey()).domainKey(key.domainKey()).all()
+                    .requestP2PConfiguration(requests).start()) {
+                @Override
+                protected Integer toValueAfterGet() {
+                    if (!baseFuture.isSuccess()) {
+                        throw new IllegalStateException(baseFuture.failedReason());
+                    }
+                    int holders = 0;
+                    for (Map.Entry<PeerAddress, DigestResult> digest
+                            : baseFuture.rawDigest().entrySet()) {
+                        if (!digest.getKey().equals(peerDht.peerAddress())
+                                && !digest.getValue().keyDigest().isEmpty()) {
+                            holders++;
+                        }
+                    }
+                    return holders;
+                }
+            };
+        }
+
+        @Override
+        public long bytesToReplicate(Number320 key) {
+            return stored(key).values().stream().mapToLong(Data::length).sum();
+        }
+
+        @Override
+        public ListenableFuture<Boolean> replicate(Number320 key) {
+            return new BaseFutureAsListenableFuture<Boolean, FuturePut>(
+                    peerDht.put(key.locationKey()).dataMap(stored(key)).start()) {
+                @Override
+                protected Boolean toValueAfterGet() {
+                    return baseFuture.isSuccess();
+                }
+            };
+        }
+
+        private NavigableMap<Number640, Data> stored(Number320 key) {
+            return peerDht.storageLayer().get(
+                    new Number640(key, Number160.ZERO, Number160.ZERO),
+                    new Number640(key, Number160.MAX_VALUE, Number160.MAX_VALUE), -1, true);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package moe.cdn.cweb.dht.security;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs a validation over a batch of items on a bounded pool of worker threads.
+ * <p>
+ * The batch is split into contiguous ranges, one per worker, and the calling
+ * thread validates the first range itself. When the pool's queue is full the
+ * caller runs the task instead, so a flood of batches slows the callers down
+ * rather than growing the queue.
+ */
+@Singleton
+public class BatchValidator {
+    private static final Logger logger = LogManager.getLogger();
+    /**
+     * Batches smaller than this many items per worker are not worth handing
+     * off to another thread.
+     */
+    static final int MIN_ITEMS_PER_TASK = 4;
+    private static final int QUEUED_TASKS_PER_THREAD = 4;
+
+    private final int parallelism;
+    private final ThreadPoolExecutor executor;
+
+    @Inject
+    public BatchValidator() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    BatchValidator(int parallelism) {
+        this.parallelism = parallelism;
+        this.executor = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(parallelism * QUEUED_TASKS_PER_THREAD),
+                new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("signature-validation-%d").build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Validates every item in a batch.
+     *
+     * @param items     items to validate
+     * @param validator validation to run on each item
+     * @return bitmap in which bit {@code i} is set if and only if
+     * {@code items.get(i)} is valid. An item whose validation threw is
+     * invalid.
+     */
+    public <T> BitSet validateAll(List<T> items, Predicate<? super T> validator) {
+        int size = items.size();
+        int tasks = Math.min(parallelism, size / MIN_ITEMS_PER_TASK);
+        if (tasks <= 1) {
+            return validateRange(items, validator, 0, size);
+        }
+        int rangeSize = (size + tasks - 1) / tasks;
+        List<Future<BitSet>> futures = new ArrayList<>(tasks - 1);
+        for (int start = rangeSize; start < size; start += rangeSize) {
+            int from = start;
+            int to = Math.min(size, start + rangeSize);
+            futures.add(executor.submit(() -> validateRange(items, validator, from, to)));
+        }
+        BitSet valid = validateRange(items, validator, 0, rangeSize);
+        for (Future<BitSet> future : futures) {
+            try {
+                valid.or(future.get());
+            } catch (InterruptedException e) {
+                // The remaining ranges are left invalid
+                Thread.currentThread().interrupt();
+                futures.forEach(f -> f.cancel(true));
+                logger.warn("Interrupted while validating a batch of {} items", size);
+                break;
+            } catch (ExecutionException e) {
+                logger.catching(e);
+            }
+        }
+        return valid;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static <T> BitSet validateRange(List<T> items, Predicate<? super T> validator,
+            int from, int to) {
+        BitSet valid = new BitSet(to);
+        for (int i = from; i < to; i++) {
+            try {
+                if (validator.test(items.get(i))) {
+                    valid.set(i);
+                }
+            } catch (RuntimeException e) {
+                logger.catching(e);
+            }
+        }
+        return valid;
+    }
+}
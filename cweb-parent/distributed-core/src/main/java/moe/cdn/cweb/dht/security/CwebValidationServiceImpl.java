@@ -1,18 +1,39 @@
 package moe.cdn.cweb.dht.security;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 
 import javax.inject.Inject;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 import moe.cdn.cweb.TorrentTrustProtos.SignedUser;
 import moe.cdn.cweb.TorrentTrustProtos.SignedVote;
 import moe.cdn.cweb.TorrentTrustProtos.SignedVoteHistory;
+import moe.cdn.cweb.TorrentTrustProtos.User;
+import moe.cdn.cweb.TorrentTrustProtos.Vote;
+import moe.cdn.cweb.TorrentTrustProtos.VoteHistory;
+import moe.cdn.cweb.security.utils.SignedMessage;
 
 class CwebValidationServiceImpl extends SignatureValidationServiceImpl
         implements CwebSignatureValidationService {
 
-    @Inject
+    private final BatchValidator batchValidator;
+
     public CwebValidationServiceImpl(KeyLookupService userKeyService) {
-        super(userKeyService);
+        this(userKeyService, new SignatureVerificationCache(), new BatchValidator());
+    }
+
+    @Inject
+    public CwebValidationServiceImpl(KeyLookupService userKeyService,
+            SignatureVerificationCache verificationCache,
+            BatchValidator batchValidator) {
+        super(userKeyService, verificationCache);
+        this.batchValidator = checkNotNull(batchValidator);
     }
 
     @Override
@@ -24,16 +45,83 @@ class CwebValidationServiceImpl extends SignatureValidationServiceImpl
                 signedVote.getVote());
     }
 
+    @Override
+    public boolean validateVote(SignedMessage<Vote> signedVote) {
+        return signedVote.getMessage().getOwnerPublicKey()
+                .equals(signedVote.getSignature().getPublicKey())
+                && validateAndCheckSignatureKeyInNetwork(signedVote.getSignature(),
+                signedVote.getMessageBytes());
+    }
+
+    @Override
+    public ListenableFuture<Boolean> validateVoteAsync(SignedVote signedVote) {
+        // must check that the owner of the vote is owner of the signature
+        if (!signedVote.getVote().getOwnerPublicKey()
+                .equals(signedVote.getSignature().getPublicKey())) {
+            return Futures.immediateFuture(false);
+        }
+        return validateAndCheckSignatureKeyInNetworkAsync(signedVote.getSignature(),
+                signedVote.getVote());
+    }
+
+    @Override
+    public ListenableFuture<Boolean> validateVoteAsync(SignedMessage<Vote> signedVote) {
+        if (!signedVote.getMessage().getOwnerPublicKey()
+                .equals(signedVote.getSignature().getPublicKey())) {
+            return Futures.immediateFuture(false);
+        }
+        return validateAndCheckSignatureKeyInNetworkAsync(signedVote.getSignature(),
+                signedVote.getMessageBytes());
+    }
+
+    @Override
+    public BitSet validateAll(Collection<SignedVote> signedVotes) {
+        return batchValidator.validateAll(new ArrayList<SignedVote>(signedVotes),
+                this::validateVote);
+    }
+
+    @Override
+    public BitSet validateAllReceived(Collection<SignedMessage<Vote>> signedVotes) {
+        return batchValidator.validateAll(new ArrayList<SignedMessage<Vote>>(signedVotes),
+                this::validateVote);
+    }
+
     @Override
     public boolean validateUser(SignedUser signedUser) {
         return validateSelfSigned(signedUser.getSignature(), signedUser.getUser(),
                 signedUser.getUser());
     }
 
+    @Override
+    public boolean validateUser(SignedMessage<User> signedUser) {
+        return validateSelfSigned(signedUser.getSignature(), signedUser.getMessage(),
+                signedUser.getMessageBytes());
+    }
+
     @Override
     public boolean validateVoteHistory(SignedVoteHistory signedVoteHistory) {
         return validateAndCheckSignatureKeyInNetwork(signedVoteHistory.getSignature(),
                 signedVoteHistory.getHistory());
     }
 
+    @Override
+    public ListenableFuture<Boolean> validateVoteHistoryAsync(
+            SignedVoteHistory signedVoteHistory) {
+        return validateAndCheckSignatureKeyInNetworkAsync(signedVoteHistory.getSignature(),
+                signedVoteHistory.getHistory());
+    }
+
+    @Override
+    public boolean validateVoteHistory(SignedMessage<VoteHistory> signedVoteHistory) {
+        return validateAndCheckSignatureKeyInNetwork(signedVoteHistory.getSignature(),
+                signedVoteHistory.getMessageBytes());
+    }
+
+    @Override
+    public ListenableFuture<Boolean> validateVoteHistoryAsync(
+            SignedMessage<VoteHistory> signedVoteHistory) {
+        return validateAndCheckSignatureKeyInNetworkAsync(signedVoteHistory.getSignature(),
+                signedVoteHistory.getMessageBytes());
+    }
+
 }
@@ -11,6 +11,8 @@ public class DhtSecurityModule extends AbstractModule {
     @Override
     protected void configure() {
         bind(KeyLookupService.class).to(KeyLookupServiceImpl.class).in(Singleton.class);
+        bind(SignatureVerificationCache.class).in(Singleton.class);
+        bind(BatchValidator.class).in(Singleton.class);
         bind(SignatureValidationService.class).to(SignatureValidationServiceImpl.class)
                 .in(Singleton.class);
         bind(CwebSignatureValidationService.class).to(CwebValidationServiceImpl.class)
@@ -1,6 +1,8 @@
 package moe.cdn.cweb.dht.security;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -42,6 +44,17 @@ class FakeKeyLookupServiceImpl implements KeyLookupService {
         return Futures.immediateFuture(Optional.ofNullable(keyserver.get(publicKey.getHash())));
     }
 
+    @Override
+    public ListenableFuture<Map<Key, Optional<SignedUser>>> findOwners(
+            Collection<Key> publicKeys) {
+        warnDeprecation();
+        Map<Key, Optional<SignedUser>> owners = new LinkedHashMap<>();
+        for (Key publicKey : publicKeys) {
+            owners.put(publicKey, Optional.ofNullable(keyserver.get(publicKey.getHash())));
+        }
+        return Futures.immediateFuture(owners);
+    }
+
     @Override
     public ListenableFuture<Optional<Key>> findKey(Hash keyHash) {
         warnDeprecation();
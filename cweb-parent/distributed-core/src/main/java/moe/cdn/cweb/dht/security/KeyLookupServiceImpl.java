@@ -2,7 +2,12 @@ package moe.cdn.cweb.dht.security;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
@@ -41,21 +46,51 @@ class KeyLookupServiceImpl implements KeyLookupService {
         ListenableFuture<Collection<SignedUser>> signedUsersFuture = keyServiceCwebMapProvider.get()
                 .all(publicKey.getHash());
         return Futures.transform(signedUsersFuture,
-                (Function<Collection<SignedUser>, Optional<SignedUser>>) signedUsers -> {
-                    Collection<SignedUser> records = signedUsers.stream()
-                            .filter(u -> u.getUser().getPublicKey().equals(publicKey))
-                            .collect(Collectors.toList());
-                    if (records.isEmpty()) {
-                        logger.debug("Key owner not found.");
-                        return Optional.empty();
-                    } else if (records.size() > 1) {
-                        throw new KeyLookupServiceException(
-                                "Inconsistent security state. Multiple users with the "
-                                        + "same public key.");
-                    } else {
-                        return Optional.of(Iterables.getOnlyElement(records));
-                    }
-                });
+                (Function<Collection<SignedUser>, Optional<SignedUser>>)
+                        signedUsers -> ownerOf(publicKey, signedUsers));
+    }
+
+    @Override
+    public ListenableFuture<Map<Key, Optional<SignedUser>>> findOwners(
+            Collection<Key> publicKeys) {
+        logger.debug("Looking up owners of {} keys", publicKeys.size());
+        List<Key> keys = new ArrayList<>(new LinkedHashSet<>(publicKeys));
+        return Futures.transform(
+                keyServiceCwebMapProvider.get()
+                        .allOf(keys.stream().map(Key::getHash).collect(Collectors.toList())),
+                (Function<Map<Hash, Collection<SignedUser>>, Map<Key, Optional<SignedUser>>>)
+                        signedUsers -> {
+                            Map<Key, Optional<SignedUser>> owners = new LinkedHashMap<>();
+                            for (Key key : keys) {
+                                if (!signedUsers.containsKey(key.getHash())) {
+                                    continue;
+                                }
+                                try {
+                                    owners.put(key, ownerOf(key, signedUsers.get(key.getHash())));
+                                } catch (KeyLookupServiceException e) {
+                                    logger.warn("Skipping owner of key {}: {}",
+                                            Representations.asString(key), e.getMessage());
+                                }
+                            }
+                            return owners;
+                        });
+    }
+
+    private static Optional<SignedUser> ownerOf(Key publicKey,
+                                                Collection<SignedUser> signedUsers) {
+        Collection<SignedUser> records = signedUsers.stream()
+                .filter(u -> u.getUser().getPublicKey().equals(publicKey))
+                .collect(Collectors.toList());
+        if (records.isEmpty()) {
+            logger.debug("Key owner not found.");
+            return Optional.empty();
+        } else if (records.size() > 1) {
+            throw new KeyLookupServiceException(
+                    "Inconsistent security state. Multiple users with the "
+                            + "same public key.");
+        } else {
+            return Optional.of(Iterables.getOnlyElement(records));
+        }
     }
 
     @Override
@@ -8,37 +8,54 @@ import java.util.concurrent.ExecutionException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Inject;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Message;
 
+import moe.cdn.cweb.SecurityProtos.Key;
 import moe.cdn.cweb.SecurityProtos.Signature;
 import moe.cdn.cweb.TorrentTrustProtos.SignedUser;
 import moe.cdn.cweb.TorrentTrustProtos.User;
 import moe.cdn.cweb.security.exceptions.UnsupportedAlgorithmException;
 import moe.cdn.cweb.security.utils.Representations;
-import moe.cdn.cweb.security.utils.SignatureUtils;
 
 class SignatureValidationServiceImpl implements SignatureValidationService {
 
     private static final Logger logger = LogManager.getLogger();
     private final KeyLookupService userKeyService;
+    private final SignatureVerificationCache verificationCache;
 
-    @Inject
     public SignatureValidationServiceImpl(KeyLookupService userKeyService) {
+        this(userKeyService, new SignatureVerificationCache());
+    }
+
+    @Inject
+    public SignatureValidationServiceImpl(KeyLookupService userKeyService,
+            SignatureVerificationCache verificationCache) {
         this.userKeyService = checkNotNull(userKeyService);
+        this.verificationCache = checkNotNull(verificationCache);
     }
 
     @Override
     public boolean validateSelfSigned(Signature signature, User user, Message message) {
-        return validateSelfSigned(signature, user, message.toByteArray());
+        return validateSelfSigned(signature, user, message.toByteString());
     }
 
     @Override
     public boolean validateSelfSigned(Signature signature, User user, byte[] data) {
-        logger.debug("Validating signature {} owned by {} against <{}>...",
-                Representations.asString(signature), Representations.asString(user),
-                Representations.asString(data));
+        return validateSelfSigned(signature, user, ByteString.copyFrom(data));
+    }
+
+    @Override
+    public boolean validateSelfSigned(Signature signature, User user, ByteString data) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Validating signature {} owned by {} against <{}>...",
+                    Representations.asString(signature), Representations.asString(user),
+                    Representations.asString(data.toByteArray()));
+        }
         switch (signature.getAlgorithm()) {
             case SHA_256_WITH_RSA:
                 // Check matching public keys
@@ -50,7 +67,7 @@ class SignatureValidationServiceImpl implements SignatureValidationService {
                     return false;
                 }
                 // Validate the signature
-                return SignatureUtils.validateMessage(signature, data);
+                return verificationCache.validateMessage(signature, data);
 
             case UNRECOGNIZED:
             default:
@@ -60,6 +77,15 @@ class SignatureValidationServiceImpl implements SignatureValidationService {
 
     @Override
     public boolean validateAndCheckSignatureKeyInNetwork(Signature signature, byte[] data) {
+        return validateAndCheckSignatureKeyInNetwork(signature, ByteString.copyFrom(data));
+    }
+
+    @Override
+    public boolean validateAndCheckSignatureKeyInNetwork(Signature signature, ByteString data) {
+        User knownOwner = verificationCache.knownOwner(signature.getPublicKey());
+        if (knownOwner != null) {
+            return validateSelfSigned(signature, knownOwner, data);
+        }
         ListenableFuture<Optional<SignedUser>> futureOwner =
                 userKeyService.findOwner(signature.getPublicKey());
         Optional<SignedUser> owner;
@@ -74,12 +100,65 @@ class SignatureValidationServiceImpl implements SignatureValidationService {
                     Representations.asString(signature));
             return false;
         }
-        return validateSelfSigned(signature, owner.get().getUser(), data);
+        return validateWithOwner(signature, owner.get().getUser(), data);
+    }
+
+    @Override
+    public ListenableFuture<Boolean> validateAndCheckSignatureKeyInNetworkAsync(
+            Signature signature, byte[] data) {
+        return validateAndCheckSignatureKeyInNetworkAsync(signature, ByteString.copyFrom(data));
+    }
+
+    @Override
+    public ListenableFuture<Boolean> validateAndCheckSignatureKeyInNetworkAsync(
+            Signature signature, ByteString data) {
+        User knownOwner = verificationCache.knownOwner(signature.getPublicKey());
+        if (knownOwner != null) {
+            return Futures.immediateFuture(validateSelfSigned(signature, knownOwner, data));
+        }
+        ListenableFuture<Boolean> validation = Futures.transform(
+                userKeyService.findOwner(signature.getPublicKey()),
+                (Function<Optional<SignedUser>, Boolean>) owner -> {
+                    if (!owner.isPresent()) {
+                        logger.debug("Validation failed. Owner not found for signature: {}",
+                                Representations.asString(signature));
+                        return false;
+                    }
+                    return validateWithOwner(signature, owner.get().getUser(), data);
+                });
+        return Futures.catching(validation, Exception.class,
+                (Function<Exception, Boolean>) e -> {
+                    logger.catching(e);
+                    return false;
+                });
+    }
+
+    @Override
+    public ListenableFuture<Boolean> validateAndCheckSignatureKeyInNetworkAsync(
+            Signature signature, Message message) {
+        return validateAndCheckSignatureKeyInNetworkAsync(signature, message.toByteString());
+    }
+
+    @Override
+    public boolean isOwnerKnown(Key publicKey) {
+        return verificationCache.knownOwner(publicKey) != null;
+    }
+
+    /**
+     * Validates a signature against the owner found in the network, and
+     * remembers the owner if it checks out.
+     */
+    private boolean validateWithOwner(Signature signature, User owner, ByteString data) {
+        boolean valid = validateSelfSigned(signature, owner, data);
+        if (valid) {
+            verificationCache.putOwner(owner);
+        }
+        return valid;
     }
 
     @Override
     public boolean validateAndCheckSignatureKeyInNetwork(Signature signature, Message message) {
-        return validateAndCheckSignatureKeyInNetwork(signature, message.toByteArray());
+        return validateAndCheckSignatureKeyInNetwork(signature, message.toByteString());
     }
 
 }
@@ -0,0 +1,205 @@
+package moe.cdn.cweb.dht.security;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.protobuf.ByteString;
+
+import moe.cdn.cweb.SecurityProtos.Hash;
+import moe.cdn.cweb.SecurityProtos.Key;
+import moe.cdn.cweb.SecurityProtos.Signature;
+import moe.cdn.cweb.TorrentTrustProtos.User;
+import moe.cdn.cweb.security.exceptions.MalformedKeyException;
+import moe.cdn.cweb.security.exceptions.MalformedSignatureException;
+import moe.cdn.cweb.security.utils.HashUtils;
+import moe.cdn.cweb.security.utils.KeyUtils;
+import moe.cdn.cweb.security.utils.SignatureUtils;
+
+/**
+ * Remembers signatures that have been verified, the public keys they were
+ * verified with and the users owning those keys, so that the same immutable
+ * signed record read back from the DHT is not verified again and the owner of
+ * a key does not have to be looked up in the network every time.
+ * <p>
+ * Only successful verifications are remembered. An entry is keyed by a digest
+ * of the signature bytes, the signed bytes and the signing key (its hash
+ * together with its raw bytes), so any change to any of them misses. Public
+ * keys are keyed by {@link Key#getHash()}; a cached key is only used if its
+ * raw bytes match the key being looked up.
+ * <p>
+ * How often each cache is hit can be read from the injected instance.
+ */
+@Singleton
+public class SignatureVerificationCache {
+    private static final Logger logger = LogManager.getLogger();
+    static final long DEFAULT_MAXIMUM_VERIFICATIONS = 1 << 16;
+    static final long DEFAULT_MAXIMUM_PUBLIC_KEYS = 1 << 12;
+    static final long DEFAULT_MAXIMUM_OWNERS = 1 << 12;
+
+    private final Cache<ByteString, Boolean> verified;
+    private final Cache<Hash, ImportedKey> publicKeys;
+    private final Cache<Key, User> owners;
+
+    @Inject
+    public SignatureVerificationCache() {
+        this(DEFAULT_MAXIMUM_VERIFICATIONS, DEFAULT_MAXIMUM_PUBLIC_KEYS,
+                DEFAULT_MAXIMUM_OWNERS);
+    }
+
+    SignatureVerificationCache(long maximumVerifications, long maximumPublicKeys,
+            long maximumOwners) {
+        verified = CacheBuilder.newBuilder().maximumSize(maximumVerifications).recordStats()
+                .build();
+        publicKeys = CacheBuilder.newBuilder().maximumSize(maximumPublicKeys).recordStats()
+                .build();
+        owners = CacheBuilder.newBuilder().maximumSize(maximumOwners).recordStats().build();
+    }
+
+    /**
+     * Validates a byte array against a signature, as
+     * {@link SignatureUtils#validateMessage(Signature, byte[])} does.
+     *
+     * @param signature signature proto
+     * @param message   message byte array to verify
+     * @return boolean indicator of verification success
+     * @throws MalformedSignatureException if the signature does not contain a
+     *                                     public key
+     */
+    public boolean validateMessage(Signature signature, byte[] message) {
+        return validateMessage(signature, ByteBuffer.wrap(message));
+    }
+
+    /**
+     * Validates bytes against a signature without copying them, such as the
+     * bytes a signed message was received as.
+     *
+     * @param signature signature proto
+     * @param message   message bytes to verify
+     * @return boolean indicator of verification success
+     * @throws MalformedSignatureException if the signature does not contain a
+     *                                     public key
+     */
+    public boolean validateMessage(Signature signature, ByteString message) {
+        return validateMessage(signature, message.asReadOnlyByteBuffer());
+    }
+
+    private boolean validateMessage(Signature signature, ByteBuffer message) {
+        if (!signature.hasPublicKey()) {
+            throw new MalformedSignatureException(signature);
+        }
+        ByteString digest = digestOf(signature, message);
+        if (verified.getIfPresent(digest) != null) {
+            return true;
+        }
+        PublicKey publicKey;
+        try {
+            publicKey = importPublicKey(signature.getPublicKey());
+        } catch (MalformedKeyException | IllegalArgumentException e) {
+            logger.catching(Level.DEBUG, e);
+            return false;
+        }
+        boolean valid = SignatureUtils.validateMessage(signature, publicKey, message);
+        if (valid) {
+            verified.put(digest, Boolean.TRUE);
+        }
+        return valid;
+    }
+
+    /**
+     * Imports a public key, reusing a previous import of the same key.
+     *
+     * @param key proto message representing the key
+     * @return the public key
+     * @throws MalformedKeyException    if the key is not encoded in X509 spec
+     * @throws IllegalArgumentException if the key is not a public key
+     */
+    PublicKey importPublicKey(Key key) {
+        ImportedKey imported = publicKeys.getIfPresent(key.getHash());
+        if (imported != null && imported.raw.equals(key.getRaw())) {
+            return imported.publicKey;
+        }
+        PublicKey publicKey = KeyUtils.importPublicKey(key);
+        // A key whose hash does not describe its bytes must not claim the
+        // slot of the key it names
+        if (HashUtils.hashOf(key.getRaw()).equals(key.getHash())) {
+            publicKeys.put(key.getHash(), new ImportedKey(key.getRaw(), publicKey));
+        }
+        return publicKey;
+    }
+
+    /**
+     * @return the owner of the public key if it has been verified before,
+     * otherwise null
+     */
+    User knownOwner(Key publicKey) {
+        return owners.getIfPresent(publicKey);
+    }
+
+    /**
+     * Remembers a user as the verified owner of their public key.
+     */
+    void putOwner(User owner) {
+        owners.put(owner.getPublicKey(), owner);
+    }
+
+    /**
+     * @return hits and misses of remembered signature verifications
+     */
+    public CacheStats verificationStats() {
+        return verified.stats();
+    }
+
+    /**
+     * @return hits and misses of imported public keys
+     */
+    public CacheStats publicKeyStats() {
+        return publicKeys.stats();
+    }
+
+    /**
+     * @return hits and misses of verified key owners
+     */
+    public CacheStats ownerStats() {
+        return owners.stats();
+    }
+
+    private static ByteString digestOf(Signature signature, ByteBuffer message) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Algorithm guaranteed to exist did not.", e);
+        }
+        // Length prefixes keep the boundaries between the parts unambiguous
+        byte[] signatureBytes = signature.getSignature().toByteArray();
+        byte[] key = signature.getPublicKey().toByteArray();
+        md.update(ByteBuffer.allocate(12).putInt(signatureBytes.length)
+                .putInt(message.remaining()).putInt(key.length).array());
+        md.update(signatureBytes);
+        md.update(message.duplicate());
+        md.update(key);
+        return ByteString.copyFrom(md.digest());
+    }
+
+    private static final class ImportedKey {
+        private final ByteString raw;
+        private final PublicKey publicKey;
+
+        private ImportedKey(ByteString raw, PublicKey publicKey) {
+            this.raw = raw;
+            this.publicKey = publicKey;
+        }
+    }
+}
@@ -1,21 +1,38 @@
 package moe.cdn.cweb.dht.storage;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
 import javax.inject.Inject;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
 
-import moe.cdn.cweb.TorrentTrustProtos;
-import moe.cdn.cweb.TorrentTrustProtos.SignedVote;
-import moe.cdn.cweb.TorrentTrustProtos.SignedVoteHistory;
+import moe.cdn.cweb.SecurityProtos.Hash;
+import moe.cdn.cweb.SecurityProtos.Key;
+import moe.cdn.cweb.TorrentTrustProtos.User;
+import moe.cdn.cweb.TorrentTrustProtos.Vote;
+import moe.cdn.cweb.TorrentTrustProtos.VoteHistory;
 import moe.cdn.cweb.dht.annotations.UserDomain;
 import moe.cdn.cweb.dht.annotations.VoteDomain;
 import moe.cdn.cweb.dht.annotations.VoteHistoryDomain;
+import moe.cdn.cweb.dht.security.BatchValidator;
 import moe.cdn.cweb.dht.security.CwebSignatureValidationService;
+import moe.cdn.cweb.dht.util.Number160s;
+import moe.cdn.cweb.security.CwebMisc;
 import moe.cdn.cweb.security.utils.Representations;
+import moe.cdn.cweb.security.utils.SignedMessage;
 import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
 import net.tomp2p.storage.Data;
 
 class IncomingDataValidator {
@@ -25,67 +42,236 @@ class IncomingDataValidator {
     private final Number160 voteHistoryDomainKey;
 
     private final CwebSignatureValidationService cwebSignatureValidationService;
+    private final BatchValidator batchValidator;
 
     @Inject
     public IncomingDataValidator(@VoteDomain Number160 voteDomainKey,
             @UserDomain Number160 userDomainKey,
             @VoteHistoryDomain Number160 voteHistoryDomainKey,
-            CwebSignatureValidationService cwebSignatureValidationService) {
+            CwebSignatureValidationService cwebSignatureValidationService,
+            BatchValidator batchValidator) {
         this.voteDomainKey = voteDomainKey;
         this.userDomainKey = userDomainKey;
         this.voteHistoryDomainKey = voteHistoryDomainKey;
         this.cwebSignatureValidationService = cwebSignatureValidationService;
+        this.batchValidator = batchValidator;
     }
 
+    /**
+     * Incoming data, parsed once so that deciding how to validate it and
+     * validating it share the parse. At most one of the records is set, and
+     * none if the data could not be parsed or is not in a known domain.
+     */
+    static final class Incoming {
+        private final Number640 key;
+        private final SignedMessage<Vote> vote;
+        private final SignedMessage<User> user;
+        private final SignedMessage<VoteHistory> voteHistory;
+
+        private Incoming(Number640 key, SignedMessage<Vote> vote, SignedMessage<User> user,
+                         SignedMessage<VoteHistory> voteHistory) {
+            this.key = key;
+            this.vote = vote;
+            this.user = user;
+            this.voteHistory = voteHistory;
+        }
+
+        Number640 key() {
+            return key;
+        }
+    }
 
-    public boolean validate(Number160 domainKey, Data data) {
+    /**
+     * Parses incoming data according to the domain it is stored under.
+     *
+     * @param key  key the data is stored under
+     * @param data the data
+     * @return the parsed data, which fails validation if it cannot be parsed
+     */
+    Incoming parse(Number640 key, Data data) {
+        Number160 domainKey = key.domainKey();
+        try {
+            if (voteDomainKey.equals(domainKey)) {
+                return new Incoming(key, SignedMessage.parseFrom(bytesOf(data), Vote.PARSER),
+                        null, null);
+            }
+            if (userDomainKey.equals(domainKey)) {
+                return new Incoming(key, null,
+                        SignedMessage.parseFrom(bytesOf(data), User.PARSER), null);
+            }
+            if (voteHistoryDomainKey.equals(domainKey)) {
+                return new Incoming(key, null, null,
+                        SignedMessage.parseFrom(bytesOf(data), VoteHistory.PARSER));
+            }
+            logger.warn("Did not belong to acceptable domain. Failed validation.");
+        } catch (InvalidProtocolBufferException e) {
+            logger.catching(e);
+        }
+        return new Incoming(key, null, null, null);
+    }
+
+    /**
+     * Validates every entry of a map of incoming data in parallel.
+     *
+     * @param dataMap entries to validate
+     * @return bitmap in which bit {@code i} is set if and only if the
+     * {@code i}th entry of {@code dataMap} is valid
+     */
+    public BitSet validateAll(NavigableMap<Number640, Data> dataMap) {
+        List<Map.Entry<Number640, Data>> entries = new ArrayList<>(dataMap.entrySet());
+        return batchValidator.validateAll(entries,
+                kv -> validate(kv.getKey(), kv.getValue()));
+    }
+
+    /**
+     * Validates parsed incoming data in parallel.
+     *
+     * @return bitmap in which bit {@code i} is set if and only if
+     * {@code incoming.get(i)} is valid
+     */
+    BitSet validateAll(List<Incoming> incoming) {
+        return batchValidator.validateAll(incoming, this::validate);
+    }
+
+    public boolean validate(Number640 key, Data data) {
         // TODO: What is a sane way to log validation actions?
         logger.info("Validating {}", data);
-        if (voteDomainKey.equals(domainKey)) {
-            return validateVoteRawData(data);
+        return validate(parse(key, data));
+    }
+
+    boolean validate(Incoming incoming) {
+        if (incoming.vote != null) {
+            logger.info("Validating Vote {}",
+                    Representations.asString(incoming.vote.getMessage()));
+            return isOwnSlot(incoming.key, incoming.vote.getMessage())
+                    && cwebSignatureValidationService.validateVote(incoming.vote);
         }
-        if (userDomainKey.equals(domainKey)) {
-            return validateUserRawData(data);
+        if (incoming.user != null) {
+            logger.info("Validating User {}",
+                    Representations.asString(incoming.user.getMessage()));
+            return cwebSignatureValidationService.validateUser(incoming.user);
         }
-        if (voteHistoryDomainKey.equals(domainKey)) {
-            return validateVoteHistoryRawData(data);
+        if (incoming.voteHistory != null) {
+            logger.info("Validating VoteHistory {}",
+                    Representations.asString(incoming.voteHistory.getMessage()));
+            return isOwnHistory(incoming.key, incoming.voteHistory)
+                    && cwebSignatureValidationService.validateVoteHistory(incoming.voteHistory);
         }
-        logger.warn("Did not belong to acceptable domain. Failed validation.");
         return false;
     }
 
-    private boolean validateVoteRawData(Data data) {
-        try {
-            SignedVote signedVote = SignedVote.PARSER.parseFrom(data.toBytes());
-            logger.info("Validating Vote {}", Representations.asString(signedVote));
-            return cwebSignatureValidationService.validateVote(signedVote);
-        } catch (InvalidProtocolBufferException e) {
-            logger.catching(e);
-            return false;
+    /**
+     * Starts validating incoming data without waiting on the network. If the
+     * owner of the signing key is known locally the returned future is
+     * already done.
+     *
+     * @param key  key the data is stored under
+     * @param data the data
+     * @return future of whether the data is valid; never fails
+     */
+    public ListenableFuture<Boolean> validateAsync(Number640 key, Data data) {
+        return validateAsync(parse(key, data));
+    }
+
+    ListenableFuture<Boolean> validateAsync(Incoming incoming) {
+        if (incoming.vote != null) {
+            logger.info("Validating Vote {}",
+                    Representations.asString(incoming.vote.getMessage()));
+            if (!isOwnSlot(incoming.key, incoming.vote.getMessage())) {
+                return Futures.immediateFuture(false);
+            }
+            return cwebSignatureValidationService.validateVoteAsync(incoming.vote);
         }
+        if (incoming.voteHistory != null) {
+            logger.info("Validating VoteHistory {}",
+                    Representations.asString(incoming.voteHistory.getMessage()));
+            if (!isOwnHistory(incoming.key, incoming.voteHistory)) {
+                return Futures.immediateFuture(false);
+            }
+            return cwebSignatureValidationService.validateVoteHistoryAsync(incoming.voteHistory);
+        }
+        // Users are self-signed, so they never wait on the network
+        return Futures.immediateFuture(validate(incoming));
     }
 
-    private boolean validateUserRawData(Data data) {
-        try {
-            TorrentTrustProtos.SignedUser signedUser =
-                    TorrentTrustProtos.SignedUser.PARSER.parseFrom(data.toBytes());
-            logger.info("Validating User {}", Representations.asString(signedUser));
-            return cwebSignatureValidationService.validateUser(signedUser);
-        } catch (InvalidProtocolBufferException e) {
-            logger.catching(e);
+    /**
+     * Checks whether validating parsed data needs a network lookup of the
+     * owner of the signing key.
+     *
+     * @return {@code true} if validation would have to wait on the network
+     */
+    boolean needsOwnerLookup(Incoming incoming) {
+        if (incoming.vote != null) {
+            return !cwebSignatureValidationService
+                    .isOwnerKnown(incoming.vote.getSignature().getPublicKey());
+        }
+        if (incoming.voteHistory != null) {
+            return !cwebSignatureValidationService
+                    .isOwnerKnown(incoming.voteHistory.getSignature().getPublicKey());
+        }
+        return false;
+    }
+
+    /**
+     * Checks that a vote is stored in its owner's slot under the object it is
+     * cast on. The signature only proves who cast the vote, so without this
+     * anyone could replace another user's vote with one of their own.
+     *
+     * @param key  key the vote is stored under
+     * @param vote the vote
+     * @return {@code true} if the location key is that of the object and the
+     * content key is that of the owner
+     */
+    private static boolean isOwnSlot(Number640 key, Vote vote) {
+        if (!key.locationKey().equals(reduce(vote.getContentHash()))
+                || !key.contentKey().equals(reduce(vote.getOwnerPublicKey().getHash()))) {
+            logger.warn("Vote {} is not in its owner's slot {}", Representations.asString(vote),
+                    key);
             return false;
         }
+        return true;
     }
 
-    private boolean validateVoteHistoryRawData(Data data) {
-        try {
-            SignedVoteHistory signedVoteHistory =
-                    SignedVoteHistory.PARSER.parseFrom(data.toBytes());
-            logger.info("Validating VoteHistory {}", Representations.asString(signedVoteHistory.getHistory()));
-            return cwebSignatureValidationService.validateVoteHistory(signedVoteHistory);
-        } catch (InvalidProtocolBufferException e) {
-            logger.catching(e);
+    /**
+     * Checks that a vote history, or a segment of one, is signed by its owner
+     * and stored under the owner's key or the key of that segment. The
+     * signature only proves that its signer is registered, so without this
+     * any user could replace another user's history with one naming them.
+     *
+     * @param key     key the history is stored under
+     * @param history the history
+     * @return {@code true} if the history is the signer's own and in its slot
+     */
+    private static boolean isOwnHistory(Number640 key, SignedMessage<VoteHistory> history) {
+        Key owner = history.getMessage().getOwnerPublicKey();
+        if (!owner.equals(history.getSignature().getPublicKey())) {
+            logger.warn("Vote history of {} is not signed by its owner",
+                    Representations.asString(owner));
+            return false;
+        }
+        Number160 location = key.locationKey();
+        if (!location.equals(reduce(owner.getHash())) && !location.equals(reduce(
+                CwebMisc.voteHistorySegmentKey(owner, history.getMessage().getSegment())))) {
+            logger.warn("Vote history of {} is not in its owner's slot {}",
+                    Representations.asString(owner), key);
             return false;
         }
+        return true;
+    }
+
+    private static Number160 reduce(Hash hash) {
+        return Number160s.fromCwebId(CwebMisc.CWEB_ID_REDUCER.apply(hash));
+    }
+
+    /**
+     * Signatures are verified over slices of these bytes, as they were
+     * received.
+     *
+     * @return the bytes of the data
+     */
+    private static ByteString bytesOf(Data data) {
+        // toBytes() copies the data into an array that nothing else holds on
+        // to, so it can be wrapped instead of copied again
+        return UnsafeByteOperations.unsafeWrap(data.toBytes());
     }
 }
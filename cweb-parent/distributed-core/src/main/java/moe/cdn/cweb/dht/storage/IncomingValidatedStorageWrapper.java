@@ -44,7 +44,7 @@ class IncomingValidatedStorageWrapper extends StorageWrapper {
 
     @Override
     public Data put(Number640 key, Data value) {
-        if (incomingDataValidator.validate(key.domainKey(), value)) {
+        if (incomingDataValidator.validate(key, value)) {
             return super.put(key, value);
         }
         // TODO: Give a response to indicate validation failed
@@ -0,0 +1,64 @@
+package moe.cdn.cweb.dht.storage;
+
+import net.tomp2p.peers.Number640;
+
+/**
+ * Sorted index from storage keys to the addresses of their values in a
+ * {@link SegmentLog}. Addresses are never negative.
+ */
+interface KeyIndex {
+    /**
+     * Returned in place of an address for a key that is not in the index.
+     */
+    long NONE = -1;
+
+    /**
+     * Receives the entries of a range scan.
+     */
+    interface EntryVisitor {
+        /**
+         * @return whether to continue the scan
+         */
+        boolean visit(Number640 key, long address);
+    }
+
+    /**
+     * @return the address of the key, or {@link #NONE}
+     */
+    long get(Number640 key);
+
+    /**
+     * @return the previous address of the key, or {@link #NONE}
+     */
+    long put(Number640 key, long address);
+
+    /**
+     * @return the removed address of the key, or {@link #NONE}
+     */
+    long remove(Number640 key);
+
+    /**
+     * Changes the address of a key only if it is still {@code expected}.
+     *
+     * @return whether the address was changed
+     */
+    boolean replace(Number640 key, long expected, long address);
+
+    /**
+     * @return number of keys between {@code from} and {@code to} inclusive
+     */
+    int count(Number640 from, Number640 to);
+
+    int size();
+
+    /**
+     * Visits the keys between {@code from} and {@code to} inclusive, in
+     * order, until the visitor asks to stop.
+     */
+    void scan(Number640 from, Number640 to, boolean ascending, EntryVisitor visitor);
+
+    /**
+     * Releases any memory held outside the heap.
+     */
+    void close();
+}
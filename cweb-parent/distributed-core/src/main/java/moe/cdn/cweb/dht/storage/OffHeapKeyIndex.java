@@ -0,0 +1,348 @@
+package moe.cdn.cweb.dht.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.tomp2p.peers.Number640;
+
+/**
+ * {@link KeyIndex} kept outside the heap as a skip list over pages of direct
+ * {@link ByteBuffer}s.
+ * <p>
+ * Each node holds the 80 bytes of its key, the address, its level and one
+ * forward pointer per level, so an entry costs about a hundred bytes that
+ * the garbage collector never has to look at. Keys are compared as ten
+ * unsigned big-endian longs, which orders them the same way as
+ * {@link Number640#compareTo(Number640)}. Pointers are page numbers and
+ * offsets packed into a long; removed nodes are kept on a free list per
+ * level and reused.
+ * <p>
+ * Readers share a lock and writers hold it exclusively. Visitors of a scan run
+ * under the shared lock and must not modify the index.
+ */
+class OffHeapKeyIndex implements KeyIndex {
+    static final int DEFAULT_PAGE_BITS = 20;
+    private static final int MAX_LEVEL = 16;
+    private static final int KEY_WORDS = SegmentLog.KEY_BYTES / 8;
+    private static final int ADDRESS_OFFSET = SegmentLog.KEY_BYTES;
+    private static final int LEVEL_OFFSET = ADDRESS_OFFSET + 8;
+    private static final int NEXT_OFFSET = LEVEL_OFFSET + 1;
+    /**
+     * The head node is allocated first, at pointer zero, and is never the
+     * successor of another node.
+     */
+    private static final long HEAD = 0;
+    private static final long NIL = 0;
+
+    private final int pageBits;
+    private final int pageBytes;
+    private final List<ByteBuffer> pages = new ArrayList<>();
+    private final long[] freeLists = new long[MAX_LEVEL + 1];
+    private final Lock readLock;
+    private final Lock writeLock;
+    private long nextFree;
+    private int level = 1;
+    private int size;
+
+    OffHeapKeyIndex() {
+        this(DEFAULT_PAGE_BITS);
+    }
+
+    OffHeapKeyIndex(int pageBits) {
+        this.pageBits = pageBits;
+        this.pageBytes = 1 << pageBits;
+        ReadWriteLock lock = new ReentrantReadWriteLock();
+        this.readLock = lock.readLock();
+        this.writeLock = lock.writeLock();
+        allocate(MAX_LEVEL);
+    }
+
+    @Override
+    public long get(Number640 key) {
+        long[] words = encode(key);
+        readLock.lock();
+        try {
+            long node = next(findPredecessor(words, null), 0);
+            return node != NIL && compare(node, words) == 0 ? address(node) : NONE;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public long put(Number640 key, long address) {
+        long[] words = encode(key);
+        long[] update = new long[MAX_LEVEL];
+        writeLock.lock();
+        try {
+            long node = next(findPredecessor(words, update), 0);
+            if (node != NIL && compare(node, words) == 0) {
+                long previous = address(node);
+                setAddress(node, address);
+                return previous;
+            }
+            int nodeLevel = randomLevel();
+            for (int i = level; i < nodeLevel; i++) {
+                update[i] = HEAD;
+            }
+            level = Math.max(level, nodeLevel);
+            node = allocate(nodeLevel);
+            ByteBuffer page = page(node);
+            int offset = offset(node);
+            for (int i = 0; i < KEY_WORDS; i++) {
+                page.putLong(offset + 8 * i, words[i]);
+            }
+            page.putLong(offset + ADDRESS_OFFSET, address);
+            page.put(offset + LEVEL_OFFSET, (byte) nodeLevel);
+            for (int i = 0; i < nodeLevel; i++) {
+                setNext(node, i, next(update[i], i));
+                setNext(update[i], i, node);
+            }
+            size++;
+            return NONE;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public long remove(Number640 key) {
+        long[] words = encode(key);
+        long[] update = new long[MAX_LEVEL];
+        writeLock.lock();
+        try {
+            long node = next(findPredecessor(words, update), 0);
+            if (node == NIL || compare(node, words) != 0) {
+                return NONE;
+            }
+            int nodeLevel = level(node);
+            for (int i = 0; i < nodeLevel; i++) {
+                if (next(update[i], i) == node) {
+                    setNext(update[i], i, next(node, i));
+                }
+            }
+            while (level > 1 && next(HEAD, level - 1) == NIL) {
+                level--;
+            }
+            long address = address(node);
+            setNext(node, 0, freeLists[nodeLevel]);
+            freeLists[nodeLevel] = node;
+            size--;
+            return address;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean replace(Number640 key, long expected, long address) {
+        long[] words = encode(key);
+        writeLock.lock();
+        try {
+            long node = next(findPredecessor(words, null), 0);
+            if (node == NIL || compare(node, words) != 0 || address(node) != expected) {
+                return false;
+            }
+            setAddress(node, address);
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public int count(Number640 from, Number640 to) {
+        int[] count = new int[1];
+        scan(from, to, true, (key, address) -> {
+            count[0]++;
+            return true;
+        });
+        return count[0];
+    }
+
+    @Override
+    public int size() {
+        readLock.lock();
+        try {
+            return size;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public void scan(Number640 from, Number640 to, boolean ascending, EntryVisitor visitor) {
+        long[] fromWords = encode(from);
+        long[] toWords = encode(to);
+        readLock.lock();
+        try {
+            if (ascending) {
+                for (long node = next(findPredecessor(fromWords, null), 0);
+                        node != NIL && compare(node, toWords) <= 0; node = next(node, 0)) {
+                    if (!visitor.visit(key(node), address(node))) {
+                        return;
+                    }
+                }
+            } else {
+                // Forward pointers only, so each step searches for the
+                // predecessor again
+                for (long node = findLast(toWords); node != HEAD && compare(node, fromWords) >= 0;
+                        node = findPredecessor(words(node), null)) {
+                    if (!visitor.visit(key(node), address(node))) {
+                        return;
+                    }
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        writeLock.lock();
+        try {
+            // The direct buffers are freed once they are collected
+            pages.clear();
+            size = 0;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Finds the last node whose key is less than the given one.
+     *
+     * @param update if not null, receives the predecessor at each level
+     * @return the node, or {@link #HEAD}
+     */
+    private long findPredecessor(long[] words, long[] update) {
+        long node = HEAD;
+        for (int i = level - 1; i >= 0; i--) {
+            for (long next = next(node, i); next != NIL && compare(next, words) < 0;
+                    next = next(node, i)) {
+                node = next;
+            }
+            if (update != null) {
+                update[i] = node;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Finds the last node whose key is at most the given one.
+     *
+     * @return the node, or {@link #HEAD}
+     */
+    private long findLast(long[] words) {
+        long node = HEAD;
+        for (int i = level - 1; i >= 0; i--) {
+            for (long next = next(node, i); next != NIL && compare(next, words) <= 0;
+                    next = next(node, i)) {
+                node = next;
+            }
+        }
+        return node;
+    }
+
+    private long allocate(int nodeLevel) {
+        long node = freeLists[nodeLevel];
+        if (node != NIL) {
+            freeLists[nodeLevel] = next(node, 0);
+            for (int i = 0; i < nodeLevel; i++) {
+                setNext(node, i, NIL);
+            }
+            return node;
+        }
+        int nodeBytes = NEXT_OFFSET + 8 * nodeLevel;
+        if (pages.isEmpty() || offset(nextFree) + nodeBytes > pageBytes) {
+            nextFree = (long) pages.size() << pageBits;
+            pages.add(ByteBuffer.allocateDirect(pageBytes));
+        }
+        node = nextFree;
+        nextFree += nodeBytes;
+        return node;
+    }
+
+    private static int randomLevel() {
+        int nodeLevel = 1;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (nodeLevel < MAX_LEVEL && random.nextInt(4) == 0) {
+            nodeLevel++;
+        }
+        return nodeLevel;
+    }
+
+    private ByteBuffer page(long node) {
+        return pages.get((int) (node >>> pageBits));
+    }
+
+    private int offset(long node) {
+        return (int) (node & (pageBytes - 1));
+    }
+
+    private long next(long node, int i) {
+        return page(node).getLong(offset(node) + NEXT_OFFSET + 8 * i);
+    }
+
+    private void setNext(long node, int i, long next) {
+        page(node).putLong(offset(node) + NEXT_OFFSET + 8 * i, next);
+    }
+
+    private long address(long node) {
+        return page(node).getLong(offset(node) + ADDRESS_OFFSET);
+    }
+
+    private void setAddress(long node, long address) {
+        page(node).putLong(offset(node) + ADDRESS_OFFSET, address);
+    }
+
+    private int level(long node) {
+        return page(node).get(offset(node) + LEVEL_OFFSET);
+    }
+
+    private int compare(long node, long[] words) {
+        ByteBuffer page = page(node);
+        int offset = offset(node);
+        for (int i = 0; i < KEY_WORDS; i++) {
+            int c = Long.compareUnsigned(page.getLong(offset + 8 * i), words[i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    private long[] words(long node) {
+        ByteBuffer page = page(node);
+        int offset = offset(node);
+        long[] words = new long[KEY_WORDS];
+        for (int i = 0; i < KEY_WORDS; i++) {
+            words[i] = page.getLong(offset + 8 * i);
+        }
+        return words;
+    }
+
+    private Number640 key(long node) {
+        ByteBuffer view = page(node).duplicate();
+        view.position(offset(node));
+        return SegmentLog.readKey(view);
+    }
+
+    private static long[] encode(Number640 key) {
+        ByteBuffer buffer = ByteBuffer.allocate(SegmentLog.KEY_BYTES);
+        SegmentLog.writeKey(buffer, key);
+        buffer.flip();
+        long[] words = new long[KEY_WORDS];
+        for (int i = 0; i < KEY_WORDS; i++) {
+            words[i] = buffer.getLong();
+        }
+        return words;
+    }
+}
@@ -0,0 +1,88 @@
+package moe.cdn.cweb.dht.storage;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import net.tomp2p.peers.Number640;
+
+/**
+ * Incoming puts that are waiting for their validation to finish, typically on
+ * a network lookup of the owner of the signing key. A parked put is applied
+ * once it validates and dropped if it does not.
+ * <p>
+ * At most one put per key is parked. A later put to the same key, whether it
+ * is parked or applied directly, supersedes the earlier one so that a slow
+ * validation never overwrites newer data.
+ */
+class PendingValidationQueue {
+    private static final Logger logger = LogManager.getLogger();
+    static final int DEFAULT_CAPACITY = 10000;
+
+    private final int capacity;
+    private final ConcurrentMap<Number640, ListenableFuture<Boolean>> pending =
+            new ConcurrentHashMap<>();
+
+    PendingValidationQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    PendingValidationQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Parks a put until its validation finishes.
+     *
+     * @param key        key being put
+     * @param validation validation of the data being put; must not fail
+     * @param put        applies the put
+     * @return {@code false} if the queue is full, in which case the put is
+     * not parked
+     */
+    boolean park(Number640 key, ListenableFuture<Boolean> validation, Runnable put) {
+        if (pending.size() >= capacity) {
+            return false;
+        }
+        pending.put(key, validation);
+        Futures.addCallback(validation, new FutureCallback<Boolean>() {
+            @Override
+            public void onSuccess(Boolean valid) {
+                if (!pending.remove(key, validation)) {
+                    logger.debug("Pending put to {} was superseded", key);
+                    return;
+                }
+                if (valid) {
+                    put.run();
+                } else {
+                    logger.info("Dropping pending put to {} which failed validation", key);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                pending.remove(key, validation);
+                logger.catching(t);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Drops the parked put to a key, if any, because newer data has been
+     * stored under it.
+     */
+    void supersede(Number640 key) {
+        pending.remove(key);
+    }
+
+    int size() {
+        return pending.size();
+    }
+}
@@ -0,0 +1,281 @@
+package moe.cdn.cweb.dht.storage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import moe.cdn.cweb.dht.storage.annotations.StorageDirectory;
+import net.tomp2p.dht.Storage;
+import net.tomp2p.dht.StorageMemory;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+/**
+ * {@link Storage} that keeps its data across restarts.
+ * <p>
+ * Values live in a {@link SegmentLog} of memory-mapped files in the storage
+ * directory rather than on the heap. The only thing kept per key is the
+ * address of its latest put, in a {@link KeyIndex}, and reads return views of
+ * the mapped segments. Range scans walk the index straight into the map they
+ * return.
+ * Removals and timeouts are appended to the same log, which is replayed on
+ * startup, so a restarted node can answer for its key range straight away
+ * instead of waiting for it to be replicated back.
+ * <p>
+ * Superseded values, such as earlier versions of a rewritten vote history,
+ * are reclaimed by a background compactor. Timeouts, protection and
+ * responsibilities are served by a {@link StorageMemory}; protection and
+ * responsibilities are not persisted, since tomp2p works out responsibilities
+ * again as peers rejoin and cweb does not protect domains.
+ */
+class PersistentStorage extends StorageWrapper {
+    private static final Logger logger = LogManager.getLogger();
+    private static final long COMPACTION_INTERVAL_SECONDS = 30;
+    /**
+     * Share of a segment that must be garbage before it is compacted.
+     */
+    static final double COMPACTION_GARBAGE_RATIO = 0.5;
+    private static final Number640 MIN_KEY = new Number640(Number160.ZERO, Number160.ZERO,
+            Number160.ZERO, Number160.ZERO);
+    private static final Number640 MAX_KEY = new Number640(Number160.MAX_VALUE,
+            Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE);
+
+    private final SegmentLog log;
+    private final KeyIndex index;
+    private final Map<Number640, Long> timeouts = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService compactor;
+
+    @Inject
+    public PersistentStorage(@StorageDirectory Path directory, KeyIndex index)
+            throws IOException {
+        this(directory, index, SegmentLog.DEFAULT_SEGMENT_BYTES);
+    }
+
+    PersistentStorage(Path directory, KeyIndex index, int segmentBytes) throws IOException {
+        super(new StorageMemory());
+        this.index = index;
+        log = new SegmentLog(directory, segmentBytes);
+        int records = log.replay(new SegmentLog.RecordVisitor() {
+            @Override
+            public void put(Number640 key, long address) {
+                long previous = index.put(key, address);
+                if (previous != KeyIndex.NONE) {
+                    log.release(previous);
+                }
+            }
+
+            @Override
+            public void remove(Number640 key) {
+                long previous = index.remove(key);
+                if (previous != KeyIndex.NONE) {
+                    log.release(previous);
+                }
+            }
+
+            @Override
+            public void addTimeout(Number640 key, long expiration) {
+                timeouts.put(key, expiration);
+                PersistentStorage.super.addTimeout(key, expiration);
+            }
+
+            @Override
+            public void removeTimeout(Number640 key) {
+                timeouts.remove(key);
+                PersistentStorage.super.removeTimeout(key);
+            }
+        });
+        logger.info("Restored {} entries from {} records in {}", index.size(), records, directory);
+        compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("storage-compaction-%d").build());
+        compactor.scheduleWithFixedDelay(this::compact, COMPACTION_INTERVAL_SECONDS,
+                COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Compacts the segments that are mostly garbage.
+     *
+     * @return number of segments reclaimed
+     */
+    int compact() {
+        try {
+            return log.compact(COMPACTION_GARBAGE_RATIO, new SegmentLog.Liveness() {
+                @Override
+                public boolean isLive(Number640 key, long address) {
+                    return index.get(key) == address;
+                }
+
+                @Override
+                public boolean isRemoved(Number640 key) {
+                    return index.get(key) == KeyIndex.NONE;
+                }
+
+                @Override
+                public boolean hasTimeout(Number640 key, long expiration) {
+                    Long current = timeouts.get(key);
+                    return current != null && current == expiration;
+                }
+
+                @Override
+                public boolean isTimeoutRemoved(Number640 key) {
+                    return !timeouts.containsKey(key);
+                }
+
+                @Override
+                public void relocated(Number640 key, long from, long to) {
+                    index.replace(key, from, to);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to compact storage segments", e);
+            return 0;
+        }
+    }
+
+    int segmentCount() {
+        return log.segmentCount();
+    }
+
+    /**
+     * Reads the current value of a key, following it if compaction moves it
+     * between the lookup and the read.
+     */
+    private Data read(Number640 key) {
+        while (true) {
+            long address = index.get(key);
+            if (address == KeyIndex.NONE) {
+                return null;
+            }
+            Data data = log.read(address);
+            if (data != null) {
+                return data;
+            }
+        }
+    }
+
+    @Override
+    public Data put(Number640 key, Data value) {
+        // Compaction cannot delete a segment while the log is held, so the
+        // previous value can still be read
+        synchronized (log) {
+            long previous = index.put(key, log.appendPut(key, value));
+            if (previous == KeyIndex.NONE) {
+                return null;
+            }
+            log.release(previous);
+            return log.read(previous);
+        }
+    }
+
+    @Override
+    public Data get(Number640 key) {
+        return read(key);
+    }
+
+    @Override
+    public boolean contains(Number640 key) {
+        return index.get(key) != KeyIndex.NONE;
+    }
+
+    @Override
+    public int contains(Number640 from, Number640 to) {
+        return index.count(from, to);
+    }
+
+    @Override
+    public Data remove(Number640 key, boolean returnData) {
+        synchronized (log) {
+            long previous = index.remove(key);
+            if (previous == KeyIndex.NONE) {
+                return null;
+            }
+            log.appendRemove(key);
+            log.release(previous);
+            return returnData ? log.read(previous) : null;
+        }
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> remove(Number640 from, Number640 to) {
+        List<Number640> keys = new ArrayList<>();
+        index.scan(from, to, true, (key, address) -> keys.add(key));
+        NavigableMap<Number640, Data> removed = new TreeMap<>();
+        for (Number640 key : keys) {
+            Data data = remove(key, true);
+            if (data != null) {
+                removed.put(key, data);
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> subMap(Number640 from, Number640 to, int limit,
+            boolean ascending) {
+        NavigableMap<Number640, Data> result = new TreeMap<>();
+        if (limit == 0) {
+            return result;
+        }
+        index.scan(from, to, ascending, (key, address) -> {
+            Data data = log.read(address);
+            if (data == null) {
+                data = read(key);
+            }
+            if (data != null) {
+                result.put(key, data);
+            }
+            return limit < 0 || result.size() < limit;
+        });
+        return result;
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> map() {
+        return subMap(MIN_KEY, MAX_KEY, -1, true);
+    }
+
+    @Override
+    public void addTimeout(Number640 key, long expiration) {
+        synchronized (log) {
+            log.appendAddTimeout(key, expiration);
+            timeouts.put(key, expiration);
+        }
+        super.addTimeout(key, expiration);
+    }
+
+    @Override
+    public void removeTimeout(Number640 key) {
+        synchronized (log) {
+            log.appendRemoveTimeout(key);
+            timeouts.remove(key);
+        }
+        super.removeTimeout(key);
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+        super.close();
+        index.close();
+        try {
+            log.close();
+        } catch (IOException e) {
+            logger.error("Failed to close storage segments", e);
+        }
+    }
+}
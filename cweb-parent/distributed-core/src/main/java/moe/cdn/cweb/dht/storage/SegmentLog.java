@@ -0,0 +1,485 @@
+package moe.cdn.cweb.dht.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.buffer.Unpooled;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+import net.tomp2p.storage.DataBuffer;
+
+/**
+ * Append-only log of storage records kept in memory-mapped segment files.
+ * <p>
+ * A put is written once, to the end of the newest segment, and is afterwards
+ * referred to by its address: the segment number in the upper 32 bits and the
+ * offset of the record in the lower 32 bits. Reading an address returns a
+ * {@link Data} that is a view of the mapped segment rather than a copy.
+ * <p>
+ * Records that have been superseded are counted as garbage in their segment.
+ * {@link #compact(double, Liveness)} copies what is still live out of the
+ * segments that are mostly garbage and deletes them. Mappings outlive the
+ * deletion of their file, so views handed out earlier stay valid.
+ * <p>
+ * Every record is framed with its length and a CRC32 of its body, so a record
+ * torn by a crash is detected on replay and ends its segment. All writes
+ * synchronize on the log.
+ */
+class SegmentLog implements Closeable {
+    private static final Logger logger = LogManager.getLogger();
+
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    static final byte ADD_TIMEOUT = 3;
+    static final byte REMOVE_TIMEOUT = 4;
+
+    static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+    static final int KEY_BYTES = 4 * Number160.BYTE_ARRAY_SIZE;
+    static final int FRAME_BYTES = 8;
+    static final int HEADER_BYTES = FRAME_BYTES + 1 + KEY_BYTES;
+    /**
+     * Offset of the value of a put from the start of its record, after the
+     * header and the TTL.
+     */
+    static final int PUT_VALUE_OFFSET = HEADER_BYTES + 4;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private volatile Segment[] readable = new Segment[0];
+    private Segment active;
+
+    SegmentLog(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files =
+                Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(id, Segment.open(id, file, 0));
+            }
+        }
+        publishSegments();
+    }
+
+    static Path segmentPath(Path directory, int id) {
+        return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Receives the records of the log.
+     */
+    interface RecordVisitor {
+        void put(Number640 key, long address);
+
+        void remove(Number640 key);
+
+        void addTimeout(Number640 key, long expiration);
+
+        void removeTimeout(Number640 key);
+    }
+
+    /**
+     * Tells compaction which records are still needed.
+     */
+    interface Liveness {
+        /**
+         * @return whether the put at the address is still the current value
+         *         of the key
+         */
+        boolean isLive(Number640 key, long address);
+
+        /**
+         * @return whether the key currently has no value
+         */
+        boolean isRemoved(Number640 key);
+
+        /**
+         * @return whether the key currently times out at the expiration
+         */
+        boolean hasTimeout(Number640 key, long expiration);
+
+        /**
+         * @return whether the key currently has no timeout
+         */
+        boolean isTimeoutRemoved(Number640 key);
+
+        /**
+         * Called when a live put has been copied to a new address.
+         */
+        void relocated(Number640 key, long from, long to);
+    }
+
+    /**
+     * Visits every intact record in order. Must be called once, before
+     * anything is appended.
+     *
+     * @return number of records replayed
+     */
+    synchronized int replay(RecordVisitor visitor) {
+        int records = 0;
+        for (Segment segment : segments.values()) {
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int offset = 0;
+            while (true) {
+                ByteBuffer body = segment.readBody(buffer, offset);
+                if (body == null) {
+                    break;
+                }
+                long address = address(segment.id, offset);
+                byte type = body.get();
+                Number640 key = readKey(body);
+                switch (type) {
+                    case PUT:
+                        visitor.put(key, address);
+                        break;
+                    case REMOVE:
+                        visitor.remove(key);
+                        break;
+                    case ADD_TIMEOUT:
+                        visitor.addTimeout(key, body.getLong());
+                        break;
+                    case REMOVE_TIMEOUT:
+                        visitor.removeTimeout(key);
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown segment record type " + type);
+                }
+                // Everything but puts is garbage as soon as it is written;
+                // compaction keeps what is still needed
+                if (type != PUT) {
+                    segment.garbageBytes += FRAME_BYTES + body.limit();
+                }
+                offset += FRAME_BYTES + body.limit();
+                records++;
+            }
+            segment.writePosition = offset;
+        }
+        active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        return records;
+    }
+
+    synchronized long appendPut(Number640 key, Data data) {
+        byte[] value = data.toBytes();
+        return append(PUT, key, 4 + value.length, body -> body.putInt(data.ttlSeconds())
+                .put(value), false);
+    }
+
+    synchronized void appendRemove(Number640 key) {
+        append(REMOVE, key, 0, body -> {
+        }, true);
+    }
+
+    synchronized void appendAddTimeout(Number640 key, long expiration) {
+        append(ADD_TIMEOUT, key, 8, body -> body.putLong(expiration), true);
+    }
+
+    synchronized void appendRemoveTimeout(Number640 key) {
+        append(REMOVE_TIMEOUT, key, 0, body -> {
+        }, true);
+    }
+
+    /**
+     * Reads the value of a put without copying it out of the segment.
+     *
+     * @param address address returned by {@link #appendPut(Number640, Data)}
+     * @return the data, or null if its segment has since been compacted
+     */
+    Data read(long address) {
+        Segment[] byId = readable;
+        int id = segmentId(address);
+        if (id >= byId.length || byId[id] == null) {
+            return null;
+        }
+        Segment segment = byId[id];
+        int offset = offsetOf(address);
+        ByteBuffer view = segment.buffer.duplicate();
+        int bodyBytes = view.getInt(offset);
+        int ttlSeconds = view.getInt(offset + HEADER_BYTES);
+        view.position(offset + PUT_VALUE_OFFSET);
+        view.limit(offset + FRAME_BYTES + bodyBytes);
+        return new Data(new DataBuffer(Unpooled.wrappedBuffer(view.slice())))
+                .ttlSeconds(ttlSeconds);
+    }
+
+    /**
+     * Marks the put at an address as superseded.
+     */
+    synchronized void release(long address) {
+        Segment segment = segments.get(segmentId(address));
+        if (segment != null) {
+            segment.garbageBytes += FRAME_BYTES + segment.buffer.getInt(offsetOf(address));
+        }
+    }
+
+    /**
+     * Copies the records that are still needed out of every sealed segment
+     * whose share of garbage is at least {@code minGarbageRatio}, and deletes
+     * those segments.
+     *
+     * @return number of segments deleted
+     */
+    int compact(double minGarbageRatio, Liveness liveness) throws IOException {
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.writePosition > 0
+                        && segment.garbageBytes >= minGarbageRatio * segment.writePosition) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        for (Segment segment : candidates) {
+            compact(segment, liveness);
+        }
+        return candidates.size();
+    }
+
+    private void compact(Segment segment, Liveness liveness) throws IOException {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = 0;
+        while (offset < segment.writePosition) {
+            ByteBuffer body = segment.readBody(buffer, offset);
+            if (body == null) {
+                break;
+            }
+            long address = address(segment.id, offset);
+            offset += FRAME_BYTES + body.limit();
+            // One record at a time, so that writers are not held up for long
+            synchronized (this) {
+                byte type = body.get();
+                Number640 key = readKey(body);
+                // Tombstones only matter while an older segment may still
+                // hold a value for the key
+                boolean olderSegments = segments.firstKey() < segment.id;
+                switch (type) {
+                    case PUT:
+                        if (liveness.isLive(key, address)) {
+                            body.rewind();
+                            long relocated = appendBody(body, false);
+                            liveness.relocated(key, address, relocated);
+                        }
+                        break;
+                    case REMOVE:
+                    case REMOVE_TIMEOUT:
+                        if (olderSegments && (type == REMOVE ? liveness.isRemoved(key)
+                                : liveness.isTimeoutRemoved(key))) {
+                            body.rewind();
+                            appendBody(body, true);
+                        }
+                        break;
+                    case ADD_TIMEOUT:
+                        if (liveness.hasTimeout(key, body.getLong())) {
+                            body.rewind();
+                            appendBody(body, true);
+                        }
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown segment record type " + type);
+                }
+            }
+        }
+        // The copies must be on the disk before the only other copy of them
+        // is deleted, or a crash now would lose records that were durable
+        force();
+        synchronized (this) {
+            segments.remove(segment.id);
+            publishSegments();
+        }
+        segment.channel.close();
+        Files.delete(segment.path);
+        logger.debug("Compacted segment {}", segment.id);
+    }
+
+    synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Forces everything appended so far to the disk. Segments are forced as
+     * they are sealed, so only the active one can have unforced records.
+     */
+    synchronized void force() {
+        if (active != null) {
+            active.buffer.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+            segment.channel.close();
+        }
+    }
+
+    private interface BodyWriter {
+        void write(ByteBuffer body);
+    }
+
+    private long append(byte type, Number640 key, int payloadBytes, BodyWriter payload,
+            boolean garbage) {
+        ByteBuffer body = ByteBuffer.allocate(1 + KEY_BYTES + payloadBytes);
+        body.put(type);
+        writeKey(body, key);
+        payload.write(body);
+        body.flip();
+        return appendBody(body, garbage);
+    }
+
+    private long appendBody(ByteBuffer body, boolean garbage) {
+        int recordBytes = FRAME_BYTES + body.remaining();
+        try {
+            // Leave room for the zero length that ends the segment
+            if (active == null || active.writePosition + recordBytes + 4 > active.capacity()) {
+                roll(recordBytes + 4);
+            }
+        } catch (IOException e) {
+            throw new StorageException("Cannot create segment in " + directory, e);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        int offset = active.writePosition;
+        ByteBuffer out = active.buffer.duplicate();
+        out.position(offset + 4);
+        out.putInt((int) crc.getValue());
+        out.put(body);
+        // The length goes in last, so a torn record reads as the end
+        out.putInt(offset, recordBytes - FRAME_BYTES);
+        active.writePosition = offset + recordBytes;
+        if (garbage) {
+            active.garbageBytes += recordBytes;
+        }
+        return address(active.id, offset);
+    }
+
+    private void roll(int minBytes) throws IOException {
+        // Only the active segment is forced later, so the one being sealed
+        // has to be forced now
+        if (active != null) {
+            active.buffer.force();
+        }
+        int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        Segment segment = Segment.open(id, segmentPath(directory, id),
+                Math.max(segmentBytes, minBytes));
+        segments.put(id, segment);
+        publishSegments();
+        active = segment;
+    }
+
+    private void publishSegments() {
+        Segment[] byId = new Segment[segments.isEmpty() ? 0 : segments.lastKey() + 1];
+        for (Map.Entry<Integer, Segment> entry : segments.entrySet()) {
+            byId[entry.getKey()] = entry.getValue();
+        }
+        readable = byId;
+    }
+
+    static long address(int segmentId, int offset) {
+        return ((long) segmentId << 32) | (offset & 0xffffffffL);
+    }
+
+    static int segmentId(long address) {
+        return (int) (address >>> 32);
+    }
+
+    static int offsetOf(long address) {
+        return (int) address;
+    }
+
+    static void writeKey(ByteBuffer buffer, Number640 key) {
+        buffer.put(key.locationKey().toByteArray());
+        buffer.put(key.domainKey().toByteArray());
+        buffer.put(key.contentKey().toByteArray());
+        buffer.put(key.versionKey().toByteArray());
+    }
+
+    static Number640 readKey(ByteBuffer buffer) {
+        return new Number640(readNumber160(buffer), readNumber160(buffer),
+                readNumber160(buffer), readNumber160(buffer));
+    }
+
+    private static Number160 readNumber160(ByteBuffer buffer) {
+        byte[] bytes = new byte[Number160.BYTE_ARRAY_SIZE];
+        buffer.get(bytes);
+        return new Number160(bytes);
+    }
+
+    private static final class Segment {
+        private final int id;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+        private long garbageBytes;
+
+        private Segment(int id, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Maps a segment file, growing it to at least {@code minBytes}.
+         */
+        static Segment open(int id, Path path, int minBytes) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = Math.max(channel.size(), minBytes);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new Segment(id, path, channel, buffer);
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        /**
+         * Reads the body of the record at an offset.
+         *
+         * @return the body, or null if there is no intact record there
+         */
+        ByteBuffer readBody(ByteBuffer buffer, int offset) {
+            if (offset + FRAME_BYTES > buffer.capacity()) {
+                return null;
+            }
+            int bodyBytes = buffer.getInt(offset);
+            if (bodyBytes <= 0 || offset + FRAME_BYTES + bodyBytes > buffer.capacity()) {
+                return null;
+            }
+            ByteBuffer body = buffer.duplicate();
+            body.position(offset + FRAME_BYTES);
+            body.limit(offset + FRAME_BYTES + bodyBytes);
+            body = body.slice();
+            CRC32 crc = new CRC32();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                logger.warn("Corrupt record at offset {} of {}", offset, path);
+                return null;
+            }
+            return body;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package moe.cdn.cweb.dht.storage;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import net.tomp2p.peers.Number640;
+
+/**
+ * {@link KeyIndex} kept on the heap in a {@link ConcurrentSkipListMap}.
+ */
+class SkipListKeyIndex implements KeyIndex {
+    private final ConcurrentSkipListMap<Number640, Long> index = new ConcurrentSkipListMap<>();
+
+    @Override
+    public long get(Number640 key) {
+        return orNone(index.get(key));
+    }
+
+    @Override
+    public long put(Number640 key, long address) {
+        return orNone(index.put(key, address));
+    }
+
+    @Override
+    public long remove(Number640 key) {
+        return orNone(index.remove(key));
+    }
+
+    @Override
+    public boolean replace(Number640 key, long expected, long address) {
+        return index.replace(key, expected, address);
+    }
+
+    @Override
+    public int count(Number640 from, Number640 to) {
+        return index.subMap(from, true, to, true).size();
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public void scan(Number640 from, Number640 to, boolean ascending, EntryVisitor visitor) {
+        NavigableMap<Number640, Long> range = index.subMap(from, true, to, true);
+        for (Map.Entry<Number640, Long> entry : (ascending ? range : range.descendingMap())
+                .entrySet()) {
+            if (!visitor.visit(entry.getKey(), entry.getValue())) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        index.clear();
+    }
+
+    private static long orNone(Long address) {
+        return address == null ? NONE : address;
+    }
+}
@@ -0,0 +1,25 @@
+package moe.cdn.cweb.dht.storage;
+
+/**
+ * Thrown when persistent storage cannot be read or written.
+ */
+public class StorageException extends RuntimeException {
+
+    private static final long serialVersionUID = -2318925542961466230L;
+
+    public StorageException(String message) {
+        super(message);
+    }
+
+    public StorageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public StorageException(Throwable cause) {
+        super(cause);
+    }
+
+    public StorageException() {
+    }
+
+}
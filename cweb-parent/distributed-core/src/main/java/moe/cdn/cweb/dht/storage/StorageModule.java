@@ -1,5 +1,9 @@
 package moe.cdn.cweb.dht.storage;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -8,31 +12,139 @@ import javax.inject.Singleton;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 
+import moe.cdn.cweb.dht.storage.annotations.StorageDirectory;
 import moe.cdn.cweb.dht.storage.annotations.UnstartedStorageMaintenance;
 import net.tomp2p.dht.Storage;
 import net.tomp2p.dht.StorageMemory;
 
 /**
+ * Configures the storage of the local DHT node. Data is kept in memory unless
+ * a storage directory is given, either to the constructor or in the
+ * {@value #STORAGE_DIRECTORY_PROPERTY} system property, in which case it is
+ * persisted there and restored on startup.
+ * <p>
+ * Persisted data is indexed by key on the heap unless
+ * {@link IndexType#OFF_HEAP} is chosen, either in the constructor or by
+ * setting {@value #STORAGE_INDEX_PROPERTY} to {@code OFF_HEAP}.
+ * <p>
+ * Accepted puts and removals are also made durable in a {@link WriteAheadLog}
+ * if a directory for it is given, either to the constructor or in the
+ * {@value #WRITE_AHEAD_LOG_DIRECTORY_PROPERTY} system property.
+ *
  * @author davix
  */
 public class StorageModule extends AbstractModule {
+    public static final String STORAGE_DIRECTORY_PROPERTY = "moe.cdn.cweb.dht.storage.directory";
+    public static final String STORAGE_INDEX_PROPERTY = "moe.cdn.cweb.dht.storage.index";
+    public static final String WRITE_AHEAD_LOG_DIRECTORY_PROPERTY =
+            "moe.cdn.cweb.dht.storage.wal.directory";
+
+    /**
+     * Where the index of persisted keys is kept.
+     */
+    public enum IndexType {
+        /**
+         * In a skip list of key objects on the heap.
+         */
+        ON_HEAP,
+        /**
+         * In a skip list over direct buffers, out of reach of the garbage
+         * collector.
+         */
+        OFF_HEAP
+    }
+
+    private final Path storageDirectory;
+    private final IndexType indexType;
+    private final Path writeAheadLogDirectory;
+
+    public StorageModule() {
+        this(pathProperty(STORAGE_DIRECTORY_PROPERTY),
+                IndexType.valueOf(System.getProperty(STORAGE_INDEX_PROPERTY,
+                        IndexType.ON_HEAP.name())),
+                pathProperty(WRITE_AHEAD_LOG_DIRECTORY_PROPERTY));
+    }
+
+    /**
+     * @param storageDirectory directory in which to persist data, or null to
+     *                         keep data in memory only
+     */
+    public StorageModule(Path storageDirectory) {
+        this(storageDirectory, IndexType.ON_HEAP);
+    }
+
+    /**
+     * @param storageDirectory directory in which to persist data, or null to
+     *                         keep data in memory only
+     * @param indexType        where to index persisted keys
+     */
+    public StorageModule(Path storageDirectory, IndexType indexType) {
+        this(storageDirectory, indexType, null);
+    }
+
+    /**
+     * @param storageDirectory       directory in which to persist data, or null
+     *                               to keep data in memory only
+     * @param indexType              where to index persisted keys
+     * @param writeAheadLogDirectory directory of the write-ahead log, or null
+     *                               for none
+     */
+    public StorageModule(Path storageDirectory, IndexType indexType,
+                         Path writeAheadLogDirectory) {
+        this.storageDirectory = storageDirectory;
+        this.indexType = indexType;
+        this.writeAheadLogDirectory = writeAheadLogDirectory;
+    }
+
+    private static Path pathProperty(String property) {
+        String value = System.getProperty(property);
+        return value == null ? null : Paths.get(value);
+    }
+
+    /**
+     * Opens the write-ahead log once, replaying it into the storage, for all
+     * the storage layers to share.
+     */
+    @Provides
+    @Singleton
+    Optional<WriteAheadLog> provideWriteAheadLog(Storage storage) {
+        if (writeAheadLogDirectory == null) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(WriteAheadLog.open(writeAheadLogDirectory, storage));
+        } catch (IOException e) {
+            throw new StorageException("Cannot open write-ahead log in "
+                    + writeAheadLogDirectory, e);
+        }
+    }
 
     @Provides
     static ValidatedStorageLayer provideValidatedStorageLayer(
             Storage storage,
             IncomingDataValidator incomingDataValidator,
+            Optional<WriteAheadLog> writeAheadLog,
             @UnstartedStorageMaintenance ScheduledExecutorService scheduledExecutorService) {
         ValidatedStorageLayer storageLayer = new ValidatedStorageLayer(storage,
-                incomingDataValidator);
+                incomingDataValidator, writeAheadLog.orElse(null));
         storageLayer.start(scheduledExecutorService, storageLayer.storageCheckIntervalMillis());
         return storageLayer;
     }
 
     @Override
     protected void configure() {
-        // TODO: implement persistent storage
         bind(ScheduledExecutorService.class).annotatedWith(UnstartedStorageMaintenance.class)
                 .toInstance(Executors.newSingleThreadScheduledExecutor());
-        bind(Storage.class).to(StorageMemory.class).in(Singleton.class);
+        if (storageDirectory == null) {
+            bind(Storage.class).to(StorageMemory.class).in(Singleton.class);
+        } else {
+            bind(Path.class).annotatedWith(StorageDirectory.class).toInstance(storageDirectory);
+            if (indexType == IndexType.OFF_HEAP) {
+                bind(KeyIndex.class).to(OffHeapKeyIndex.class);
+            } else {
+                bind(KeyIndex.class).to(SkipListKeyIndex.class);
+            }
+            bind(Storage.class).to(PersistentStorage.class).in(Singleton.class);
+        }
     }
 }
@@ -1,17 +1,28 @@
 package moe.cdn.cweb.dht.storage;
 
+import java.io.IOException;
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import javax.inject.Inject;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 import net.tomp2p.dht.Storage;
 import net.tomp2p.dht.StorageLayer;
 import net.tomp2p.peers.Number320;
@@ -20,31 +31,53 @@ import net.tomp2p.storage.Data;
 import net.tomp2p.utils.Pair;
 
 /**
+ * Storage layer that only accepts data that validates.
+ * <p>
+ * If it is given a {@link WriteAheadLog}, every put, metadata update and
+ * removal that succeeds is logged, and the status is only returned once the log has reached the
+ * disk, so a peer that is told its put succeeded can rely on it surviving a
+ * crash. Puts, confirmations and metadata updates parked while their owner
+ * is looked up are reported as {@link PutStatus#OK_PREPARED} rather than
+ * {@link PutStatus#OK}: they are neither validated nor durable yet, and are
+ * logged once they are applied.
+ *
  * @author davix
  */
 public class ValidatedStorageLayer extends StorageLayer {
+    private static final Logger logger = LogManager.getLogger();
     private final IncomingDataValidator incomingDataValidator;
+    private final PendingValidationQueue pendingValidations = new PendingValidationQueue();
+    private final WriteAheadLog writeAheadLog;
 
     @Inject
     public ValidatedStorageLayer(Storage backend, IncomingDataValidator incomingDataValidator) {
+        this(backend, incomingDataValidator, null);
+    }
+
+    /**
+     * @param writeAheadLog log to make puts and removals durable in, already
+     *                      replayed into the backend, or null
+     */
+    ValidatedStorageLayer(Storage backend, IncomingDataValidator incomingDataValidator,
+                          WriteAheadLog writeAheadLog) {
         super(backend);
         this.incomingDataValidator = incomingDataValidator;
+        this.writeAheadLog = writeAheadLog;
     }
 
     @Override
     public Enum<?> putConfirm(PublicKey publicKey, Number640 key, Data newData) {
-        if (!incomingDataValidator.validate(key.domainKey(), newData)) {
-            return PutStatus.FAILED_SECURITY;
-        }
-        return super.putConfirm(publicKey, key, newData);
+        return putWhenValid(incomingDataValidator.parse(key, newData),
+                () -> super.putConfirm(publicKey, key, newData));
     }
 
     @Override
     public Enum<?> updateMeta(PublicKey publicKey, Number640 key, Data newData) {
-        if (!incomingDataValidator.validate(key.domainKey(), newData)) {
-            return PutStatus.FAILED_SECURITY;
-        }
-        return super.updateMeta(publicKey, key, newData);
+        // The log holds whole puts, so the value is logged again with its new
+        // TTL and expiration
+        return putWhenValid(incomingDataValidator.parse(key, newData),
+                () -> putLogged(key, () -> get(key),
+                        () -> super.updateMeta(publicKey, key, newData)));
     }
 
     @Override
@@ -57,49 +90,194 @@ public class ValidatedStorageLayer extends StorageLayer {
     @Override
     public SortedMap<Number640, Byte> removeReturnStatus(Number640 from, Number640 to,
                                                          PublicKey publicKey) {
-        // pass through
-        return super.removeReturnStatus(from, to, publicKey);
+        if (writeAheadLog == null) {
+            return super.removeReturnStatus(from, to, publicKey);
+        }
+        SortedMap<Number640, Byte> statuses;
+        long position;
+        synchronized (writeAheadLog) {
+            statuses = super.removeReturnStatus(from, to, publicKey);
+            position = writeAheadLog.size();
+            for (Map.Entry<Number640, Byte> kv : statuses.entrySet()) {
+                if (kv.getValue() == PutStatus.OK.ordinal()) {
+                    position = writeAheadLog.appendRemove(kv.getKey());
+                }
+            }
+        }
+        awaitDurable(position);
+        return statuses;
     }
 
     @Override
     public NavigableMap<Number640, Data> removeReturnData(Number640 from, Number640 to,
                                                           PublicKey publicKey) {
-        // pass through
-        return super.removeReturnData(from, to, publicKey);
+        if (writeAheadLog == null) {
+            return super.removeReturnData(from, to, publicKey);
+        }
+        NavigableMap<Number640, Data> removed;
+        long position;
+        synchronized (writeAheadLog) {
+            removed = super.removeReturnData(from, to, publicKey);
+            position = writeAheadLog.size();
+            for (Number640 key : removed.keySet()) {
+                position = writeAheadLog.appendRemove(key);
+            }
+        }
+        awaitDurable(position);
+        return removed;
     }
 
     @Override
     public Pair<Data, Enum<?>> remove(Number640 key, PublicKey publicKey, boolean returnData) {
-        // pass through
-        return super.remove(key, publicKey, returnData);
+        if (writeAheadLog == null) {
+            return super.remove(key, publicKey, returnData);
+        }
+        Pair<Data, Enum<?>> result;
+        long position;
+        synchronized (writeAheadLog) {
+            result = super.remove(key, publicKey, returnData);
+            if (result.element1() != PutStatus.OK) {
+                return result;
+            }
+            position = writeAheadLog.appendRemove(key);
+        }
+        awaitDurable(position);
+        return result;
     }
 
     @Override
     public Enum<?> put(Number640 key, Data newData, PublicKey publicKey, boolean putIfAbsent,
                        boolean domainProtection, boolean sendSelf) {
-        if (!incomingDataValidator.validate(key.domainKey(), newData)) {
-            return PutStatus.FAILED_SECURITY;
+        return putWhenValid(incomingDataValidator.parse(key, newData),
+                () -> putLogged(key, () -> newData, () -> super.put(key, newData, publicKey,
+                        putIfAbsent, domainProtection, sendSelf)));
+    }
+
+    /**
+     * Applies a put and, if it succeeds and there is a write-ahead log, waits
+     * for it to be logged durably. Applying and appending happen together, so
+     * the log holds puts to a key in the order they were applied.
+     *
+     * @param logged supplies the data to log once the put has been applied
+     */
+    private Enum<?> putLogged(Number640 key, Supplier<Data> logged, Supplier<Enum<?>> put) {
+        if (writeAheadLog == null) {
+            return put.get();
         }
-        return super.put(key, newData, publicKey, putIfAbsent, domainProtection, sendSelf);
+        Enum<?> status;
+        long position;
+        synchronized (writeAheadLog) {
+            status = put.get();
+            Data data;
+            if (status != PutStatus.OK || (data = logged.get()) == null) {
+                return status;
+            }
+            position = writeAheadLog.appendPut(key, data);
+        }
+        return awaitDurable(position) ? status : PutStatus.FAILED;
+    }
+
+    private boolean awaitDurable(long position) {
+        try {
+            writeAheadLog.awaitDurable(position);
+            return true;
+        } catch (IOException e) {
+            logger.error("Failed to sync write-ahead log", e);
+            return false;
+        }
+    }
+
+    /**
+     * Applies a put once the data has been validated. This is called on the
+     * I/O thread, so if validation has to look up the owner of the signing
+     * key in the network, the put is parked instead. It is then reported as
+     * {@link PutStatus#OK_PREPARED}, so that the peer is not told it was
+     * stored before it has been validated and logged.
+     */
+    private Enum<?> putWhenValid(IncomingDataValidator.Incoming incoming,
+                                 Supplier<Enum<?>> put) {
+        Number640 key = incoming.key();
+        ListenableFuture<Boolean> validation = incomingDataValidator.validateAsync(incoming);
+        if (validation.isDone()) {
+            if (!Futures.getUnchecked(validation)) {
+                return PutStatus.FAILED_SECURITY;
+            }
+            pendingValidations.supersede(key);
+            return put.get();
+        }
+        if (!pendingValidations.park(key, validation, put::get)) {
+            logger.warn("Too many puts awaiting validation; rejecting put to {}", key);
+            return PutStatus.FAILED;
+        }
+        return PutStatus.OK_PREPARED;
     }
 
     @Override
     public Map<Number640, Enum<?>> putAll(NavigableMap<Number640, Data> dataMap, PublicKey
             publicKey, boolean putIfAbsent, boolean domainProtection, boolean sendSelf) {
-        Map<Number640, Enum<?>> failedValidation = new HashMap<>();
-        NavigableMap<Number640, Data> passThrough = new TreeMap<>();
+        // Entries that can be validated locally are validated together; the
+        // rest wait for their owners to be looked up. Each is parsed once for
+        // both.
+        List<IncomingDataValidator.Incoming> local = new ArrayList<>();
+        Map<Number640, Enum<?>> earlyResults = new HashMap<>();
         for (Map.Entry<Number640, Data> kv : dataMap.entrySet()) {
-            if (!incomingDataValidator.validate(kv.getKey().domainKey(), kv.getValue())) {
-                failedValidation.put(kv.getKey(), PutStatus.FAILED_SECURITY);
+            IncomingDataValidator.Incoming incoming =
+                    incomingDataValidator.parse(kv.getKey(), kv.getValue());
+            if (incomingDataValidator.needsOwnerLookup(incoming)) {
+                earlyResults.put(kv.getKey(), putWhenValid(incoming,
+                        () -> putLogged(kv.getKey(), kv::getValue, () -> super.put(kv.getKey(),
+                                kv.getValue(), publicKey, putIfAbsent, domainProtection,
+                                sendSelf))));
             } else {
-                passThrough.put(kv.getKey(), kv.getValue());
+                local.add(incoming);
             }
         }
-        Map<Number640, Enum<?>> superResults = super.putAll(passThrough, publicKey, putIfAbsent,
+        NavigableMap<Number640, Data> passThrough = new TreeMap<>();
+        BitSet valid = incomingDataValidator.validateAll(local);
+        for (int i = 0; i < local.size(); i++) {
+            Number640 key = local.get(i).key();
+            if (!valid.get(i)) {
+                earlyResults.put(key, PutStatus.FAILED_SECURITY);
+            } else {
+                pendingValidations.supersede(key);
+                passThrough.put(key, dataMap.get(key));
+            }
+        }
+        Map<Number640, Enum<?>> superResults = putAllLogged(passThrough, publicKey, putIfAbsent,
                 domainProtection, sendSelf);
-        return Stream.of(failedValidation, superResults) // merge maps
+        return Stream.of(earlyResults, superResults) // merge maps
                 .map(Map::entrySet)
                 .flatMap(Collection::stream)
                 .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
     }
+
+    /**
+     * Applies a batch of validated puts and, if there is a write-ahead log,
+     * logs the ones that succeed with a single sync for the whole batch.
+     */
+    private Map<Number640, Enum<?>> putAllLogged(NavigableMap<Number640, Data> dataMap,
+            PublicKey publicKey, boolean putIfAbsent, boolean domainProtection,
+            boolean sendSelf) {
+        if (writeAheadLog == null) {
+            return super.putAll(dataMap, publicKey, putIfAbsent, domainProtection, sendSelf);
+        }
+        Map<Number640, Enum<?>> results;
+        long position;
+        synchronized (writeAheadLog) {
+            results = super.putAll(dataMap, publicKey, putIfAbsent, domainProtection, sendSelf);
+            position = writeAheadLog.size();
+            for (Map.Entry<Number640, Enum<?>> kv : results.entrySet()) {
+                if (kv.getValue() == PutStatus.OK) {
+                    position = writeAheadLog.appendPut(kv.getKey(), dataMap.get(kv.getKey()));
+                }
+            }
+        }
+        if (awaitDurable(position)) {
+            return results;
+        }
+        Map<Number640, Enum<?>> failed = new HashMap<>();
+        results.forEach((key, status) -> failed.put(key,
+                status == PutStatus.OK ? PutStatus.FAILED : status));
+        return failed;
+    }
 }
@@ -0,0 +1,436 @@
+package moe.cdn.cweb.dht.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import net.tomp2p.dht.Storage;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+/**
+ * Write-ahead log of the puts and removals accepted by a
+ * {@link ValidatedStorageLayer}, replayed into the backing {@link Storage}
+ * when the log is opened.
+ * <p>
+ * Appending a record only writes it to the file. A caller that needs the
+ * record to survive a crash then waits in {@link #awaitDurable(long)}. One
+ * waiter at a time forces the file to the disk, and that covers every record
+ * appended before the force began. Callers that arrive while a force is
+ * running wait for the next one, so concurrent puts share their fsyncs.
+ * <p>
+ * Records are framed with their length and a CRC32 of their body; replay
+ * stops at the first torn record and cuts it off. Puts record when they
+ * expire rather than their TTL, so that replay does not extend them.
+ * <p>
+ * Once the file grows to several times its size after the last compaction,
+ * it is compacted in the background: the latest record of every key that
+ * still has an unexpired value is copied as it is into a new file, which then
+ * replaces the log. Positions handed out by appends count every byte ever
+ * appended, so they stay valid across compactions.
+ */
+class WriteAheadLog implements Closeable {
+    private static final Logger logger = LogManager.getLogger();
+    static final String FILE_NAME = "storage.wal";
+
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+
+    private static final int FRAME_BYTES = 8;
+    private static final int HEADER_BYTES = 1 + SegmentLog.KEY_BYTES;
+    private static final int COMPACTION_RATIO = 4;
+    private static final long MIN_COMPACTION_BYTES = 1 << 20;
+
+    private final Path path;
+    private FileChannel channel;
+    private long writePosition;
+    /**
+     * Position of the first byte of the current file.
+     */
+    private long fileStart;
+    /**
+     * Size of the file after the last compaction, or an estimate of it.
+     */
+    private long compactedBytes;
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final ExecutorService compactor;
+
+    private final Object syncMonitor = new Object();
+    private boolean syncing;
+    private long durablePosition;
+    private final AtomicLong syncCount = new AtomicLong();
+
+    private WriteAheadLog(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.compactor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("wal-compaction-%d").build());
+    }
+
+    /**
+     * Opens the log in a directory and replays it into a storage. The log is
+     * compacted afterwards if it has grown to several times the size of the
+     * data in the storage.
+     *
+     * @param directory directory of the log
+     * @param storage   storage to replay into
+     * @return the log, ready for appending
+     */
+    static WriteAheadLog open(Path directory, Storage storage) throws IOException {
+        Files.createDirectories(directory);
+        WriteAheadLog log = new WriteAheadLog(directory.resolve(FILE_NAME));
+        int records = log.replay(storage);
+        NavigableMap<Number640, Data> data = storage.map();
+        logger.info("Replayed {} write-ahead log records into {} entries", records, data.size());
+        synchronized (log) {
+            log.compactedBytes = data.values().stream().mapToLong(Data::length).sum();
+        }
+        if (log.needsCompaction()) {
+            log.compact();
+        }
+        return log;
+    }
+
+    private synchronized int replay(Storage storage) throws IOException {
+        int records = 0;
+        long validBytes = 0;
+        long now = System.currentTimeMillis();
+        channel.position(0);
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel)));
+        CRC32 crc = new CRC32();
+        while (true) {
+            byte[] body;
+            try {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < HEADER_BYTES || validBytes + FRAME_BYTES + length > channel.size()) {
+                    logger.warn("Truncated record at offset {} of {}", validBytes, path);
+                    break;
+                }
+                body = new byte[length];
+                in.readFully(body);
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) {
+                    logger.warn("Corrupt record at offset {} of {}", validBytes, path);
+                    break;
+                }
+            } catch (EOFException e) {
+                break;
+            }
+            apply(ByteBuffer.wrap(body), storage, now);
+            validBytes += FRAME_BYTES + body.length;
+            records++;
+        }
+        channel.truncate(validBytes);
+        channel.position(validBytes);
+        writePosition = validBytes;
+        durablePosition = validBytes;
+        return records;
+    }
+
+    private static void apply(ByteBuffer body, Storage storage, long now) {
+        byte type = body.get();
+        Number640 key = SegmentLog.readKey(body);
+        switch (type) {
+            case PUT:
+                long expiration = body.getLong();
+                int ttlSeconds = body.getInt();
+                byte[] value = new byte[body.remaining()];
+                body.get(value);
+                if (expiration <= now) {
+                    // Expired while the node was down
+                    storage.remove(key, false);
+                    storage.removeTimeout(key);
+                    break;
+                }
+                storage.put(key, new Data(value).ttlSeconds(ttlSeconds));
+                if (expiration != Long.MAX_VALUE) {
+                    storage.addTimeout(key, expiration);
+                }
+                break;
+            case REMOVE:
+                storage.remove(key, false);
+                storage.removeTimeout(key);
+                break;
+            default:
+                throw new IllegalStateException("Unknown write-ahead log record type " + type);
+        }
+    }
+
+    /**
+     * Appends a put.
+     *
+     * @return position to wait for with {@link #awaitDurable(long)}
+     */
+    synchronized long appendPut(Number640 key, Data data) {
+        byte[] value = data.toBytes();
+        long expiration = data.ttlSeconds() > 0
+                ? System.currentTimeMillis() + data.ttlSeconds() * 1000L : Long.MAX_VALUE;
+        return append(header(PUT, key, 12 + value.length).putLong(expiration)
+                .putInt(data.ttlSeconds()).put(value));
+    }
+
+    /**
+     * Appends a removal.
+     *
+     * @return position to wait for with {@link #awaitDurable(long)}
+     */
+    synchronized long appendRemove(Number640 key) {
+        return append(header(REMOVE, key, 0));
+    }
+
+    private synchronized boolean needsCompaction() {
+        return writePosition - fileStart
+                > COMPACTION_RATIO * Math.max(compactedBytes, MIN_COMPACTION_BYTES);
+    }
+
+    /**
+     * Replaces the log with one holding only the latest record of each key
+     * that still has a value. Records are copied as they are, so puts keep
+     * the expiration they were logged with. Appends are only held up while
+     * the records appended during the compaction are copied over.
+     */
+    void compact() throws IOException {
+        long end;
+        synchronized (this) {
+            end = writePosition - fileStart;
+        }
+        logger.info("Compacting {} bytes of write-ahead log", end);
+        // The log only grows while it is read, so everything before the end
+        // is complete and stays where it is
+        Map<Number640, Long> latest = new HashMap<>();
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            forEachRecord(in, end, (offset, body) -> {
+                body.get();
+                latest.put(SegmentLog.readKey(body), offset);
+            });
+        }
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        long now = System.currentTimeMillis();
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream copy = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(out)));
+            forEachRecord(in, end, (offset, body) -> {
+                byte type = body.get();
+                Number640 key = SegmentLog.readKey(body);
+                // A removal is only needed to cancel earlier puts, and those
+                // are not copied
+                if (type != PUT || latest.get(key) != offset || body.getLong() <= now) {
+                    return;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(body.array(), 0, body.limit());
+                copy.writeInt(body.limit());
+                copy.writeInt((int) crc.getValue());
+                copy.write(body.array(), 0, body.limit());
+            });
+            copy.flush();
+            // Only what is appended meanwhile is left to force under the lock
+            out.force(false);
+            synchronized (this) {
+                FileChannel previous = channel;
+                long tail = writePosition - fileStart;
+                for (long copied = end; copied < tail; ) {
+                    copied += previous.transferTo(copied, tail - copied, out);
+                }
+                out.force(false);
+                long size = out.size();
+                Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                channel = FileChannel.open(path, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                channel.position(size);
+                fileStart = writePosition - size;
+                compactedBytes = size;
+                synchronized (syncMonitor) {
+                    // Everything appended so far is in the forced file
+                    durablePosition = Math.max(durablePosition, writePosition);
+                    syncMonitor.notifyAll();
+                }
+                previous.close();
+                logger.info("Compacted write-ahead log to {} bytes", size);
+            }
+        } finally {
+            Files.deleteIfExists(compacted);
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to compact " + path, e);
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    private interface RecordVisitor {
+        void visit(long offset, ByteBuffer body) throws IOException;
+    }
+
+    /**
+     * Reads the records in the first {@code end} bytes of a file, which must
+     * all be intact.
+     */
+    private static void forEachRecord(FileChannel file, long end, RecordVisitor visitor)
+            throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(file.position(0))));
+        for (long offset = 0; offset < end; ) {
+            int length = in.readInt();
+            in.readInt();
+            byte[] body = new byte[length];
+            in.readFully(body);
+            visitor.visit(offset, ByteBuffer.wrap(body));
+            offset += FRAME_BYTES + length;
+        }
+    }
+
+    /**
+     * Waits until everything up to a position is on the disk, forcing the
+     * file if no other caller is already doing so.
+     *
+     * @param position position returned by an append
+     */
+    void awaitDurable(long position) throws IOException {
+        while (true) {
+            synchronized (syncMonitor) {
+                while (syncing && durablePosition < position) {
+                    try {
+                        syncMonitor.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted awaiting " + path);
+                    }
+                }
+                if (durablePosition >= position) {
+                    return;
+                }
+                syncing = true;
+            }
+            long target;
+            FileChannel toForce;
+            synchronized (this) {
+                target = writePosition;
+                toForce = channel;
+            }
+            boolean forced = false;
+            try {
+                toForce.force(false);
+                syncCount.incrementAndGet();
+                forced = true;
+            } catch (ClosedChannelException e) {
+                // Replaced by a compaction, which forced everything up to
+                // where it replaced the file; anything later is forced on
+                // the next round
+                synchronized (this) {
+                    if (toForce == channel) {
+                        throw e;
+                    }
+                }
+            } finally {
+                synchronized (syncMonitor) {
+                    syncing = false;
+                    if (forced) {
+                        durablePosition = Math.max(durablePosition, target);
+                    }
+                    syncMonitor.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of times the file has been forced to the disk
+     */
+    long syncCount() {
+        return syncCount.get();
+    }
+
+    synchronized long size() {
+        return writePosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // A compaction in progress needs the lock to finish, so it is waited
+        // for before the lock is taken
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted closing " + path);
+        }
+        synchronized (this) {
+            channel.force(false);
+            channel.close();
+        }
+    }
+
+    private static ByteBuffer header(byte type, Number640 key, int payloadBytes) {
+        ByteBuffer body = ByteBuffer.allocate(HEADER_BYTES + payloadBytes);
+        body.put(type);
+        SegmentLog.writeKey(body, key);
+        return body;
+    }
+
+    private long append(ByteBuffer body) {
+        body.flip();
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, body.limit());
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_BYTES);
+        frame.putInt(body.limit()).putInt((int) crc.getValue()).flip();
+        try {
+            while (frame.hasRemaining() || body.hasRemaining()) {
+                channel.write(new ByteBuffer[] {frame, body});
+            }
+        } catch (IOException e) {
+            throw new StorageException("Cannot append to " + path, e);
+        }
+        writePosition += FRAME_BYTES + body.limit();
+        if (needsCompaction() && compacting.compareAndSet(false, true)) {
+            try {
+                compactor.execute(this::compactQuietly);
+            } catch (RejectedExecutionException e) {
+                // Closing
+                compacting.set(false);
+            }
+        }
+        return writePosition;
+    }
+}
@@ -0,0 +1,186 @@
+package moe.cdn.cweb.dht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+
+import moe.cdn.cweb.SecurityProtos.Hash;
+import moe.cdn.cweb.TorrentTrustProtos.SignedUser;
+import moe.cdn.cweb.TorrentTrustProtos.User;
+import moe.cdn.cweb.security.CwebId;
+import moe.cdn.cweb.security.CwebMisc;
+
+public class CachingCwebMultiMapTest {
+    private static final CwebId KEY = CwebId.fromInt(1);
+    private static final CwebId SUB_KEY = CwebId.fromInt(2);
+    private static final Hash HASH_A = Hash.newBuilder()
+            .setHashValue(ByteString.copyFromUtf8("a")).build();
+    private static final Hash HASH_B = Hash.newBuilder()
+            .setHashValue(ByteString.copyFromUtf8("b")).build();
+    private static final SignedUser USER_A = SignedUser.newBuilder()
+            .setUser(User.newBuilder().setHandle("User A")).build();
+    private static final SignedUser USER_B = SignedUser.newBuilder()
+            .setUser(User.newBuilder().setHandle("User B")).build();
+
+    @Mock
+    private CwebMultiMap<SignedUser> delegate;
+
+    private CachingCwebMultiMap<SignedUser> cachingMap;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        cachingMap = new CachingCwebMultiMap<>(delegate, CwebMisc.CWEB_ID_REDUCER, 1,
+                TimeUnit.HOURS, 100);
+    }
+
+    @Test
+    public void testConcurrentGetsShareRequest() throws Exception {
+        SettableFuture<SignedUser> inFlight = SettableFuture.create();
+        when(delegate.get(KEY)).thenReturn(inFlight);
+
+        ListenableFuture<SignedUser> first = cachingMap.get(KEY);
+        ListenableFuture<SignedUser> second = cachingMap.get(KEY);
+        inFlight.set(USER_A);
+
+        assertSame(USER_A, first.get());
+        assertSame(USER_A, second.get());
+        assertSame(USER_A, cachingMap.get(KEY).get());
+        verify(delegate, times(1)).get(KEY);
+    }
+
+    @Test
+    public void testFailedLookupIsNotCached() throws Exception {
+        when(delegate.get(KEY)).thenReturn(Futures.immediateFailedFuture(new RuntimeException()),
+                Futures.immediateFuture(USER_A));
+
+        assertTrue(isFailed(cachingMap.get(KEY)));
+        assertSame(USER_A, cachingMap.get(KEY).get());
+        verify(delegate, times(2)).get(KEY);
+    }
+
+    @Test
+    public void testAbsentValueIsNotCached() throws Exception {
+        when(delegate.get(KEY)).thenReturn(Futures.immediateFuture(null),
+                Futures.immediateFuture(USER_A));
+
+        assertNull(cachingMap.get(KEY).get());
+        assertSame(USER_A, cachingMap.get(KEY).get());
+        assertSame(USER_A, cachingMap.get(KEY).get());
+        verify(delegate, times(2)).get(KEY);
+    }
+
+    @Test
+    public void testEmptyBucketIsNotCached() throws Exception {
+        Collection<SignedUser> bucketA = Collections.singletonList(USER_A);
+        when(delegate.all(KEY)).thenReturn(
+                Futures.immediateFuture(Collections.<SignedUser>emptyList()),
+                Futures.immediateFuture(bucketA));
+
+        assertTrue(cachingMap.all(KEY).get().isEmpty());
+        assertSame(bucketA, cachingMap.all(KEY).get());
+    }
+
+    @Test
+    public void testPutInvalidatesLinkedMap() throws Exception {
+        @SuppressWarnings("unchecked")
+        CwebMultiMap<SignedUser> otherDelegate = mock(CwebMultiMap.class);
+        CachingCwebMultiMap<SignedUser> otherMap = new CachingCwebMultiMap<>(otherDelegate,
+                CwebMisc.CWEB_ID_REDUCER, 1, TimeUnit.HOURS, 100);
+        cachingMap.invalidatesAlso(otherMap);
+        when(otherDelegate.get(KEY)).thenReturn(Futures.immediateFuture(USER_A),
+                Futures.immediateFuture(USER_B));
+        when(delegate.put(KEY, USER_B)).thenReturn(Futures.immediateFuture(true));
+
+        assertSame(USER_A, otherMap.get(KEY).get());
+        cachingMap.put(KEY, USER_B).get();
+
+        assertSame(USER_B, otherMap.get(KEY).get());
+        verify(otherDelegate, times(2)).get(KEY);
+    }
+
+    @Test
+    public void testPutInvalidatesKeyAndSubKeys() throws Exception {
+        when(delegate.get(KEY)).thenReturn(Futures.immediateFuture(USER_A),
+                Futures.immediateFuture(USER_B));
+        when(delegate.get(KEY, SUB_KEY)).thenReturn(Futures.immediateFuture(USER_A),
+                Futures.immediateFuture(USER_B));
+        when(delegate.put(KEY, USER_B)).thenReturn(Futures.immediateFuture(true));
+
+        assertSame(USER_A, cachingMap.get(KEY).get());
+        assertSame(USER_A, cachingMap.get(KEY, SUB_KEY).get());
+        cachingMap.put(KEY, USER_B).get();
+
+        assertSame(USER_B, cachingMap.get(KEY).get());
+        assertSame(USER_B, cachingMap.get(KEY, SUB_KEY).get());
+        verify(delegate, times(2)).get(KEY);
+    }
+
+    @Test
+    public void testBatchOnlyLooksUpUncachedKeys() throws Exception {
+        Collection<SignedUser> bucketA = Collections.singletonList(USER_A);
+        Collection<SignedUser> bucketB = Collections.singletonList(USER_B);
+        when(delegate.all(CwebMisc.CWEB_ID_REDUCER.apply(HASH_A)))
+                .thenReturn(Futures.immediateFuture(bucketA));
+        Map<Hash, Collection<SignedUser>> foundB = new LinkedHashMap<>();
+        foundB.put(HASH_B, bucketB);
+        when(delegate.allOf(Collections.singletonList(HASH_B)))
+                .thenReturn(Futures.immediateFuture(foundB));
+
+        cachingMap.all(HASH_A).get();
+        Map<Hash, Collection<SignedUser>> found =
+                cachingMap.allOf(Arrays.asList(HASH_A, HASH_B, HASH_A)).get();
+
+        assertEquals(Arrays.asList(HASH_A, HASH_B), new ArrayList<>(found.keySet()));
+        assertSame(bucketA, found.get(HASH_A));
+        assertSame(bucketB, found.get(HASH_B));
+        // The batch result is cached for single lookups
+        assertSame(bucketB, cachingMap.all(HASH_B).get());
+        verify(delegate, times(1)).allOf(Collections.singletonList(HASH_B));
+    }
+
+    @Test
+    public void testKeyMissingFromBatchIsNotCached() throws Exception {
+        when(delegate.allOf(Collections.singletonList(HASH_A)))
+                .thenReturn(Futures.immediateFuture(
+                        Collections.<Hash, Collection<SignedUser>>emptyMap()));
+        Collection<SignedUser> bucketA = Collections.singletonList(USER_A);
+        when(delegate.all(CwebMisc.CWEB_ID_REDUCER.apply(HASH_A)))
+                .thenReturn(Futures.immediateFuture(bucketA));
+
+        assertTrue(cachingMap.allOf(Collections.singletonList(HASH_A)).get().isEmpty());
+        assertSame(bucketA, cachingMap.all(HASH_A).get());
+    }
+
+    private static boolean isFailed(ListenableFuture<?> future) {
+        try {
+            future.get();
+            return false;
+        } catch (Exception e) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package moe.cdn.cweb.dht.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+import moe.cdn.cweb.SecurityProtos.Key;
+import moe.cdn.cweb.TorrentTrustProtos.SignedUser;
+import moe.cdn.cweb.TorrentTrustProtos.User;
+import moe.cdn.cweb.dht.internal.tomp2pcompat.GetResponse;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+public class CwebGetResultsImplTest {
+    private static final Key KEY_A = Key.newBuilder().setRaw(ByteString.copyFromUtf8("key a"))
+            .build();
+    private static final Key KEY_B = Key.newBuilder().setRaw(ByteString.copyFromUtf8("key b"))
+            .build();
+    private static final SignedUser USER_A = SignedUser.newBuilder()
+            .setUser(User.newBuilder().setHandle("User A").setPublicKey(KEY_A)).build();
+    private static final SignedUser USER_B = SignedUser.newBuilder()
+            .setUser(User.newBuilder().setHandle("User B").setPublicKey(KEY_B)).build();
+
+    private CwebGetResults<SignedUser> results;
+
+    @Before
+    public void setUp() {
+        Map<Number640, Data> dataMap = new LinkedHashMap<>();
+        dataMap.put(key(1), new Data(USER_A.toByteArray()));
+        // Not a valid message
+        dataMap.put(key(2), new Data(new byte[] {-1, -1, -1}));
+        dataMap.put(key(3), new Data(USER_B.toByteArray()));
+        GetResponse response = mock(GetResponse.class);
+        when(response.dataMap()).thenReturn(dataMap);
+        when(response.data()).thenReturn(dataMap.get(key(1)));
+        results = new CwebGetResultsImpl<>(SignedUser.PARSER, response);
+    }
+
+    @Test
+    public void testSizeCountsWithoutDecoding() {
+        assertEquals(3, results.size());
+        assertEquals(Arrays.asList(USER_A, USER_B), results.all());
+    }
+
+    @Test
+    public void testContainingFiltersOnEncoding() {
+        CwebGetResults<SignedUser> ofB = results.containing(KEY_B.toByteString());
+        assertEquals(1, ofB.size());
+        assertEquals(Collections.singletonList(USER_B), ofB.all());
+        assertEquals(USER_B, ofB.one());
+        assertEquals(USER_A, results.one());
+
+        CwebGetResults<SignedUser> none = ofB.containing(KEY_A.toByteString());
+        assertEquals(0, none.size());
+        assertNull(none.one());
+    }
+
+    @Test
+    public void testIndexOf() {
+        byte[] haystack = {1, 2, 3, 2, 3, 4};
+        assertEquals(1, CwebGetResultsImpl.indexOf(haystack, new byte[] {2, 3}));
+        assertEquals(3, CwebGetResultsImpl.indexOf(haystack, new byte[] {2, 3, 4}));
+        assertEquals(0, CwebGetResultsImpl.indexOf(haystack, new byte[0]));
+        assertEquals(-1, CwebGetResultsImpl.indexOf(haystack, new byte[] {4, 5}));
+    }
+
+    private static Number640 key(int contentKey) {
+        return new Number640(Number160.ONE, Number160.ONE, new Number160(contentKey),
+                Number160.ZERO);
+    }
+}
@@ -0,0 +1,187 @@
+package moe.cdn.cweb.dht.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import moe.cdn.cweb.TorrentTrustProtos.SignedUser;
+import moe.cdn.cweb.dht.util.Number160s;
+import moe.cdn.cweb.security.CwebId;
+import net.tomp2p.dht.FutureGet;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+
+public class CwebNodeTest {
+    private static final CwebId KEY = CwebId.fromInt(1);
+    private static final CwebId OTHER_KEY = CwebId.fromInt(2);
+    private static final List<CwebId> BATCH = Arrays.asList(CwebId.fromInt(11),
+            CwebId.fromInt(12), CwebId.fromInt(13), CwebId.fromInt(14));
+
+    private AtomicInteger requests;
+    private CwebNode<SignedUser> cwebNode;
+
+    @Before
+    public void setUp() {
+        requests = new AtomicInteger();
+        // Requests started here never complete, so they stay in flight
+        cwebNode = new CwebNode<SignedUser>(null, Number160.ONE, SignedUser.PARSER) {
+            @Override
+            protected FutureGet startAllData(Number160 locationKey) {
+                requests.incrementAndGet();
+                return mock(FutureGet.class);
+            }
+
+            @Override
+            protected FutureGet startGetData(Number160 locationKey) {
+                requests.incrementAndGet();
+                return mock(FutureGet.class);
+            }
+
+            @Override
+            protected FutureGet startGetData(Number160 locationKey, Number160 contentKey) {
+                requests.incrementAndGet();
+                return mock(FutureGet.class);
+            }
+        };
+    }
+
+    @Test
+    public void testConcurrentLookupsShareRequest() {
+        cwebNode.get(KEY);
+        cwebNode.get(KEY);
+        cwebNode.all(KEY);
+        cwebNode.all(KEY);
+        assertEquals(2, requests.get());
+        assertEquals(2, cwebNode.getLookupsStarted());
+        assertEquals(2, cwebNode.getLookupsCoalesced());
+    }
+
+    @Test
+    public void testDifferentKeysDoNotShareRequest() {
+        cwebNode.get(KEY);
+        cwebNode.get(OTHER_KEY);
+        cwebNode.get(KEY, OTHER_KEY);
+        cwebNode.all(KEY);
+        assertEquals(4, requests.get());
+        assertEquals(0, cwebNode.getLookupsCoalesced());
+    }
+
+    @Test
+    public void testCancellingOneCallerLeavesOthers() {
+        ListenableFuture<CwebGetResults<SignedUser>> first = cwebNode.get(KEY);
+        ListenableFuture<CwebGetResults<SignedUser>> second = cwebNode.get(KEY);
+        first.cancel(true);
+        assertFalse(second.isCancelled());
+        cwebNode.get(KEY);
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testBatchBoundsRequestsInFlight() throws Exception {
+        BatchNode node = new BatchNode(2, new HashMap<>());
+        ListenableFuture<Map<CwebId, CwebGetResults<SignedUser>>> batch = node.all(BATCH);
+        assertEquals(2, node.started.size());
+
+        node.finish(BATCH.get(0));
+        assertEquals(3, node.started.size());
+        node.finish(BATCH.get(1));
+        node.finish(BATCH.get(2));
+        assertFalse(batch.isDone());
+        node.finish(BATCH.get(3));
+
+        assertEquals(BATCH, new ArrayList<>(batch.get().keySet()));
+    }
+
+    @Test
+    public void testBatchInterleavesPeersAndSkipsFailedKeys() throws Exception {
+        PeerAddress first = new PeerAddress(Number160.ONE);
+        PeerAddress second = new PeerAddress(Number160.MAX_VALUE);
+        Map<CwebId, PeerAddress> closestPeers = new HashMap<>();
+        closestPeers.put(BATCH.get(0), first);
+        closestPeers.put(BATCH.get(1), first);
+        closestPeers.put(BATCH.get(2), second);
+        closestPeers.put(BATCH.get(3), second);
+        BatchNode node = new BatchNode(1, closestPeers);
+        ListenableFuture<Map<CwebId, CwebGetResults<SignedUser>>> batch = node.all(BATCH);
+
+        node.finish(BATCH.get(0));
+        node.finish(BATCH.get(2));
+        node.finish(BATCH.get(1));
+        node.lookups.get(BATCH.get(3)).setException(new RuntimeException());
+
+        assertEquals(Arrays.asList(BATCH.get(0), BATCH.get(2), BATCH.get(1), BATCH.get(3)),
+                node.started);
+        // Results are in the order of the keys, not of the lookups
+        assertEquals(BATCH.subList(0, 3), new ArrayList<>(batch.get().keySet()));
+    }
+
+    @Test
+    public void testBatchOfImmediateFailuresDoesNotRecurse() throws Exception {
+        List<CwebId> keys = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            keys.add(CwebId.fromInt(i));
+        }
+        BatchNode node = new BatchNode(2, new HashMap<>()) {
+            @Override
+            public ListenableFuture<CwebGetResults<SignedUser>> all(CwebId key) {
+                return Futures.immediateFailedFuture(new RuntimeException());
+            }
+        };
+        assertTrue(node.all(keys).get().isEmpty());
+    }
+
+    @Test
+    public void testEmptyBatchCompletes() throws Exception {
+        BatchNode node = new BatchNode(2, new HashMap<>());
+        assertTrue(node.all(new ArrayList<>()).get().isEmpty());
+    }
+
+    /**
+     * Node whose lookups finish when the test says so.
+     */
+    private static class BatchNode extends CwebNode<SignedUser> {
+        final List<CwebId> started = new ArrayList<>();
+        final Map<CwebId, SettableFuture<CwebGetResults<SignedUser>>> lookups = new HashMap<>();
+        private final Map<CwebId, PeerAddress> closestPeers;
+
+        BatchNode(int maxBatchInFlight, Map<CwebId, PeerAddress> closestPeers) {
+            super(null, Number160.ONE, SignedUser.PARSER, maxBatchInFlight);
+            this.closestPeers = closestPeers;
+        }
+
+        @Override
+        public ListenableFuture<CwebGetResults<SignedUser>> all(CwebId key) {
+            SettableFuture<CwebGetResults<SignedUser>> lookup = SettableFuture.create();
+            started.add(key);
+            lookups.put(key, lookup);
+            return lookup;
+        }
+
+        @Override
+        protected PeerAddress closestPeer(Number160 locationKey) {
+            return closestPeers.entrySet().stream()
+                    .filter(e -> Number160s.fromCwebId(e.getKey()).equals(locationKey))
+                    .map(Map.Entry::getValue).findFirst().orElse(null);
+        }
+
+        @SuppressWarnings("unchecked")
+        void finish(CwebId key) {
+            lookups.get(key).set(mock(CwebGetResults.class));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package moe.cdn.cweb.dht.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class DecodingExecutorTest {
+
+    @Test
+    public void testMetricsTrackQueuedAndRunningTasks() throws Exception {
+        DecodingExecutor executor = DecodingExecutor.bounded(1, 4);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        executor.execute(() -> {
+            started.countDown();
+            await(release);
+            done.countDown();
+        });
+        executor.execute(done::countDown);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertEquals(1, executor.getActiveThreads());
+        assertEquals(1, executor.getQueueDepth());
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        waitForCompleted(executor, 2);
+        assertEquals(0, executor.getActiveThreads());
+        assertEquals(0, executor.getQueueDepth());
+        assertTrue(executor.getMaxTaskLatencyNanos() >= executor.getMeanTaskLatencyNanos());
+        assertTrue(executor.getMeanTaskLatencyNanos() > 0);
+        executor.shutdown();
+    }
+
+    @Test
+    public void testFullQueueRejectsInsteadOfBlocking() throws Exception {
+        DecodingExecutor executor = DecodingExecutor.bounded(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        executor.execute(() -> {
+            await(release);
+            done.countDown();
+        });
+        executor.execute(done::countDown);
+        try {
+            executor.execute(done::countDown);
+            fail("Expected the task to be rejected");
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+
+        assertEquals(1, executor.getRejectedTasks());
+        assertEquals(1, executor.getQueueDepth());
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRejectionFailsTransformedFuture() throws Exception {
+        DecodingExecutor executor = DecodingExecutor.bounded(1, 1);
+        executor.shutdown();
+        ListenableFuture<Integer> decoded = Futures.transform(Futures.immediateFuture(1),
+                (Function<Integer, Integer>) i -> i + 1, executor);
+        try {
+            decoded.get();
+            fail("Expected the transform to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void testVirtualModeRunsTasks() throws Exception {
+        // Falls back to a bounded executor on JDKs without virtual threads
+        DecodingExecutor executor = DecodingExecutor.create(DecodingExecutor.Mode.VIRTUAL, 1, 1);
+        CountDownLatch done = new CountDownLatch(1);
+        executor.execute(done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        waitForCompleted(executor, 1);
+        executor.shutdown();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void waitForCompleted(DecodingExecutor executor, long tasks)
+            throws InterruptedException {
+        // Tasks are counted after they return
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (executor.getCompletedTasks() < tasks && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(tasks, executor.getCompletedTasks());
+    }
+}
@@ -0,0 +1,195 @@
+package moe.cdn.cweb.dht.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+
+public class ReplicationManagerTest {
+    private static final Number160 DOMAIN = Number160.createHash("vote");
+    private static final Number320 KEY_A = new Number320(new Number160(1), DOMAIN);
+    private static final Number320 KEY_B = new Number320(new Number160(2), DOMAIN);
+
+    private FakeTransport transport;
+    private ReplicationManager manager;
+
+    @Before
+    public void setUp() {
+        transport = new FakeTransport();
+        transport.replicas.put(KEY_A, 0);
+        transport.replicas.put(KEY_B, 2);
+        transport.peers = 5;
+        manager = new ReplicationManager(transport, 3, 1e9, 1e9);
+    }
+
+    @Test
+    public void testRoundReplicatesUnderReplicatedKeys() {
+        ListenableFuture<Void> converged = manager.awaitConvergence();
+        manager.runRound();
+
+        assertEquals(1, manager.getReplicaCount(KEY_A));
+        assertEquals(3, manager.getReplicaCount(KEY_B));
+        assertEquals(1, manager.getBacklog());
+        assertEquals(1, transport.replicated.size());
+        assertEquals(KEY_A, transport.replicated.get(0));
+        assertEquals(FakeTransport.BYTES, manager.getBytesReplicated());
+        assertFalse(converged.isDone());
+
+        // The put reached two more peers
+        transport.replicas.put(KEY_A, 2);
+        manager.runRound();
+        assertEquals(0, manager.getBacklog());
+        assertEquals(0, manager.getReplicationLagMillis());
+        assertTrue(converged.isDone());
+    }
+
+    @Test
+    public void testTargetIsCappedByKnownPeers() {
+        transport.peers = 0;
+        ListenableFuture<Void> converged = manager.awaitConvergence();
+        manager.runRound();
+        assertEquals(0, manager.getBacklog());
+        assertTrue(transport.replicated.isEmpty());
+        assertTrue(converged.isDone());
+    }
+
+    @Test
+    public void testFailedProbeLeavesKeyInBacklog() {
+        transport.failProbes = true;
+        ListenableFuture<Void> converged = manager.awaitConvergence();
+        manager.runRound();
+        assertEquals(2, manager.getBacklog());
+        assertTrue(manager.getReplicationLagMillis() >= 0);
+        assertTrue(transport.replicated.isEmpty());
+        assertFalse(converged.isDone());
+    }
+
+    @Test
+    public void testConvergenceTimesOut() throws Exception {
+        transport.failProbes = true;
+        ListenableFuture<Void> converged = manager.awaitConvergence(10, TimeUnit.MILLISECONDS);
+        manager.runRound();
+        try {
+            converged.get(5, TimeUnit.SECONDS);
+            fail("Converged with failing probes");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void testConvergenceTimesOutDuringRound() throws Exception {
+        transport.blockProbes = new CountDownLatch(1);
+        manager.start(1, TimeUnit.HOURS);
+        try {
+            manager.awaitConvergence(10, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS);
+            fail("Converged while the round was blocked");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        } finally {
+            transport.blockProbes.countDown();
+            manager.shutdown();
+        }
+    }
+
+    @Test
+    public void testProbesAskForTheOtherReplicas() {
+        manager.runRound();
+        assertEquals(2, transport.wanted);
+        transport.peers = 1;
+        manager.runRound();
+        assertEquals(1, transport.wanted);
+    }
+
+    @Test
+    public void testDomainsOfALocationAreTrackedApart() {
+        Number320 otherDomain = new Number320(KEY_A.locationKey(), Number160.createHash("user"));
+        transport.replicas.put(otherDomain, 2);
+        manager.runRound();
+        assertEquals(1, manager.getReplicaCount(KEY_A));
+        assertEquals(3, manager.getReplicaCount(otherDomain));
+        assertEquals(1, transport.replicated.size());
+        assertEquals(KEY_A, transport.replicated.get(0));
+    }
+
+    @Test
+    public void testShutdownCancelsWaiters() {
+        ListenableFuture<Void> converged = manager.awaitConvergence();
+        manager.shutdown();
+        assertTrue(converged.isCancelled());
+        assertTrue(manager.awaitConvergence().isCancelled());
+    }
+
+    @Test
+    public void testKeysNoLongerStoredAreForgotten() {
+        manager.runRound();
+        transport.replicas.remove(KEY_A);
+        manager.runRound();
+        assertEquals(0, manager.getReplicaCount(KEY_A));
+        assertEquals(0, manager.getBacklog());
+    }
+
+    private static class FakeTransport implements ReplicationManager.Transport {
+        static final long BYTES = 100;
+
+        final Map<Number320, Integer> replicas = new HashMap<>();
+        final List<Number320> replicated = new ArrayList<>();
+        int peers;
+        boolean failProbes;
+        volatile CountDownLatch blockProbes;
+        volatile int wanted;
+
+        @Override
+        public Collection<Number320> localKeys() {
+            return new ArrayList<>(replicas.keySet());
+        }
+
+        @Override
+        public int knownPeers() {
+            return peers;
+        }
+
+        @Override
+        public ListenableFuture<Integer> countReplicas(Number320 key, int wanted) {
+            this.wanted = wanted;
+            if (blockProbes != null) {
+                Uninterruptibles.awaitUninterruptibly(blockProbes);
+            }
+            if (failProbes) {
+                return Futures.immediateFailedFuture(new IllegalStateException("Timed out"));
+            }
+            return Futures.immediateFuture(replicas.get(key));
+        }
+
+        @Override
+        public long bytesToReplicate(Number320 key) {
+            return BYTES;
+        }
+
+        @Override
+        public ListenableFuture<Boolean> replicate(Number320 key) {
+            replicated.add(key);
+            return Futures.immediateFuture(true);
+        }
+    }
+}
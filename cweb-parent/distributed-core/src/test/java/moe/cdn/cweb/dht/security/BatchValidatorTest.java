@@ -0,0 +1,66 @@
+package moe.cdn.cweb.dht.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchValidatorTest {
+
+    private BatchValidator batchValidator;
+
+    @Before
+    public void setUp() {
+        batchValidator = new BatchValidator(4);
+    }
+
+    @After
+    public void tearDown() {
+        batchValidator.shutdown();
+    }
+
+    private static List<Integer> range(int size) {
+        return IntStream.range(0, size).boxed().collect(Collectors.toList());
+    }
+
+    @Test
+    public void testEmptyBatch() {
+        assertTrue(batchValidator.validateAll(Collections.emptyList(), x -> true).isEmpty());
+    }
+
+    @Test
+    public void testSmallBatch() {
+        BitSet valid = batchValidator.validateAll(range(3), x -> x != 1);
+        assertEquals(BitSet.valueOf(new long[] {0b101}), valid);
+    }
+
+    @Test
+    public void testLargeBatchMatchesSequential() {
+        List<Integer> items = range(1001);
+        BitSet valid = batchValidator.validateAll(items, x -> x % 3 == 0);
+        assertEquals(334, valid.cardinality());
+        for (int i = 0; i < items.size(); i++) {
+            assertEquals(i % 3 == 0, valid.get(i));
+        }
+    }
+
+    @Test
+    public void testThrowingValidatorIsInvalid() {
+        BitSet valid = batchValidator.validateAll(range(100), x -> {
+            if (x == 50) {
+                throw new IllegalStateException();
+            }
+            return true;
+        });
+        assertEquals(99, valid.cardinality());
+        assertTrue(!valid.get(50));
+    }
+}
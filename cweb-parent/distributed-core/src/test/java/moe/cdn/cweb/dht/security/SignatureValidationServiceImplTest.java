@@ -2,6 +2,8 @@ package moe.cdn.cweb.dht.security;
 
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.Optional;
@@ -12,6 +14,8 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 import moe.cdn.cweb.SecurityProtos.Hash;
 import moe.cdn.cweb.SecurityProtos.KeyPair;
@@ -76,4 +80,40 @@ public class SignatureValidationServiceImplTest {
                 SignatureUtils.signMessage(KEY_PAIR, SAMPLE_MESSAGE),
                 SAMPLE_MESSAGE.toByteArray()));
     }
+
+    @Test
+    public void testValidateAndCheckSignatureKeyInNetworkAsync() throws Exception {
+        SettableFuture<Optional<SignedUser>> owner = SettableFuture.create();
+        when(userKeyService.findOwner(KEY_PAIR.getPublicKey())).thenReturn(owner);
+        ListenableFuture<Boolean> valid =
+                signatureValidationService.validateAndCheckSignatureKeyInNetworkAsync(
+                        SignatureUtils.signMessage(KEY_PAIR, SAMPLE_MESSAGE), SAMPLE_MESSAGE);
+        assertFalse(valid.isDone());
+        owner.set(Optional.of(SIGNED_USER));
+        assertTrue(valid.get());
+    }
+
+    @Test
+    public void testValidateAndCheckSignatureKeyInNetworkAsyncOwnerNotFound() throws Exception {
+        when(userKeyService.findOwner(KEY_PAIR.getPublicKey()))
+                .thenReturn(Futures.immediateFuture(Optional.empty()));
+        assertFalse(signatureValidationService.validateAndCheckSignatureKeyInNetworkAsync(
+                SignatureUtils.signMessage(KEY_PAIR, SAMPLE_MESSAGE), SAMPLE_MESSAGE).get());
+        assertFalse(signatureValidationService.isOwnerKnown(KEY_PAIR.getPublicKey()));
+    }
+
+    @Test
+    public void testKnownOwnerSkipsLookup() throws Exception {
+        when(userKeyService.findOwner(KEY_PAIR.getPublicKey()))
+                .thenReturn(Futures.immediateFuture(Optional.of(SIGNED_USER)));
+        assertTrue(signatureValidationService.validateAndCheckSignatureKeyInNetwork(
+                SignatureUtils.signMessage(KEY_PAIR, SAMPLE_MESSAGE), SAMPLE_MESSAGE));
+        assertTrue(signatureValidationService.isOwnerKnown(KEY_PAIR.getPublicKey()));
+        ListenableFuture<Boolean> valid =
+                signatureValidationService.validateAndCheckSignatureKeyInNetworkAsync(
+                        SignatureUtils.signMessage(KEY_PAIR, SAMPLE_MESSAGE), SAMPLE_MESSAGE);
+        assertTrue(valid.isDone());
+        assertTrue(valid.get());
+        verify(userKeyService, times(1)).findOwner(KEY_PAIR.getPublicKey());
+    }
 }
@@ -0,0 +1,75 @@
+package moe.cdn.cweb.dht.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import moe.cdn.cweb.SecurityProtos.Hash;
+import moe.cdn.cweb.SecurityProtos.Key;
+import moe.cdn.cweb.SecurityProtos.KeyPair;
+import moe.cdn.cweb.SecurityProtos.Signature;
+import moe.cdn.cweb.security.utils.HashUtils;
+import moe.cdn.cweb.security.utils.KeyUtils;
+import moe.cdn.cweb.security.utils.SignatureUtils;
+
+public class SignatureVerificationCacheTest {
+    private static final KeyPair KEY_PAIR = KeyUtils.generateKeyPair();
+    private static final KeyPair KEY_PAIR_ALT = KeyUtils.generateKeyPair();
+    private static final Hash SAMPLE_MESSAGE = HashUtils.hashOf("Hello World");
+    private static final Hash OTHER_MESSAGE = HashUtils.hashOf("Goodbye World");
+
+    private SignatureVerificationCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new SignatureVerificationCache();
+    }
+
+    @Test
+    public void testValidSignatureIsRemembered() throws Exception {
+        Signature signature = SignatureUtils.signMessage(KEY_PAIR, SAMPLE_MESSAGE);
+        assertTrue(cache.validateMessage(signature, SAMPLE_MESSAGE.toByteArray()));
+        assertTrue(cache.validateMessage(signature, SAMPLE_MESSAGE.toByteArray()));
+        assertEquals(1, cache.verificationStats().hitCount());
+        assertEquals(1, cache.verificationStats().missCount());
+    }
+
+    @Test
+    public void testInvalidSignatureIsNotRemembered() throws Exception {
+        Signature signature = SignatureUtils.signMessage(KEY_PAIR, SAMPLE_MESSAGE);
+        assertFalse(cache.validateMessage(signature, OTHER_MESSAGE.toByteArray()));
+        assertFalse(cache.validateMessage(signature, OTHER_MESSAGE.toByteArray()));
+        assertEquals(0, cache.verificationStats().hitCount());
+        assertEquals("the key is still reused", 1, cache.publicKeyStats().hitCount());
+    }
+
+    @Test
+    public void testSignatureUnderOtherKeyMisses() throws Exception {
+        Signature signature = SignatureUtils.signMessage(KEY_PAIR, SAMPLE_MESSAGE);
+        assertTrue(cache.validateMessage(signature, SAMPLE_MESSAGE.toByteArray()));
+        Signature claimingOtherKey =
+                signature.toBuilder().setPublicKey(KEY_PAIR_ALT.getPublicKey()).build();
+        assertFalse(cache.validateMessage(claimingOtherKey, SAMPLE_MESSAGE.toByteArray()));
+    }
+
+    @Test
+    public void testImportPublicKeyReused() {
+        assertSame(cache.importPublicKey(KEY_PAIR.getPublicKey()),
+                cache.importPublicKey(KEY_PAIR.getPublicKey()));
+        assertEquals(1, cache.publicKeyStats().hitCount());
+    }
+
+    @Test
+    public void testImportPublicKeyWithForeignHashNotCached() {
+        Key forged = KEY_PAIR_ALT.getPublicKey().toBuilder()
+                .setHash(KEY_PAIR.getPublicKey().getHash()).build();
+        cache.importPublicKey(forged);
+        assertEquals(KeyUtils.importPublicKey(KEY_PAIR.getPublicKey()),
+                cache.importPublicKey(KEY_PAIR.getPublicKey()));
+        assertEquals(0, cache.publicKeyStats().hitCount());
+    }
+}
@@ -0,0 +1,163 @@
+package moe.cdn.cweb.dht.storage;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.google.common.util.concurrent.Futures;
+
+import moe.cdn.cweb.SecurityProtos.Hash;
+import moe.cdn.cweb.SecurityProtos.KeyPair;
+import moe.cdn.cweb.TorrentTrustProtos.SignedVote;
+import moe.cdn.cweb.TorrentTrustProtos.SignedVoteHistory;
+import moe.cdn.cweb.TorrentTrustProtos.Vote;
+import moe.cdn.cweb.TorrentTrustProtos.VoteHistory;
+import moe.cdn.cweb.dht.security.BatchValidator;
+import moe.cdn.cweb.dht.security.CwebSignatureValidationService;
+import moe.cdn.cweb.dht.util.Number160s;
+import moe.cdn.cweb.security.CwebMisc;
+import moe.cdn.cweb.security.utils.HashUtils;
+import moe.cdn.cweb.security.utils.KeyUtils;
+import moe.cdn.cweb.security.utils.SignatureUtils;
+import moe.cdn.cweb.security.utils.SignedMessage;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+public class IncomingDataValidatorTest {
+    private static final Number160 VOTE_DOMAIN = Number160.createHash("vote");
+    private static final Number160 USER_DOMAIN = Number160.createHash("user");
+    private static final Number160 VOTE_HISTORY_DOMAIN = Number160.createHash("history");
+    private static final KeyPair VICTIM = KeyUtils.generateKeyPair();
+    private static final KeyPair ATTACKER = KeyUtils.generateKeyPair();
+    private static final Hash CONTENT_HASH = HashUtils.hashOf("Hello World");
+
+    @Mock
+    private CwebSignatureValidationService signatureValidationService;
+
+    private IncomingDataValidator validator;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        // Every signature is good, so only the slot decides
+        when(signatureValidationService
+                .validateVote(ArgumentMatchers.<SignedMessage<Vote>>any())).thenReturn(true);
+        when(signatureValidationService
+                .validateVoteAsync(ArgumentMatchers.<SignedMessage<Vote>>any()))
+                .thenReturn(Futures.immediateFuture(true));
+        when(signatureValidationService.validateVoteHistory(
+                ArgumentMatchers.<SignedMessage<VoteHistory>>any())).thenReturn(true);
+        when(signatureValidationService.validateVoteHistoryAsync(
+                ArgumentMatchers.<SignedMessage<VoteHistory>>any()))
+                .thenReturn(Futures.immediateFuture(true));
+        validator = new IncomingDataValidator(VOTE_DOMAIN, USER_DOMAIN, VOTE_HISTORY_DOMAIN,
+                signatureValidationService, new BatchValidator());
+    }
+
+    private static Number640 slot(Hash contentHash, KeyPair owner) {
+        return new Number640(reduce(contentHash), VOTE_DOMAIN,
+                reduce(owner.getPublicKey().getHash()), Number160.ZERO);
+    }
+
+    private static Number160 reduce(Hash hash) {
+        return Number160s.fromCwebId(CwebMisc.CWEB_ID_REDUCER.apply(hash));
+    }
+
+    private static Data signedVote(KeyPair owner, Hash contentHash) throws Exception {
+        Vote vote = Vote.newBuilder().setContentHash(contentHash)
+                .setOwnerPublicKey(owner.getPublicKey()).build();
+        return new Data(SignedVote.newBuilder().setVote(vote)
+                .setSignature(SignatureUtils.signMessage(owner, vote)).build().toByteArray());
+    }
+
+    private static Number640 historySlot(Hash key) {
+        return new Number640(reduce(key), VOTE_HISTORY_DOMAIN, Number160.ZERO, Number160.ZERO);
+    }
+
+    private static Data signedHistory(KeyPair signer, VoteHistory history) throws Exception {
+        return new Data(SignedVoteHistory.newBuilder().setHistory(history)
+                .setSignature(SignatureUtils.signMessage(signer, history)).build().toByteArray());
+    }
+
+    @Test
+    public void testAcceptsVoteInOwnSlot() throws Exception {
+        Data vote = signedVote(VICTIM, CONTENT_HASH);
+        assertTrue(validator.validate(slot(CONTENT_HASH, VICTIM), vote));
+        assertTrue(validator.validateAsync(slot(CONTENT_HASH, VICTIM), vote).get());
+    }
+
+    @Test
+    public void testRejectsVoteInAnotherUsersSlot() throws Exception {
+        // A validly signed vote that would overwrite the victim's vote
+        Data vote = signedVote(ATTACKER, CONTENT_HASH);
+        assertFalse(validator.validate(slot(CONTENT_HASH, VICTIM), vote));
+        assertFalse(validator.validateAsync(slot(CONTENT_HASH, VICTIM), vote).get());
+    }
+
+    @Test
+    public void testParsedVoteNeedsUnknownOwnerLookedUp() throws Exception {
+        when(signatureValidationService.isOwnerKnown(VICTIM.getPublicKey())).thenReturn(false);
+        when(signatureValidationService.isOwnerKnown(ATTACKER.getPublicKey())).thenReturn(true);
+        IncomingDataValidator.Incoming unknown =
+                validator.parse(slot(CONTENT_HASH, VICTIM), signedVote(VICTIM, CONTENT_HASH));
+        IncomingDataValidator.Incoming known =
+                validator.parse(slot(CONTENT_HASH, ATTACKER), signedVote(ATTACKER, CONTENT_HASH));
+        assertTrue(validator.needsOwnerLookup(unknown));
+        assertFalse(validator.needsOwnerLookup(known));
+        assertTrue(validator.validateAsync(unknown).get());
+    }
+
+    @Test
+    public void testUnparseableDataNeedsNoLookupAndFails() {
+        IncomingDataValidator.Incoming garbage = validator.parse(slot(CONTENT_HASH, VICTIM),
+                new Data(new byte[] {-1, -1, -1}));
+        assertFalse(validator.needsOwnerLookup(garbage));
+        assertFalse(validator.validate(garbage));
+    }
+
+    @Test
+    public void testAcceptsOwnHistoryAndSegment() throws Exception {
+        VoteHistory head = VoteHistory.newBuilder().setOwnerPublicKey(VICTIM.getPublicKey())
+                .setSegmentCount(2).build();
+        VoteHistory segment = VoteHistory.newBuilder().setOwnerPublicKey(VICTIM.getPublicKey())
+                .setSegment(1).addContentHash(CONTENT_HASH).build();
+        Number640 segmentSlot =
+                historySlot(CwebMisc.voteHistorySegmentKey(VICTIM.getPublicKey(), 1));
+        assertTrue(validator.validate(historySlot(VICTIM.getPublicKey().getHash()),
+                signedHistory(VICTIM, head)));
+        assertTrue(validator.validate(segmentSlot, signedHistory(VICTIM, segment)));
+        assertTrue(validator.validateAsync(segmentSlot, signedHistory(VICTIM, segment)).get());
+    }
+
+    @Test
+    public void testRejectsHistoryNotSignedByOwner() throws Exception {
+        // Names the victim as owner, but is signed by another registered user
+        VoteHistory forged = VoteHistory.newBuilder().setOwnerPublicKey(VICTIM.getPublicKey())
+                .setSegment(1).addContentHash(CONTENT_HASH).build();
+        Number640 segmentSlot =
+                historySlot(CwebMisc.voteHistorySegmentKey(VICTIM.getPublicKey(), 1));
+        assertFalse(validator.validate(segmentSlot, signedHistory(ATTACKER, forged)));
+        assertFalse(validator.validateAsync(segmentSlot, signedHistory(ATTACKER, forged)).get());
+    }
+
+    @Test
+    public void testRejectsHistoryInAnotherUsersSlot() throws Exception {
+        VoteHistory own = VoteHistory.newBuilder().setOwnerPublicKey(ATTACKER.getPublicKey())
+                .setSegmentCount(1).build();
+        assertFalse(validator.validate(historySlot(VICTIM.getPublicKey().getHash()),
+                signedHistory(ATTACKER, own)));
+    }
+
+    @Test
+    public void testRejectsVoteUnderAnotherObject() throws Exception {
+        Data vote = signedVote(VICTIM, CONTENT_HASH);
+        assertFalse(validator.validate(slot(HashUtils.hashOf("Other"), VICTIM), vote));
+    }
+}
@@ -0,0 +1,122 @@
+package moe.cdn.cweb.dht.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+
+public class OffHeapKeyIndexTest {
+    private static final Number640 MIN_KEY = new Number640(Number160.ZERO, Number160.ZERO,
+            Number160.ZERO, Number160.ZERO);
+    private static final Number640 MAX_KEY = new Number640(Number160.MAX_VALUE,
+            Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE);
+
+    private OffHeapKeyIndex index;
+
+    @Before
+    public void setUp() {
+        // Small pages so that nodes are spread over many of them
+        index = new OffHeapKeyIndex(12);
+    }
+
+    @After
+    public void tearDown() {
+        index.close();
+    }
+
+    private static Number640 key(Random random) {
+        // Few distinct location keys, so that later parts of the key decide
+        return new Number640(new Number160(random.nextInt(4)),
+                new Number160(random.nextInt(3)), new Number160(random), Number160.ZERO);
+    }
+
+    private static List<Number640> scan(KeyIndex index, Number640 from, Number640 to,
+            boolean ascending) {
+        List<Number640> keys = new ArrayList<>();
+        index.scan(from, to, ascending, (key, address) -> keys.add(key));
+        return keys;
+    }
+
+    @Test
+    public void testEmpty() {
+        Number640 key = key(new Random(0));
+        assertEquals(KeyIndex.NONE, index.get(key));
+        assertEquals(KeyIndex.NONE, index.remove(key));
+        assertFalse(index.replace(key, 1, 2));
+        assertEquals(0, index.count(MIN_KEY, MAX_KEY));
+        assertTrue(scan(index, MIN_KEY, MAX_KEY, false).isEmpty());
+    }
+
+    @Test
+    public void testMatchesTreeMap() {
+        Random random = new Random(42);
+        NavigableMap<Number640, Long> expected = new TreeMap<>();
+        List<Number640> keys = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            int op = random.nextInt(10);
+            if (op < 6 || keys.isEmpty()) {
+                Number640 key = key(random);
+                keys.add(key);
+                Long previous = expected.put(key, (long) i);
+                assertEquals(previous == null ? KeyIndex.NONE : previous, index.put(key, i));
+            } else if (op < 9) {
+                Number640 key = keys.get(random.nextInt(keys.size()));
+                Long previous = expected.remove(key);
+                assertEquals(previous == null ? KeyIndex.NONE : previous, index.remove(key));
+            } else {
+                Number640 key = keys.get(random.nextInt(keys.size()));
+                Long current = expected.get(key);
+                assertEquals(current != null, index.replace(key, current == null ? 0 : current,
+                        -i));
+                if (current != null) {
+                    expected.put(key, (long) -i);
+                }
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        for (Map.Entry<Number640, Long> entry : expected.entrySet()) {
+            assertEquals((long) entry.getValue(), index.get(entry.getKey()));
+        }
+        assertEquals(new ArrayList<>(expected.keySet()), scan(index, MIN_KEY, MAX_KEY, true));
+
+        for (int i = 0; i < 50; i++) {
+            Number640 a = keys.get(random.nextInt(keys.size()));
+            Number640 b = keys.get(random.nextInt(keys.size()));
+            Number640 from = a.compareTo(b) <= 0 ? a : b;
+            Number640 to = a.compareTo(b) <= 0 ? b : a;
+            NavigableMap<Number640, Long> range = expected.subMap(from, true, to, true);
+            assertEquals(range.size(), index.count(from, to));
+            assertEquals(new ArrayList<>(range.keySet()), scan(index, from, to, true));
+            assertEquals(new ArrayList<>(range.descendingKeySet()),
+                    scan(index, from, to, false));
+        }
+    }
+
+    @Test
+    public void testScanStopsWhenAsked() {
+        Random random = new Random(7);
+        for (int i = 0; i < 100; i++) {
+            index.put(key(random), i);
+        }
+        List<Number640> visited = new ArrayList<>();
+        index.scan(MIN_KEY, MAX_KEY, false, (key, address) -> {
+            visited.add(key);
+            return visited.size() < 3;
+        });
+        assertEquals(3, visited.size());
+        assertTrue(visited.get(0).compareTo(visited.get(1)) > 0);
+    }
+}
@@ -0,0 +1,73 @@
+package moe.cdn.cweb.dht.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+
+public class PendingValidationQueueTest {
+    private static final Number640 KEY =
+            new Number640(Number160.ONE, Number160.ONE, Number160.ONE, Number160.ZERO);
+    private static final Number640 OTHER_KEY =
+            new Number640(Number160.ONE, Number160.ONE, Number160.ZERO, Number160.ZERO);
+
+    @Test
+    public void testAppliedOnceValid() {
+        PendingValidationQueue queue = new PendingValidationQueue();
+        SettableFuture<Boolean> validation = SettableFuture.create();
+        AtomicInteger applied = new AtomicInteger();
+        assertTrue(queue.park(KEY, validation, applied::incrementAndGet));
+        assertEquals(0, applied.get());
+        validation.set(true);
+        assertEquals(1, applied.get());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testDroppedWhenInvalid() {
+        PendingValidationQueue queue = new PendingValidationQueue();
+        SettableFuture<Boolean> validation = SettableFuture.create();
+        AtomicInteger applied = new AtomicInteger();
+        queue.park(KEY, validation, applied::incrementAndGet);
+        validation.set(false);
+        assertEquals(0, applied.get());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testSuperseded() {
+        PendingValidationQueue queue = new PendingValidationQueue();
+        SettableFuture<Boolean> first = SettableFuture.create();
+        SettableFuture<Boolean> second = SettableFuture.create();
+        AtomicInteger applied = new AtomicInteger();
+        queue.park(KEY, first, () -> applied.addAndGet(1));
+        queue.park(KEY, second, () -> applied.addAndGet(10));
+        second.set(true);
+        first.set(true);
+        assertEquals(10, applied.get());
+
+        SettableFuture<Boolean> third = SettableFuture.create();
+        queue.park(KEY, third, () -> applied.addAndGet(100));
+        queue.supersede(KEY);
+        third.set(true);
+        assertEquals(10, applied.get());
+    }
+
+    @Test
+    public void testFull() {
+        PendingValidationQueue queue = new PendingValidationQueue(1);
+        assertTrue(queue.park(KEY, SettableFuture.create(), () -> {
+        }));
+        assertFalse(queue.park(OTHER_KEY, SettableFuture.create(), () -> {
+        }));
+        assertEquals(1, queue.size());
+    }
+}
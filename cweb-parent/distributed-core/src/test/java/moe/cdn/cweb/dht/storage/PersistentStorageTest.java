@@ -0,0 +1,146 @@
+package moe.cdn.cweb.dht.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+public class PersistentStorageTest {
+    private static final Number640 KEY_1 =
+            new Number640(Number160.ONE, Number160.ONE, Number160.ONE, Number160.ZERO);
+    private static final Number640 KEY_2 =
+            new Number640(Number160.ONE, Number160.ONE, Number160.MAX_VALUE, Number160.ZERO);
+    private static final Number640 KEY_3 =
+            new Number640(Number160.MAX_VALUE, Number160.ONE, Number160.ONE, Number160.ZERO);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRestoredAfterRestart() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PersistentStorage storage = new PersistentStorage(directory, new SkipListKeyIndex());
+        storage.put(KEY_1, new Data(new byte[] {1}));
+        storage.put(KEY_2, new Data(new byte[] {2}));
+        storage.put(KEY_1, new Data(new byte[] {3}));
+        storage.put(KEY_3, new Data(new byte[] {4}));
+        storage.remove(KEY_3, false);
+        storage.addTimeout(KEY_2, 1000);
+        storage.close();
+
+        PersistentStorage restored = new PersistentStorage(directory, new SkipListKeyIndex());
+        assertArrayEquals(new byte[] {3}, restored.get(KEY_1).toBytes());
+        assertArrayEquals(new byte[] {2}, restored.get(KEY_2).toBytes());
+        assertFalse(restored.contains(KEY_3));
+        assertTrue(restored.subMapTimeout(2000).contains(KEY_2));
+        restored.close();
+    }
+
+    @Test
+    public void testRangeRemoveRestored() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PersistentStorage storage = new PersistentStorage(directory, new SkipListKeyIndex());
+        storage.put(KEY_1, new Data(new byte[] {1}));
+        storage.put(KEY_2, new Data(new byte[] {2}));
+        storage.put(KEY_3, new Data(new byte[] {3}));
+        assertEquals(2, storage.remove(KEY_1, KEY_2).size());
+        storage.close();
+
+        PersistentStorage restored = new PersistentStorage(directory, new SkipListKeyIndex());
+        assertEquals(1, restored.map().size());
+        assertTrue(restored.contains(KEY_3));
+        restored.close();
+    }
+
+    @Test
+    public void testTornRecordDropped() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PersistentStorage storage = new PersistentStorage(directory, new SkipListKeyIndex());
+        storage.put(KEY_1, new Data(new byte[] {1}));
+        storage.put(KEY_2, new Data(new byte[] {2}));
+        storage.close();
+        // Corrupt the value of the second record
+        int recordBytes = SegmentLog.PUT_VALUE_OFFSET + 1;
+        Path segment = SegmentLog.segmentPath(directory, 0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {42}),
+                    recordBytes + SegmentLog.PUT_VALUE_OFFSET);
+        }
+
+        PersistentStorage restored = new PersistentStorage(directory, new SkipListKeyIndex());
+        assertArrayEquals(new byte[] {1}, restored.get(KEY_1).toBytes());
+        assertNull(restored.get(KEY_2));
+        // Appending after the cut leaves a readable log
+        restored.put(KEY_3, new Data(new byte[] {3}));
+        restored.close();
+        assertTrue(new PersistentStorage(directory, new SkipListKeyIndex()).contains(KEY_3));
+    }
+
+    @Test
+    public void testValuesAreViewsOfSegments() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PersistentStorage storage = new PersistentStorage(directory, new SkipListKeyIndex());
+        storage.put(KEY_1, new Data(new byte[] {1, 2, 3}).ttlSeconds(60));
+        Data data = storage.get(KEY_1);
+        assertArrayEquals(new byte[] {1, 2, 3}, data.toBytes());
+        assertEquals(60, data.ttlSeconds());
+        assertArrayEquals(new byte[] {1, 2, 3}, storage.put(KEY_1, new Data(new byte[] {4}))
+                .toBytes());
+        storage.close();
+    }
+
+    @Test
+    public void testCompactionReclaimsSupersededPuts() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PersistentStorage storage = new PersistentStorage(directory, new OffHeapKeyIndex(),
+                1024);
+        for (int i = 0; i < 100; i++) {
+            storage.put(KEY_1, new Data(new byte[] {(byte) i}));
+            storage.put(KEY_2, new Data(new byte[] {(byte) -i}));
+        }
+        storage.put(KEY_3, new Data(new byte[] {3}));
+        storage.remove(KEY_3, false);
+        storage.addTimeout(KEY_2, 1000);
+        int segments = storage.segmentCount();
+        assertTrue(segments > 2);
+
+        assertTrue(storage.compact() > 0);
+        assertTrue(storage.segmentCount() < segments);
+        assertArrayEquals(new byte[] {99}, storage.get(KEY_1).toBytes());
+        assertTrue(countMissingSegments(directory, segments) > 0);
+        storage.close();
+
+        PersistentStorage restored = new PersistentStorage(directory, new OffHeapKeyIndex(),
+                1024);
+        assertArrayEquals(new byte[] {99}, restored.get(KEY_1).toBytes());
+        assertArrayEquals(new byte[] {-99}, restored.get(KEY_2).toBytes());
+        assertFalse(restored.contains(KEY_3));
+        assertTrue(restored.subMapTimeout(2000).contains(KEY_2));
+        restored.close();
+    }
+
+    private static int countMissingSegments(Path directory, int segments) {
+        int missing = 0;
+        for (int i = 0; i < segments; i++) {
+            if (!Files.exists(SegmentLog.segmentPath(directory, i))) {
+                missing++;
+            }
+        }
+        return missing;
+    }
+}
@@ -0,0 +1,148 @@
+package moe.cdn.cweb.dht.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.tomp2p.dht.StorageMemory;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+public class WriteAheadLogTest {
+    private static final Number640 KEY_1 =
+            new Number640(Number160.ONE, Number160.ONE, Number160.ONE, Number160.ZERO);
+    private static final Number640 KEY_2 =
+            new Number640(Number160.ONE, Number160.ONE, Number160.MAX_VALUE, Number160.ZERO);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplayedIntoStorage() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog log = WriteAheadLog.open(directory, new StorageMemory());
+        log.appendPut(KEY_1, new Data(new byte[] {1}));
+        log.appendPut(KEY_2, new Data(new byte[] {2}));
+        log.appendPut(KEY_1, new Data(new byte[] {3}));
+        log.awaitDurable(log.appendRemove(KEY_2));
+        log.close();
+
+        StorageMemory storage = new StorageMemory();
+        WriteAheadLog.open(directory, storage).close();
+        assertArrayEquals(new byte[] {3}, storage.get(KEY_1).toBytes());
+        assertFalse(storage.contains(KEY_2));
+    }
+
+    @Test
+    public void testTornRecordDropped() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog log = WriteAheadLog.open(directory, new StorageMemory());
+        log.appendPut(KEY_1, new Data(new byte[] {1}));
+        log.awaitDurable(log.appendPut(KEY_2, new Data(new byte[] {2})));
+        log.close();
+        Path file = directory.resolve(WriteAheadLog.FILE_NAME);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+
+        StorageMemory storage = new StorageMemory();
+        log = WriteAheadLog.open(directory, storage);
+        assertTrue(storage.contains(KEY_1));
+        assertFalse(storage.contains(KEY_2));
+        // Appending after the cut leaves a readable log
+        log.awaitDurable(log.appendPut(KEY_2, new Data(new byte[] {4})));
+        log.close();
+        storage = new StorageMemory();
+        WriteAheadLog.open(directory, storage).close();
+        assertArrayEquals(new byte[] {4}, storage.get(KEY_2).toBytes());
+    }
+
+    @Test
+    public void testCompactionKeepsLatestValues() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        Path file = directory.resolve(WriteAheadLog.FILE_NAME);
+        WriteAheadLog log = WriteAheadLog.open(directory, new StorageMemory());
+        for (int i = 0; i < 100; i++) {
+            log.appendPut(KEY_1, new Data(new byte[] {(byte) i}));
+        }
+        log.appendPut(KEY_2, new Data(new byte[] {2}));
+        long position = log.appendRemove(KEY_2);
+        long uncompacted = Files.size(file);
+        log.compact();
+        assertTrue(Files.size(file) < uncompacted);
+        // Positions handed out before the compaction are still valid
+        log.awaitDurable(position);
+        log.awaitDurable(log.appendPut(KEY_2, new Data(new byte[] {3})));
+        log.close();
+
+        StorageMemory storage = new StorageMemory();
+        WriteAheadLog.open(directory, storage).close();
+        assertArrayEquals(new byte[] {99}, storage.get(KEY_1).toBytes());
+        assertArrayEquals(new byte[] {3}, storage.get(KEY_2).toBytes());
+    }
+
+    @Test
+    public void testCompactionKeepsExpiration() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog log = WriteAheadLog.open(directory, new StorageMemory());
+        log.appendPut(KEY_1, new Data(new byte[] {1}).ttlSeconds(3600));
+        long latestExpiration = System.currentTimeMillis() + 3600 * 1000L;
+        // A compaction that logged the TTL again would expire later than this
+        Thread.sleep(100);
+        log.compact();
+        log.close();
+
+        StorageMemory storage = new StorageMemory();
+        WriteAheadLog.open(directory, storage).close();
+        assertTrue(storage.subMapTimeout(latestExpiration + 1).contains(KEY_1));
+    }
+
+    @Test
+    public void testConcurrentWritersShareSyncs() throws Exception {
+        WriteAheadLog log = WriteAheadLog.open(folder.getRoot().toPath(), new StorageMemory());
+        int writers = 8;
+        int putsPerWriter = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                int writer = w;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < putsPerWriter; i++) {
+                        Number640 key = new Number640(new Number160(writer), Number160.ONE,
+                                new Number160(i), Number160.ZERO);
+                        log.awaitDurable(log.appendPut(key, new Data(new byte[] {(byte) i})));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(log.syncCount() <= writers * putsPerWriter);
+        log.close();
+
+        StorageMemory storage = new StorageMemory();
+        WriteAheadLog.open(folder.getRoot().toPath(), storage).close();
+        assertEquals(writers * putsPerWriter, storage.map().size());
+    }
+}
@@ -7,10 +7,12 @@ import java.math.BigInteger;
 import java.util.Base64;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -27,6 +29,7 @@ import moe.cdn.cweb.SecurityProtos.KeyPair;
 import moe.cdn.cweb.dht.KeyEnvironment;
 import moe.cdn.cweb.security.utils.HashUtils;
 import moe.cdn.cweb.security.utils.KeyUtils;
+import moe.cdn.cweb.security.utils.MessageSigner;
 import moe.cdn.cweb.security.utils.Representations;
 
 public class IdentityEnvironment implements KeyEnvironment, Iterable<KeyPair> {
@@ -42,6 +45,7 @@ public class IdentityEnvironment implements KeyEnvironment, Iterable<KeyPair> {
     };
 
     private final SortedMap<KeyPair, String> identities;
+    private final Map<KeyPair, MessageSigner> signers = new ConcurrentHashMap<>();
     private Optional<KeyPair> currentIdentity;
 
     private IdentityEnvironment() {
@@ -156,6 +160,15 @@ public class IdentityEnvironment implements KeyEnvironment, Iterable<KeyPair> {
         return currentIdentity.get();
     }
 
+    /**
+     * Returns the signer of the current identity. Each identity keeps its
+     * signer, so switching back and forth does not decode keys again.
+     */
+    @Override
+    public MessageSigner getSigner() {
+        return signers.computeIfAbsent(getKeyPair(), MessageSigner::forKeyPair);
+    }
+
     /**
      * Gets the handle that was configured in the config file. This should be
      * the same as the one in the DHT but is not necessarily the case.
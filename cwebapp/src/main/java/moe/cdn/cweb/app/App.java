@@ -15,6 +15,7 @@ import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.HandlerList;
 import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 
@@ -98,9 +99,15 @@ public class App {
         servletHandler.setInitParameter(DHT_PORT_1_INIT_PARAM, String.valueOf(dhtPort1));
         servletHandler.setInitParameter(DHT_PORT_2_INIT_PARAM, String.valueOf(dhtPort2));
 
-        servletHandler.addFilter(GuiceFilter.class, "/*", EnumSet.allOf(DispatcherType.class));
+        // Resources such as the trust rating suspend the request while the
+        // DHT lookups complete, which needs async support along the chain
+        FilterHolder guiceFilter = servletHandler.addFilter(GuiceFilter.class, "/*",
+                EnumSet.allOf(DispatcherType.class));
+        guiceFilter.setAsyncSupported(true);
 
-        servletHandler.addServlet(new ServletHolder(new DefaultServlet()), "/");
+        ServletHolder defaultServlet = new ServletHolder(new DefaultServlet());
+        defaultServlet.setAsyncSupported(true);
+        servletHandler.addServlet(defaultServlet, "/");
         servletHandler.addEventListener(new CwebGuiceServletConfig());
         servletHandler.addEventListener(new CwebApiService());
 
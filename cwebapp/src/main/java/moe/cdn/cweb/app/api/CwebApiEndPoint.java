@@ -5,6 +5,7 @@ import java.nio.file.Path;
 import javax.servlet.ServletContext;
 import javax.ws.rs.core.Context;
 
+import moe.cdn.cweb.AsyncTrustApi;
 import moe.cdn.cweb.CwebApi;
 import moe.cdn.cweb.GlobalEnvironment;
 import moe.cdn.cweb.IdentityEnvironment;
@@ -64,4 +65,8 @@ public abstract class CwebApiEndPoint {
     protected TrustApi getCwebTrustApi() {
         return (TrustApi) servletContext.getAttribute(TrustApi.class.getName());
     }
+
+    protected AsyncTrustApi getCwebAsyncTrustApi() {
+        return (AsyncTrustApi) servletContext.getAttribute(AsyncTrustApi.class.getName());
+    }
 }
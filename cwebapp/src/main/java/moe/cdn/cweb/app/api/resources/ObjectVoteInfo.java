@@ -1,7 +1,11 @@
 package moe.cdn.cweb.app.api.resources;
 
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.ByteString;
-import moe.cdn.cweb.CwebApiException;
+import moe.cdn.cweb.AsyncTrustApi;
 import moe.cdn.cweb.SecurityProtos;
 import moe.cdn.cweb.SecurityProtos.Hash;
 import moe.cdn.cweb.SecurityProtos.Hash.HashAlgorithm;
@@ -10,11 +14,17 @@ import moe.cdn.cweb.TorrentTrustProtos.Vote;
 import moe.cdn.cweb.TrustApi;
 import moe.cdn.cweb.app.api.CwebApiEndPoint;
 import moe.cdn.cweb.app.api.exceptions.NoSuchUserException;
+import moe.cdn.cweb.app.dto.ObjectRating;
+import moe.cdn.cweb.app.dto.ObjectRatings;
 import moe.cdn.cweb.app.dto.TrustRating;
 
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import java.security.InvalidKeyException;
 import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
@@ -22,7 +32,7 @@ import java.util.stream.Collectors;
 /**
  * @author davix
  */
-@Path("object/{hash}")
+@Path("object")
 @Produces("application/json")
 public class ObjectVoteInfo extends CwebApiEndPoint {
     private static final String DEFAULT_CONTENT_PROPERTY = "appraisal";
@@ -32,29 +42,47 @@ public class ObjectVoteInfo extends CwebApiEndPoint {
     }
 
     @GET
-    @Path("{algo}")
-    public TrustRating getTrustRating(@PathParam("hash") String hash,
-                                      @PathParam("algo") String algo)
-            throws ExecutionException, InterruptedException, CwebApiException {
-        Optional<TorrentTrustProtos.User> user = getCwebIdentityApi().getUserIdentity().get();
+    @Path("{hash}/{algo}")
+    public void getTrustRating(@PathParam("hash") String hash,
+                               @PathParam("algo") String algo,
+                               @Suspended AsyncResponse asyncResponse) {
         TrustApi.TrustMetric trustMetric;
         try {
             trustMetric = TrustApi.TrustMetric.valueOf(algo);
         } catch (IllegalArgumentException e) {
             throw new BadRequestException("Unknown trust metric: " + algo, e);
         }
-        if (user.isPresent()) {
-            return new TrustRating(getCwebTrustApi().trustForObject(user.get(),
-                    Vote.Assertion.newBuilder().setContentProperty(DEFAULT_CONTENT_PROPERTY)
-                            .build(),
-                    Hash.newBuilder().setHashValue(parseHash(hash))
-                            .setAlgorithm(SecurityProtos.Hash.HashAlgorithm.TORRENT).build(),
-                    trustMetric), trustMetric.name());
-        }
-        throw new NoSuchUserException("Current user does not exist in the network");
+        AsyncTrustApi trustApi = getCwebAsyncTrustApi();
+        ListenableFuture<Double> rating = Futures.transform(
+                getCwebIdentityApi().getUserIdentity(),
+                (AsyncFunction<Optional<TorrentTrustProtos.User>, Double>) user -> {
+                    if (!user.isPresent()) {
+                        throw new NoSuchUserException(
+                                "Current user does not exist in the network");
+                    }
+                    return trustApi.trustForObject(user.get(),
+                            Vote.Assertion.newBuilder()
+                                    .setContentProperty(DEFAULT_CONTENT_PROPERTY).build(),
+                            Hash.newBuilder().setHashValue(parseHash(hash))
+                                    .setAlgorithm(SecurityProtos.Hash.HashAlgorithm.TORRENT)
+                                    .build(),
+                            trustMetric);
+                });
+        Futures.addCallback(rating, new FutureCallback<Double>() {
+            @Override
+            public void onSuccess(Double result) {
+                asyncResponse.resume(new TrustRating(result, trustMetric.name()));
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                asyncResponse.resume(t);
+            }
+        });
     }
 
     @GET
+    @Path("{hash}")
     @Produces({"text/plain"})
     public String getVoteHistory(@PathParam("hash") String hash) throws SignatureException,
             InvalidKeyException, ExecutionException, InterruptedException {
@@ -65,38 +93,74 @@ public class ObjectVoteInfo extends CwebApiEndPoint {
     }
 
     @POST
-    @Path("up")
+    @Path("{hash}/up")
     public void upVote(@PathParam("hash") String hash) throws SignatureException,
             InvalidKeyException, ExecutionException, InterruptedException {
-        if (!getCwebVoteApi()
-                .castVote(TorrentTrustProtos.Vote.newBuilder()
-                        .addAssertion(TorrentTrustProtos.Vote.Assertion.newBuilder()
-                                .setContentProperty(DEFAULT_CONTENT_PROPERTY)
-                                .setRating(TorrentTrustProtos.Vote.Assertion.Rating.GOOD))
-                        .setContentHash(SecurityProtos.Hash.newBuilder()
-                                .setAlgorithm(SecurityProtos.Hash.HashAlgorithm.TORRENT)
-                                .setHashValue(parseHash(hash)))
-                        .setOwnerPublicKey(getCwebIdentities().getKeyPair().getPublicKey()).build())
-                .get()) {
+        if (!getCwebVoteApi().castVote(vote(hash, Vote.Assertion.Rating.GOOD)).get()) {
             throw new RuntimeException("Didn't work!");
         }
     }
 
     @POST
-    @Path("down")
+    @Path("{hash}/down")
     public void downVote(@PathParam("hash") String hash) throws SignatureException,
             InvalidKeyException, ExecutionException, InterruptedException {
-        if (!getCwebVoteApi()
-                .castVote(TorrentTrustProtos.Vote.newBuilder()
-                        .addAssertion(TorrentTrustProtos.Vote.Assertion.newBuilder()
-                                .setContentProperty(DEFAULT_CONTENT_PROPERTY)
-                                .setRating(TorrentTrustProtos.Vote.Assertion.Rating.BAD))
-                        .setContentHash(SecurityProtos.Hash.newBuilder()
-                                .setAlgorithm(SecurityProtos.Hash.HashAlgorithm.TORRENT)
-                                .setHashValue(parseHash(hash)))
-                        .setOwnerPublicKey(getCwebIdentities().getKeyPair().getPublicKey()).build())
-                .get()) {
+        if (!getCwebVoteApi().castVote(vote(hash, Vote.Assertion.Rating.BAD)).get()) {
             throw new RuntimeException("Didn't work!");
         }
     }
+
+    /**
+     * Casts votes on several objects at once, and responds with the same
+     * ratings, each with whether it was cast.
+     *
+     * @param ratings hashes of objects and the names of their ratings
+     */
+    @POST
+    @Path("votes")
+    @Consumes("application/json")
+    public void castVotes(ObjectRatings ratings, @Suspended AsyncResponse asyncResponse)
+            throws SignatureException, InvalidKeyException {
+        if (ratings == null || ratings.getRatings() == null || ratings.getRatings().isEmpty()) {
+            throw new BadRequestException("Expected a non-empty list of ratings");
+        }
+        List<Vote> votes = new ArrayList<>();
+        for (ObjectRating rating : ratings.getRatings()) {
+            if (rating == null || rating.getHash() == null || rating.getRating() == null) {
+                throw new BadRequestException("Each rating needs a hash and a rating");
+            }
+            Vote.Assertion.Rating value;
+            try {
+                value = Vote.Assertion.Rating.valueOf(rating.getRating());
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestException("Unknown rating: " + rating.getRating(), e);
+            }
+            votes.add(vote(rating.getHash(), value));
+        }
+        Futures.addCallback(getCwebVoteApi().castVotes(votes), new FutureCallback<List<Boolean>>() {
+            @Override
+            public void onSuccess(List<Boolean> cast) {
+                List<ObjectRating> result = new ArrayList<>();
+                for (int i = 0; i < cast.size(); i++) {
+                    ObjectRating rating = ratings.getRatings().get(i);
+                    result.add(new ObjectRating(rating.getHash(), rating.getRating(), cast.get(i)));
+                }
+                asyncResponse.resume(new ObjectRatings(result));
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                asyncResponse.resume(t);
+            }
+        });
+    }
+
+    private Vote vote(String hash, Vote.Assertion.Rating rating) {
+        return Vote.newBuilder()
+                .addAssertion(Vote.Assertion.newBuilder()
+                        .setContentProperty(DEFAULT_CONTENT_PROPERTY).setRating(rating))
+                .setContentHash(Hash.newBuilder().setAlgorithm(HashAlgorithm.TORRENT)
+                        .setHashValue(parseHash(hash)))
+                .setOwnerPublicKey(getCwebIdentities().getKeyPair().getPublicKey()).build();
+    }
 }
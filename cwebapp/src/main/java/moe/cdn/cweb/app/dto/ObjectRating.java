@@ -0,0 +1,55 @@
+package moe.cdn.cweb.app.dto;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * A rating of an object by the current identity, and whether it was cast.
+ */
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.FIELD)
+public class ObjectRating {
+    private String hash;
+    private String rating;
+    private Boolean cast;
+
+    public ObjectRating() {
+    }
+
+    public ObjectRating(String hash, String rating, Boolean cast) {
+        this.hash = hash;
+        this.rating = rating;
+        this.cast = cast;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    /**
+     * @return name of a {@code Vote.Assertion.Rating}
+     */
+    public String getRating() {
+        return rating;
+    }
+
+    public void setRating(String rating) {
+        this.rating = rating;
+    }
+
+    /**
+     * @return whether the vote was cast, or null in a request
+     */
+    public Boolean getCast() {
+        return cast;
+    }
+
+    public void setCast(Boolean cast) {
+        this.cast = cast;
+    }
+}
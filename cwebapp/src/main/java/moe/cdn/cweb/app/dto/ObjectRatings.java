@@ -0,0 +1,29 @@
+package moe.cdn.cweb.app.dto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.FIELD)
+public class ObjectRatings {
+    private List<ObjectRating> ratings = new ArrayList<>();
+
+    public ObjectRatings() {
+    }
+
+    public ObjectRatings(List<ObjectRating> ratings) {
+        this.ratings = ratings;
+    }
+
+    public List<ObjectRating> getRatings() {
+        return ratings;
+    }
+
+    public void setRatings(List<ObjectRating> ratings) {
+        this.ratings = ratings;
+    }
+}
@@ -18,6 +18,7 @@ import com.google.inject.Guice;
 import com.google.inject.Injector;
 import com.google.inject.Key;
 
+import moe.cdn.cweb.AsyncTrustApi;
 import moe.cdn.cweb.CwebApi;
 import moe.cdn.cweb.CwebModuleService;
 import moe.cdn.cweb.GlobalEnvironment;
@@ -133,6 +134,7 @@ public class CwebApiService implements ServletContextListener {
         injectAndProvideApi(sce, CwebIdentityApi.class, injector);
         injectAndProvideApi(sce, CwebVoteApi.class, injector);
         injectAndProvideApi(sce, TrustApi.class, injector);
+        injectAndProvideApi(sce, AsyncTrustApi.class, injector);
         injectAndProvideApi(sce, TrustGenerator.class, injector);
 
         primaryNode =